@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.async.Handler;
+import com.googlecode.contraildb.core.async.Result;
+import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.utils.ContrailAction;
+import com.googlecode.contraildb.core.utils.ContrailTask.Operation;
+import com.googlecode.contraildb.core.utils.ContrailTaskTracker;
+
+
+
+/**
+ * Micro-benchmarks for the asynchronous runtime and the task tracker.
+ * 
+ * Usage: AsyncBenchmarks [-rounds n] [-warmup n] [-record file] [-baseline file] [-tolerance t]
+ * 
+ * 		-record		save the scores to the given properties file, 
+ * 					used to create a new baseline.
+ * 		-baseline	compare the scores to the given baseline and exit 
+ * 					with a non-zero status if any benchmark is slower than 
+ * 					its baseline score by more than the tolerance 
+ * 					(a fraction, default 1.0). 
+ * 
+ * Scores are relative, the time per operation of a benchmark divided by 
+ * the time per operation of a calibration loop of plain Java code run on 
+ * the same machine, so that a baseline recorded on one machine can be 
+ * compared with scores from another.
+ * The baseline.properties file at the root of this plugin holds the 
+ * reference scores used by the build.
+ * 
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class AsyncBenchmarks {
+	
+	public static void main(String[] args) throws Exception {
+		int warmup= 5;
+		int rounds= 10;
+		String record= null;
+		String baseline= null;
+		double tolerance= 1.0;
+		for (int i= 0; i < args.length; i++) {
+			String arg= args[i];
+			if (arg.equals("-rounds")) {
+				rounds= Integer.parseInt(args[++i]);
+			}
+			else if (arg.equals("-warmup")) {
+				warmup= Integer.parseInt(args[++i]);
+			}
+			else if (arg.equals("-record")) {
+				record= args[++i];
+			}
+			else if (arg.equals("-baseline")) {
+				baseline= args[++i];
+			}
+			else if (arg.equals("-tolerance")) {
+				tolerance= Double.parseDouble(args[++i]);
+			}
+			else 
+				throw new IllegalArgumentException("Unknown argument: "+arg);
+		}
+		
+		Properties expected= baseline == null ? null : load(baseline);
+		Properties scores= new Properties();
+		int regressions= 0;
+		double calibration= new Calibration().measure(Math.max(warmup, 20), rounds, 100000);
+		System.out.println(String.format("%-32s %12.1f ns/op", "calibration", calibration));
+		for (Object[] b: benchmarks()) {
+			Benchmark benchmark= (Benchmark)b[0];
+			int operations= (Integer)b[1];
+			double time= benchmark.measure(warmup, rounds, operations);
+			double score= time / calibration;
+			scores.setProperty(benchmark.getName(), String.format("%.2f", score));
+			
+			String line= String.format("%-32s %12.1f ns/op %10.2f", benchmark.getName(), time, score);
+			String reference= expected == null ? null : expected.getProperty(benchmark.getName());
+			if (reference != null) {
+				double limit= Double.parseDouble(reference);
+				line+= String.format("   baseline %10.2f   %+6.1f%%", limit, (score - limit) * 100 / limit);
+				if (limit * (1 + tolerance) < score) {
+					line+= "   REGRESSION";
+					regressions++;
+				}
+			}
+			System.out.println(line);
+		}
+		
+		if (record != null)
+			store(scores, record);
+		if (0 < regressions) {
+			System.out.println(regressions+" benchmark(s) slower than baseline");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+	
+	/**
+	 * @return pairs of benchmark and the number of operations per round 
+	 */
+	static List<Object[]> benchmarks() {
+		List<Object[]> benchmarks= new ArrayList<Object[]>();
+		for (int depth: new int[] { 1, 10, 100 })
+			benchmarks.add(new Object[] { new HandlerChain(depth), 10000 / depth });
+		for (int fanIn: new int[] { 10, 100 })
+			benchmarks.add(new Object[] { new CombineResults(fanIn), 10000 / fanIn });
+		benchmarks.add(new Object[] { new SeriesDispatch(), 10000 });
+		benchmarks.add(new Object[] { new HandlerSteps(), 10000 });
+		benchmarks.add(new Object[] { new SubmitToRun(), 10000 });
+		for (int pending: new int[] { 10, 1000 })
+			benchmarks.add(new Object[] { new TrackerSubmit(pending), 1000 });
+		return benchmarks;
+	}
+	
+	
+	/**
+	 * Builds and runs a chain of handlers, each of which returns the result 
+	 * of the next handler in the chain from its onSuccess method.
+	 */
+	static class HandlerChain extends Benchmark {
+		final int _depth;
+		HandlerChain(int depth) {
+			super("handler.chain."+depth);
+			_depth= depth;
+		}
+		protected void run(int operations) {
+			for (int i= 0; i < operations; i++)
+				chain(_depth).get();
+		}
+		static IResult<Void> chain(final int depth) {
+			return new Handler(TaskUtils.DONE) {
+				protected IResult onSuccess() {
+					if (depth <= 1)
+						return TaskUtils.DONE;
+					return chain(depth - 1);
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Combines a number of pending results and then completes them.
+	 */
+	static class CombineResults extends Benchmark {
+		final int _fanIn;
+		CombineResults(int fanIn) {
+			super("combineResults."+fanIn);
+			_fanIn= fanIn;
+		}
+		protected void run(int operations) {
+			for (int i= 0; i < operations; i++) {
+				ArrayList<Result<Void>> results= new ArrayList<Result<Void>>(_fanIn);
+				for (int r= 0; r < _fanIn; r++)
+					results.add(new Result<Void>());
+				IResult<Void> combined= TaskUtils.combineResults(results);
+				for (Result<Void> result: results)
+					result.success(null);
+				combined.get();
+			}
+		}
+	}
+	
+	/**
+	 * Plain Java work, hashing and small allocations, that does not use 
+	 * Contrail. 
+	 * All other scores are relative to this one.
+	 */
+	static class Calibration extends Benchmark {
+		int _sink;
+		Calibration() {
+			super("calibration");
+		}
+		protected void run(int operations) {
+			int sink= 0;
+			for (int i= 0; i < operations; i++) {
+				StringBuilder builder= new StringBuilder();
+				for (int c= 0; c < 16; c++)
+					builder.append((char)('a' + (i + c) % 26));
+				sink+= builder.toString().hashCode();
+			}
+			_sink+= sink; // keep the loop from being optimized away
+		}
+	}
+	
+	/**
+	 * Creates and runs the three step Series in SeriesSteps.
+	 */
+	static class SeriesDispatch extends Benchmark {
+		SeriesDispatch() {
+			super("series.dispatch");
+		}
+		protected void run(int operations) {
+			for (int i= 0; i < operations; i++)
+				SeriesSteps.series();
+		}
+	}
+	
+	/**
+	 * Runs the steps in SeriesSteps as a hand-written chain of handlers, 
+	 * for comparison with SeriesDispatch.
+	 */
+	static class HandlerSteps extends Benchmark {
+		HandlerSteps() {
+			super("handler.steps");
+		}
+		protected void run(int operations) {
+			for (int i= 0; i < operations; i++)
+				SeriesSteps.chain();
+		}
+	}
+	
+	/**
+	 * Measures the latency from submitting a task to the task completing.
+	 */
+	static class SubmitToRun extends Benchmark {
+		SubmitToRun() {
+			super("task.submitToRun");
+		}
+		protected void run(int operations) {
+			for (int i= 0; i < operations; i++) {
+				new ContrailAction() {
+					protected void action() { }
+				}.submit().get();
+			}
+		}
+	}
+	
+	/**
+	 * Measures the cost of submitting a task to a tracker session that 
+	 * already tracks a number of pending tasks.
+	 * The pending tasks are all children of one path and all wait on a 
+	 * write to that path that does not complete until the benchmark is 
+	 * torn down, so they are tracked without occupying a thread.
+	 * Each operation submits a LIST of the parent path, which must be 
+	 * checked against every pending task, and then cancels it.
+	 */
+	static class TrackerSubmit extends Benchmark {
+		final int _pending;
+		ContrailTaskTracker.Session _session;
+		CountDownLatch _gate;
+		Identifier _root;
+		
+		TrackerSubmit(int pending) {
+			super("tracker.submit.pending."+pending);
+			_pending= pending;
+		}
+		protected void setUp() {
+			_session= new ContrailTaskTracker().beginSession();
+			_gate= new CountDownLatch(1);
+			_root= Identifier.create("benchmark");
+			final Identifier items= Identifier.create(_root, "items");
+			_session.submit(new ContrailAction(items, Operation.WRITE) {
+				protected void action() throws Exception {
+					_gate.await();
+				}
+			});
+			for (int i= 0; i < _pending; i++) {
+				_session.submit(new ContrailAction(Identifier.create(items, "item-"+i), Operation.READ) {
+					protected void action() { }
+				});
+			}
+		}
+		protected void run(int operations) {
+			for (int i= 0; i < operations; i++) {
+				ContrailAction list= new ContrailAction(_root, Operation.LIST) {
+					protected void action() { }
+				};
+				_session.submit(list);
+				list.cancel();
+			}
+		}
+		protected void tearDown() {
+			_gate.countDown();
+			// cancelled LIST tasks may not have been removed yet, so the 
+			// combined result may be cancelled
+			_session.complete().join();
+		}
+	}
+	
+	
+	static Properties load(String file) throws IOException {
+		Properties properties= new Properties();
+		InputStream in= new FileInputStream(file);
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return properties;
+	}
+	
+	static void store(Properties properties, String file) throws IOException {
+		OutputStream out= new FileOutputStream(file);
+		try {
+			properties.store(out, "AsyncBenchmarks scores, relative to the calibration loop");
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.benchmarks;
+
+import java.util.Arrays;
+
+
+/**
+ * A minimal micro-benchmark.
+ * A benchmark is set up once, run for a number of warmup rounds that are 
+ * not measured, and then run for a number of measured rounds.
+ * Each round performs a fixed number of operations and the reported 
+ * score is the median time per operation over all measured rounds.
+ * 
+ * @author Ted Stockwell
+ */
+abstract public class Benchmark {
+	
+	private final String _name;
+	
+	protected Benchmark(String name) {
+		_name= name;
+	}
+	
+	public String getName() {
+		return _name;
+	}
+	
+	protected void setUp() throws Exception { }
+	protected void tearDown() throws Exception { }
+	
+	/**
+	 * Performs the given number of operations.
+	 */
+	abstract protected void run(int operations) throws Exception;
+	
+	/**
+	 * @return the median number of nanoseconds per operation
+	 */
+	public double measure(int warmupRounds, int rounds, int operations) throws Exception {
+		setUp();
+		try {
+			for (int i= 0; i < warmupRounds; i++)
+				run(operations);
+			long[] times= new long[rounds];
+			for (int i= 0; i < rounds; i++) {
+				long start= System.nanoTime();
+				run(operations);
+				times[i]= System.nanoTime() - start;
+			}
+			Arrays.sort(times);
+			return (double)times[rounds / 2] / operations;
+		}
+		finally {
+			tearDown();
+		}
+	}
+	
+	public String toString() {
+		return _name;
+	}
+}
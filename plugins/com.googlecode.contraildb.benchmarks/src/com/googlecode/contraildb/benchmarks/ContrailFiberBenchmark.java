@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.impl.btree.FiberCursor;
+import com.googlecode.contraildb.core.impl.btree.IKeyValueCursor;
+import com.googlecode.contraildb.core.impl.btree.IOrderedSetCursor.Direction;
+import com.googlecode.contraildb.core.impl.btree.KeyValueSet;
+import com.googlecode.contraildb.core.storage.EntityStorage;
+import com.googlecode.contraildb.core.storage.IEntityStorage;
+import com.googlecode.contraildb.core.storage.provider.RamStorageProvider;
+
+
+
+/**
+ * Compares the handler based KeyValueSet cursor with the continuation 
+ * based FiberCursor by looking up every key in a tree, both one lookup 
+ * at a time and with all lookups in flight at once.
+ * 
+ * The fiber based code must be woven, so run this class with the fibers 
+ * target of this plugin's build.xml, which weaves core first. 
+ * 
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class ContrailFiberBenchmark {
+	
+	static final int KEY_COUNT= 10000;
+	static final int PAGE_SIZE= 50;
+	static final int ROUNDS= 5;
+	
+	public static void main(String[] args) throws Exception {
+		IEntityStorage.Session storage= new EntityStorage(new RamStorageProvider()).connect().get();
+		KeyValueSet<Integer, Integer> tree= KeyValueSet.<Integer, Integer>create(storage, PAGE_SIZE).get();
+		for (int i= 0; i < KEY_COUNT; i++)
+			tree.insert(i, i).get();
+		
+		for (int round= 1; round <= ROUNDS; round++) {
+			System.out.println("round "+round);
+			
+			long start= System.nanoTime();
+			for (int i= 0; i < KEY_COUNT; i++) {
+				IKeyValueCursor<Integer, Integer> cursor= tree.cursor(Direction.FORWARD);
+				check(i, cursor.find(i).get());
+			}
+			report("handler, sequential", start);
+			
+			start= System.nanoTime();
+			for (int i= 0; i < KEY_COUNT; i++) 
+				check(i, FiberCursor.findResult(tree, i).get());
+			report("fiber, sequential", start);
+			
+			start= System.nanoTime();
+			List<IResult> finds= new ArrayList<IResult>();
+			for (int i= 0; i < KEY_COUNT; i++) 
+				finds.add(tree.cursor(Direction.FORWARD).find(i));
+			TaskUtils.combineResults(finds).get();
+			report("handler, concurrent", start);
+			
+			start= System.nanoTime();
+			finds.clear();
+			for (int i= 0; i < KEY_COUNT; i++) 
+				finds.add(FiberCursor.findResult(tree, i));
+			TaskUtils.combineResults(finds).get();
+			report("fiber, concurrent", start);
+		}
+		System.exit(0);
+	}
+	
+	static void check(int expected, Integer value) {
+		if (value == null || value != expected)
+			throw new IllegalStateException("Expected "+expected+", found "+value);
+	}
+	
+	static void report(String name, long start) {
+		long elapsed= System.nanoTime() - start;
+		System.out.println("    "+name+": "+(elapsed / KEY_COUNT)+" ns/lookup");
+	}
+	
+}
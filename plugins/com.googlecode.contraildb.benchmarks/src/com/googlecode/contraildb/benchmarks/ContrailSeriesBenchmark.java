@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+/**
+ * Measures the cost of creating and dispatching Series handlers, both 
+ * from a single thread and from many threads creating Series concurrently, 
+ * and compares it with the same steps written as a chain of handlers.
+ * See SeriesSteps.
+ * 
+ * @author Ted Stockwell
+ */
+public class ContrailSeriesBenchmark {
+	
+	static final int WARMUP= 20000;
+	static final int ITERATIONS= 100000;
+	
+	public static void main(String[] args) throws Exception {
+		for (boolean series: new boolean[] { true, false }) {
+			String name= series ? "Series dispatch" : "Handler chain";
+			run(series, WARMUP);
+			long start= System.nanoTime();
+			run(series, ITERATIONS);
+			long elapsed= System.nanoTime() - start;
+			System.out.println(name+", 1 thread: "+(elapsed / ITERATIONS)+" ns/op");
+			
+			int threadCount= Runtime.getRuntime().availableProcessors();
+			elapsed= runConcurrently(series, threadCount, ITERATIONS / 10);
+			System.out.println(name+", "+threadCount+" threads: "+(elapsed / (threadCount * (ITERATIONS / 10)))+" ns/op");
+		}
+	}
+	
+	static long runConcurrently(final boolean series, int threadCount, final int iterations) throws InterruptedException {
+		List<Thread> threads= new ArrayList<Thread>();
+		for (int i= 0; i < threadCount; i++) {
+			threads.add(new Thread() {
+				public void run() {
+					ContrailSeriesBenchmark.run(series, iterations);
+				}
+			});
+		}
+		long start= System.nanoTime();
+		for (Thread thread: threads)
+			thread.start();
+		for (Thread thread: threads)
+			thread.join();
+		return System.nanoTime() - start;
+	}
+	
+	static void run(boolean series, int iterations) {
+		for (int i= 0; i < iterations; i++) {
+			int count= series ? SeriesSteps.series() : SeriesSteps.chain();
+			if (count != SeriesSteps.COUNT)
+				throw new IllegalStateException("unexpected count: "+count);
+		}
+	}
+	
+}
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.Item;
+import com.googlecode.contraildb.core.impl.btree.Node;
+import com.googlecode.contraildb.core.storage.RevisionJournal;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
+
+
+
+/**
+ * Compares the size and speed of the original and the versioned 
+ * externalization formats for typical Items, B+tree pages and revision 
+ * journals.
+ * 
+ * Usage: ExternalizationBenchmarks [-rounds n] [-warmup n]
+ * 
+ * Node and RevisionJournal samples are created by reading hand written 
+ * data in the original format, since their contents cannot be set from 
+ * outside their packages.
+ * 
+ * @author Ted Stockwell
+ */
+public class ExternalizationBenchmarks {
+	
+	private static final Identifier ITEMS= Identifier.create("net/sf/contrail/tests/items");
+	private static final Identifier INDEX= Identifier.create("net/sf/contrail/core/indexes/name");
+	
+	public static void main(String[] args) throws Exception {
+		int warmup= 20;
+		int rounds= 10;
+		for (int i= 0; i < args.length; i++) {
+			String arg= args[i];
+			if (arg.equals("-rounds")) {
+				rounds= Integer.parseInt(args[++i]);
+			}
+			else if (arg.equals("-warmup")) {
+				warmup= Integer.parseInt(args[++i]);
+			}
+			else 
+				throw new IllegalArgumentException("Unknown argument: "+arg);
+		}
+		
+		Object[][] samples= new Object[][] {
+				{ "Item", createItem() },
+				{ "Node", read(createNode(100, false)) },
+				{ "IdentifierNode", read(createNode(100, true)) },
+				{ "RevisionJournal", read(createJournal(50, 20, 5, 25)) }
+		};
+		
+		System.out.println(String.format("%-32s %12s %12s", "", "original", "versioned"));
+		for (Object[] sample: samples) {
+			int original= write(sample[1], false).length;
+			int versioned= write(sample[1], true).length;
+			System.out.println(String.format("%-32s %12d %12d bytes   %+6.1f%%", 
+					sample[0], original, versioned, (versioned - original) * 100.0 / original));
+		}
+		System.out.println();
+		
+		for (Object[] sample: samples) {
+			for (boolean versioned: new boolean[] { false, true }) {
+				String format= versioned ? "Versioned" : "Original";
+				Benchmark[] benchmarks= new Benchmark[] {
+						new WriteBenchmark("Write"+sample[0]+format, sample[1], versioned),
+						new ReadBenchmark("Read"+sample[0]+format, write(sample[1], versioned))
+				};
+				for (Benchmark benchmark: benchmarks) {
+					double score= benchmark.measure(warmup, rounds, 10000);
+					System.out.println(String.format("%-32s %12.1f ns/op", benchmark.getName(), score));
+				}
+			}
+		}
+		
+		// reading a single property, and writing an item that was read  
+		Item item= createItem();
+		for (boolean versioned: new boolean[] { false, true }) {
+			String format= versioned ? "Versioned" : "Original";
+			Benchmark[] benchmarks= new Benchmark[] {
+					new ReadPropertyBenchmark("ReadItemProperty"+format, write(item, versioned)),
+					new CopyBenchmark("CopyItem"+format, write(item, versioned), versioned)
+			};
+			for (Benchmark benchmark: benchmarks) {
+				double score= benchmark.measure(warmup, rounds, 10000);
+				System.out.println(String.format("%-32s %12.1f ns/op", benchmark.getName(), score));
+			}
+		}
+		System.exit(0);
+	}
+	
+	static class WriteBenchmark extends Benchmark {
+		private final Object _object;
+		private final boolean _versioned;
+		private final ByteArrayOutputStream _bytes= new ByteArrayOutputStream();
+		WriteBenchmark(String name, Object object, boolean versioned) {
+			super(name);
+			_object= object;
+			_versioned= versioned;
+		}
+		protected void run(int operations) throws Exception {
+			for (int i= 0; i < operations; i++) {
+				if (_versioned) {
+					// the same path as ExternalizationTask
+					ExternalizationManager.toVersionedBytes(_object);
+					continue;
+				}
+				_bytes.reset();
+				write(new DataOutputStream(_bytes), _object, _versioned);
+				_bytes.toByteArray();
+			}
+		}
+	}
+	
+	static class ReadBenchmark extends Benchmark {
+		private final byte[] _bytes;
+		ReadBenchmark(String name, byte[] bytes) {
+			super(name);
+			_bytes= bytes;
+		}
+		protected void run(int operations) throws Exception {
+			for (int i= 0; i < operations; i++)
+				read(_bytes);
+		}
+	}
+	
+	static class ReadPropertyBenchmark extends Benchmark {
+		private final byte[] _bytes;
+		ReadPropertyBenchmark(String name, byte[] bytes) {
+			super(name);
+			_bytes= bytes;
+		}
+		protected void run(int operations) throws Exception {
+			for (int i= 0; i < operations; i++)
+				((Item)read(_bytes)).getProperty("name");
+		}
+	}
+	
+	static class CopyBenchmark extends Benchmark {
+		private final byte[] _bytes;
+		private final boolean _versioned;
+		private final ByteArrayOutputStream _output= new ByteArrayOutputStream();
+		CopyBenchmark(String name, byte[] bytes, boolean versioned) {
+			super(name);
+			_bytes= bytes;
+			_versioned= versioned;
+		}
+		protected void run(int operations) throws Exception {
+			for (int i= 0; i < operations; i++) {
+				Object object= read(_bytes);
+				if (_versioned) {
+					ExternalizationManager.toVersionedBytes(object);
+					continue;
+				}
+				_output.reset();
+				write(new DataOutputStream(_output), object, _versioned);
+				_output.toByteArray();
+			}
+		}
+	}
+	
+	private static void write(DataOutputStream out, Object object, boolean versioned) throws IOException {
+		if (versioned) {
+			ExternalizationManager.writeVersionedExternal(out, object);
+		}
+		else
+			ExternalizationManager.writeExternal(out, object);
+	}
+	
+	private static byte[] write(Object object, boolean versioned) throws IOException {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		write(new DataOutputStream(bytes), object, versioned);
+		return bytes.toByteArray();
+	}
+	
+	private static Object read(byte[] bytes) throws IOException {
+		return ExternalizationManager.readExternal(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+	
+	private static Item createItem() {
+		Item item= new Item(Identifier.create(ITEMS, "item-00042"));
+		item.setProperty("name", "item-00042");
+		item.setProperty("count", 42);
+		item.setProperty("created", 1262304000000L);
+		item.setProperty("owner", Identifier.create("net/sf/contrail/tests/users/ted"));
+		item.setProperty("parent", ITEMS);
+		item.setUnindexedProperty("description", "an item used to measure externalization");
+		return item;
+	}
+	
+	/**
+	 * A leaf page of a B+tree index of item names, or of a set of item 
+	 * identifiers.
+	 */
+	private static byte[] createNode(int size, boolean identifierKeys) throws IOException {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		DataOutputStream out= new DataOutputStream(bytes);
+		out.writeInt(Node.class.getName().hashCode());
+		ExternalizationManager.writeIdentifier(out, Identifier.create(INDEX, "page-0001"));
+		ExternalizationManager.writeExternal(out, INDEX, Identifier.SERIALIZER);
+		ExternalizationManager.writeExternal(out, null, Identifier.SERIALIZER);
+		ExternalizationManager.writeExternal(out, Identifier.create(INDEX, "page-0002"), Identifier.SERIALIZER);
+		ExternalizationManager.writeCount(out, size);
+		ExternalizationManager.writeCount(out, size);
+		for (int i= 0; i < size; i++) {
+			String name= String.format("item-%05d", i);
+			if (identifierKeys) {
+				ExternalizationManager.writeExternal(out, Identifier.create(ITEMS, name));
+				ExternalizationManager.writeExternal(out, null);
+			}
+			else {
+				ExternalizationManager.writeExternal(out, name);
+				ExternalizationManager.writeExternal(out, Identifier.create(ITEMS, name));
+			}
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static byte[] createJournal(int reads, int inserts, int deletes, int updates) throws IOException {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		DataOutputStream out= new DataOutputStream(bytes);
+		out.writeInt(RevisionJournal.class.getName().hashCode());
+		ExternalizationManager.writeIdentifier(out, Identifier.create("net/sf/contrail/core/revisions/42/journal"));
+		int next= 0;
+		for (int count: new int[] { reads, inserts, deletes, updates }) {
+			ExternalizationManager.writeCount(out, count);
+			for (int i= 0; i < count; i++)
+				ExternalizationManager.writeIdentifier(out, Identifier.create(ITEMS, String.format("item-%05d", next++)));
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.benchmarks;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.async.Handler;
+import com.googlecode.contraildb.core.async.Series;
+import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.async.init;
+import com.googlecode.contraildb.core.async.seq;
+
+
+
+/**
+ * The three steps used to compare Series dispatch with hand-written 
+ * handlers.
+ * Steps implements the steps as a Series, chain implements the same 
+ * steps as a chain of Handlers.
+ * Both complete with a count of 5.
+ * 
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class SeriesSteps {
+	
+	public static final int COUNT= 5;
+	
+	static class Steps extends Series {
+		@init("two") String value;
+		int count;
+		
+		void start() {
+			count++;
+		}
+		@seq("start") IResult two() {
+			count++;
+			return TaskUtils.asResult("two");
+		}
+		@seq("two") void three() {
+			count+= value.length();
+		}
+	}
+	
+	/**
+	 * Runs the steps as a Series.
+	 * @return the count
+	 */
+	public static int series() {
+		Steps steps= new Steps();
+		steps.get();
+		return steps.count;
+	}
+	
+	/**
+	 * Runs the steps as a chain of handlers.
+	 * @return the count
+	 */
+	public static int chain() {
+		final int[] count= new int[] { 0 };
+		Handler start= new Handler(TaskUtils.DONE) {
+			protected IResult onSuccess() {
+				count[0]++;
+				return TaskUtils.DONE;
+			}
+		};
+		Handler two= new Handler(start) {
+			protected IResult onSuccess() {
+				count[0]++;
+				return TaskUtils.asResult("two");
+			}
+		};
+		Handler three= new Handler(two) {
+			protected IResult onSuccess() {
+				count[0]+= ((String)incoming().getResult()).length();
+				return TaskUtils.DONE;
+			}
+		};
+		three.get();
+		return count[0];
+	}
+}
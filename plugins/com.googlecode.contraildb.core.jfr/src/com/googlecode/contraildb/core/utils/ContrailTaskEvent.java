@@ -0,0 +1,70 @@
+package com.googlecode.contraildb.core.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+/**
+ * A Java Flight Recorder event that records the execution of a ContrailTask.
+ * The duration of the event is the time the task spent running.
+ * 
+ * This class lives in an optional fragment of the core bundle, since 
+ * Flight Recorder requires Java 11 and the core bundle only requires 
+ * Java 8.
+ * When the fragment is present ContrailTaskTracing reports traced tasks 
+ * through ContrailTaskEvent.Recorder.
+ * 
+ * @author Ted Stockwell
+ * @see ContrailTaskTracing
+ */
+@Name("com.googlecode.contraildb.ContrailTask")
+@Label("Contrail Task")
+@Category("Contrail")
+@Description("Execution of a Contrail task")
+public class ContrailTaskEvent extends Event {
+	
+	@Label("Operation")
+	String operation;
+	
+	@Label("Identifier")
+	String identifier;
+	
+	@Label("Dependency Wait")
+	@Description("Time spent waiting for dependent tasks to complete")
+	@Timespan(Timespan.NANOSECONDS)
+	long dependencyWait;
+	
+	@Label("Queue Wait")
+	@Description("Time spent waiting in the task queue for a thread")
+	@Timespan(Timespan.NANOSECONDS)
+	long queueWait;
+	
+	/**
+	 * Created reflectively by ContrailTaskTracing.
+	 */
+	static class Recorder implements ContrailTaskTracing.EventRecorder {
+		public Object begin(ContrailTask<?> task) {
+			ContrailTaskEvent event= new ContrailTaskEvent();
+			if (!event.isEnabled())
+				return null;
+			event.begin();
+			return event;
+		}
+		
+		public void end(Object e, ContrailTask<?> task, long dependencyWait, long queueWait) {
+			ContrailTaskEvent event= (ContrailTaskEvent)e;
+			event.end();
+			if (event.shouldCommit()) {
+				event.operation= task.getOperation().name();
+				event.identifier= task.getId().toString();
+				event.dependencyWait= dependencyWait;
+				event.queueWait= queueWait;
+				event.commit();
+			}
+		}
+	}
+}
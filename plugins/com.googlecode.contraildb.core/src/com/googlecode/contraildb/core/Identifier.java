@@ -2,15 +2,15 @@ package com.googlecode.contraildb.core;
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.Map;
 import java.util.Properties;
-import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
 import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 
 
@@ -22,20 +22,47 @@ import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
  * The name of an item may not contain the '/' character.
  * Names are separated by '/' characters to form hierarchies. 
  * 
+ * Identifiers are interned, there is never more than one Identifier with the 
+ * same path, so identifiers may be compared with ==.
+ * The interner is a concurrent map, keyed by parent and name, of weak 
+ * references to identifiers, so creating an identifier does not take a lock.
+ * An identifier only keeps a link to its parent and its name, the complete 
+ * path is built when first needed.  
+ * 
  * @author Ted Stockwell
  */
 final public class Identifier implements Comparable<Identifier>, Serializable {
 	private static final long serialVersionUID = 1L;
 	
-	private static final Identifier[] EMPTY_ANCESTORS= new Identifier[0];
-	
-	transient final static private Map<String, Reference<Identifier>> __cache= new TreeMap<String, Reference<Identifier>>(); 
+	transient final static private ConcurrentHashMap<Key, IdentifierReference> __cache= 
+			new ConcurrentHashMap<Key, IdentifierReference>(); 
 	transient final static private ReferenceQueue<Identifier> __referenceQueue= new ReferenceQueue<Identifier>();
+	
+	private static class Key {
+		final Identifier _parent;
+		final String _name;
+		final int _hash;
+		Key(Identifier parent, String name) {
+			_parent= parent;
+			_name= name;
+			_hash= hash(parent, name);
+		}
+		@Override
+		public int hashCode() {
+			return _hash;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			Key key= (Key)obj;
+			return _parent == key._parent && _name.equals(key._name);
+		}
+	}
+	
 	private static class IdentifierReference extends WeakReference<Identifier> {
-		String _path;
-		public IdentifierReference(Identifier referent) {
+		final Key _key;
+		public IdentifierReference(Identifier referent, Key key) {
 			super(referent, __referenceQueue);
-			_path= referent._completePath;
+			_key= key;
 		}
 	}
 
@@ -44,12 +71,11 @@ final public class Identifier implements Comparable<Identifier>, Serializable {
 		private final int typeCode= Identifier.class.getName().hashCode();
 		public Identifier readExternal(java.io.DataInput in) 
 		throws IOException {
-			String id= in.readUTF();
-			return Identifier.create(id);
+			return ExternalizationManager.readIdentifier(in);
 		};
 		public void writeExternal(java.io.DataOutput out, Identifier object) 
 		throws IOException {
-			out.writeUTF(object._completePath);
+			ExternalizationManager.writeIdentifier(out, object);
 		};
 		public void readExternal(DataInput in, Identifier object)
 		throws IOException {
@@ -62,58 +88,77 @@ final public class Identifier implements Comparable<Identifier>, Serializable {
 	
 	
 	
-	transient private Identifier[] _ancestors;
-	transient private String _name;
-	private String _completePath;
+	transient final private Identifier _parent;
+	transient final private String _name;
+	transient final private int _depth; // the number of names in the path
+	transient final private int _hash;
+	private String _completePath; // built when first needed
 	transient private Properties _properties;
 	
 	public static Identifier create(String path) {
 		Identifier identifier= null;
-		synchronized (__cache) {
-			Reference<Identifier> ref= __cache.get(path);
-			if (ref != null && (identifier= ref.get()) != null)
-				return identifier;
-			identifier= new Identifier(path);
-			__cache.put(path, new IdentifierReference(identifier));
+		int start= 0;
+		int length= path.length();
+		while (start < length) {
+			int end= path.indexOf('/', start);
+			if (end < 0)
+				end= length;
+			if (start < end) 
+				identifier= intern(identifier, path.substring(start, end));
+			start= end + 1;
 		}
+		if (identifier == null)
+			identifier= intern(null, "");
 		return identifier;
 	}
 	
 	public static Identifier create(Identifier parent, String name) {
 		if (parent == null)
 			return create(name);
-		return create(parent._completePath+"/"+name);
-	}
-	
-	private Identifier(String path) {
-		while (path.endsWith("/"))
-			path= path.substring(0, path.length()-1);
-		while (path.startsWith("/"))
-			path= path.substring(1);
-		int i= path.lastIndexOf('/');
-		if (0 <= i) {
-			_completePath= path;
-			_name= path.substring(i+1);
-			Identifier parent= create(path.substring(0, i));
-			Identifier[] ancestors= parent._ancestors;
-			_ancestors= new Identifier[ancestors.length+1];
-			System.arraycopy(ancestors, 0, _ancestors, 0, ancestors.length);
-			_ancestors[ancestors.length]= parent;
-		}
-		else { 
-			_completePath= _name= path;
-			_ancestors= EMPTY_ANCESTORS;
-		}
+		if (name.indexOf('/') < 0)
+			return intern(parent, name);
+		return create(parent.toString()+"/"+name);
+	}
+	
+	private static Identifier intern(Identifier parent, String name) {
+		Key key= new Key(parent, name);
+		IdentifierReference ref= __cache.get(key);
+		Identifier identifier;
+		if (ref != null && (identifier= ref.get()) != null)
+			return identifier;
 		
 		// clean up expired references
-		IdentifierReference ref;
-		while ((ref= (IdentifierReference)__referenceQueue.poll()) != null) {
-			synchronized (__cache) {
-				__cache.remove(ref._path);
-			}
+		while ((ref= (IdentifierReference)__referenceQueue.poll()) != null) 
+			__cache.remove(ref._key, ref);
+		
+		Identifier created= new Identifier(parent, name, key._hash);
+		IdentifierReference createdRef= new IdentifierReference(created, key);
+		for (;;) {
+			ref= __cache.putIfAbsent(key, createdRef);
+			if (ref == null)
+				return created;
+			if ((identifier= ref.get()) != null)
+				return identifier;
+			// replace a collected identifier
+			if (__cache.replace(key, ref, createdRef))
+				return created;
 		}
 	}
 	
+	private static int hash(Identifier parent, String name) {
+		int h= (parent == null ? 0 : parent._hash) * 31 + name.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	private Identifier(Identifier parent, String name, int hash) {
+		_parent= parent;
+		_name= name;
+		_depth= parent == null ? 1 : parent._depth + 1;
+		_hash= hash;
+		if (parent == null)
+			_completePath= name;
+	}
+	
 	public static Identifier create() {
 		return create(UUID.randomUUID().toString());
 	}
@@ -126,6 +171,11 @@ final public class Identifier implements Comparable<Identifier>, Serializable {
 		return create(parent.getId(), name);
 	}
 	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		toString();
+		out.defaultWriteObject();
+	}
+	
 	private Object readResolve() {
 		return create(_completePath);
 	}
@@ -135,22 +185,38 @@ final public class Identifier implements Comparable<Identifier>, Serializable {
 	}
 	
 	public Identifier getParent() {
-		if (_ancestors.length <= 0)
-			return null; 
-		return _ancestors[_ancestors.length-1];
+		return _parent;
 	}
 	
 	public boolean isAncestorOf(Identifier identifier) {
-		Identifier[] a= identifier._ancestors;
-		for (int i= a.length; 0 < i--;)
-			if (a[i] == this)
+		for (Identifier i= identifier._parent; i != null && _depth <= i._depth; i= i._parent)
+			if (i == this)
 				return true;
 		return false;
 	}
 	
 	@Override
 	public String toString() {
-		return _completePath;
+		String path= _completePath;
+		if (path == null) {
+			int length= _depth - 1;
+			for (Identifier i= this; i != null; i= i._parent)
+				length+= i._name.length();
+			char[] chars= new char[length];
+			for (Identifier i= this; i != null; i= i._parent) {
+				length-= i._name.length();
+				i._name.getChars(0, i._name.length(), chars, length);
+				if (0 < length)
+					chars[--length]= '/';
+			}
+			_completePath= path= new String(chars);
+		}
+		return path;
+	}
+	
+	@Override
+	public int hashCode() {
+		return _hash;
 	}
 	
 	public Object getProperty(String propertyName) {
@@ -168,6 +234,9 @@ final public class Identifier implements Comparable<Identifier>, Serializable {
 	
 	@Override
 	/**
+	 * Identifiers are ordered by comparing the names of their ancestors, 
+	 * starting at the root, then by depth, and then by name.  
+	 * 
 	 * @return 
 	 * 	 	a negative integer, zero, or a positive integer as this object is less 
 	 * 		than, equal to, or greater than the specified object.
@@ -175,17 +244,26 @@ final public class Identifier implements Comparable<Identifier>, Serializable {
 	public int compareTo(Identifier o) {
 		if (o == this)
 			return 0;
-		Identifier[] a1= _ancestors;
-		Identifier[] a2= o._ancestors;
-		for (int i= 0; i < a1.length && i < a2.length; i++) {
-			Identifier i1= a1[i];
-			Identifier i2= a2[i];
-			if (i1 != i2) 
-				return i1._name.compareTo(i2._name);
+		
+		// find the first ancestors that differ, at or above the deepest 
+		// level at which both identifiers have ancestors
+		int level= Math.min(_depth, o._depth) - 1;
+		Identifier i1= _parent;
+		Identifier i2= o._parent;
+		while (i1 != null && level < i1._depth)
+			i1= i1._parent;
+		while (i2 != null && level < i2._depth)
+			i2= i2._parent;
+		if (i1 != i2) {
+			while (i1._parent != i2._parent) {
+				i1= i1._parent;
+				i2= i2._parent;
+			}
+			return i1._name.compareTo(i2._name);
 		}
-		if (a1.length < a2.length) 
+		if (_depth < o._depth) 
 			return -1;
-		if (a1.length > a2.length) 
+		if (_depth > o._depth) 
 			return 1;
 		return _name.compareTo(o._name);
 	}
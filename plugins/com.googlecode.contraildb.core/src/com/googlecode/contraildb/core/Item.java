@@ -1,21 +1,27 @@
 package com.googlecode.contraildb.core;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.googlecode.contraildb.core.storage.Entity;
 import com.googlecode.contraildb.core.utils.ConversionUtils;
+import com.googlecode.contraildb.core.utils.EncodedFrame;
 import com.googlecode.contraildb.core.utils.ExternalizationManager;
+import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 
 
 /**
@@ -35,6 +41,17 @@ import com.googlecode.contraildb.core.utils.ExternalizationManager;
  *  	(that is, keys may NOT be Item, List, Set, or Map) 
  *  	and values are valid property values     
  * 
+ * Properties are kept in arrays ordered by an id assigned to each distinct
+ * property name.
+ * Integer, Long, Double, Boolean, and Date values are kept as primitive
+ * longs and are not boxed by getInt, getLong, getDouble, getBoolean, or
+ * getDate.
+ * A Date property value is copied when set and when fetched.
+ *
+ * An Item that is read from storage keeps its serialized form and decodes 
+ * a property value only when the property is first fetched.
+ * Writing an unmodified Item copies its serialized form.
+ * 
  * @author Ted Stockwell
  */
 public class Item 
@@ -52,8 +69,54 @@ implements Cloneable, Externalizable
 	 */
 	public static final String KEY_KIND = "__KIND__";
 	
-	private TreeMap<String, Object> _indexedProperties= new TreeMap<String, Object>(); 
-	private TreeMap<String, Object> _unindexedProperties= new TreeMap<String, Object>(); 
+	/*
+	 * The ids of property names.
+	 * Ids are never released, the set of property names used by an
+	 * application is expected to be small.
+	 */
+	private static final ConcurrentHashMap<String, Integer> __nameIds= new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] __names= new String[64];
+	
+	/*
+	 * The kinds of property values
+	 */
+	private static final byte OBJECT= 0;
+	private static final byte INTEGER= 1;
+	private static final byte LONG= 2;
+	private static final byte DOUBLE= 3;
+	private static final byte BOOLEAN= 4;
+	private static final byte DATE= 5;
+	private static final byte KIND= 0x0F;
+	private static final byte UNINDEXED= 0x10;
+
+	private static final int[] NO_NAMES= new int[0];
+	private static final byte[] NO_KINDS= new byte[0];
+	private static final int[] PRIMITIVE_TYPES= new int[] {
+		Integer.class.getName().hashCode(),
+		Long.class.getName().hashCode(),
+		Double.class.getName().hashCode(),
+		Boolean.class.getName().hashCode(),
+		Date.class.getName().hashCode()
+	};
+
+	/*
+	 * Property i has the name with id _names[i] and its kind is _kinds[i].
+	 * The value is in _values[i] if it is a primitive kind, otherwise in
+	 * _objects[i].
+	 * _values and _objects are not allocated until needed.
+	 * Property values that have not been fetched yet are EncodedFrames, 
+	 * primitive values are decoded when the item is read.
+	 */
+	private int[] _names= NO_NAMES;
+	private byte[] _kinds= NO_KINDS;
+	private long[] _values;
+	private Object[] _objects;
+	private int _size;
+
+	/*
+	 * The serialized form of this item is kept until the item is modified.
+	 */
+	transient private EncodedFrame _encoded;
 	
 	
 	public Item(Identifier path) {
@@ -68,10 +131,14 @@ implements Cloneable, Externalizable
 	
 	public Item(Item item) {
 		super(item.getId());
-		for (Map.Entry<String, Object> entry:item._indexedProperties.entrySet()) 
-			_indexedProperties.put(entry.getKey(), entry.getValue());
-		for (Map.Entry<String, Object> entry:item._unindexedProperties.entrySet()) 
-			_unindexedProperties.put(entry.getKey(), entry.getValue());
+		_size= item._size;
+		_names= Arrays.copyOf(item._names, _size);
+		_kinds= Arrays.copyOf(item._kinds, _size);
+		if (item._values != null)
+			_values= Arrays.copyOf(item._values, _size);
+		if (item._objects != null)
+			_objects= Arrays.copyOf(item._objects, _size);
+		_encoded= item._encoded;
 	}
 	public Item(Identifier parent, String child) {
 		this(Identifier.create(parent, child));
@@ -86,11 +153,22 @@ implements Cloneable, Externalizable
 	}
 
 	public boolean getBoolean(String propertyName) {
+		int i= indexOf(propertyName);
+		if (0 <= i) {
+			switch (_kinds[i] & KIND) {
+			case BOOLEAN: return _values[i] != 0;
+			case INTEGER:
+			case LONG: return (int)_values[i] != 0;
+			}
+		}
 		return ConversionUtils.toBoolean(getProperty(propertyName));
 	}
 
 	public Item getItem(String propertyName) {
-		return (Item)_indexedProperties.get(propertyName);
+		int i= indexOf(propertyName);
+		if (i < 0 || (_kinds[i] & UNINDEXED) != 0)
+			return null;
+		return (Item)valueAt(i);
 	}
 
 	public byte getByte(String propertyName) {
@@ -98,10 +176,25 @@ implements Cloneable, Externalizable
 	}
 
 	public Date getDate(String propertyName) {
+		int i= indexOf(propertyName);
+		if (0 <= i) {
+			switch (_kinds[i] & KIND) {
+			case DATE:
+			case LONG: return new Date(_values[i]);
+			}
+		}
 		return ConversionUtils.toDate(getProperty(propertyName));
 	}
 
 	public double getDouble(String propertyName) {
+		int i= indexOf(propertyName);
+		if (0 <= i) {
+			switch (_kinds[i] & KIND) {
+			case DOUBLE: return Double.longBitsToDouble(_values[i]);
+			case INTEGER:
+			case LONG: return _values[i];
+			}
+		}
 		return ConversionUtils.toDouble(getProperty(propertyName));
 	}
 
@@ -110,6 +203,14 @@ implements Cloneable, Externalizable
 	}
 
 	public int getInt(String propertyName) {
+		int i= indexOf(propertyName);
+		if (0 <= i) {
+			switch (_kinds[i] & KIND) {
+			case INTEGER:
+			case LONG: return (int)_values[i];
+			case DOUBLE: return (int)Double.longBitsToDouble(_values[i]);
+			}
+		}
 		return ConversionUtils.toInteger(getProperty(propertyName));
 	}
 
@@ -119,6 +220,15 @@ implements Cloneable, Externalizable
 	}
 
 	public long getLong(String propertyName) {
+		int i= indexOf(propertyName);
+		if (0 <= i) {
+			switch (_kinds[i] & KIND) {
+			case INTEGER:
+			case LONG:
+			case DATE: return _values[i];
+			case DOUBLE: return (long)Double.longBitsToDouble(_values[i]);
+			}
+		}
 		return ConversionUtils.toLong(getProperty(propertyName));
 	}
 
@@ -128,25 +238,32 @@ implements Cloneable, Externalizable
 	}
 
 	public Map<String, Object> getAllProperties() {
-		TreeMap<String, Object> map= new TreeMap<String, Object>(_indexedProperties);
-		map.putAll(_unindexedProperties);
-		return map;
+		return properties(true, true);
 	}
 
 	public Map<String, Object> getUnindexedProperties() {
-		return Collections.unmodifiableMap(_unindexedProperties);
+		return Collections.unmodifiableMap(properties(false, true));
 	}
 
 	public Map<String, Object> getIndexedProperties() {
-		return Collections.unmodifiableMap(_indexedProperties);
+		return Collections.unmodifiableMap(properties(true, false));
+	}
+	
+	private TreeMap<String, Object> properties(boolean indexed, boolean unindexed) {
+		TreeMap<String, Object> properties= new TreeMap<String, Object>();
+		for (int i= 0; i < _size; i++) {
+			if ((_kinds[i] & UNINDEXED) == 0 ? indexed : unindexed)
+				properties.put(nameAt(i), valueAt(i));
+		}
+		return properties;
 	}
 
 	@SuppressWarnings("unchecked")
 	public <T> T getProperty(String propertyName) {
-		T t= (T) _indexedProperties.get(propertyName);
-		if (t == null)
-			t= (T) _unindexedProperties.get(propertyName);
-		return t;
+		int i= indexOf(propertyName);
+		if (i < 0)
+			return null;
+		return (T)valueAt(i);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -159,14 +276,14 @@ implements Cloneable, Externalizable
 	}
 
 	public boolean hasProperty(String propertyName) {
-		if (_indexedProperties.containsKey(propertyName))
-			return true;
-		return _unindexedProperties.containsKey(propertyName);
+		return 0 <= indexOf(propertyName);
 	}
 
 	public Item removeProperty(String propertyName) {
-		_indexedProperties.remove(propertyName);
-		_unindexedProperties.remove(propertyName);
+		int i= indexOf(propertyName);
+		if (0 <= i)
+			remove(i);
+		_encoded= null;
 		return this;
 	}
 
@@ -178,14 +295,14 @@ implements Cloneable, Externalizable
 	}
 	
 	public Item setProperty(String propertyName, Object value) {
-		_indexedProperties.put(propertyName, value);
-		_unindexedProperties.remove(propertyName);
+		put(propertyName, value, true);
+		_encoded= null;
 		return this;
 	}
 	
 	public Item setUnindexedProperty(String propertyName, Object value) {
-		_unindexedProperties.put(propertyName, value);
-		_indexedProperties.remove(propertyName);
+		put(propertyName, value, false);
+		_encoded= null;
 		return this;
 	}
 
@@ -194,31 +311,319 @@ implements Cloneable, Externalizable
 		return new Item(this);
 	}
 	
-	public void readExternal(ObjectInput in) throws IOException {
-		int count= in.readInt();
-		for (int i= count; 0 < i--;) {
-			String name= ExternalizationManager.StringSerializer.readExternal(in);
-			Object value= ExternalizationManager.readExternal(in);
-			_indexedProperties.put(name, value);
+	/**
+	 * @return the id of the given property name, or -1 if no property with
+	 * 		the given name has ever been set.
+	 */
+	private static int nameId(String propertyName) {
+		Integer id= __nameIds.get(propertyName);
+		return id == null ? -1 : id;
+	}
+	private static int internName(String propertyName) {
+		Integer id= __nameIds.get(propertyName);
+		if (id != null)
+			return id;
+		synchronized (__nameIds) {
+			id= __nameIds.get(propertyName);
+			if (id != null)
+				return id;
+			int next= __nameIds.size();
+			String[] names= __names;
+			if (names.length <= next)
+				__names= names= Arrays.copyOf(names, names.length * 2);
+			names[next]= propertyName;
+			__nameIds.put(propertyName, next);
+			return next;
+		}
+	}
+
+	private int indexOf(String propertyName) {
+		int id= nameId(propertyName);
+		if (id < 0)
+			return -1;
+		int i= Arrays.binarySearch(_names, 0, _size, id);
+		return i < 0 ? -1 : i;
+	}
+
+	private String nameAt(int i) {
+		return __names[_names[i]];
+	}
+
+	/**
+	 * @return the value of the ith property, boxed if it is a primitive,
+	 * 		or an EncodedFrame if it has not been decoded.
+	 */
+	private Object rawValueAt(int i) {
+		switch (_kinds[i] & KIND) {
+		case INTEGER: return Integer.valueOf((int)_values[i]);
+		case LONG: return Long.valueOf(_values[i]);
+		case DOUBLE: return Double.valueOf(Double.longBitsToDouble(_values[i]));
+		case BOOLEAN: return Boolean.valueOf(_values[i] != 0);
+		case DATE: return new Date(_values[i]);
+		}
+		return _objects[i];
+	}
+	private Object valueAt(int i) {
+		return EncodedFrame.decode(rawValueAt(i));
+	}
+
+	private void put(String propertyName, Object value, boolean indexed) {
+		int id= internName(propertyName);
+		int i= Arrays.binarySearch(_names, 0, _size, id);
+		if (i < 0) {
+			i= -i - 1;
+			insert(i, id);
+		}
+		byte kind= OBJECT;
+		long bits= 0;
+		if (value != null) {
+			Class<?> type= value.getClass();
+			if (type == Integer.class) {
+				kind= INTEGER;
+				bits= (Integer)value;
+			}
+			else if (type == Long.class) {
+				kind= LONG;
+				bits= (Long)value;
+			}
+			else if (type == Double.class) {
+				kind= DOUBLE;
+				bits= Double.doubleToRawLongBits((Double)value);
+			}
+			else if (type == Boolean.class) {
+				kind= BOOLEAN;
+				bits= ((Boolean)value) ? 1 : 0;
+			}
+			else if (type == Date.class) {
+				kind= DATE;
+				bits= ((Date)value).getTime();
+			}
+		}
+		if (kind == OBJECT) {
+			if (_objects == null)
+				_objects= new Object[_names.length];
+			_objects[i]= value;
+		}
+		else {
+			if (_values == null)
+				_values= new long[_names.length];
+			_values[i]= bits;
+			if (_objects != null)
+				_objects[i]= null;
 		}
-		count= in.readInt();
+		_kinds[i]= indexed ? kind : (byte)(kind | UNINDEXED);
+	}
+
+	private void insert(int i, int id) {
+		if (_size == _names.length)
+			ensureCapacity(_size + (_size >> 1) + 4);
+		int moved= _size - i;
+		if (0 < moved) {
+			System.arraycopy(_names, i, _names, i + 1, moved);
+			System.arraycopy(_kinds, i, _kinds, i + 1, moved);
+			if (_values != null)
+				System.arraycopy(_values, i, _values, i + 1, moved);
+			if (_objects != null)
+				System.arraycopy(_objects, i, _objects, i + 1, moved);
+		}
+		_names[i]= id;
+		_size++;
+	}
+
+	private void remove(int i) {
+		int moved= _size - i - 1;
+		if (0 < moved) {
+			System.arraycopy(_names, i + 1, _names, i, moved);
+			System.arraycopy(_kinds, i + 1, _kinds, i, moved);
+			if (_values != null)
+				System.arraycopy(_values, i + 1, _values, i, moved);
+			if (_objects != null)
+				System.arraycopy(_objects, i + 1, _objects, i, moved);
+		}
+		_size--;
+		if (_objects != null)
+			_objects[_size]= null;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= _names.length)
+			return;
+		_names= Arrays.copyOf(_names, capacity);
+		_kinds= Arrays.copyOf(_kinds, capacity);
+		if (_values != null)
+			_values= Arrays.copyOf(_values, capacity);
+		if (_objects != null)
+			_objects= Arrays.copyOf(_objects, capacity);
+	}
+
+	/**
+	 * @return the indexes of the indexed or unindexed properties, in
+	 * 		property name order.
+	 */
+	private int[] positions(boolean indexed) {
+		int count= 0;
+		for (int i= 0; i < _size; i++)
+			if (((_kinds[i] & UNINDEXED) == 0) == indexed)
+				count++;
+		int[] positions= new int[count];
+		String[] names= __names;
+		count= 0;
+		for (int i= 0; i < _size; i++) {
+			if (((_kinds[i] & UNINDEXED) == 0) != indexed)
+				continue;
+			String name= names[_names[i]];
+			int j= count++;
+			for (; 0 < j && 0 < names[_names[positions[j - 1]]].compareTo(name); j--)
+				positions[j]= positions[j - 1];
+			positions[j]= i;
+		}
+		return positions;
+	}
+
+	public void readExternal(ObjectInput in) throws IOException {
+		readProperties(in, this, true);
+		readProperties(in, this, false);
+		_encoded= null;
+	}
+	public void writeExternal(ObjectOutput out)
+	throws IOException {
+		writeProperties(out, this, true);
+		writeProperties(out, this, false);
+	}
+	
+	private static void readProperties(DataInput in, Item item, boolean indexed)
+	throws IOException {
+		int count= ExternalizationManager.readCount(in);
+		item.ensureCapacity(item._size + count);
 		for (int i= count; 0 < i--;) {
 			String name= ExternalizationManager.StringSerializer.readExternal(in);
 			Object value= ExternalizationManager.readExternal(in);
-			_unindexedProperties.put(name, value);
+			item.put(name, value, indexed);
 		}
 	}
-	public void writeExternal(ObjectOutput out)
+	private static void writeProperties(DataOutput out, Item item, boolean indexed)
 	throws IOException {
-		out.writeInt(_indexedProperties.size());
-		for (Map.Entry<String, Object> entry: _indexedProperties.entrySet()) {
-			ExternalizationManager.StringSerializer.writeExternal(out, entry.getKey());
-			ExternalizationManager.writeExternal(out, entry.getValue());
+		int[] positions= item.positions(indexed);
+		ExternalizationManager.writeCount(out, positions.length);
+		for (int i: positions) {
+			ExternalizationManager.StringSerializer.writeExternal(out, item.nameAt(i));
+			ExternalizationManager.writeExternal(out, item.valueAt(i));
 		}
-		out.writeInt(_unindexedProperties.size());
-		for (Map.Entry<String, Object> entry: _unindexedProperties.entrySet()) {
-			ExternalizationManager.StringSerializer.writeExternal(out, entry.getKey());
-			ExternalizationManager.writeExternal(out, entry.getValue());
+	}
+	
+	/*
+	 * Since version 3 of the versioned format the property names are written 
+	 * first, followed by the values written as frames, so values are not 
+	 * decoded until fetched. 
+	 * Frames holding primitive values are decoded right away so that the 
+	 * values are kept unboxed, like the values of an item built in memory.
+	 */
+	private static void readFrames(DataInput in, Item item) 
+	throws IOException {
+		int indexedCount= ExternalizationManager.readCount(in);
+		int unindexedCount= ExternalizationManager.readCount(in);
+		String[] names= new String[indexedCount + unindexedCount];
+		for (int i= 0; i < names.length; i++)
+			names[i]= ExternalizationManager.readString(in);
+		item.ensureCapacity(item._size + names.length);
+		for (int i= 0; i < names.length; i++) {
+			Object value= ExternalizationManager.readFrame(in, PRIMITIVE_TYPES);
+			item.put(names[i], value, i < indexedCount);
 		}
 	}
+	private static void writeFrames(DataOutput out, Item item) 
+	throws IOException {
+		int[] indexed= item.positions(true);
+		int[] unindexed= item.positions(false);
+		ExternalizationManager.writeCount(out, indexed.length);
+		ExternalizationManager.writeCount(out, unindexed.length);
+		for (int i: indexed)
+			ExternalizationManager.writeString(out, item.nameAt(i));
+		for (int i: unindexed)
+			ExternalizationManager.writeString(out, item.nameAt(i));
+		for (int i: indexed)
+			ExternalizationManager.writeFrame(out, item.rawValueAt(i));
+		for (int i: unindexed)
+			ExternalizationManager.writeFrame(out, item.rawValueAt(i));
+	}
+	
+	/*
+	 * A fetched value may have been modified since it was decoded, unless 
+	 * it is immutable or an unmodified Item.
+	 */
+	private static boolean isUnmodified(EncodedFrame frame) {
+		if (!frame.isDecoded())
+			return true;
+		Object value= frame.getValue();
+		if (value instanceof Item)
+			return ((Item)value).isUnmodified();
+		return value == null || value instanceof String || value instanceof Number 
+				|| value instanceof Boolean || value instanceof Identifier;
+	}
+	private boolean isUnmodified() {
+		if (_encoded == null)
+			return false;
+		if (_objects != null)
+			for (int i= 0; i < _size; i++)
+				if (_objects[i] instanceof EncodedFrame && !isUnmodified((EncodedFrame)_objects[i]))
+					return false;
+		return true;
+	}
+	
+	/*
+	 * Writes the fields of an item, as a frame in the versioned format. 
+	 */
+	private static final Serializer<Item> FIELDS= new Serializer<Item>() {
+		public Item readExternal(DataInput in) 
+		throws IOException {
+			throw new UnsupportedOperationException();
+		};
+		public void writeExternal(DataOutput out, Item item) 
+		throws IOException {
+			Entity.SERIALIZER.writeExternal(out, item);
+			if (3 <= ExternalizationManager.getFormatVersion(out)) {
+				writeFrames(out, item);
+				return;
+			}
+			writeProperties(out, item, true);
+			writeProperties(out, item, false);
+		};
+		public void readExternal(DataInput in, Item item)
+		throws IOException {
+			Entity.SERIALIZER.readExternal(in, item);
+			if (3 <= ExternalizationManager.getFormatVersion(in)) {
+				readFrames(in, item);
+				return;
+			}
+			readProperties(in, item, true);
+			readProperties(in, item, false);
+		}
+		public int typeCode() {
+			return SERIALIZER.typeCode();
+		}
+	};
+
+	public static final Serializer<Item> SERIALIZER= new Serializer<Item>() {
+		private final int typeCode= Item.class.getName().hashCode();
+		public Item readExternal(DataInput in) 
+		throws IOException {
+			Item item= new Item();
+			readExternal(in, item);
+			return item;
+		};
+		public void writeExternal(DataOutput out, Item item) 
+		throws IOException {
+			EncodedFrame encoded= item._encoded;
+			if (encoded != null && item.isUnmodified() && ExternalizationManager.copyFrame(out, encoded))
+				return;
+			ExternalizationManager.writeFrame(out, item, FIELDS);
+		};
+		public void readExternal(DataInput in, Item item)
+		throws IOException {
+			item._encoded= ExternalizationManager.readFrame(in, item, FIELDS);
+		}
+		public int typeCode() {
+			return typeCode;
+		}
+	};
 }
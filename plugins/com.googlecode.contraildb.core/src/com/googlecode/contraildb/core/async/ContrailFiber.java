@@ -0,0 +1,153 @@
+package com.googlecode.contraildb.core.async;
+
+import java.util.concurrent.CancellationException;
+
+import kilim.Cell;
+import kilim.Pausable;
+import kilim.PauseReason;
+import kilim.Task;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.IResultHandler;
+
+
+/**
+ * A continuation based alternative to chains of handlers.
+ * 
+ * Logic that would otherwise be written as a chain of handlers may 
+ * be written as straight-line Pausable methods that call the await method 
+ * wherever they need the value of a result.
+ * The logic is run as a kilim Task and, while a result is pending, the 
+ * task is suspended instead of blocking a thread.
+ * 
+ * Example...
+ * 
+ *		IResult<Item> item= new ContrailFiber<Item>() {
+ *			protected Item run() throws Pausable, Exception {
+ *				Identifier id= await(session.resolve(path));
+ *				return await(session.fetch(id));
+ *			}
+ *		}.submit();
+ * 
+ * Classes that contain Pausable methods must be woven by the kilim weaver, 
+ * either ahead of time with kilim.tools.Weaver, see the weave target in 
+ * this plugin's build.xml, or at load time with kilim.tools.Kilim. 
+ * 
+ * A fiber waits for a result without allocating anything, the fiber is 
+ * paused and the result resumes it on the kilim scheduler when complete. 
+ * Results that are already complete do not pause the fiber.
+ * 
+ * Cancelling the result of a fiber releases the result that the fiber is 
+ * waiting on, so the awaited result is only cancelled if nothing else 
+ * is waiting on it, and the fiber then completes with a 
+ * CancellationException.
+ * 
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+abstract public class ContrailFiber<T> extends Task {
+	
+	private volatile IResult _awaiting;
+	private final Result<T> _result= new Result<T>() {
+		public void cancel() {
+			if (isDone())
+				return;
+			super.cancel();
+			if (isCancelled()) {
+				IResult awaiting= _awaiting;
+				if (awaiting != null)
+					TaskUtils.release(awaiting, _wakeup);
+				resume();
+			}
+		}
+	};
+	
+	/*
+	 * Resumes this fiber when the awaited result completes
+	 */
+	private final IResultHandler _wakeup= new IResultHandler() {
+		public void onComplete(IResult result) {
+			resume();
+		}
+	};
+	/*
+	 * Keeps this fiber paused until the awaited result completes or this 
+	 * fiber is cancelled
+	 */
+	private final PauseReason _awaitingResult= new PauseReason() {
+		public boolean isValid(Task task) {
+			IResult awaiting= _awaiting;
+			return awaiting != null && !awaiting.isDone() && !_result.isCancelled();
+		}
+	};
+	
+	/**
+	 * The body of this fiber.
+	 * The value returned from this method becomes the value of the fiber's result.
+	 */
+	abstract protected T run() throws Pausable, Exception;
+	
+	@Override
+	final public void execute() throws Pausable, Exception {
+		try {
+			_result.success(run());
+		}
+		catch (Throwable t) {
+			_result.error(t);
+		}
+	}
+	
+	/**
+	 * Starts this fiber.
+	 */
+	public IResult<T> submit() {
+		start();
+		return _result;
+	}
+	
+	public IResult<T> toResult() {
+		return _result;
+	}
+	
+	/**
+	 * Suspends the current fiber until the given result has completed.
+	 * 
+	 * @return the value of the given result
+	 * @throws CancellationException if the given result or the current fiber 
+	 * 		was cancelled
+	 */
+	public static <X> X await(IResult<X> result) throws Pausable {
+		Task task= Task.getCurrentTask();
+		if (task instanceof ContrailFiber) {
+			ContrailFiber fiber= (ContrailFiber)task;
+			if (!result.isDone() && !fiber._result.isCancelled()) {
+				fiber._awaiting= result;
+				result.addHandler(fiber._wakeup);
+				while (fiber._awaitingResult.isValid(fiber))
+					Task.pause(fiber._awaitingResult);
+				fiber._awaiting= null;
+				// a cancel that ran before the handler was added did not release it
+				if (fiber._result.isCancelled())
+					TaskUtils.release(result, fiber._wakeup);
+			}
+			if (fiber._result.isCancelled())
+				throw new CancellationException();
+		}
+		else if (!result.isDone()) {
+			// some other kind of task
+			final Cell<IResult> completed= new Cell<IResult>();
+			result.addHandler(new IResultHandler() {
+				public void onComplete(IResult r) {
+					completed.putnb(r);
+				}
+			});
+			completed.get();
+		}
+		if (result.isSuccess())
+			return result.getResult();
+		if (result.isCancelled())
+			throw new CancellationException();
+		TaskUtils.throwSomething(result.getError());
+		return null;
+	}
+}
@@ -1,15 +1,22 @@
-package com.googlecode.contraildb.core.async;
-
-import com.googlecode.contraildb.core.IResult;
-
-/**
- * Like java.util.Iterator only this interface returns results 
- * asynchronously instead of immediately.
- * 
- * @author ted.stockwell
- */
-public interface IAsyncerator<E> {
-    IResult<Boolean> hasNext();
-    IResult<E> next();
-    IResult<Void> remove();
-}
+package com.googlecode.contraildb.core.async;
+
+import com.googlecode.contraildb.core.IResult;
+
+/**
+ * Like java.util.Iterator only this interface returns results 
+ * asynchronously instead of immediately.
+ * 
+ * @author ted.stockwell
+ */
+public interface IAsyncerator<E> {
+    IResult<Boolean> hasNext();
+    IResult<E> next();
+    IResult<Void> remove();
+    
+    /**
+     * Stops this iteration and cancels any results that are still pending, 
+     * like fetches started by next.
+     * Once cancelled, hasNext and next return cancelled results.
+     */
+    void cancel();
+}
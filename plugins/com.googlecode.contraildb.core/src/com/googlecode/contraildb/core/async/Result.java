@@ -19,27 +19,22 @@ public class Result<V> implements IResult<V>{
 	private boolean _cancelled= false;
 	private Throwable _error= null;
 	private List<IResultHandler> _completedHandlers= null;
+	private List<IResultHandler> _listeners= null; // see addListener
+	private int _observers= 0; // handlers that do not keep this result alive
 
 	@Override public synchronized boolean isDone() {
 		return _done;
 	}
 	
 	
-	public synchronized void cancel() {
-		if (!_done) {
-			_cancelled= true;
-			complete(false, null, null);
-		}
+	public void cancel() {
+		complete(true, false, null, null);
 	}
-	public synchronized void success(V result) {
-		if (!_done) {
-			complete(true, result, null);
-		}
+	public void success(V result) {
+		complete(false, true, result, null);
 	}
-	public synchronized void error(Throwable t) {
-		if (!_done) {
-			complete(false, null, t);
-		}
+	public void error(Throwable t) {
+		complete(false, false, null, t);
 	}
 
 	@Override synchronized public V get() {
@@ -74,23 +69,58 @@ public class Result<V> implements IResult<V>{
 		}
 	}
 
-	synchronized public void complete(final IResult<V> result) {
-		result.addHandler(new Handler() {
-			public void onComplete() throws Exception {
-				complete(result.isSuccess(), result.getResult(), result.getError());
+	/**
+	 * Completes this result in the same way as the given result, when the given result completes. 
+	 */
+	public void complete(IResult<V> result) {
+		result.addHandler(new IResultHandler<V>() {
+			public void onComplete(IResult<V> r) {
+				if (r.isSuccess()) {
+					success(r.getResult());
+				}
+				else if (r.isCancelled()) {
+					cancel();
+				}
+				else
+					error(r.getError());
 			}
 		});
 	}
-	synchronized public void complete(boolean success, V result, Throwable error) {
-		if (_done)
-			return;
-		_done= true;
-		_success= success;
-		_error= error;
-		_result= result;
+	public void complete(boolean success, V result, Throwable error) {
+		complete(false, success, result, error);
+	}
+	private void complete(boolean cancelled, boolean success, V result, Throwable error) {
+		List<IResultHandler> handlers;
+		List<IResultHandler> listeners;
+		synchronized (this) {
+			if (_done)
+				return;
+			_done= true;
+			_cancelled= cancelled;
+			_success= success;
+			_error= error;
+			_result= result;
+			handlers= _completedHandlers;
+			listeners= _listeners;
+			_completedHandlers= null;
+			_listeners= null;
+			
+			notify(); // notify the get() method that results are available
+		}
 		
-		if (_completedHandlers != null) {
-			for (final IResultHandler handler:_completedHandlers) {
+		// listeners are called outside this result's monitor
+		if (listeners != null) {
+			for (IResultHandler listener:listeners) {
+				try {
+					listener.onComplete(this);
+				}
+				catch (Throwable t) {
+					Logging.warning("Error in completion listener", t);
+				}
+			}
+		}
+		if (handlers != null) {
+			for (final IResultHandler handler:handlers) {
 				new ContrailAction() {
 					@Override protected void action() throws Exception {
 						try {
@@ -102,11 +132,7 @@ public class Result<V> implements IResult<V>{
 					}
 				}.submit();
 			}
-			_completedHandlers= null;
 		}
-		
-		
-		notify(); // notify the get() method that results are available
 	}
 
 	@Override
@@ -152,13 +178,85 @@ public class Result<V> implements IResult<V>{
 		_completedHandlers.add(handler);
 	}
 
+	/**
+	 * Adds a handler that is called on the thread that completes this 
+	 * result, instead of being submitted as a ContrailAction like the 
+	 * handlers added with addHandler. 
+	 * If this result is already complete then the listener is called 
+	 * immediately on the calling thread.
+	 * Listeners must be short and must not block, they delay the thread 
+	 * that completes this result. 
+	 * Like a handler, a listener counts as a consumer of this result and 
+	 * can be detached with release.
+	 */
+	public void addListener(IResultHandler<V> listener) {
+		synchronized (this) {
+			if (!_done) {
+				if (_listeners == null)
+					_listeners= new ArrayList<IResultHandler>();
+				_listeners.add(listener);
+				return;
+			}
+		}
+		try {
+			listener.onComplete(this);
+		}
+		catch (Throwable t) {
+			Logging.warning("Error in completion listener", t);
+		}
+	}
+
+	/**
+	 * Adds a handler that is notified when this result completes but, 
+	 * unlike handlers added with addHandler, does not count as a consumer 
+	 * of this result.
+	 * Used for bookkeeping, like tracking running tasks, that should not 
+	 * keep an otherwise unused result from being cancelled by release.
+	 */
+	synchronized public void addObserver(IResultHandler<V> handler) {
+		addHandler(handler);
+		if (!_done)
+			_observers++;
+	}
+	
+	/**
+	 * Detaches the given handler, a consumer that is no longer interested 
+	 * in this result. 
+	 * The handler will not be called when this result completes.
+	 * Results may be shared by several consumers so a consumer that is 
+	 * cancelled releases its inputs instead of cancelling them, an input 
+	 * is only cancelled when no consumers remain.
+	 * 
+	 * @param handler the handler to detach, or null if the caller never 
+	 * 		added a handler to this result.
+	 */
+	public void release(IResultHandler<V> handler) {
+		synchronized (this) {
+			if (_done)
+				return;
+			int consumers= 0;
+			if (_completedHandlers != null) {
+				_completedHandlers.remove(handler);
+				consumers+= _completedHandlers.size();
+			}
+			if (_listeners != null) {
+				_listeners.remove(handler);
+				consumers+= _listeners.size();
+			}
+			if (_observers < consumers)
+				return;
+		}
+		cancel();
+	}
+
 	@Override
 	public boolean isCancelled() {
 		return _cancelled;
 	}
 	
 	public boolean hasHandlers() {
-		return _completedHandlers != null && !_completedHandlers.isEmpty();
+		return (_completedHandlers != null && !_completedHandlers.isEmpty()) 
+			|| (_listeners != null && !_listeners.isEmpty());
 	}
 
 }
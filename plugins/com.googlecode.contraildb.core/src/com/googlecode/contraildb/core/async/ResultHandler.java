@@ -9,8 +9,7 @@ abstract public class ResultHandler<I> extends Handler {
 	}
 	
 	final protected IResult onSuccess() throws Exception {
-		onSuccess((I)incoming().getResult());
-		return TaskUtils.DONE;
+		return onSuccess((I)incoming().getResult());
 	}
 	abstract protected IResult onSuccess(I results) throws Exception;
 }
@@ -1,10 +1,15 @@
 package com.googlecode.contraildb.core.async;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 import com.googlecode.contraildb.core.IResult;
@@ -63,6 +68,10 @@ import com.googlecode.contraildb.core.IResult;
  * If an error occurs in any of the handlers then the the Series handler
  * will return an error result.
  * 
+ * The handler methods of a Series class are discovered, sorted, and bound 
+ * to method handles only once, the first time the class is used.
+ * Handler methods must be instance methods.
+ * 
  * @author ted.stockwell
  * 
  * @see Parallel
@@ -71,12 +80,31 @@ import com.googlecode.contraildb.core.IResult;
 @SuppressWarnings({"rawtypes","unchecked"})
 public class Series extends Handler {
 
+	/**
+	 * A handler method, bound once per class.
+	 */
 	private static class HandlerInfo {
 		Method method;
-		Field initField;
+		MethodHandle invoker; // (Object)Object
+		MethodHandle initSetter; // (Object,Object)void, null if no @init field
 	}
-	private static HashMap<Class, List<HandlerInfo>> _methodsByClass= 
-			new HashMap<Class, List<HandlerInfo>>();
+	
+	/*
+	 * The plan for each Series class is computed once and then shared, 
+	 * without locking, by all instances of the class.
+	 */
+	private static final ClassValue<List<HandlerInfo>> __plans= new ClassValue<List<HandlerInfo>>() {
+		protected List<HandlerInfo> computeValue(Class type) {
+			try {
+				return createPlan(type);
+			}
+			catch (IllegalAccessException x) {
+				throw new RuntimeException("Unable to bind handler methods for "+type.getName(), x);
+			}
+		}
+	};
+	private static final MethodType INVOKER_TYPE= MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE= MethodType.methodType(void.class, Object.class, Object.class);
 	
 	List<Handler> _handlers;
 	
@@ -128,8 +156,8 @@ public class Series extends Handler {
 		return new Handler() {
 			protected IResult onSuccess() throws Exception {
 				
-				final Object result= info.method.invoke(Series.this, (Object[])null);
-				if (info.initField == null) {
+				final Object result= invoke(info);
+				if (info.initSetter == null) {
 					if (result == null)
 						return TaskUtils.DONE;
 					if (result instanceof IResult)
@@ -139,17 +167,17 @@ public class Series extends Handler {
 
 				// there is an init field that needs to be initialized
 				if (result == null) {
-					info.initField.set(Series.this, null);
+					init(info, null);
 					return TaskUtils.DONE;
 				}
 				if (!(result instanceof IResult)) {
-					info.initField.set(Series.this, result);
+					init(info, result);
 					return TaskUtils.DONE;
 				}
 				return new Handler(result) {
 					protected IResult onSuccess() throws Exception {
 						Object value= ((IResult)result).getResult();
-						info.initField.set(Series.this, value);
+						init(info, value);
 						return TaskUtils.DONE;
 					}
 				};
@@ -159,25 +187,53 @@ public class Series extends Handler {
 	
 	private void wireHandlers() {
 
+		// connect first handler to internal result which will completed
+		// when this handler is completed, thus firing off the first handler.
+		// The first handler is connected before the others are connected to 
+		// it, since a handler without an input starts as soon as it is exposed.
+		if (0 < _handlers.size()) {
+			_handlers.get(0).handleResult(_result);
+		}
+
 		// connect all handlers but the first one in series
 		for (int i= 1; i < _handlers.size(); i++) {
 			Handler handler= _handlers.get(i);
 			handler.handleResult(_handlers.get(i-1));
 		}
-
-		// connect first handler to internal result which will completed
-		// when this handler is completed, thus firing off the first handler.
-		if (0 < _handlers.size()) {
-			_handlers.get(0).handleResult(_result);
+	}
+	
+	private List<HandlerInfo> getHandlerMethods() {
+		return __plans.get(getClass());
+	}
+	
+	private Object invoke(HandlerInfo info) throws Exception {
+		try {
+			return (Object)info.invoker.invokeExact((Object)this);
+		}
+		catch (Exception x) {
+			throw x;
+		}
+		catch (Throwable t) {
+			TaskUtils.throwSomething(t);
+			return null;
 		}
 	}
 	
-	synchronized private List<HandlerInfo> getHandlerMethods() {
-		Class thisClass= this.getClass();
-		List<HandlerInfo> handlerMethods= _methodsByClass.get(thisClass);
-		if (handlerMethods != null)
-			return handlerMethods;
-		handlerMethods= new ArrayList<HandlerInfo>();
+	private void init(HandlerInfo info, Object value) throws Exception {
+		try {
+			info.initSetter.invokeExact((Object)this, value);
+		}
+		catch (Exception x) {
+			throw x;
+		}
+		catch (Throwable t) {
+			TaskUtils.throwSomething(t);
+		}
+	}
+	
+	private static List<HandlerInfo> createPlan(Class thisClass) throws IllegalAccessException {
+		MethodHandles.Lookup lookup= MethodHandles.lookup();
+		List<HandlerInfo> handlerMethods= new ArrayList<HandlerInfo>();
 		
 		// find fields to be initialized.
 		Field[] declaredFields= thisClass.getDeclaredFields();
@@ -194,61 +250,64 @@ public class Series extends Handler {
 		Method[] declaredMethods= thisClass.getDeclaredMethods();
 		for (Method method:declaredMethods) {
 			int modifers= method.getModifiers();
+			if (method.isSynthetic() || Modifier.isStatic(modifers))
+				continue;
 			if (!Modifier.isPublic(modifers) && !Modifier.isProtected(modifers) && !Modifier.isPrivate(modifers)) {
 				// no access modifier specified - assume its a handler method
 				method.setAccessible(true);
 				HandlerInfo info= new HandlerInfo();
 				info.method= method;
-				info.initField= initFields.get(method.getName().toLowerCase());
+				info.invoker= lookup.unreflect(method).asType(INVOKER_TYPE);
+				Field initField= initFields.get(method.getName().toLowerCase());
+				if (initField != null)
+					info.initSetter= lookup.unreflectSetter(initField).asType(SETTER_TYPE);
 				handlerMethods.add(info);
 			}
 		}
 		
 		// sort methods
-		if (1 < handlerMethods.size()) {
-			while (1 < handlerMethods.size()) {
-				boolean noChange= true;
-				for (int i= 1; i < handlerMethods.size(); i++) {
-					HandlerInfo iinfo= handlerMethods.get(i);
-					Method imethod= iinfo.method;
-					String iname= imethod.getName().toLowerCase();
-					
-					if (iname.startsWith("start")) {
-						handlerMethods.remove(i);
-						handlerMethods.add(0, iinfo);
-						noChange= false;
-						continue;
-					}
-					
-					seq iseq= imethod.getAnnotation(seq.class);
-					String isuffix= iseq != null ? iseq.value().toLowerCase() : "";
-					for (int j= 0; j < i; j++) {
-						HandlerInfo jinfo= handlerMethods.get(j);
-						Method jmethod= jinfo.method;
-						String jname= jmethod.getName().toLowerCase();
-						seq jseq= jmethod.getAnnotation(seq.class);
-						String jsuffix= jseq != null ? jseq.value().toLowerCase() : "";;
-						if (0 < jsuffix.length() && iname.startsWith(jsuffix) && j+1 < i) {
-							handlerMethods.remove(i);
-							handlerMethods.add(j+1, iinfo);
-							noChange= false;
-							break;
-						}
-						if (0 < isuffix.length() && jname.startsWith(isuffix) && j+1 < i) {
-							handlerMethods.remove(j);
-							handlerMethods.add(i, jinfo);
-							noChange= false;
-							break;
-						}
-					}
+		// methods named 'start...' go first, every other method goes after 
+		// the method named by its @seq annotation.
+		// Methods are otherwise kept in declaration order. 
+		List<HandlerInfo> sorted= new ArrayList<HandlerInfo>(handlerMethods.size());
+		for (Iterator<HandlerInfo> i= handlerMethods.iterator(); i.hasNext();) {
+			HandlerInfo info= i.next();
+			if (info.method.getName().toLowerCase().startsWith("start")) {
+				sorted.add(info);
+				i.remove();
+			}
+		}
+		while (!handlerMethods.isEmpty()) {
+			boolean placed= false;
+			for (Iterator<HandlerInfo> i= handlerMethods.iterator(); i.hasNext();) {
+				HandlerInfo info= i.next();
+				seq order= info.method.getAnnotation(seq.class);
+				if (order == null || !isNamed(handlerMethods, order.value(), info)) {
+					sorted.add(info);
+					i.remove();
+					placed= true;
 				}
-				if (noChange)
-					break;
+			}
+			if (!placed) { 
+				// circular @seq annotations, keep the remaining methods in declaration order
+				sorted.addAll(handlerMethods);
+				break;
 			}
 		}
 		
-		_methodsByClass.put(thisClass, handlerMethods);
-		return handlerMethods;
+		return Collections.unmodifiableList(sorted);
+	}
+	
+	/**
+	 * @return true if any method in the given list, other than the given method, 
+	 * 	has a name that begins with the given prefix
+	 */
+	private static boolean isNamed(List<HandlerInfo> methods, String prefix, HandlerInfo exclude) {
+		prefix= prefix.toLowerCase();
+		for (HandlerInfo info: methods) 
+			if (info != exclude && info.method.getName().toLowerCase().startsWith(prefix))
+				return true;
+		return false;
 	}
 	
 	
@@ -267,6 +326,18 @@ public class Series extends Handler {
 		return TaskUtils.DONE;
 	}
 	
+	/**
+	 * Cancelling a Series cancels all of its handlers, 
+	 * including those that have not yet been started.
+	 */
+	@Override
+	protected void cancelDependencies() {
+		super.cancelDependencies();
+		_result.cancel();
+		for (Handler handler: _handlers)
+			handler.cancel();
+	}
+	
 	protected void run(IResult handler) {
 		
 	}
@@ -1,165 +1,388 @@
-package com.googlecode.contraildb.core.async;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-
-import com.googlecode.contraildb.core.IResult;
-import com.googlecode.contraildb.core.IResultHandler;
-import com.googlecode.contraildb.core.utils.Logging;
-
-@SuppressWarnings({"unchecked", "rawtypes"})
-public class TaskUtils {
-	
-	public static final IResult<Void> DONE= asResult(null); 
-	public static final IResult<Boolean> SUCCESS= asResult(true); 
-	public static final IResult<Boolean> FAIL= asResult(false); 
-	public static final IResult<Boolean> TRUE= asResult(true); 
-	public static final IResult<Boolean> FALSE= asResult(false); 
-	public static final IResult NULL= asResult(null); 
-	public static final <T> IResult<T> NULL() { return NULL; } 
-	
-	public static final <T> IResult<T> run(Handler<?,T> handler) {
-		handler.handleResult(DONE);
-		return handler.outgoing();
-	}
-	
-	
-	
-	/**
-	 * Returns a Result that is completed when all the given tasks are complete.
-	 * If any task completes with an error then the returned Result also completes with an error.
-	 */
-	public static final <T extends IResult<?>> IResult<Void> combineResults(Collection<T> tasks) {
-		if (tasks == null || tasks.isEmpty())
-			return DONE;
-		final Result<Void> result= new Result<Void>();
-		final int[] count= new int[] { tasks.size() };
-		final IResult[] error= new IResult[] { null };
-		IResultHandler handler= new IResultHandler() {
-			public void onComplete(IResult r) throws Exception {
-				if (!r.isSuccess()) {
-					error[0]= r;
-				}
-				if (--count[0] <= 0) {
-					if (error[0] != null) {
-						result.error(error[0].getError());
-					}
-					else
-						result.success(null);
-				}
-			}
-		};
-		for (IResult<?> task: tasks) {
-			task.addHandler(handler);
-		}
-		return result;
-	} 
-	public static final <T extends IResult<?>> IResult<Void> combineResults(T task, T... moreTasks) {
-		if (moreTasks.length <= 0)
-			return (IResult<Void>) task;
-		ArrayList<T> list= new ArrayList<T>(Arrays.asList(moreTasks));
-		list.add(task);
-		return combineResults(list);
-	} 
-
-	public static final <T extends Throwable> void throwSomething(Throwable t, Class<T> type) throws T {
-		if (t == null)
-			return;
-		if (type.isAssignableFrom(t.getClass()))
-				throw (T)t;
-		throwSomething(t);
-	}
-	
-	static final <T extends Throwable> Throwable throwIfMatchingInstance(Throwable t, Class<T> type) throws T {
-		if (t == null)
-			return null;
-		if (type.isAssignableFrom(t.getClass()))
-				throw (T)t;
-		return t;
-	}
-	static final void throwSomething(Throwable t) {
-		if (t == null)
-			throw new RuntimeException("unknown error");
-		if (t instanceof RuntimeException)
-			throw (RuntimeException)t;
-		if (t instanceof Error)
-			throw (Error)t;
-		throw new RuntimeException(t);
-	}
-	
-	
-//	public static Throwable getThrowable(final Collection<ContrailTask<?>> tasks) 
-//	{
-//		try {
-//			for (ContrailTask<?> task: tasks)
-//				task.join();
-//		} 
-//		catch (Throwable e) {
-//			while (e instanceof RuntimeException) {
-//				Throwable cause= e.getCause();
-//				if (cause == null)
-//					break;
-//				e= cause;
-//			}
-//			return e;
-//		} 
-//		return null;
-//	} 
-//	public static Throwable getThrowable(ContrailTask<?>... tasks) 
-//	{
-//		try {
-//			for (ContrailTask<?> task: tasks)
-//				task.join();
-//		} 
-//		catch (Throwable e) {
-//			while (e instanceof RuntimeException) {
-//				Throwable cause= e.getCause();
-//				if (cause == null)
-//					break;
-//				e= cause;
-//			}
-//			return e;
-//		} 
-//		return null;
-//	}
-	
-	/**
-	 * Convert a static value to a Result
-	 */
-	public static <X, Y extends X> IResult<X> asResult( final Y bs) {
-		return new IResult<X>() {
-			public X get() {
-				return bs;
-			}
-			public void join() {
-				// do nothing
-			}
-			public boolean isDone() {
-				return true;
-			}
-			@Override public boolean isSuccess() {
-				return true;
-			}
-			@Override public Throwable getError() {
-				return null;
-			}
-			@Override public X getResult() {
-				return bs;
-			}
-			@Override
-			public boolean isCancelled() {
-				return false;
-			}
-			@Override
-			public void addHandler(IResultHandler<X> handler) {
-				try {
-					handler.onComplete(this);
-				}
-				catch (Throwable t) {
-					Logging.warning("Error while handling completion", t);
-				}
-			}
-		};
-	}
-}
+package com.googlecode.contraildb.core.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import kilim.TimerWheel;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.IResultHandler;
+import com.googlecode.contraildb.core.utils.Logging;
+
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class TaskUtils {
+	
+	public static final IResult<Void> DONE= asResult(null); 
+	public static final IResult<Boolean> SUCCESS= asResult(true); 
+	public static final IResult<Boolean> FAIL= asResult(false); 
+	public static final IResult<Boolean> TRUE= asResult(true); 
+	public static final IResult<Boolean> FALSE= asResult(false); 
+	public static final IResult NULL= asResult(null); 
+	public static final <T> IResult<T> NULL() { return NULL; } 
+	public static final IResult CANCELLED= cancelled(); 
+	
+	public static final <T> IResult<T> run(Handler<?,T> handler) {
+		handler.handleResult(DONE);
+		return handler.outgoing();
+	}
+	
+	
+	
+	/**
+	 * Returns a Result that is completed when all the given tasks are complete.
+	 * If any task completes with an error then the returned Result also completes with an error.
+	 * Cancelling the returned Result releases the given tasks, see Result.release.
+	 * The given tasks may be shared with other consumers so they are only 
+	 * cancelled if nothing else is waiting on them.
+	 */
+	public static final <T extends IResult<?>> IResult<Void> combineResults(Collection<T> tasks) {
+		if (tasks == null || tasks.isEmpty())
+			return DONE;
+		CombinedResult result= new CombinedResult(tasks);
+		for (IResult<?> task: result._combined) {
+			task.addHandler(result);
+		}
+		return result;
+	} 
+	
+	/**
+	 * The result of combineResults, also the handler for all the combined tasks.
+	 */
+	private static class CombinedResult extends Result<Void> implements IResultHandler {
+		final ArrayList<IResult> _combined;
+		// handlers may be called concurrently from different threads
+		final AtomicInteger _count;
+		final AtomicReference<IResult> _error= new AtomicReference<IResult>();
+		
+		CombinedResult(Collection<? extends IResult> tasks) {
+			_combined= new ArrayList<IResult>(tasks);
+			_count= new AtomicInteger(_combined.size());
+		}
+		
+		public void onComplete(IResult r) throws Exception {
+			if (!r.isSuccess()) {
+				_error.set(r);
+			}
+			if (_count.decrementAndGet() <= 0) {
+				IResult failed= _error.get();
+				if (failed != null) {
+					if (failed.isCancelled()) {
+						super.cancel();
+					}
+					else
+						error(failed.getError());
+				}
+				else
+					success(null);
+			}
+		}
+		
+		public void cancel() {
+			if (isDone())
+				return;
+			super.cancel();
+			if (isCancelled()) {
+				for (IResult task: _combined)
+					TaskUtils.release(task, this);
+			}
+		}
+	}
+	
+	public static final <T extends IResult<?>> IResult<Void> combineResults(T task, T... moreTasks) {
+		if (moreTasks.length <= 0)
+			return (IResult<Void>) task;
+		ArrayList<T> list= new ArrayList<T>(Arrays.asList(moreTasks));
+		list.add(task);
+		return combineResults(list);
+	} 
+
+	public static final <T extends Throwable> void throwSomething(Throwable t, Class<T> type) throws T {
+		if (t == null)
+			return;
+		if (type.isAssignableFrom(t.getClass()))
+				throw (T)t;
+		throwSomething(t);
+	}
+	
+	static final <T extends Throwable> Throwable throwIfMatchingInstance(Throwable t, Class<T> type) throws T {
+		if (t == null)
+			return null;
+		if (type.isAssignableFrom(t.getClass()))
+				throw (T)t;
+		return t;
+	}
+	static final void throwSomething(Throwable t) {
+		if (t == null)
+			throw new RuntimeException("unknown error");
+		if (t instanceof RuntimeException)
+			throw (RuntimeException)t;
+		if (t instanceof Error)
+			throw (Error)t;
+		throw new RuntimeException(t);
+	}
+	
+	
+//	public static Throwable getThrowable(final Collection<ContrailTask<?>> tasks) 
+//	{
+//		try {
+//			for (ContrailTask<?> task: tasks)
+//				task.join();
+//		} 
+//		catch (Throwable e) {
+//			while (e instanceof RuntimeException) {
+//				Throwable cause= e.getCause();
+//				if (cause == null)
+//					break;
+//				e= cause;
+//			}
+//			return e;
+//		} 
+//		return null;
+//	} 
+//	public static Throwable getThrowable(ContrailTask<?>... tasks) 
+//	{
+//		try {
+//			for (ContrailTask<?> task: tasks)
+//				task.join();
+//		} 
+//		catch (Throwable e) {
+//			while (e instanceof RuntimeException) {
+//				Throwable cause= e.getCause();
+//				if (cause == null)
+//					break;
+//				e= cause;
+//			}
+//			return e;
+//		} 
+//		return null;
+//	}
+	
+	private static IResult cancelled() {
+		Result result= new Result();
+		result.cancel();
+		return result;
+	}
+	
+	/**
+	 * Convert a static value to a Result
+	 */
+	public static <X, Y extends X> IResult<X> asResult( final Y bs) {
+		return new IResult<X>() {
+			public X get() {
+				return bs;
+			}
+			public void join() {
+				// do nothing
+			}
+			public boolean isDone() {
+				return true;
+			}
+			@Override public boolean isSuccess() {
+				return true;
+			}
+			@Override public Throwable getError() {
+				return null;
+			}
+			@Override public X getResult() {
+				return bs;
+			}
+			@Override
+			public boolean isCancelled() {
+				return false;
+			}
+			@Override
+			public void cancel() {
+				// already complete
+			}
+			@Override
+			public void addHandler(IResultHandler<X> handler) {
+				try {
+					handler.onComplete(this);
+				}
+				catch (Throwable t) {
+					Logging.warning("Error while handling completion", t);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Adapts a Result to a CompletionStage.
+	 * 
+	 * The returned stage is completed by a completion listener on the 
+	 * given result, see Result.addListener, so the stage, and the dependent 
+	 * actions of the stage that are not async, are completed on the thread 
+	 * that completes the given result.
+	 * If the given result is already complete then the stage is completed 
+	 * immediately on the calling thread.
+	 * Results that are not a Result or a Handler do not support listeners, 
+	 * their stages are completed by an ordinary completion handler.
+	 * Errors are propagated as exceptional completions and a cancelled 
+	 * result cancels the returned stage.
+	 * Cancelling the returned stage (via toCompletableFuture().cancel()) 
+	 * releases the given result, see Result.release.
+	 * Completing the returned stage by other means does not affect the 
+	 * given result.
+	 * 
+	 * If the given result was itself created by fromCompletionStage then 
+	 * the original stage is returned.
+	 */
+	public static <T> CompletionStage<T> toCompletionStage(final IResult<T> result) {
+		if (result instanceof StageResult) 
+			return ((StageResult<T>)result)._stage;
+		final ResultStage<T> stage= new ResultStage<T>(result);
+		IResultHandler<T> listener= stage._handler= new IResultHandler<T>() {
+			public void onComplete(IResult<T> r) {
+				if (r.isSuccess()) {
+					stage.complete(r.getResult());
+				}
+				else if (r.isCancelled()) {
+					stage.cancel(false);
+				}
+				else {
+					Throwable t= r.getError();
+					stage.completeExceptionally(t != null ? t : new RuntimeException("unknown error"));
+				}
+			}
+		};
+		if (result instanceof Result) {
+			((Result<T>)result).addListener(listener);
+		}
+		else if (result instanceof Handler) {
+			((Handler)result).toResult().addListener(listener);
+		}
+		else
+			result.addHandler(listener);
+		return stage;
+	}
+	
+	/**
+	 * Adapts a CompletionStage to a Result.
+	 * 
+	 * The returned result is completed on the thread that completes the 
+	 * given stage.
+	 * Exceptional completions are unwrapped and propagated as errors, a 
+	 * cancelled stage cancels the returned result.
+	 * Cancelling the returned result cancels the given stage.
+	 * 
+	 * If the given stage was itself created by toCompletionStage then 
+	 * the original result is returned.
+	 */
+	public static <T> IResult<T> fromCompletionStage(CompletionStage<T> stage) {
+		if (stage instanceof ResultStage) 
+			return ((ResultStage<T>)stage)._result;
+		StageResult<T> result= new StageResult<T>(stage);
+		stage.whenComplete(result);
+		return result;
+	}
+	
+	/**
+	 * Returns a result that completes after the given number of milliseconds.
+	 * The delay is scheduled on the shared timer wheel, no thread is occupied 
+	 * while waiting.
+	 * Cancelling the returned result cancels the timeout.
+	 */
+	public static IResult<Void> delay(long delayMillis) {
+		final TimerWheel.Timeout[] timeout= new TimerWheel.Timeout[1];
+		final Result<Void> result= new Result<Void>() {
+			public void cancel() {
+				super.cancel();
+				timeout[0].cancel();
+			}
+		};
+		timeout[0]= TimerWheel.getDefault().schedule(new TimerWheel.Timeout() {
+			public void run() {
+				result.success(null);
+			}
+		}, delayMillis);
+		return result;
+	}
+	
+	/**
+	 * Detaches the given handler from the given result, if the result 
+	 * supports it. 
+	 * The result is cancelled if no other consumers are waiting on it.
+	 * @see Result#release(IResultHandler)
+	 */
+	public static void release(IResult<?> result, IResultHandler<?> handler) {
+		if (result instanceof Result) {
+			((Result)result).release(handler);
+		}
+		else if (result instanceof Handler) 
+			((Handler)result).toResult().release(handler);
+	}
+	
+	/**
+	 * Cancels the given result, if there is one.
+	 */
+	public static void cancel(IResult<?> result) {
+		if (result != null)
+			result.cancel();
+	}
+	
+	/**
+	 * A CompletableFuture completed by its result, cancelling it releases 
+	 * the result.
+	 */
+	private static class ResultStage<T> extends CompletableFuture<T> {
+		final IResult<T> _result;
+		IResultHandler<T> _handler;
+		
+		ResultStage(IResult<T> result) {
+			_result= result;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled= super.cancel(mayInterruptIfRunning);
+			if (cancelled)
+				TaskUtils.release(_result, _handler);
+			return cancelled;
+		}
+	}
+	
+	private static class StageResult<T> extends Result<T> implements BiConsumer<T, Throwable> {
+		final CompletionStage<T> _stage;
+		
+		StageResult(CompletionStage<T> stage) {
+			_stage= stage;
+		}
+
+		@Override
+		public void accept(T value, Throwable t) {
+			if (t == null) {
+				success(value);
+				return;
+			}
+			if (t instanceof CompletionException && t.getCause() != null)
+				t= t.getCause();
+			if (t instanceof CancellationException) {
+				super.cancel();
+			}
+			else
+				error(t);
+		}
+		
+		@Override
+		public void cancel() {
+			super.cancel();
+			if (!isCancelled())
+				return;
+			// the stage is cancelled outside of this result's monitor
+			try {
+				_stage.toCompletableFuture().cancel(false);
+			}
+			catch (UnsupportedOperationException x) {
+				// the stage does not support cancellation
+			}
+		}
+	}
+}
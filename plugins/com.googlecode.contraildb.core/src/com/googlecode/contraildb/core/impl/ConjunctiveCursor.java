@@ -168,4 +168,10 @@ public class ConjunctiveCursor<T extends Comparable<T>> implements IForwardCurso
 			}
 		};
 	}
+
+	@Override
+	public void cancel() {
+		for (IForwardCursor<T> cursor: _cursors)
+			cursor.cancel();
+	}
 }
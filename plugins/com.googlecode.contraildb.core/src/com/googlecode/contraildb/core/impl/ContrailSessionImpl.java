@@ -25,6 +25,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import com.googlecode.contraildb.core.ContrailException;
 import com.googlecode.contraildb.core.ContrailQuery;
@@ -43,6 +45,7 @@ import com.googlecode.contraildb.core.storage.IEntity;
 import com.googlecode.contraildb.core.storage.StorageSession;
 import com.googlecode.contraildb.core.storage.StorageUtils;
 import com.googlecode.contraildb.core.storage.provider.IStorageProvider;
+import com.googlecode.contraildb.core.utils.PendingResults;
 
 
 
@@ -59,6 +62,8 @@ implements IContrailSession
 	private IndexSearcher _searcher;
 	private StorageSession _storageSession;
 	private ContrailServiceImpl _service;
+	private PendingResults _reads= new PendingResults(); // cancelled when this session ends
+	private Set<IAsyncerator> _iterators= Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<IAsyncerator, Boolean>()));
 	
 	public static IResult<ContrailSessionImpl> create(final ContrailServiceImpl service) 
 	{
@@ -109,6 +114,7 @@ implements IContrailSession
 		final StorageSession session= _storageSession;
 		_searcher= null;
 		_storageSession= null;
+		cancelReads();
 		return new Handler(session.commit()) {
 			protected void onComplete() throws Exception {
 				spawn(_service.onClose(ContrailSessionImpl.this));
@@ -121,13 +127,29 @@ implements IContrailSession
 		StorageSession session= _storageSession;
 		_searcher= null;
 		_storageSession= null;
-		return new Handler(_storageSession != null ? session.close() : TaskUtils.DONE) {
+		cancelReads();
+		return new Handler(session != null ? session.close() : TaskUtils.DONE) {
 			protected void onComplete() throws Exception {
 				spawn(_service.onClose(ContrailSessionImpl.this));
 			}
 		};
 	}
 
+	/**
+	 * Cancels the reads that are still running and the query iterators 
+	 * handed out by this session, nobody is going to wait for them.
+	 */
+	private void cancelReads() {
+		_reads.cancel();
+		ArrayList<IAsyncerator> iterators;
+		synchronized (_iterators) {
+			iterators= new ArrayList<IAsyncerator>(_iterators);
+			_iterators.clear();
+		}
+		for (IAsyncerator iterator: iterators)
+			iterator.cancel();
+	}
+
 	@Override
 	public boolean isActive() {
 		if (_storageSession == null)
@@ -196,17 +218,31 @@ implements IContrailSession
 			protected IResult onSuccess() throws Exception {
 				if (_storageSession == null)
 					throw new SessionAlreadyClosedException();
+				_reads.add(this);
 				return StorageUtils.fetchAll(_storageSession, paths);
 			}
 		};
 	}
 
+	@Override
+	public IResult<Void> prefetch(final Iterable<Identifier> paths) {
+		return new Handler() {
+			protected IResult onSuccess() throws Exception {
+				if (_storageSession == null)
+					throw new SessionAlreadyClosedException();
+				_reads.add(this);
+				return _storageSession.prefetch(paths);
+			}
+		};
+	}
+
 	@Override
 	public <T extends Item> IResult<Map<Identifier, Collection<T>>> fetchChildren(final Collection<Identifier> paths) {
 		return new Handler() {
 			protected IResult onSuccess() throws Exception {
 				if (_storageSession == null)
 					throw new SessionAlreadyClosedException();
+				_reads.add(this);
 
 				final HashMap<Identifier, IResult<Collection<T>>> fetched= new HashMap<Identifier, IResult<Collection<T>>>();
 				for (Identifier path:paths) {
@@ -253,6 +289,7 @@ implements IContrailSession
 			protected IResult onSuccess() throws Exception {
 				if (_storageSession == null)
 					throw new SessionAlreadyClosedException();
+				_reads.add(this);
 
 				final HashMap<Identifier, IResult<Collection<Identifier>>> fetched= new HashMap<Identifier, IResult<Collection<Identifier>>>();
 				for (Identifier path:paths) {
@@ -487,7 +524,15 @@ implements IContrailSession
 			protected IResult onSuccess() throws Exception {
 				if (_storageSession == null)
 					throw new SessionAlreadyClosedException();
-				return _searcher.fetchIdentifiers(query);
+				_reads.add(this);
+				return new ResultHandler<IAsyncerator<Identifier>>(_searcher.fetchIdentifiers(query)) {
+					protected IResult onSuccess(IAsyncerator<Identifier> iterator) {
+						_iterators.add(iterator);
+						if (_reads.isCancelled()) // the session ended while the query was being set up
+							iterator.cancel();
+						return asResult(iterator);
+					}
+				};
 			}
 		};
 	}
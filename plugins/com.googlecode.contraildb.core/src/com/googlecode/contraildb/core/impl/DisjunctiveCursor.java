@@ -204,4 +204,10 @@ public class DisjunctiveCursor<T extends Comparable> implements IForwardCursor<T
 		};
 	}
 
+	@Override
+	public void cancel() {
+		for (IForwardCursor<T> cursor: _cursors)
+			cursor.cancel();
+	}
+
 }
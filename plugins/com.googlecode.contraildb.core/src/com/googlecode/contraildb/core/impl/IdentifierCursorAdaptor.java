@@ -121,4 +121,12 @@ public class IdentifierCursorAdaptor implements IForwardCursor<Identifier> {
 		};
 	}
 
+	@Override
+	public void cancel() {
+		IForwardCursor<Identifier> nextElement= _nextElement;
+		if (nextElement != null)
+			nextElement.cancel();
+		_cursor.cancel();
+	}
+
 }
@@ -144,9 +144,9 @@ public class IndexSearcher {
 	private IResult<PropertyIndex> createPropertyIndex(String propertyName) 
 	{
 		Identifier indexId= Identifier.create("net/sf/contrail/core/indexes/"+propertyName);
-		return new ResultHandler<IEntity>(_storageSession.fetch(indexId)) {
-			protected IResult onSuccess(IEntity tree) throws Exception {
-				return asResult(new PropertyIndex((KeyValueSet)tree));
+		return new ResultHandler<KeyValueSet>((IResult)KeyValueSet.create(_storageSession, indexId)) {
+			protected IResult onSuccess(KeyValueSet tree) throws Exception {
+				return asResult(new PropertyIndex(tree));
 			}
 		};
 	}
@@ -222,6 +222,9 @@ public class IndexSearcher {
 					public IResult<Boolean> hasNext() {
 						return queryCursor.hasNext();
 					}
+					public void cancel() {
+						queryCursor.cancel();
+					}
 				};
 				
 				return asResult(iterator);
@@ -237,7 +240,6 @@ public class IndexSearcher {
 		ArrayList<IResult> tasks= new ArrayList<IResult>();
 		final List<IForwardCursor<Identifier>> filterCursors= new ArrayList<IForwardCursor<Identifier>>();
 		for (final FilterPredicate filterPredicate: clauses) {
-			IForwardCursor<Identifier> filterCursor= null;
 			FilterOperator op= filterPredicate.getOperator();
 			final String propertyName= filterPredicate.getPropertyName();
 			List<FilterPredicate> subClauses= filterPredicate.getClauses();
@@ -270,7 +272,6 @@ public class IndexSearcher {
 					}
 				});
 			}
-			filterCursors.add(filterCursor);
 		}
 		return new Handler(tasks) {
 			protected IResult onSuccess() throws Exception {
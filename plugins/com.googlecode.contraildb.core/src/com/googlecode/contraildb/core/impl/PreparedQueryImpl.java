@@ -16,6 +16,7 @@ import com.googlecode.contraildb.core.async.IAsyncerator;
 import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.utils.ConversionUtils;
+import com.googlecode.contraildb.core.utils.PendingResults;
 
 
 
@@ -140,16 +141,21 @@ implements IPreparedQuery<T>
 	public IResult<IAsyncerator<T>> iterate(FetchOptions fetchOptions) {
 		return new ResultHandler<IAsyncerator<Identifier>>(identifiers(fetchOptions)) {
 			protected IResult onSuccess(final IAsyncerator<Identifier> identifiers) {
+				final PendingResults fetches= new PendingResults();
 				IAsyncerator<T> items= new IAsyncerator<T>() {
 					public IResult<Boolean> hasNext() {
 						return identifiers.hasNext();
 					}
 					public IResult<T> next() {
-						return _session.fetch(identifiers.next());
+						return fetches.add(_session.fetch(identifiers.next()));
 					}
 					public IResult<Void> remove() {
 						throw new UnsupportedOperationException();
 					}
+					public void cancel() {
+						identifiers.cancel();
+						fetches.cancel();
+					}
 				};
 				return asResult(items);
 			}
@@ -162,4 +168,4 @@ implements IPreparedQuery<T>
 		return _session.iterate(_query);
 	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
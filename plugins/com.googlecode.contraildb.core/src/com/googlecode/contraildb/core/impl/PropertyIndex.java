@@ -9,7 +9,6 @@ import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.Immediate;
 import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.TaskUtils;
-import com.googlecode.contraildb.core.impl.btree.BTree;
 import com.googlecode.contraildb.core.impl.btree.IForwardCursor;
 import com.googlecode.contraildb.core.impl.btree.IOrderedSetCursor;
 import com.googlecode.contraildb.core.impl.btree.IOrderedSetCursor.Direction;
@@ -58,7 +57,7 @@ public class PropertyIndex<K extends Comparable<K> & Serializable>
 					// add the identifier to the list
 					return new ResultHandler<IEntity>(_btree.getStorage().fetch(value)) {
 						protected IResult onSuccess(IEntity item) throws Exception {
-							BTree<Identifier> set= (BTree<Identifier>) item;
+							KeyValueSet<Identifier, ?> set= (KeyValueSet<Identifier, ?>) item;
 							spawn(set.insert(document));
 							return TaskUtils.DONE;
 						}
@@ -91,7 +90,7 @@ public class PropertyIndex<K extends Comparable<K> & Serializable>
 				if (__indexRoot.isAncestorOf(id)) {
 					return new Handler(_btree.getStorage().fetch(id)) {
 						protected IResult onSuccess() throws Exception {
-							BTree<Identifier> tree= (BTree<Identifier>) incoming().getResult();
+							KeyValueSet<Identifier, ?> tree= (KeyValueSet<Identifier, ?>) incoming().getResult();
 							return asResult(tree.forwardCursor());
 						}
 					};
@@ -119,7 +118,7 @@ public class PropertyIndex<K extends Comparable<K> & Serializable>
 				if (__indexRoot.isAncestorOf(value)) {
 					return new Handler(_btree.getStorage().fetch(value)) {
 						protected IResult onSuccess() throws Exception {
-							final BTree<Identifier> set= (BTree<Identifier>) incoming().getResult();
+							final KeyValueSet<Identifier, ?> set= (KeyValueSet<Identifier, ?>) incoming().getResult();
 							return new Handler(set.remove(document)) {
 								protected IResult onSuccess() throws Exception {
 									if (set.isEmpty()) {
@@ -11,6 +11,7 @@ import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.async.WhileHandler;
 import com.googlecode.contraildb.core.storage.IEntity;
+import com.googlecode.contraildb.core.utils.PendingResults;
 
 
 @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -25,10 +26,24 @@ implements IKeyValueCursor<T,V> {
 	}
 	Node<T> _page;
 	int _index;
+	PendingResults _navigations= new PendingResults(); // navigations in progress, page fetches and the like
+	
+	/**
+	 * Remembers a navigation until it completes so that cancel can stop it.
+	 * Once this cursor is cancelled every navigation returns a cancelled result.
+	 */
+	protected <X> IResult<X> navigate(IResult<X> navigation) {
+		return _navigations.add(navigation);
+	}
+	
+	@Override
+	public void cancel() {
+		_navigations.cancel();
+	}
 
 	@Override
 	public IResult<V> elementValue() {
-		return TaskUtils.asResult((V) _page._values[_index]);
+		return navigate(TaskUtils.asResult((V) _page._values[_index]));
 	}
 	
 	private IResult<Void> initFirst()  {
@@ -77,7 +92,7 @@ implements IKeyValueCursor<T,V> {
 
 	@Override 
 	@Immediate public IResult<T> keyValue() {
-		return TaskUtils.asResult(_page._keys[_index]);
+		return navigate(TaskUtils.asResult(_page.getKey(_index)));
 	}
 	protected IResult<Boolean> previous() {
 		IResult<Void> init= TaskUtils.DONE;
@@ -132,7 +147,7 @@ implements IKeyValueCursor<T,V> {
 		return new Handler(whileNotLeaf) {
 			protected IResult onSuccess() throws Exception {
 				_index= _page.indexOf(e);
-				return asResult(0 <= _index && _index < _page._size && (KeyValueSet.compare(e, _page._keys[_index]) == 0)); 
+				return asResult(0 <= _index && _index < _page._size && (KeyValueSet.compare(e, _page.getKey(_index)) == 0)); 
 			}
 		};
 	}
@@ -157,15 +172,15 @@ implements IKeyValueCursor<T,V> {
 	@Override
 	public IResult<Boolean> next() {
 		if (Direction.REVERSE == _direction)
-			return previous();
+			return navigate(previous());
 		
 		if (_page == null) 
-			return first();
+			return navigate(first());
 	
 		IResult next= TaskUtils.DONE;
 		if (_page._size-1 <= _index) {
 			if (_page._next == null)  
-				return TaskUtils.FALSE;
+				return navigate(TaskUtils.FALSE);
 			next= new ResultAction<IEntity>(_page.getStorage().fetch(_page._next)) {
 				protected void onSuccess(IEntity next) throws Exception {
 					_page = (Node<T>) next;
@@ -173,29 +188,29 @@ implements IKeyValueCursor<T,V> {
 				}
 			};
 		}
-		return new Handler(next) {
+		return navigate(new Handler(next) {
 			protected IResult onSuccess() throws Exception {
 				_index++;
 				return TaskUtils.TRUE;	
 			}
-		};
+		});
 		
 	}
 
 	@Override
 	public IResult<Boolean> hasNext() {
 		if (Direction.REVERSE == _direction)
-			return hasPrevious();
+			return navigate(hasPrevious());
 		
 		if (_page == null) 
 			initFirst();
 		if (_page == null)
-			return TaskUtils.FALSE;
+			return navigate(TaskUtils.FALSE);
 		
 		IResult next= TaskUtils.DONE;
 		if (_page._size-1 <= _index) {
 			if (_page._next == null)  
-				return TaskUtils.FALSE;
+				return navigate(TaskUtils.FALSE);
 			next= new ResultAction<IEntity>(_page.getStorage().fetch(_page._next)) {
 				protected void onSuccess(IEntity next) throws Exception {
 					_page = (Node<T>) next;
@@ -203,18 +218,18 @@ implements IKeyValueCursor<T,V> {
 				}
 			};
 		}
-		return new Handler(next) {
+		return navigate(new Handler(next) {
 			protected IResult onSuccess() throws Exception {
 				return TaskUtils.TRUE;	
 			}
-		};
+		});
 	}
 
 	public IResult<Boolean> hasPrevious() {
 		IResult<Void> init= TaskUtils.DONE;
 		if (_page == null)
 			init= initLast();
-		return new Handler(init) {
+		return navigate(new Handler(init) {
 			protected IResult onSuccess() throws Exception {
 				if (_page == null)
 					return TaskUtils.FALSE;
@@ -238,21 +253,21 @@ implements IKeyValueCursor<T,V> {
 					}
 				};
 			}
-		};
+		});
 	}
 
 	@Override
 	public IResult<Boolean> first() {
 		if (Direction.REVERSE == _direction)
-			return last();
+			return navigate(last());
 		
-		return new Handler(initFirst()) {
+		return navigate(new Handler(initFirst()) {
 			protected IResult onSuccess() throws Exception {
 				if (_page == null)
 					return TaskUtils.FALSE;
 				return next();
 			}
-		};
+		});
 	}
 
 	protected IResult<Boolean> last() {
@@ -274,8 +289,8 @@ implements IKeyValueCursor<T,V> {
 	@Override
 	public IResult<Boolean> to(T e) {
 		if (Direction.REVERSE == _direction)
-			return le(e);
-		return ge(e);
+			return navigate(le(e));
+		return navigate(ge(e));
 	}
 	
 	/**
@@ -290,7 +305,7 @@ implements IKeyValueCursor<T,V> {
 		}
 		else
 			init= initFirst();
-		return new Handler(init) {
+		return navigate(new Handler(init) {
 			protected IResult onSuccess() throws Exception {
 				return new ResultHandler<Boolean>(to(key)) {
 					protected IResult onSuccess(Boolean to) throws Exception {
@@ -300,22 +315,22 @@ implements IKeyValueCursor<T,V> {
 							protected IResult onSuccess(T keyValue) throws Exception {
 								if (KeyValueSet.compare(key, keyValue) != 0)
 									return TaskUtils.NULL;
-								return asResult(elementValue());
+								return elementValue();
 							}
 						};
 					}
 				};
 			}
-		};
+		});
 	}
 
 	@Override
 	public IResult<Boolean> to(IResult<T> e) {
-		return new ResultHandler<T>(e) {
+		return navigate(new ResultHandler<T>(e) {
 			protected IResult onSuccess(T t) {
 				return to(t);
 			}
-		};
+		});
 	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+package com.googlecode.contraildb.core.impl.btree;
+
+import static com.googlecode.contraildb.core.async.ContrailFiber.await;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kilim.Pausable;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.async.ContrailFiber;
+
+
+/**
+ * Continuation based versions of the KeyValueSet cursor operations.
+ * 
+ * These methods implement the same lookups as CursorImpl but are written 
+ * as straight-line Pausable code, see ContrailFiber.
+ * They may be called from any ContrailFiber or, by using the methods that 
+ * return results, from handler based code.   
+ * 
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class FiberCursor {
+	
+	/**
+	 * Find the value associated with the given key.
+	 * @return the value or null if the key is not in the set
+	 */
+	public static <K extends Comparable<?>, V> V find(KeyValueSet<K,V> tree, K key) throws Pausable {
+		Node<K> page= tree.getRoot();
+		if (page == null)
+			return null;
+		while (!page.isLeaf()) 
+			page= await(page.getChildNode(page.indexOf(key)));
+		int index= page.indexOf(key);
+		if (0 <= index && index < page._size && KeyValueSet.compare(key, page.getKey(index)) == 0)
+			return (V)page._values[index];
+		return null;
+	}
+	
+	/**
+	 * Returns all keys in the set, in order.
+	 */
+	public static <K extends Comparable<?>> List<K> keys(KeyValueSet<K,?> tree) throws Pausable {
+		ArrayList<K> keys= new ArrayList<K>();
+		Node<K> page= tree.getRoot();
+		if (page == null)
+			return keys;
+		while (!page.isLeaf()) 
+			page= await(page.getChildNode(0));
+		while (true) {
+			for (int i= 0; i < page._size; i++)
+				keys.add(page.getKey(i));
+			if (page._next == null)
+				break;
+			page= (Node<K>)await(page.getStorage().fetch(page._next));
+		}
+		return keys;
+	}
+	
+	public static <K extends Comparable<?>, V> IResult<V> findResult(final KeyValueSet<K,V> tree, final K key) {
+		return new ContrailFiber<V>() {
+			protected V run() throws Pausable, Exception {
+				return find(tree, key);
+			}
+		}.submit();
+	}
+	
+	public static <K extends Comparable<?>> IResult<List<K>> keysResult(final KeyValueSet<K,?> tree) {
+		return new ContrailFiber<List<K>>() {
+			protected List<K> run() throws Pausable, Exception {
+				return keys(tree);
+			}
+		}.submit();
+	}
+}
@@ -40,6 +40,7 @@ public interface IOrderedSetCursor<K> {
 		public IResult<Boolean> next() { return TaskUtils.FALSE; }
 		public IResult<Boolean> to(K e) { return TaskUtils.FALSE; }
 		public IResult<Boolean> to(IResult<K> e) { return TaskUtils.FALSE; }
+		public void cancel() { }
 	}
 	public class SingleValueCursor<T extends Comparable<T>> implements IForwardCursor<T> {
 		private T _t;
@@ -75,6 +76,7 @@ public interface IOrderedSetCursor<K> {
 				}
 			};
 		}
+		public void cancel() { }
 	}
 
 	public static class EmptyForwardCursor<K> extends EmptyCursor<K> implements IForwardCursor<K> {
@@ -119,5 +121,12 @@ public interface IOrderedSetCursor<K> {
      * 	<code>false</code> if there is no such element.
      */
     IResult<Boolean> first();
+    
+    /**
+     * Stops this cursor and cancels any navigation in progress, including 
+     * the page fetches that it started.
+     * Once cancelled, navigation methods return cancelled results.
+     */
+    void cancel();
 
 }
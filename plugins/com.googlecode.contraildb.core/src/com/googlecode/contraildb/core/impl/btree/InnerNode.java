@@ -36,22 +36,8 @@ extends Node<K>
 	@Immediate @Override Node<K> clone(Node<K> node) { return  new InnerNode<K>(node._index); }
 	@Override IResult<K> getLookupKey() { return TaskUtils.asResult(getLargestKey()); }		
 	@Immediate @Override int indexOf(K key) { 
-		int left = 0;
-		int right = _size - 1;
-
-		while (left <= right) {
-			int middle = (left + right) / 2;
-			int i= KeyValueSet.compare(_keys[middle], key);
-			if (i == 0) {
-				left= middle+1;
-				break;
-			}
-			if (i < 0) {
-				left = middle + 1;
-			} else {
-				right = middle - 1;
-			}
-		}
+		int i= search(key);
+		int left= i < 0 ? -i - 1 : i + 1;
 		if (_size <= left)
 			return _size-1;
 		assert 0 <= left;
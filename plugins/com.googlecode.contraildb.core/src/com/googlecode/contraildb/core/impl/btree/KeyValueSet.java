@@ -132,7 +132,7 @@ implements IKeyValueSet<T,V>
 	public IResult<Void> onLoad(Identifier identifier)
 	{
 		final IResult fetch= storage.fetch(_rootId);
-		return new Handler(super.onLoad(identifier)) {
+		return new Handler(super.onLoad(identifier), fetch) {
 			protected IResult onSuccess() throws Exception {
 				_root= (Node<T>) fetch.getResult();
 				return TaskUtils.DONE;
@@ -303,6 +303,10 @@ implements IKeyValueSet<T,V>
 					}
 				};
 			}
+			@Override
+			public void cancel() {
+				navigator.cancel();
+			}
 		};
 	}
 
@@ -385,13 +389,13 @@ implements IKeyValueSet<T,V>
 		throws IOException {
 			Entity.SERIALIZER.writeExternal(out, journal);
 			ExternalizationManager.writeExternal(out, journal._rootId, Identifier.SERIALIZER);
-			out.writeInt(journal._pageSize);
+			ExternalizationManager.writeCount(out, journal._pageSize);
 		};
 		@Override public void readExternal(DataInput in, KeyValueSet journal)
 		throws IOException {
 			Entity.SERIALIZER.readExternal(in, journal);
 			journal._rootId= ExternalizationManager.readExternal(in, Identifier.SERIALIZER);
-			journal._pageSize= in.readInt();
+			journal._pageSize= ExternalizationManager.readCount(in);
 		}
 		@Override public int typeCode() {
 			return typeCode;
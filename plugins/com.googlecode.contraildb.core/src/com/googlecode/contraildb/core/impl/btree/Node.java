@@ -3,6 +3,8 @@ package com.googlecode.contraildb.core.impl.btree;
 import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 import com.googlecode.contraildb.core.IResult;
@@ -15,6 +17,7 @@ import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.storage.Entity;
 import com.googlecode.contraildb.core.storage.IEntity;
+import com.googlecode.contraildb.core.utils.EncodedIdentifierList;
 import com.googlecode.contraildb.core.utils.ExternalizationManager;
 import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 
@@ -24,7 +27,7 @@ import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
  * Leaf nodes
  */
 @SuppressWarnings({"unchecked","rawtypes"})
-public class Node<K extends Comparable<?>>
+public class Node<K extends Comparable>
 extends Entity 
 implements Cloneable
 {
@@ -38,6 +41,14 @@ implements Cloneable
 	protected Identifier _previous;
 	protected Identifier _next;
 	
+	/*
+	 * When a node whose keys are identifiers is read from storage the keys 
+	 * are kept in their encoded form until they are modified, so that 
+	 * searching a node does not create an Identifier for every key.
+	 * While not null the elements of _keys have not been set.  
+	 */
+	transient volatile EncodedIdentifierList _encodedKeys;
+	
 	@Immediate Node(KeyValueSet<K,?> btree)  
 	{
 		super(Identifier.create(btree.getId(), UUID.randomUUID().toString()));
@@ -79,8 +90,28 @@ implements Cloneable
 		};
 	}
 
-	@Immediate K getSmallestKey() { return _keys[0]; }
-	@Immediate K getLargestKey() { return _keys[_size-1]; }
+	@Immediate K getSmallestKey() { return getKey(0); }
+	@Immediate K getLargestKey() { return getKey(_size-1); }
+	
+	@Immediate K getKey(int index) {
+		EncodedIdentifierList encodedKeys= _encodedKeys;
+		if (encodedKeys != null)
+			return (K)encodedKeys.get(index);
+		return _keys[index];
+	}
+	
+	/**
+	 * @return the keys, decoded if necessary, for modification 
+	 */
+	@Immediate K[] keys() {
+		EncodedIdentifierList encodedKeys= _encodedKeys;
+		if (encodedKeys != null) {
+			for (int i= 0; i < _size; i++)
+				_keys[i]= (K)encodedKeys.get(i);
+			_encodedKeys= null;
+		}
+		return _keys;
+	}
 	@Immediate boolean isEmpty() { return _size <= 0; }
 	@Immediate boolean isFull() { return _index._pageSize <= _size; }
 	
@@ -94,7 +125,7 @@ implements Cloneable
 				final int index = indexOf(key);
 				IResult<Node<K>> overflow= TaskUtils.NULL;
 
-				if (index < _size && KeyValueSet.compare(key, _keys[index]) == 0) { // key already exists
+				if (index < _size && KeyValueSet.compare(key, getKey(index)) == 0) { // key already exists
 					_values[index] = value;
 				}
 				else if (!isFull()) {
@@ -133,7 +164,7 @@ implements Cloneable
 				int half = _index._pageSize >> 1;
 				final Node<K> overflow= new Node<K>(_index); // clone this node
 				overflow._size= _size-half;
-				System.arraycopy(_keys, half, overflow._keys, 0, overflow._size);
+				System.arraycopy(keys(), half, overflow._keys, 0, overflow._size);
 				System.arraycopy(_values, half, overflow._values, 0, overflow._size);
 				_size= half;
 				
@@ -176,7 +207,7 @@ implements Cloneable
 		if (_index._pageSize < _size + rightSibling._size)
 			throw new IllegalStateException("Combined node size exceeds index page size");
 
-		System.arraycopy(rightSibling._keys, 0, _keys, _size, rightSibling._size);
+		System.arraycopy(rightSibling.keys(), 0, keys(), _size, rightSibling._size);
 		System.arraycopy(rightSibling._values, 0, _values, _size, rightSibling._size);
 		_size+= rightSibling._size;
 		
@@ -200,13 +231,27 @@ implements Cloneable
 	 * 		For inner nodes this is the index of the first key that is > the given key   
 	 */
 	@Immediate int indexOf(K key) {
+		int i= search(key);
+		return i < 0 ? -i - 1 : i;
+	}
+	
+	/**
+	 * @return
+	 * 		The index of the given key, if the node contains the key, 
+	 * 		otherwise (-(insertion point) - 1).
+	 */
+	@Immediate int search(K key) {
+		EncodedIdentifierList encodedKeys= _encodedKeys;
+		if (encodedKeys != null && (key == null || key instanceof Identifier))
+			return encodedKeys.search((Identifier)key);
+		
 		int left = 0;
 		int right = _size - 1;
 
 		// binary search
 		while (left <= right) {
 			int middle = (left + right) / 2;
-			int i= KeyValueSet.compare(_keys[middle], key);
+			int i= KeyValueSet.compare(getKey(middle), key);
 			if (i == 0)
 				return middle;
 			if (i < 0) {
@@ -215,10 +260,11 @@ implements Cloneable
 				right = middle - 1;
 			}
 		}
-		return left;
+		return -left - 1;
 	}
 	
 	@Immediate void insertEntry(int index, K key, Object value) {
+		keys();
 		System.arraycopy(_keys, index, _keys, index+1, _size-index);
 		_keys[index] = key;
 		System.arraycopy(_values, index, _values, index+1, _size-index);
@@ -227,6 +273,7 @@ implements Cloneable
 	}
 
 	@Immediate void removeEntry(int index) {
+		keys();
 		_size--;
 		if (index < _size) {
 			System.arraycopy(_keys, index+1, _keys, index, _size-index);
@@ -237,7 +284,7 @@ implements Cloneable
 	}
 	
 	@Immediate void setEntry(int index, K key, Object value) {
-		_keys[index] = key;
+		keys()[index] = key;
 		_values[index] = value;
 	}
 	
@@ -250,7 +297,7 @@ implements Cloneable
 			protected IResult onSuccess() throws Exception {
 				int index = indexOf(key);
 				if (index < _size) {
-					if (KeyValueSet.compare(_keys[index], key) == 0) {
+					if (KeyValueSet.compare(getKey(index), key) == 0) {
 						removeEntry(index);
 						return update();
 					}
@@ -272,7 +319,7 @@ implements Cloneable
 		}
 		out.println(prefix + "------------------ Node id=" + getId()+", size="+_size);
 		for (int i = 0; i < _size; i++) 
-				out.println(prefix + i+": [" + _keys[i] + "] " + _values[i]);
+				out.println(prefix + i+": [" + getKey(i) + "] " + _values[i]);
 	}
 
 	IResult<Node<K>> getChildNode(int index) {
@@ -296,10 +343,23 @@ implements Cloneable
 			ExternalizationManager.writeExternal(out, node._indexId, Identifier.SERIALIZER);
 			ExternalizationManager.writeExternal(out, node._previous, Identifier.SERIALIZER);
 			ExternalizationManager.writeExternal(out, node._next, Identifier.SERIALIZER);
-			out.writeInt(node._size);
-			out.writeInt(node._keys.length);
+			ExternalizationManager.writeCount(out, node._size);
+			ExternalizationManager.writeCount(out, node._keys.length);
+			if (2 <= ExternalizationManager.getFormatVersion(out)) {
+				// identifier keys are written as a front coded list 
+				List<Identifier> keys= node._encodedKeys;
+				if (keys == null)
+					keys= getIdentifierKeys(node);
+				out.writeBoolean(keys != null);
+				if (keys != null) {
+					ExternalizationManager.writeIdentifiers(out, keys);
+					for (int i= 0; i < node._size; i++) 
+						ExternalizationManager.writeExternal(out, node._values[i]);
+					return;
+				}
+			}
 			for (int i= 0; i < node._size; i++) {
-				ExternalizationManager.writeExternal(out, node._keys[i]);
+				ExternalizationManager.writeExternal(out, node.getKey(i));
 				ExternalizationManager.writeExternal(out, node._values[i]);
 			}
 		};
@@ -310,15 +370,34 @@ implements Cloneable
 			node._indexId= ExternalizationManager.readExternal(in, Identifier.SERIALIZER);
 			node._previous= ExternalizationManager.readExternal(in, Identifier.SERIALIZER);
 			node._next= ExternalizationManager.readExternal(in, Identifier.SERIALIZER);
-			node._size= in.readInt();
-			int pageSize= in.readInt();
+			node._size= ExternalizationManager.readCount(in);
+			int pageSize= ExternalizationManager.readCount(in);
 			node._keys = new Comparable[pageSize];
 			node._values = new Object[pageSize];
+			if (2 <= ExternalizationManager.getFormatVersion(in) && in.readBoolean()) {
+				List<Identifier> keys= ExternalizationManager.readIdentifiers(in);
+				if (keys instanceof EncodedIdentifierList) {
+					node._encodedKeys= (EncodedIdentifierList)keys;
+				}
+				else
+					keys.toArray(node._keys);
+				for (int i= 0; i < node._size; i++) 
+					node._values[i]= ExternalizationManager.readExternal(in);
+				return;
+			}
 			for (int i= 0; i < node._size; i++) {
 				node._keys[i]= ExternalizationManager.readExternal(in);
 				node._values[i]= ExternalizationManager.readExternal(in);
 			}
 		}
+		private List<Identifier> getIdentifierKeys(Node node) {
+			if (node._size <= 0)
+				return null;
+			for (int i= 0; i < node._size; i++) 
+				if (!(node._keys[i] instanceof Identifier))
+					return null;
+			return Arrays.asList(Arrays.copyOf(node._keys, node._size, Identifier[].class));
+		}
 		public int typeCode() {
 			return typeCode;
 		}
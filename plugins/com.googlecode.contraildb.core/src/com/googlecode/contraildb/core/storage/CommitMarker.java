@@ -4,6 +4,7 @@ import java.io.DataInput;
 import java.io.IOException;
 
 import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
 import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 
 
@@ -37,12 +38,12 @@ public class CommitMarker extends Entity {
 		public void writeExternal(java.io.DataOutput out, CommitMarker journal) 
 		throws IOException {
 			Entity.SERIALIZER.writeExternal(out, journal);
-			out.writeLong(journal.finalCommitNumber);
+			ExternalizationManager.writeLong(out, journal.finalCommitNumber);
 		};
 		public void readExternal(DataInput in, CommitMarker journal)
 		throws IOException {
 			Entity.SERIALIZER.readExternal(in, journal);
-			journal.finalCommitNumber= in.readLong();
+			journal.finalCommitNumber= ExternalizationManager.readLong(in);
 		}
 		public int typeCode() {
 			return typeCode;
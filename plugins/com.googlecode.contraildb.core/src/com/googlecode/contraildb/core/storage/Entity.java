@@ -13,6 +13,7 @@ import java.util.Collection;
 import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.Identifier;
 import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
 import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 
 
@@ -31,16 +32,16 @@ public class Entity implements IEntity, ILifecycle {
 		public Entity readExternal(java.io.DataInput in) 
 		throws IOException {
 			Entity entity= new Entity();
-			entity.id= Identifier.SERIALIZER.readExternal(in);
+			entity.id= ExternalizationManager.readIdentifier(in);
 			return entity;
 		};
 		public void writeExternal(java.io.DataOutput out, Entity object) 
 		throws IOException {
-			Identifier.SERIALIZER.writeExternal(out, object.id);
+			ExternalizationManager.writeIdentifier(out, object.id);
 		};
 		public void readExternal(DataInput in, Entity object)
 		throws IOException {
-			object.id= Identifier.SERIALIZER.readExternal(in);
+			object.id= ExternalizationManager.readIdentifier(in);
 		}
 		public int typeCode() {
 			return typeCode;
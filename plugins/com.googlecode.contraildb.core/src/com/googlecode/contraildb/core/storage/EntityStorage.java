@@ -34,6 +34,30 @@ public class EntityStorage implements IEntityStorage {
 	public EntityStorage(IStorageProvider storageProvider) {
 		_objectStorage= new ObjectStorage(storageProvider, this);
 	}
+	/**
+	 * @param cacheSize 
+	 * 		the maximum total size, in serialized bytes, of the entities to keep cached
+	 */
+	public EntityStorage(IStorageProvider storageProvider, long cacheSize) {
+		_objectStorage= new ObjectStorage(storageProvider, this, cacheSize);
+	}
+	
+	public void setCacheSize(long cacheSize) {
+		_objectStorage.setCacheSize(cacheSize);
+	}
+	public long getCacheSize() {
+		return _objectStorage.getCacheSize();
+	}
+	
+	/**
+	 * @see ObjectStorage#setBytesCacheSize(long)
+	 */
+	public void setBytesCacheSize(long size) {
+		_objectStorage.setBytesCacheSize(size);
+	}
+	public long getBytesCacheSize() {
+		return _objectStorage.getBytesCacheSize();
+	}
 	
 	public IResult<IEntityStorage.Session> connect() {
 		return createSession();
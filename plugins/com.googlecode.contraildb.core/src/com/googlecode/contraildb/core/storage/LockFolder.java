@@ -9,6 +9,7 @@ import com.googlecode.contraildb.core.Identifier;
 import com.googlecode.contraildb.core.Magic;
 import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
 import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 import com.googlecode.contraildb.core.utils.Logging;
 
@@ -55,12 +56,12 @@ public class LockFolder extends Entity {
 			public void writeExternal(java.io.DataOutput out, Lock journal) 
 			throws IOException {
 				Entity.SERIALIZER.writeExternal(out, journal);
-				out.writeUTF(journal.processId);
+				ExternalizationManager.writeString(out, journal.processId);
 			};
 			public void readExternal(DataInput in, Lock journal)
 			throws IOException {
 				Entity.SERIALIZER.readExternal(in, journal);
-				journal.processId= in.readUTF();
+				journal.processId= ExternalizationManager.readString(in);
 			}
 			public int typeCode() {
 				return typeCode;
@@ -91,12 +92,18 @@ public class LockFolder extends Entity {
 				}
 				else if (waitForNext) {
 					// break existing lock
-					storage.delete(lock.getId());
-					if (storage.create(lock, waitMillis).get()) {
-						return TaskUtils.SUCCESS;
-					}
-					else
-						throw new ContrailException("Database is locked, waitMillis="+waitMillis);
+					return new Handler(storage.delete(lock.getId())) {
+						protected IResult onSuccess() throws Exception {
+							final IResult<Boolean> retry= storage.create(lock, waitMillis);
+							return new Handler(retry) {
+								protected IResult onSuccess() throws Exception {
+									if (!retry.getResult())
+										throw new ContrailException("Database is locked, waitMillis="+waitMillis);
+									return TaskUtils.SUCCESS;
+								}
+							};
+						}
+					};
 				}
 				return TaskUtils.FAIL;
 			};
@@ -148,4 +155,4 @@ public class LockFolder extends Entity {
 		}
 	};
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -4,29 +4,39 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.IResultHandler;
 import com.googlecode.contraildb.core.Identifier;
-import com.googlecode.contraildb.core.Item;
-import com.googlecode.contraildb.core.async.Action;
 import com.googlecode.contraildb.core.async.Activity;
 import com.googlecode.contraildb.core.async.Handler;
+import com.googlecode.contraildb.core.async.IAsyncerator;
 import com.googlecode.contraildb.core.async.If;
 import com.googlecode.contraildb.core.async.Parallel;
-import com.googlecode.contraildb.core.async.Series;
+import com.googlecode.contraildb.core.async.Result;
+import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.TaskUtils;
-import com.googlecode.contraildb.core.async.init;
-import com.googlecode.contraildb.core.async.seq;
+import com.googlecode.contraildb.core.async.WhileHandler;
 import com.googlecode.contraildb.core.storage.provider.IStorageProvider;
-import com.googlecode.contraildb.core.utils.ContrailTask.Operation;
+import com.googlecode.contraildb.core.utils.ByteCache;
 import com.googlecode.contraildb.core.utils.ContrailTaskTracker;
 import com.googlecode.contraildb.core.utils.ExternalizationManager;
-import com.googlecode.contraildb.core.utils.LRUIdentifierIndexedStorage;
+import com.googlecode.contraildb.core.utils.ObjectCache;
+import com.googlecode.contraildb.core.utils.PendingResults;
 import com.googlecode.contraildb.core.utils.tasks.ExternalizationTask;
 
 
@@ -42,6 +52,20 @@ import com.googlecode.contraildb.core.utils.tasks.ExternalizationTask;
  * 
  * 	...cache objects in order to avoid as much serialization and 
  * 		deserialization as possible (stored objects are cached, but not the lists of children).
+ * 		The cache is limited by the total serialized size of the cached objects, 
+ * 		see ObjectCache. 
+ * 		Identifiers that were found not to exist are also cached, so that 
+ * 		probing for missing objects does not go to storage every time. 
+ * 		Concurrent fetches of the same uncached object, from any session, 
+ * 		share a single read and deserialization. 
+ * 		Optionally, the serialized forms of objects are also cached, outside 
+ * 		of the Java heap, so that an object that has been evicted from the 
+ * 		object cache can be deserialized again without reading from storage.  
+ * 
+ * 	...buffers the objects stored by a session until the session is flushed.
+ * 		Storing an object again before the session is flushed replaces the 
+ * 		buffered object, so an object is written at most once per flush.
+ * 		Buffered objects are written in identifier order. 
  * 
  * 	...can be used by multiple clients in multiple threads, each client should call the
  * 		ObjectStorage.connect method to create its own session.  
@@ -61,8 +85,34 @@ import com.googlecode.contraildb.core.utils.tasks.ExternalizationTask;
 @SuppressWarnings({"unchecked","rawtypes"})
 public class ObjectStorage {
 	
+	/**
+	 * The default maximum number of identifiers that are remembered as not existing 
+	 */
+	public static final int DEFAULT_ABSENT_COUNT= 10000;
+	
+	/**
+	 * The default maximum number of children that are fetched at once when 
+	 * iterating over the children of an object
+	 */
+	public static final int DEFAULT_FETCH_WINDOW= 32;
+	
 	private IStorageProvider _storageProvider;
-	private LRUIdentifierIndexedStorage _cache= new LRUIdentifierIndexedStorage();
+	private ObjectCache _cache;
+	
+	/*
+	 * Identifiers known not to exist, each entry has a weight of one.
+	 * A fetch only records an identifier as absent if no write to an identifier 
+	 * in the same generation slot happened while the fetch was in progress.
+	 */
+	private ObjectCache<Boolean> _absent= new ObjectCache<Boolean>(DEFAULT_ABSENT_COUNT);
+	private AtomicLongArray _generations= new AtomicLongArray(64);
+	
+	// second level cache of serialized objects, null if not enabled 
+	private volatile ByteCache _bytes;
+	private long _bytesSize= 0; // the size given to setBytesCacheSize
+	
+	// fetches from storage that are in progress
+	private ConcurrentHashMap<Identifier, IResult> _fetches= new ConcurrentHashMap<Identifier, IResult>();
 	private ContrailTaskTracker _tracker= new ContrailTaskTracker();
 
 	/**
@@ -72,7 +122,109 @@ public class ObjectStorage {
 		this(storageProvider, null);
 	}
 	public ObjectStorage(IStorageProvider storageProvider, EntityStorage outerStorage) {
+		this(storageProvider, outerStorage, ObjectCache.DEFAULT_MAXIMUM_WEIGHT);
+	}
+	/**
+	 * @param cacheSize 
+	 * 		the maximum total size, in serialized bytes, of the objects to keep cached
+	 */
+	public ObjectStorage(IStorageProvider storageProvider, EntityStorage outerStorage, long cacheSize) {
 		_storageProvider= storageProvider;
+		_cache= new ObjectCache(cacheSize);
+	}
+	
+	public void setCacheSize(long cacheSize) {
+		_cache.setMaximumWeight(cacheSize);
+	}
+	public long getCacheSize() {
+		return _cache.getMaximumWeight();
+	}
+	/**
+	 * @return the total size, in serialized bytes, of the cached objects that 
+	 * 		have been serialized
+	 */
+	public long getCacheWeight() {
+		return _cache.getWeight();
+	}
+	
+	/**
+	 * Enables the second level cache of serialized objects. 
+	 * The second level cache uses direct memory, not the Java heap. 
+	 * Memory is allocated as the cache fills, up to the given size.
+	 * If the size changes then the current contents of the second level 
+	 * cache are discarded, the direct memory they used is released when 
+	 * the old cache is garbage collected.
+	 *  
+	 * @param size 
+	 * 		the number of bytes of direct memory to use, 
+	 * 		zero to disable the second level cache
+	 */
+	public synchronized void setBytesCacheSize(long size) {
+		if (size == _bytesSize)
+			return;
+		_bytesSize= size;
+		_bytes= 0 < size ? new ByteCache(size) : null;
+	}
+	public long getBytesCacheSize() {
+		ByteCache bytes= _bytes;
+		return bytes != null ? bytes.getMaximumSize() : 0;
+	}
+	
+	/**
+	 * @return the fraction of fetches that were answered from the object cache
+	 */
+	public double getCacheHitRate() {
+		return hitRate(_cache.getHitCount(), _cache.getMissCount());
+	}
+	/**
+	 * @return the fraction of fetches that missed the object cache and were 
+	 * 	answered from the second level cache of serialized objects
+	 */
+	public double getBytesCacheHitRate() {
+		ByteCache bytes= _bytes;
+		return bytes != null ? hitRate(bytes.getHitCount(), bytes.getMissCount()) : 0;
+	}
+	private static double hitRate(long hits, long misses) {
+		long total= hits + misses;
+		return total == 0 ? 0 : (double)hits / total;
+	}
+	
+	/**
+	 * Sets the maximum number of identifiers that are remembered as not existing 
+	 */
+	public void setAbsentCacheSize(int count) {
+		_absent.setMaximumWeight(count);
+	}
+	
+	/**
+	 * @return the number of fetches of missing objects that were answered without going to storage
+	 */
+	public long getAbsentHitCount() {
+		return _absent.getHitCount();
+	}
+	/**
+	 * @return the number of fetches of uncached objects that had to go to storage
+	 */
+	public long getAbsentMissCount() {
+		return _absent.getMissCount();
+	}
+	
+	private int generationSlot(Identifier identifier) {
+		return identifier.hashCode() & (_generations.length() - 1);
+	}
+	
+	/**
+	 * Forgets that the given identifier was absent and forgets its cached serialized form.
+	 * Called when an object is stored, created, or deleted, before and after 
+	 * the write goes to storage, so that fetches that overlap the write do 
+	 * not cache what they read.  
+	 */
+	private void invalidate(Identifier identifier) {
+		_generations.incrementAndGet(generationSlot(identifier));
+		_absent.delete(identifier);
+		ByteCache bytes= _bytes;
+		if (bytes != null)
+			bytes.delete(identifier);
 	}
 
 	public IResult<Session> connect() throws IOException {
@@ -86,13 +238,13 @@ public class ObjectStorage {
 	}
 	
 	public IResult<Session> connect(final EntityStorage.Session entitySession) {
-		return new Series(_storageProvider.connect()) {
-			IResult start() {
+		return new Handler(_storageProvider.connect()) {
+			protected IResult onSuccess() throws Exception {
 				IStorageProvider.Session session= (IStorageProvider.Session) incoming().getResult();
 				return TaskUtils.asResult(
 						new Session(_tracker.beginSession(), session, entitySession));
-			}
-		};
+			};
+		}.toResult();
 	}
 	public IStorageProvider getStorageProvider() {
 		return _storageProvider;
@@ -104,6 +256,14 @@ public class ObjectStorage {
 		private IStorageProvider.Session _storageSession;
 		private EntityStorage.Session _outerStorage;
 		private ContrailTaskTracker.Session _trackerSession;
+		
+		/*
+		 * Objects stored by this session that have not been written yet.
+		 * An object is removed when its write completes, unless it has been 
+		 * replaced in the meantime.
+		 */
+		private final ConcurrentSkipListMap<Identifier, Serializable> _dirty= 
+				new ConcurrentSkipListMap<Identifier, Serializable>();
 
 		public Session(ContrailTaskTracker.Session tracker, IStorageProvider.Session storageProvider) {
 			this(tracker, storageProvider, null);
@@ -113,78 +273,188 @@ public class ObjectStorage {
 			_storageSession= storageProvider;
 			_outerStorage= outerStorage; 
 		}
+		/**
+		 * Stores the given object when this session is next flushed.
+		 * The object is cached now but, like all cached objects, does not 
+		 * count against the cache's weight until it has been serialized. 
+		 * Until then it is held by this session anyway.
+		 */
 		public <T extends Serializable> IResult<Void> store(final Identifier identifier, final T item) 
 		{
-			final IResult<byte[]>  serializeTask= new ExternalizationTask(item).submit();
-
 			final ILifecycle lifecycle= (item instanceof ILifecycle) ? (ILifecycle)item : null;
 			if (lifecycle != null)
 				lifecycle.setStorage(_outerStorage);
 			
-			_cache.store(identifier, item);
+			invalidate(identifier);
+			_cache.store(identifier, item, 0);
+			if (item == null) 
+				return write(identifier, item);
+			_dirty.put(identifier, item);
 			
-			return new Series() {
-				IResult checkLifeCycleThenStore() {
-					if (lifecycle != null) 
-						return lifecycle.onInsert(identifier);
+			if (lifecycle != null) 
+				return lifecycle.onInsert(identifier);
+			return TaskUtils.DONE;
+		}
+		
+		/**
+		 * Serializes the given object and writes it to storage
+		 */
+		private IResult<Void> write(final Identifier identifier, final Serializable item) {
+			final IResult<byte[]> serializeTask= new ExternalizationTask(item).submit();
+			invalidate(identifier);
+			return new Handler(_storageSession.store(identifier, serializeTask), serializeTask) {
+				protected IResult onSuccess() throws Exception {
+					invalidate(identifier);
+					_cache.setWeight(identifier, item, serializeTask.getResult().length);
+					_dirty.remove(identifier, item);
 					return TaskUtils.DONE;
 				}
-				IResult store() {
-					return _storageSession.store(identifier, serializeTask);
+			}.toResult();
+		}
+		
+		/**
+		 * Writes the objects stored since the last flush, in identifier order.
+		 * Each write waits for the storage provider to have capacity.
+		 */
+		private IResult<Void> writeDirty() {
+			final Iterator<Map.Entry<Identifier, Serializable>> dirty= _dirty.entrySet().iterator();
+			final ArrayList<IResult> writes= new ArrayList<IResult>();
+			IResult<Void> submitted= new WhileHandler(TaskUtils.DONE) {
+				protected IResult<Boolean> While() {
+					return dirty.hasNext() ? TaskUtils.TRUE : TaskUtils.FALSE;
+				}
+				protected IResult<Void> Do() {
+					return new Handler(_storageSession.capacity()) {
+						protected IResult onSuccess() throws Exception {
+							Map.Entry<Identifier, Serializable> entry= dirty.next();
+							writes.add(write(entry.getKey(), entry.getValue()));
+							return TaskUtils.DONE;
+						}
+					};
 				}
 			};
+			return new Handler(submitted) {
+				protected IResult onSuccess() throws Exception {
+					return TaskUtils.combineResults(writes);
+				}
+			}.toResult();
 		}
 
+		/**
+		 * Deletes the given object, after invoking its ILifecycle.onDelete method.
+		 * An object that has been stored by this session but not written yet 
+		 * is discarded.
+		 */
 		public IResult<Void> delete(final Identifier path) {
-			return new Series(_trackerSession.queue(path, Operation.DELETE)) {
-				@init("doFetch") Item item;
-
-				IResult doFetch() {
-					return fetch(path);
-				}
-				@seq("doFetch") IResult doDelete() {
-					return new Series() {
-						IResult checkLifecycle() {
-							if (item instanceof ILifecycle) 
-									return ((ILifecycle)item).onDelete();
-							return TaskUtils.DONE;
-						}
-						IResult start() {
-							_storageSession.delete(path);
-						}
-						IResult clearCache() {
+			_dirty.remove(path);
+			final IResult<Serializable> fetch= fetch(path);
+			return new Handler(fetch) {
+				protected IResult onSuccess() throws Exception {
+					Serializable item= fetch.getResult();
+					IResult onDelete= TaskUtils.DONE;
+					if (item instanceof ILifecycle) 
+						onDelete= ((ILifecycle)item).onDelete();
+					return new Handler(onDelete) {
+						protected IResult onSuccess() throws Exception {
+							invalidate(path);
 							_cache.delete(path);
+							return new Handler(_storageSession.delete(path)) {
+								protected IResult onSuccess() throws Exception {
+									invalidate(path);
+									return TaskUtils.DONE;
+								}
+							};
 						}
 					};
 				}
-			};
+			}.toResult();
 		}
 
 		public <T extends Serializable> IResult<T> fetch(final Identifier path) 
 		{
-			return new Handler(_cache.fetch(path)) {
-				protected IResult onSuccess() throws IOException {
-					Object storable= incoming().getResult();
-					if (storable != null)
-						return TaskUtils.asResult(storable);
+			Object storable= _dirty.get(path);
+			if (storable == null)
+				storable= _cache.fetch(path);
+			if (storable != null)
+				return TaskUtils.asResult((T)storable);
+			if (_absent.fetch(path) != null)
+				return TaskUtils.NULL();
 
-					IResult content= _storageSession.fetch(path);
-					return readStorable(path, content);
+			// join a fetch of the same object that is already in progress, or start one 
+			IResult<T> fetch= _fetches.get(path);
+			if (fetch == null) {
+				final Result<T> started= new Result<T>();
+				fetch= _fetches.putIfAbsent(path, started);
+				if (fetch == null) {
+					fetch= started;
+					
+					// the object may have been cached by a fetch that just finished 
+					storable= _cache.fetch(path);
+					if (storable != null) {
+						started.success((T)storable);
+					}
+					else {
+						long generation= _generations.get(generationSlot(path));
+						ByteCache bytesCache= _bytes;
+						byte[] bytes= bytesCache != null ? bytesCache.fetch(path) : null;
+						if (bytes != null) {
+							started.complete(readStorable(path, TaskUtils.asResult(bytes), generation, false));
+						}
+						else {
+							IResult content= _storageSession.fetch(path);
+							started.complete(readStorable(path, content, generation, true));
+						}
+					}
+					started.addHandler(new IResultHandler<T>() {
+						public void onComplete(IResult<T> result) {
+							_fetches.remove(path, started);
+						}
+					});
 				}
-			}.toResult();
+			}
+			
+			// each caller gets its own result so that one caller cannot cancel the others' fetch   
+			Result<T> result= new Result<T>();
+			result.complete(fetch);
+			return result;
 		}
 		
 		private <T extends Serializable> IResult<T> readStorable(final Identifier id, IResult<byte[]> contents)
-		throws IOException
+		{
+			return readStorable(id, contents, -1, true);
+		}
+		
+		/**
+		 * @param generation 
+		 * 		the generation of the identifier when the fetch from storage was started.
+		 * 		If not negative and still current then the object is cached, the 
+		 * 		content is kept in the second level cache or, if the content does 
+		 * 		not exist, the identifier is remembered as absent.
+		 * 		Otherwise the fetch overlapped a write and what it read may be 
+		 * 		older than what was written, so nothing is cached.  
+		 * @param fromStorage 
+		 * 		false if the content came from the second level cache
+		 */
+		private <T extends Serializable> IResult<T> readStorable(final Identifier id, IResult<byte[]> contents, final long generation, final boolean fromStorage)
 		{
 			return new Handler(contents) {
 				protected IResult onSuccess() throws Exception {
 					byte[] bytes= (byte[]) incoming().getResult();
+					boolean current= 0 <= generation && _generations.get(generationSlot(id)) == generation;
+					if (bytes == null) {
+						if (current)
+							_absent.store(id, Boolean.TRUE, 1);
+						return TaskUtils.NULL();
+					}
+					ByteCache bytesCache= _bytes;
+					if (current && fromStorage && bytesCache != null)
+						bytesCache.store(id, bytes);
 					T s= ExternalizationManager.readExternal(new DataInputStream(new ByteArrayInputStream(bytes)));
 					boolean isStorable= s instanceof ILifecycle;
 					if (isStorable)
 						((ILifecycle)s).setStorage(_outerStorage);
-					_cache.store(id, s);
+					if (current && _generations.get(generationSlot(id)) == generation)
+						_cache.store(id, s, bytes.length);
 					if (isStorable)
 						spawn(((ILifecycle)s).onLoad(id));
 					return TaskUtils.asResult(s);
@@ -192,39 +462,234 @@ public class ObjectStorage {
 			}.toResult();
 		}
 
+		/**
+		 * Fetches all the children of the given path, at most 
+		 * DEFAULT_FETCH_WINDOW at a time.
+		 * Children that are deleted before they are fetched are not included.
+		 */
 		public <T extends Serializable> IResult<Map<Identifier, T>> fetchChildren(final Identifier path)
 		{
-			return new Handler<Collection<Identifier>,Map<Identifier, T>>(_storageSession.listChildren(path)) {
-				protected IResult<Map<Identifier, T>> onSuccess() throws Exception {
-					Collection<Identifier> children= incoming().getResult();
-					
-					HashMap<Identifier, IResult<byte[]>> fetched= new HashMap<Identifier, IResult<byte[]>>();
-					for (Identifier childId:children) 
-						fetched.put(childId, _storageSession.fetch(childId));
-					
-					final HashMap results= new HashMap<Identifier, T>();
-					for (final Identifier childId:children) {
-						spawn(new Handler(readStorable(childId, fetched.get(childId))) {
-							protected IResult onSuccess() throws Exception {
-								results.put(childId, incoming().getResult());
-								return TaskUtils.DONE;
-							}
-						});
-					}
+			final HashMap<Identifier, T> results= new HashMap<Identifier, T>();
+			final IResult<IAsyncerator<Map.Entry<Identifier, T>>> iterate= iterateChildren(path);
+			return new Handler(new WhileHandler(iterate) {
+				IAsyncerator<Map.Entry<Identifier, T>> _children;
+				protected IResult<Void> Init() {
+					_children= iterate.getResult();
+					return TaskUtils.DONE;
+				}
+				protected IResult<Boolean> While() {
+					return _children.hasNext();
+				}
+				protected IResult<Void> Do() {
+					return new ResultHandler<Map.Entry<Identifier, T>>(_children.next()) {
+						protected IResult onSuccess(Map.Entry<Identifier, T> child) {
+							results.put(child.getKey(), child.getValue());
+							return TaskUtils.DONE;
+						}
+					};
+				}
+			}) {
+				protected IResult onSuccess() throws Exception {
 					return TaskUtils.asResult(results);
+				}
+			}.toResult();
+		}
+		
+		public <T extends Serializable> IResult<IAsyncerator<Map.Entry<Identifier, T>>> iterateChildren(Identifier path)
+		{
+			return iterateChildren(path, DEFAULT_FETCH_WINDOW);
+		}
+		
+		/**
+		 * Fetches the children of the given path and returns them in the order 
+		 * in which they arrive.
+		 * Children that are deleted before they are fetched are skipped.
+		 * 
+		 * @param window 
+		 * 		the maximum number of children that are being fetched, or 
+		 * 		have been fetched but not yet returned by the iterator, at any 
+		 * 		one time.
+		 */
+		public <T extends Serializable> IResult<IAsyncerator<Map.Entry<Identifier, T>>> iterateChildren(final Identifier path, final int window)
+		{
+			if (window < 1)
+				throw new IllegalArgumentException("The fetch window must be positive: "+window);
+			return new Handler<Collection<Identifier>,IAsyncerator<Map.Entry<Identifier, T>>>(listChildren(path)) {
+				protected IResult<IAsyncerator<Map.Entry<Identifier, T>>> onSuccess() throws Exception {
+					ChildIterator<T> children= new ChildIterator<T>(incoming().getResult(), window);
+					children.fill();
+					return TaskUtils.asResult(children);
 				};
 			}.toResult();
 		}
+		
+		/**
+		 * Keeps up to a window's worth of children fetched ahead of the consumer.
+		 */
+		private class ChildIterator<T extends Serializable> implements IAsyncerator<Map.Entry<Identifier, T>> {
+			private final Iterator<Identifier> _children;
+			private final int _window;
+			private final ArrayDeque<Map.Entry<Identifier, T>> _arrived= new ArrayDeque<Map.Entry<Identifier, T>>();
+			private int _fetching= 0;
+			private Throwable _error;
+			private Result<Boolean> _waiting; // completed when a child arrives or there are no more children
+			private final PendingResults _pending= new PendingResults(); // fetches in the window
+			
+			ChildIterator(Collection<Identifier> children, int window) {
+				_children= new ArrayList<Identifier>(children).iterator();
+				_window= window;
+			}
+			
+			/**
+			 * Starts fetches until the window is full
+			 */
+			void fill() {
+				while (true) {
+					final Identifier childId;
+					synchronized (this) {
+						if (_error != null || _window <= _fetching + _arrived.size() || !_children.hasNext())
+							return;
+						childId= _children.next();
+						_fetching++;
+					}
+					IResult<T> fetch= _pending.add(fetch(childId));
+					fetch.addHandler(new IResultHandler<T>() {
+						public void onComplete(IResult<T> result) {
+							arrived(childId, result);
+						}
+					});
+				}
+			}
+			
+			private void arrived(Identifier childId, IResult<T> result) {
+				Result<Boolean> waiting= null;
+				synchronized (this) {
+					_fetching--;
+					if (result.isSuccess()) {
+						if (result.getResult() != null)
+							_arrived.add(new AbstractMap.SimpleImmutableEntry<Identifier, T>(childId, result.getResult()));
+					}
+					else if (_error == null)
+						_error= result.isCancelled() ? new CancellationException() : result.getError();
+					if (_waiting != null && !isPending()) {
+						waiting= _waiting;
+						_waiting= null;
+					}
+				}
+				if (waiting != null)
+					complete(waiting);
+				fill();
+			}
+			
+			/**
+			 * @return true if it is not yet known whether there is a next child
+			 */
+			private boolean isPending() {
+				return _arrived.isEmpty() && _error == null && (0 < _fetching || _children.hasNext());
+			}
+			
+			private void complete(Result<Boolean> result) {
+				Throwable error;
+				boolean hasNext;
+				synchronized (this) {
+					error= _error;
+					hasNext= !_arrived.isEmpty();
+				}
+				if (hasNext || error == null) {
+					result.success(hasNext);
+				}
+				else if (error instanceof CancellationException) {
+					result.cancel();
+				}
+				else
+					result.error(error);
+			}
+			
+			public IResult<Boolean> hasNext() {
+				Result<Boolean> result= new Result<Boolean>();
+				synchronized (this) {
+					if (isPending()) {
+						if (_waiting == null)
+							_waiting= new Result<Boolean>();
+						result.complete(_waiting);
+						return result;
+					}
+				}
+				complete(result);
+				return result;
+			}
+			
+			public IResult<Map.Entry<Identifier, T>> next() {
+				return new ResultHandler<Boolean>(hasNext()) {
+					protected IResult onSuccess(Boolean hasNext) {
+						Map.Entry<Identifier, T> child;
+						synchronized (ChildIterator.this) {
+							child= _arrived.poll();
+						}
+						if (child == null)
+							throw new NoSuchElementException();
+						fill();
+						return asResult(child);
+					}
+				};
+			}
+			
+			public IResult<Void> remove() {
+				throw new UnsupportedOperationException();
+			}
+			
+			/**
+			 * Cancels the fetches in the window, children that have already 
+			 * arrived are dropped.
+			 */
+			public void cancel() {
+				Result<Boolean> waiting;
+				synchronized (this) {
+					_error= new CancellationException();
+					_arrived.clear();
+					waiting= _waiting;
+					_waiting= null;
+				}
+				_pending.cancel();
+				if (waiting != null)
+					waiting.cancel();
+			}
+		}
 
+		/**
+		 * Includes children that have been stored by this session but not 
+		 * written yet.
+		 */
 		public IResult<Collection<Identifier>> listChildren(final Identifier path)
 		{
-			return _storageSession.listChildren(path);
+			final IResult<Collection<Identifier>> stored= _storageSession.listChildren(path);
+			if (_dirty.isEmpty())
+				return stored;
+			return new Handler(stored) {
+				protected IResult onSuccess() throws Exception {
+					Collection<Identifier> children= stored.getResult();
+					HashSet<Identifier> all= null;
+					for (Identifier identifier: _dirty.keySet()) {
+						if (identifier.getParent() != path || children.contains(identifier))
+							continue;
+						if (all == null)
+							all= new HashSet<Identifier>(children);
+						all.add(identifier);
+					}
+					return TaskUtils.asResult(all != null ? all : children);
+				}
+			}.toResult();
 		}
 		
 		public IResult<Void> flush() {
 			return new Handler(_trackerSession.complete()) {
 				protected IResult onSuccess() throws Exception {
-					spawn(_storageSession.flush());
+					spawn(new Handler(writeDirty()) {
+						protected IResult onSuccess() throws Exception {
+							spawn(_storageSession.flush());
+							return TaskUtils.DONE;
+						}
+					});
 					return TaskUtils.DONE;
 				}
 			}.toResult();
@@ -251,23 +716,54 @@ public class ObjectStorage {
 			}.toResult();
 		}
 		
+		/**
+		 * Writes the given object immediately, if it does not exist.
+		 * An object that has been stored by this session but not written yet 
+		 * exists.
+		 */
 		public <T extends Serializable> IResult<Boolean> create(final Identifier identifier, final T item, final long waitMillis)
 		{
+			if (_dirty.containsKey(identifier))
+				return TaskUtils.FALSE;
 			final IResult<byte[]> serializeTask= new ExternalizationTask(item).submit();
-			return new Handler(_storageSession.create(identifier, serializeTask, waitMillis)) {
+			invalidate(identifier);
+			final IResult<Boolean> create= _storageSession.create(identifier, serializeTask, waitMillis);
+			return new Handler(create) {
 				protected IResult onSuccess() throws Exception {
+					invalidate(identifier);
+					if (!create.getResult())
+						return TaskUtils.FALSE;
 					boolean isStorable= item instanceof ILifecycle;
 					if (isStorable)
 						((ILifecycle)item).setStorage(_outerStorage);
-					_cache.store(identifier, item);
+					cache(identifier, item, serializeTask);
 					if (isStorable) 
 						spawn(((ILifecycle)item).onInsert(identifier));
-					return TaskUtils.DONE;
+					return TaskUtils.TRUE;
 				};
 			}.toResult();
 		}
 		
 		
+		/**
+		 * Caches the given object, the object is weighed when it has been serialized
+		 */
+		private void cache(final Identifier identifier, final Object item, IResult<byte[]> serializeTask) {
+			_cache.store(identifier, item, 0);
+			weigh(identifier, item, serializeTask);
+		}
+		/**
+		 * Sets the weight of a cached object when it has been serialized
+		 */
+		private void weigh(final Identifier identifier, final Object item, IResult<byte[]> serializeTask) {
+			serializeTask.addHandler(new IResultHandler<byte[]>() {
+				public void onComplete(IResult<byte[]> result) {
+					if (result.isSuccess())
+						_cache.setWeight(identifier, item, result.getResult().length);
+				}
+			});
+		}
+		
 		public IResult<Void> delete(Identifier... paths) {
 			ArrayList<IResult> tasks= new ArrayList<IResult>();
 			for (Identifier identifier:paths)
@@ -282,18 +778,36 @@ public class ObjectStorage {
 		public IResult<Void> deleteAllChildren(Iterable<Identifier> paths) {
 			ArrayList<IResult> tasks= new ArrayList<IResult>();
 			for (Identifier identifier:paths)
-				deleteAllChildren(identifier);
+				tasks.add(deleteAllChildren(identifier));
 			return TaskUtils.combineResults(tasks);
 		}
 
+		/**
+		 * Each delete waits for the storage provider to have capacity.
+		 */
 		public IResult<Void> deleteAllChildren(Identifier path) {
 			final IResult<Collection<Identifier>> children= listChildren(path);
-			return new Handler(children) {
+			final ArrayList<IResult> tasks= new ArrayList<IResult>();
+			IResult<Void> submitted= new WhileHandler(children) {
+				Iterator<Identifier> _children;
+				protected IResult<Void> Init() throws Exception {
+					_children= children.getResult().iterator();
+					return TaskUtils.DONE;
+				}
+				protected IResult<Boolean> While() {
+					return _children.hasNext() ? TaskUtils.TRUE : TaskUtils.FALSE;
+				}
+				protected IResult<Void> Do() {
+					return new Handler(_storageSession.capacity()) {
+						protected IResult onSuccess() throws Exception {
+							tasks.add(delete(_children.next()));
+							return TaskUtils.DONE;
+						}
+					};
+				}
+			};
+			return new Handler(submitted) {
 				protected IResult onSuccess() throws Exception {
-					ArrayList<IResult> tasks= new ArrayList<IResult>();
-					for (Identifier identifier: children.get()) {
-						tasks.add(delete(identifier));
-					}
 					return TaskUtils.combineResults(tasks);
 				};
 			}.toResult();
@@ -13,6 +13,7 @@ import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.Identifier;
 import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
 import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 
 
@@ -195,14 +196,14 @@ public class RevisionFolder extends Entity {
 		public void writeExternal(java.io.DataOutput out, RevisionFolder journal) 
 		throws IOException {
 			Entity.SERIALIZER.writeExternal(out, journal);
-			out.writeLong(journal.startCommitNumber);
-			out.writeLong(journal.revisionNumber);
+			ExternalizationManager.writeLong(out, journal.startCommitNumber);
+			ExternalizationManager.writeLong(out, journal.revisionNumber);
 		};
 		public void readExternal(DataInput in, RevisionFolder journal)
 		throws IOException {
 			Entity.SERIALIZER.readExternal(in, journal);
-			journal.startCommitNumber= in.readLong();
-			journal.revisionNumber= in.readLong();
+			journal.startCommitNumber= ExternalizationManager.readLong(in);
+			journal.revisionNumber= ExternalizationManager.readLong(in);
 		}
 		public int typeCode() {
 			return typeCode;
@@ -5,10 +5,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 
 import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.utils.EncodedIdentifierList;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
 import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
 
 
@@ -67,27 +68,12 @@ public class RevisionJournal extends Entity {
 		if (journal.reads.isEmpty())
 			return false;
 
+		// the reads are searched in their encoded form, so that the 
+		// identifiers in a large journal need not be created 
 		for (List<Identifier> changes: Arrays.asList(new List[] { updates, deletes })) {
-			if (!changes.isEmpty()) {
-				Iterator<Identifier> ri= journal.reads.iterator();
-				Iterator<Identifier> ui= changes.iterator();
-				Identifier r= ri.next();
-				Identifier u= ui.next();
-				for (;;) {
-					int c= r.compareTo(u);
-					if (c == 0)
-						return true;
-					if (c < 0) {
-						if (ri.hasNext())
-							break;
-						r= ri.next();
-					}
-					else {
-						if (ui.hasNext())
-							break;
-						u= ui.next();
-					}
-				}
+			for (Identifier identifier: changes) {
+				if (0 <= EncodedIdentifierList.binarySearch(journal.reads, identifier))
+					return true;
 			}
 		}
 
@@ -107,45 +93,19 @@ public class RevisionJournal extends Entity {
 		throws IOException {
 			Entity.SERIALIZER.writeExternal(out, journal);
 
-			out.writeInt(journal.reads.size());
-			for (Identifier identifier:journal.reads)
-				Identifier.SERIALIZER.writeExternal(out, identifier);
-
-			out.writeInt(journal.inserts.size());
-			for (Identifier identifier:journal.inserts)
-				Identifier.SERIALIZER.writeExternal(out, identifier);
-
-			out.writeInt(journal.deletes.size());
-			for (Identifier identifier:journal.deletes)
-				Identifier.SERIALIZER.writeExternal(out, identifier);
-
-			out.writeInt(journal.updates.size());
-			for (Identifier identifier:journal.updates)
-				Identifier.SERIALIZER.writeExternal(out, identifier);
+			ExternalizationManager.writeIdentifiers(out, journal.reads);
+			ExternalizationManager.writeIdentifiers(out, journal.inserts);
+			ExternalizationManager.writeIdentifiers(out, journal.deletes);
+			ExternalizationManager.writeIdentifiers(out, journal.updates);
 		};
 		public void readExternal(DataInput in, RevisionJournal journal)
 		throws IOException {
 			Entity.SERIALIZER.readExternal(in, journal);
 
-			int size= in.readInt();
-			journal.reads= new ArrayList<Identifier>(size);
-			for (int i= size; 0 < i--;)
-				journal.reads.add(Identifier.SERIALIZER.readExternal(in));
-
-			size= in.readInt();
-			journal.inserts= new ArrayList<Identifier>(size);
-			for (int i= size; 0 < i--;)
-				journal.inserts.add(Identifier.SERIALIZER.readExternal(in));
-
-			size= in.readInt();
-			journal.deletes= new ArrayList<Identifier>(size);
-			for (int i= size; 0 < i--;)
-				journal.deletes.add(Identifier.SERIALIZER.readExternal(in));
-
-			size= in.readInt();
-			journal.updates= new ArrayList<Identifier>(size);
-			for (int i= size; 0 < i--;)
-				journal.updates.add(Identifier.SERIALIZER.readExternal(in));
+			journal.reads= ExternalizationManager.readIdentifiers(in);
+			journal.inserts= ExternalizationManager.readIdentifiers(in);
+			journal.deletes= ExternalizationManager.readIdentifiers(in);
+			journal.updates= ExternalizationManager.readIdentifiers(in);
 		}
 		public int typeCode() {
 			return typeCode;
@@ -126,6 +126,7 @@ public class RootFolder extends Entity  {
 							if (isCommitted.getResult()) {
 								if (folder[0] == null) {
 									folder[0]= revision;
+									syncResults.next();
 								}
 								else {
 									final IResult<Long> folderFinalCommitNumber= folder[0].getFinalCommitNumber();
@@ -134,6 +135,7 @@ public class RootFolder extends Entity  {
 										protected void onComplete() throws Exception {
 											if (folderFinalCommitNumber.getResult() < revisionFinalCommitNumber.getResult())
 												folder[0]= revision;
+											syncResults.next();
 										};
 									};
 								}
@@ -144,7 +146,8 @@ public class RootFolder extends Entity  {
 					};
 				}
 				
-				return new Handler(syncResults.complete()) {
+				// released by the last revision's handler 
+				return new Handler(syncResults.create()) {
 					protected IResult onSuccess() throws Exception {
 						return TaskUtils.asResult(folder[0]);
 					};
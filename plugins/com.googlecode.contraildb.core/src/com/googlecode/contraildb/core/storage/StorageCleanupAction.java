@@ -1,6 +1,6 @@
 package com.googlecode.contraildb.core.storage;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -11,8 +11,8 @@ import com.googlecode.contraildb.core.Identifier;
 import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.async.WhileHandler;
 import com.googlecode.contraildb.core.impl.PathUtils;
-import com.googlecode.contraildb.core.utils.ContrailAction;
 import com.googlecode.contraildb.core.utils.Logging;
 
 
@@ -32,8 +32,7 @@ public class StorageCleanupAction {
 	public static IResult<Void> cleanup(StorageSystem storageSystem) {
 		return new ResultHandler<StorageCleanupAction>(StorageCleanupAction.create(storageSystem)) {
 			protected IResult onSuccess(StorageCleanupAction cleanupAction) {
-				fork(cleanupAction.run());
-				return TaskUtils.DONE;
+				return cleanupAction.run();
 			}
 		};	
 	}
@@ -49,7 +48,7 @@ public class StorageCleanupAction {
 				final IResult<RootFolder> rf= cleanupAction._storageSession.fetch(storageSystem._root.getId());
 				spawn(new Handler(rf) {
 					protected IResult onSuccess() throws Exception {
-						cleanupAction._rootFolder= rf.get();
+						cleanupAction._rootFolder= rf.getResult();
 						return TaskUtils.DONE;
 					};
 				}.toResult());
@@ -63,130 +62,152 @@ public class StorageCleanupAction {
 	}
 
 
+	/**
+	 * Cleans up revisions, starting with the oldest, until a revision is 
+	 * found that cannot be deleted.
+	 * The returned result completes when all the revisions that were marked 
+	 * for deletion have been cleaned up.
+	 */
 	public IResult<Void> run() {
 		
 		final String sessionId= "cleanup."+UUID.randomUUID().toString();
-
-		try {
-			/*
-			 * Clean up revision starting with oldest.
-			 * NOTE: an active revision also keeps revisions with higher commit numbers from being deleted 
-			 */
-			while (true) {
-
-				if (_rootFolder.lock(sessionId, true)) {
-					try {
-						List<RevisionFolder> revisions= _rootFolder.getRevisionFolders();
-						int i= 0;
-						for (RevisionFolder revision: revisions) {
-							i++;
-							if (revision.isCommitted())
-								break;
+		final ArrayList<IResult> deletions= new ArrayList<IResult>();
+
+		/*
+		 * Clean up revision starting with oldest.
+		 * NOTE: an active revision also keeps revisions with higher commit numbers from being deleted 
+		 */
+		IResult<Void> markRevisions= new WhileHandler() {
+			boolean _more= true;
+			protected IResult<Boolean> While() throws Exception {
+				return asResult(_more);
+			}
+			protected IResult<Void> Do() throws Exception {
+				return new ResultHandler<RevisionFolder>(markNextRevision(sessionId)) {
+					protected IResult onSuccess(RevisionFolder revision) {
+						if (revision == null) {
+							_more= false;
 						}
-						if (revisions.size() <= i)
-							break; 
-
-						final RevisionFolder revision= revisions.get(revisions.size()-1);
-
-						if (revision.isActive()) 
-							break;
-
-						_rootFolder.markRevisionForDeletion(revision.revisionNumber);
-						_storageSession.flush();
-
-						new ContrailAction(revision.getId(), Operation.DELETE) {
-							protected void action() throws Exception {
-								try {
-									cleanupFiles(revision);
-
-									String session= Identifier.create().toString();
-									_rootFolder.lock(session, true);
+						else
+							deletions.add(cleanupAndDeleteRevision(revision, sessionId));
+						return TaskUtils.DONE;
+					}
+				};
+			}
+		};
+		
+		return new Handler(markRevisions) {
+			protected IResult onSuccess() throws Exception {
+				return TaskUtils.combineResults(deletions);
+			}
+			protected void onError() {
+				Logging.warning("Error while cleaning up storage", incoming().getError());
+			}
+		};
+	}
+	
+	/**
+	 * Marks the oldest revision for deletion, if it is no longer needed.
+	 * @return the marked revision, or null if the oldest revision is still needed
+	 */
+	private IResult<RevisionFolder> markNextRevision(final String sessionId) {
+		final IResult<Boolean> lock= _rootFolder.lock(sessionId, true);
+		final IResult<RevisionFolder> mark= new Handler(lock) {
+			protected IResult onSuccess() throws Exception {
+				if (!lock.getResult())
+					return TaskUtils.NULL();
+				final IResult<List<RevisionFolder>> getRevisionFolders= _rootFolder.getRevisionFolders();
+				return new Handler(getRevisionFolders) {
+					protected IResult onSuccess() throws Exception {
+						final List<RevisionFolder> revisions= getRevisionFolders.getResult();
+						final ArrayList<IResult<Boolean>> isCommitted= new ArrayList<IResult<Boolean>>();
+						for (RevisionFolder revision: revisions)
+							isCommitted.add(revision.isCommitted());
+						return new Handler(combineResults(isCommitted)) {
+							protected IResult onSuccess() throws Exception {
+								// revisions older than the newest committed revision may be deleted
+								int i= 0;
+								for (IResult<Boolean> committed: isCommitted) {
+									i++;
+									if (committed.getResult())
+										break;
+								}
+								if (revisions.size() <= i)
+									return TaskUtils.NULL(); 
+								
+								final RevisionFolder revision= revisions.get(revisions.size()-1);
+								final IResult<Boolean> isActive= revision.isActive();
+								return new Handler(isActive) {
+									protected IResult onSuccess() throws Exception {
+										if (isActive.getResult())
+											return TaskUtils.NULL();
 										
-									try {
-										_rootFolder.deleteRevision(revision);
-										_storageSession.flush();
-									}
-									finally {
-										_rootFolder.unlock(session);
+										return new Handler(_rootFolder.markRevisionForDeletion(revision.revisionNumber)) {
+											protected IResult onSuccess() throws Exception {
+												return new Handler(_storageSession.flush()) {
+													protected IResult onSuccess() throws Exception {
+														return asResult(revision);
+													}
+												};
+											}
+										};
 									}
-
-									_storageSession.flush();
-									Logging.fine("revision "+revision.revisionNumber+" cleaned up, session="+sessionId);
-									if (_storageSystem._lastKnownDeletedRevision < revision.revisionNumber)
-										_storageSystem.updateLastKnownDeletedRevision(revision.revisionNumber);
-									//_root.revisionDeletionCompleted(revision.revisionNumber);
-								}
-								catch (Throwable t) {
-									Logging.severe("Error while attempting to clean up revision "+revision.revisionNumber, t);
-								}
+								};
 							}
-						}.submit();
-
-					}
-					catch (Throwable t) {
-						Logging.severe("Error while attempting to clean up storage", t);
-						break;
+						};
 					}
-					finally {
-						_rootFolder.unlock(sessionId);
-					}
-				}
-				else
-					break;
+				};
+			}
+		};
+		
+		return new Handler(mark) {
+			protected void onComplete() throws Exception {
+				if (lock.isSuccess() && lock.getResult())
+					spawn(_rootFolder.unlock(sessionId));
 			}
-		}
-		catch (Throwable t) {
-			Logging.warning("Error while cleaning up storage", t);
-		}
+			protected IResult onSuccess() throws Exception {
+				return mark;
+			}
+		};
 	}
 	
 	private IResult<Void> cleanupAndDeleteRevision(final RevisionFolder revision, final String sessionId) {
-		return new Action() {
+		final String session= Identifier.create().toString();
+		final IResult<Boolean> lock= new Handler(cleanupFiles(revision)) {
 			protected IResult onSuccess() throws Exception {
-
-					spawn(cleanupFiles(revision));
-
-					final String session= Identifier.create().toString();
-					IResult deleteRevision= new Handler(_rootFolder.lock(session, true)) {
-						protected IResult onSuccess() throws Exception {
-							
-							IResult doDelete= new Handler(_rootFolder.deleteRevision(revision)) {
-								protected void onComplete() throws Exception {
-									spawn(new Handler(_storageSession.flush()));
-								}
-							}.toResult();
-							
-							spawn(new Handler(doDelete) {
-								protected void onComplete() throws Exception {
-										_rootFolder.unlock(session);
-								}
-							}.toResult());
-							
-							return TaskUtils.DONE;
-						}
-					}.toResult();
-					
-					IResult flush= new Handler(deleteRevision) {
-						protected void onComplete() throws Exception {
-							_storageSession.flush();
-							Logging.fine("revision "+revision.revisionNumber+" cleaned up, session="+sessionId);
-							if (_storageSystem._lastKnownDeletedRevision < revision.revisionNumber)
-								_storageSystem.updateLastKnownDeletedRevision(revision.revisionNumber);
-						}
-					}.toResult();
-					
-					spawn(new Handler(flush) {
-						protected void onError() {
-							Logging.severe("Error while attempting to clean up revision "+revision.revisionNumber, incoming().getError());
-						}
-					}.toResult());
-						
-
-					//_root.revisionDeletionCompleted(revision.revisionNumber);
+				return _rootFolder.lock(session, true);
+			}
+		};
+		final IResult<Void> deleteRevision= new Handler(lock) {
+			protected IResult onSuccess() throws Exception {
+				return new Handler(_rootFolder.deleteRevision(revision)) {
+					protected IResult onSuccess() throws Exception {
+						return _storageSession.flush();
+					}
+				};
+			}
+		};
+		IResult<Void> unlock= new Handler(deleteRevision) {
+			protected void onComplete() throws Exception {
+				if (lock.isSuccess())
+					spawn(_rootFolder.unlock(session));
+			}
+			protected IResult onSuccess() throws Exception {
+				return _storageSession.flush();
+			}
+		};
+		return new Handler(unlock) {
+			protected IResult onSuccess() throws Exception {
+				Logging.fine("revision "+revision.revisionNumber+" cleaned up, session="+sessionId);
+				if (_storageSystem._lastKnownDeletedRevision < revision.revisionNumber)
+					_storageSystem.updateLastKnownDeletedRevision(revision.revisionNumber);
+				//_root.revisionDeletionCompleted(revision.revisionNumber);
 				return TaskUtils.DONE;
-			};
-		}.toResult();
-		
+			}
+			protected void onError() {
+				Logging.severe("Error while attempting to clean up revision "+revision.revisionNumber, incoming().getError());
+			}
+		};
 	}
 
 	/**
@@ -209,13 +230,13 @@ public class StorageCleanupAction {
 					final IResult<Collection<Identifier>> listChildren= _storageSession.listChildren(id);
 					spawn(new Handler(listChildren) {
 						protected IResult onSuccess() throws Exception {
-							Collection<Identifier> children= listChildren.get();
+							Collection<Identifier> children= listChildren.getResult();
 							for (Identifier child: children) {
 								long rev= PathUtils.getRevisionNumber(child);
 								if (rev < 0)
 									continue;
 								if (rev < revision.revisionNumber)
-									_storageSession.delete(child);
+									spawn(_storageSession.delete(child));
 							}
 							return TaskUtils.DONE;
 						}
@@ -7,6 +7,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -14,12 +16,14 @@ import com.googlecode.contraildb.core.ConflictingCommitException;
 import com.googlecode.contraildb.core.ContrailException;
 import com.googlecode.contraildb.core.IContrailService.Mode;
 import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.IResultHandler;
 import com.googlecode.contraildb.core.Identifier;
 import com.googlecode.contraildb.core.async.ForEachHandler;
 import com.googlecode.contraildb.core.async.Handler;
+import com.googlecode.contraildb.core.async.Result;
 import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.async.WhileHandler;
 import com.googlecode.contraildb.core.impl.PathUtils;
-import com.googlecode.contraildb.core.storage.ObjectStorage.Session;
 
 
 /**
@@ -35,6 +39,20 @@ import com.googlecode.contraildb.core.storage.ObjectStorage.Session;
 public class StorageSession implements IEntityStorage.Session {
 	
 	private static final String CONTRAIL_FOLDER = ".contrail";
+	
+	/**
+	 * The maximum number of items that a prefetch reads at once, so that 
+	 * prefetching leaves most of the storage provider to the fetches that 
+	 * clients are waiting for. 
+	 */
+	public static final int PREFETCH_WINDOW= 4;
+	
+	/**
+	 * The maximum number of prefetched revisions that are kept for fetches, 
+	 * the oldest are discarded first.
+	 */
+	public static final int MAXIMUM_PREFETCHED= 1000;
+	
 	private final StorageSystem _storageSystem;
 	private final String _sessionId;
 	private final long _revisionNumber;
@@ -47,6 +65,20 @@ public class StorageSession implements IEntityStorage.Session {
 	HashSet<Identifier> _updates= new HashSet<Identifier>();
 	HashSet<Identifier> _deletes= new HashSet<Identifier>();
 	
+	/*
+	 * The visible revisions of prefetched items, oldest first.
+	 * An entry is used by the next fetch of the item and then discarded, 
+	 * discarded when the item is changed by this session, or discarded when 
+	 * MAXIMUM_PREFETCHED newer entries have been added.
+	 * Guarded by synchronizing on the map.
+	 */
+	private final LinkedHashMap<Identifier, IResult<Identifier>> _prefetched= 
+			new LinkedHashMap<Identifier, IResult<Identifier>>() {
+				protected boolean removeEldestEntry(Map.Entry<Identifier, IResult<Identifier>> eldest) {
+					return MAXIMUM_PREFETCHED < size();
+				}
+			};
+	
 	/**
 	 * Comparator that sorts revision items in descending order
 	 */
@@ -75,7 +107,7 @@ public class StorageSession implements IEntityStorage.Session {
 		 */
 		return new Handler(((EntityStorage)storageSystem._entityStorage).connect()) {
 			protected IResult onSuccess() {
-				ObjectStorage.Session session= (Session) incoming().getResult();
+				ObjectStorage.Session session= ((EntityStorage.Session) incoming().getResult())._objectSession;
 				return asResult(new StorageSession(session, storageSystem, sessionId, revisionNumber, startingCommitNumber, mode));
 			}
 			
@@ -172,7 +204,7 @@ public class StorageSession implements IEntityStorage.Session {
 
 
 	public <E extends IEntity> IResult<Void> store(final E entity) {
-		return new Handler() {
+		return new Handler(TaskUtils.DONE) { // writes start now, whether or not the caller waits on them
 			protected IResult onSuccess() throws Exception {
 				if (_mode == Mode.READONLY)
 					throw new ContrailException("Session is read only: "+_revisionNumber);
@@ -186,7 +218,7 @@ public class StorageSession implements IEntityStorage.Session {
 				
 				// we then insert revisions as children
 				Identifier revisionPath= Identifier.create(contrailFolder, "store-"+_revisionNumber);
-				spawn(_storage.store(revisionPath, entity));
+				spawn(invalidatePrefetched(originalPath, _storage.store(revisionPath, entity)));
 				
 				return TaskUtils.DONE;
 			}
@@ -194,7 +226,7 @@ public class StorageSession implements IEntityStorage.Session {
 	}
 	
 	public IResult<Void> update(final Identifier path, final IEntity item) throws IOException {
-		return new Handler() {
+		return new Handler(TaskUtils.DONE) {
 			protected IResult onSuccess() throws Exception {
 				if (_mode == Mode.READONLY)
 					throw new ContrailException("Revision is read only: "+_revisionNumber);
@@ -203,7 +235,7 @@ public class StorageSession implements IEntityStorage.Session {
 				Identifier originalPath= item.getId();
 				Identifier contrailFolder= Identifier.create(originalPath, CONTRAIL_FOLDER);
 				Identifier revisionPath= Identifier.create(contrailFolder, "store-"+_revisionNumber);
-				spawn(_storage.store(revisionPath, item));
+				spawn(invalidatePrefetched(originalPath, _storage.store(revisionPath, item)));
 				
 				return TaskUtils.DONE;
 			}
@@ -236,14 +268,14 @@ public class StorageSession implements IEntityStorage.Session {
 	}
 
 	public IResult<Void> delete(final Identifier  path) {
-		return new Handler() {
+		return new Handler(TaskUtils.DONE) {
 			protected IResult onSuccess() throws Exception {
 				if (_mode == Mode.READONLY)
 					throw new ContrailException("Revision is read only: "+_revisionNumber);
 
 				Identifier contrailFolder= Identifier.create(path, CONTRAIL_FOLDER);
 				Identifier revisionPath= Identifier.create(contrailFolder, "delete-"+_revisionNumber);
-				spawn(_storage.store(revisionPath, new Entity(revisionPath)));
+				spawn(invalidatePrefetched(path, _storage.store(revisionPath, new Entity(revisionPath))));
 				return TaskUtils.SUCCESS;
 			};
 		};
@@ -251,6 +283,100 @@ public class StorageSession implements IEntityStorage.Session {
 
 
 	public <C extends IEntity> IResult<C> fetch(final Identifier path) {
+		IResult<Identifier> revision= removePrefetched(path);
+		if (revision == null || (revision.isDone() && !revision.isSuccess()))
+			revision= findVisibleRevision(path);
+		return new Handler(revision) {
+			protected IResult onSuccess() throws Exception {
+				Identifier revisionPath= (Identifier) incoming().getResult();
+				if (revisionPath == null)
+					return TaskUtils.NULL;
+				return _storage.fetch(revisionPath);
+			}
+		};
+	}
+	
+	/**
+	 * Reads the items with the given identifiers into the object cache, 
+	 * along with the revisions of the items that are visible to this 
+	 * session, so that later fetches of the items do not wait for storage.
+	 * Items are read PREFETCH_WINDOW at a time.
+	 * Errors are ignored, the returned result always succeeds.
+	 */
+	public IResult<Void> prefetch(Iterable<Identifier> paths) {
+		final Iterator<Identifier> iterator= paths.iterator();
+		ArrayList<IResult> readers= new ArrayList<IResult>();
+		for (int i= 0; i < PREFETCH_WINDOW; i++) {
+			readers.add(new WhileHandler(TaskUtils.DONE) {
+				Identifier _path;
+				protected IResult<Boolean> While() {
+					synchronized (iterator) {
+						if (!iterator.hasNext())
+							return TaskUtils.FALSE;
+						_path= iterator.next();
+					}
+					return TaskUtils.TRUE;
+				}
+				protected IResult<Void> Do() {
+					return prefetch(_path);
+				}
+			});
+		}
+		return TaskUtils.combineResults(readers);
+	}
+	
+	private IResult<Void> prefetch(Identifier path) {
+		final Result<Void> prefetched= new Result<Void>();
+		// the entry is added before the revision is looked up, so that a 
+		// write that completes during the lookup discards it
+		Result<Identifier> revision= new Result<Identifier>();
+		synchronized (_prefetched) {
+			_prefetched.put(path, revision);
+		}
+		revision.complete(findVisibleRevision(path));
+		revision.addHandler(new IResultHandler<Identifier>() {
+			public void onComplete(IResult<Identifier> result) {
+				if (!result.isSuccess() || result.getResult() == null) {
+					prefetched.success(null);
+					return;
+				}
+				_storage.fetch(result.getResult()).addHandler(new IResultHandler() {
+					public void onComplete(IResult fetched) {
+						prefetched.success(null);
+					}
+				});
+			}
+		});
+		return prefetched;
+	}
+	
+	private IResult<Identifier> removePrefetched(Identifier path) {
+		synchronized (_prefetched) {
+			return _prefetched.remove(path);
+		}
+	}
+	
+	/**
+	 * Discards the prefetched revision of an item that is being changed, 
+	 * now and again when the given write completes, since a prefetch that 
+	 * looks up the item while the write is in progress may miss the new 
+	 * revision.
+	 */
+	private IResult<Void> invalidatePrefetched(final Identifier path, IResult<Void> write) {
+		removePrefetched(path);
+		return new Handler(write) {
+			protected void onComplete() throws Exception {
+				removePrefetched(path);
+			}
+		}.toResult();
+	}
+	
+	/**
+	 * @return the path of the most recent revision of the given item that is 
+	 * 		visible to this session, or null if the item does not exist or 
+	 * 		was deleted.
+	 */
+	private IResult<Identifier> findVisibleRevision(final Identifier path) {
 		final Identifier contrailPath= Identifier.create(path, CONTRAIL_FOLDER);
 		return new Handler(_storage.listChildren(contrailPath)) {
 			protected IResult onSuccess() {
@@ -289,7 +415,7 @@ public class StorageSession implements IEntityStorage.Session {
 							return TaskUtils.NULL;
 						if (mostRecentRevision[0].getName().startsWith("delete-")) 
 							return TaskUtils.NULL;
-						return _storage.fetch(mostRecentRevision[0]);
+						return asResult(mostRecentRevision[0]);
 					}
 				};
 			}
@@ -13,17 +13,15 @@ import com.googlecode.contraildb.core.ContrailException;
 import com.googlecode.contraildb.core.IContrailService.Mode;
 import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.Identifier;
-import com.googlecode.contraildb.core.async.Block;
 import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.ResultAction;
 import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.Series;
 import com.googlecode.contraildb.core.async.TaskUtils;
-import com.googlecode.contraildb.core.async.TryFinally;
 import com.googlecode.contraildb.core.storage.provider.IStorageProvider;
-import com.googlecode.contraildb.core.utils.ContrailAction;
 import com.googlecode.contraildb.core.utils.ContrailTaskTracker;
 import com.googlecode.contraildb.core.utils.Logging;
+import com.googlecode.contraildb.core.utils.ObjectCache;
 
 
 /**
@@ -82,9 +80,18 @@ public class StorageSystem {
 	ContrailTaskTracker.Session _trackerSession= _tracker.beginSession();
 
 	public static IResult<StorageSystem> create(IStorageProvider rawStorage) 
+	{
+		return create(rawStorage, ObjectCache.DEFAULT_MAXIMUM_WEIGHT);
+	}
+	
+	/**
+	 * @param cacheSize 
+	 * 		the maximum total size, in serialized bytes, of the objects to keep cached
+	 */
+	public static IResult<StorageSystem> create(IStorageProvider rawStorage, long cacheSize) 
 	{
 		final StorageSystem storageSystem= new StorageSystem();
-		storageSystem._entityStorage= new EntityStorage(rawStorage);
+		storageSystem._entityStorage= new EntityStorage(rawStorage, cacheSize);
 		final IResult<IEntityStorage.Session> entityStorageConnect= storageSystem._entityStorage.connect();
 		return new Handler(entityStorageConnect) {
 			protected IResult onSuccess() throws Exception {
@@ -116,6 +123,23 @@ public class StorageSystem {
 	public IStorageProvider getStorageProvider() {
 		return _entityStorage.getStorageProvider();
 	}
+	
+	public void setCacheSize(long cacheSize) {
+		_entityStorage.setCacheSize(cacheSize);
+	}
+	public long getCacheSize() {
+		return _entityStorage.getCacheSize();
+	}
+	
+	/**
+	 * @see ObjectStorage#setBytesCacheSize(long)
+	 */
+	public void setBytesCacheSize(long size) {
+		_entityStorage.setBytesCacheSize(size);
+	}
+	public long getBytesCacheSize() {
+		return _entityStorage.getBytesCacheSize();
+	}
 
 
 	/**
@@ -310,6 +334,8 @@ public class StorageSystem {
 	
 	IResult<Void> closeStorageSession(final StorageSession storageSession) 
 	{
+		_activeSessions.remove(storageSession);
+		
 		// remove the session reference from the session's starting revision
 		final long startingCommitNumber= storageSession.getStartingCommitNumber();
 		final long revisionNumber= storageSession.getRevisionNumber();
@@ -320,8 +346,7 @@ public class StorageSystem {
 				protected IResult onSuccess() throws Exception {
 					RevisionFolder startRevision= getRevisionFolder.getResult();
 					assert startRevision != null : "Revision "+startingCommitNumber+" has apparently been deleted when it should have been leased by a session associated with revision "+storageSession.getRevisionNumber();
-					startRevision.removeSession(storageSession.getSessionId());
-					return TaskUtils.DONE;
+					return startRevision.removeSession(storageSession.getSessionId());
 				}
 			};
 		}
@@ -341,209 +366,102 @@ public class StorageSystem {
 	}
 
 
+	/**
+	 * @throws ConflictingCommitException
+	 */
 	IResult<Void> commitRevision(final StorageSession storageSession) 
 	{
-		return new Handler() {
-			String sessionId= storageSession.getSessionId();
-			long revisionNumber= storageSession.getRevisionNumber();
-			final long startingCommit= storageSession.getStartingCommitNumber();
-			RevisionFolder revision;
-			RevisionFolder startRevision;
-			RevisionJournal journal;
-			
-			protected IResult onSuccess() {
-				return new Series(
-					new Handler() { // init
-						protected IResult onSuccess() {
-							final IResult getRevisionFolder= _root.getRevisionFolder(revisionNumber);
-							final IResult getStartRevision= _root.getRevisionFolder(startingCommit);
-							return new Handler(getRevisionFolder, getStartRevision) {
-								protected IResult onSuccess() throws Exception {
-									revision= (RevisionFolder) getRevisionFolder.getResult();
-									startRevision= (RevisionFolder) getStartRevision.getResult();
-								}
-							};
-						}
-					},
-					new Handler() { // write journal
-						protected IResult onSuccess() {
-							journal= new RevisionJournal(revision, storageSession);
-							return _entitySession.store(journal);
-						}
-					},
-					new Handler() { // lock root
-						protected IResult onSuccess() {
-							return _root.lock(sessionId, true);
-						}
-					},
-					new TryFinally() {
-						protected IResult doTry() {
-							return _root.lock(sessionId, true);
-						}
-						
-						protected IResult doFinally() {
-							return new Series(
-								new Handler() {
-									protected IResult onSuccess() {
-										_activeSessions.remove(storageSession);
-										return _root.unlock(sessionId);
-									}
-								},
-								new Handler() {
-									protected IResult onSuccess() {
-										try { Logging.info("Committed session "+storageSession); } catch (Throwable t) { }
-										fork(new StorageCleanupAction(this));
-									}
-								}
-							);
-						}
-					}
-				);
+		final String sessionId= storageSession.getSessionId();
+		final long revisionNumber= storageSession.getRevisionNumber();
+		final long startingCommit= storageSession.getStartingCommitNumber();
+		final IResult<RevisionFolder> revisionResult= _root.getRevisionFolder(revisionNumber);
+		final IResult<RevisionFolder> startRevisionResult= _root.getRevisionFolder(startingCommit);
+		
+		// write journal
+		final IResult<RevisionJournal> writeJournal= new Handler(revisionResult) {
+			protected IResult onSuccess() throws Exception {
+				RevisionJournal journal= new RevisionJournal(revisionResult.getResult(), storageSession);
+				spawn(_entitySession.store(journal));
+				return asResult(journal);
 			}
-			
-			@OnComplete("UnlockRoot")
-			protected IResult DoCommit() {
-				return new Action() {
-					List<RevisionFolder> revisions;
-					long lastCommitNumber;
-					
-					@OnSuccess("CheckCommitNumber") 
-					protected IResult Start() {
-						return new ResultHandler<List<RevisionFolder>>(_root.getRevisionFolders()) {
-							protected IResult onSuccess(List<RevisionFolder> results) {
-								revisions= results;
-								return new ResultAction<Long>(revisions.get(0).getFinalCommitNumber()) {
-									protected void onSuccess(Long finalCommitNumber) {
-										lastCommitNumber= finalCommitNumber;
+		};
+		
+		// lock root, no other revisions may be committed while root is locked.
+		final IResult<Boolean> lockRoot= new Handler(writeJournal) {
+			protected IResult onSuccess() throws Exception {
+				return _root.lock(sessionId, true);
+			}
+		};
+		
+		IResult<Void> commit= new Handler(lockRoot, startRevisionResult) {
+			protected IResult onSuccess() throws Exception {
+				final RevisionFolder revision= revisionResult.getResult();
+				final RevisionFolder startRevision= startRevisionResult.getResult();
+				final RevisionJournal journal= writeJournal.getResult();
+				final IResult<List<RevisionFolder>> getRevisionFolders= _root.getRevisionFolders();
+				return new Handler(getRevisionFolders) {
+					protected IResult onSuccess() throws Exception {
+						final List<RevisionFolder> revisions= getRevisionFolders.getResult();
+						return new Handler(RevisionFolder.sortByDescendingCommitNumber(revisions)) {
+							protected IResult onSuccess() throws Exception {
+								final IResult<Long> getLastCommitNumber= revisions.get(0).getFinalCommitNumber();
+								return new Handler(getLastCommitNumber) {
+									protected IResult onSuccess() throws Exception {
+										final long lastCommitNumber= getLastCommitNumber.getResult();
+										if (lastCommitNumber < 0) {
+											String msg= "Corrupted Storage: There do not appear to be any committed revisions.";
+											msg+= "\nAvailable revisions: {";
+											for (RevisionFolder folder: revisions)
+												msg+= "\n"+folder;
+											msg+= "\n}";
+											Logging.severe(msg);
+											throw new ContrailException(msg);
+										}
+										return new Handler(validateTransaction(startingCommit, journal, revisions)) {
+											protected IResult onSuccess() throws Exception {
+												// write commit marker
+												ArrayList<IResult> tasks= new ArrayList<IResult>();
+												tasks.add(_entitySession.store(new CommitMarker(revision, lastCommitNumber+1)));
+												
+												// remove session id from revision and start revision
+												tasks.add(revision.removeSession(sessionId));
+												tasks.add(startRevision.removeSession(sessionId));
+												
+												return new Handler(tasks) {
+													protected IResult onSuccess() throws Exception {
+														_knownUncommittedRevisions.remove(revisionNumber);
+														return _entitySession.flush();
+													}
+												};
+											}
+										};
 									}
 								};
 							}
 						};
 					}
-					@OnSuccess("ValidateTransaction")
-					protected IResult CheckCommitNumber() {
-						if (lastCommitNumber < 0) {
-							String msg= "Corrupted Storage: There do not appear to be any committed revisions.";
-							msg+= "\nAvailable revisions: {";
-							for (RevisionFolder folder: revisions)
-								msg+= "\n"+folder;
-							msg+= "\n}";
-							Logging.severe(msg);
-							throw new ContrailException(msg);
-						}
-					}
-					@OnSuccess("WriteCommitMarker")
-					protected IResult ValidateTransaction() {
-						return validateTransaction(startingCommit, journal, revisions);
-						
-						// write commit marker
-						_entitySession.store(new CommitMarker(revision, lastCommitNumber+1));
-
-						// unlock revision and remove session id from start revision
-						revision.removeSession(sessionId);
-						startRevision.removeSession(sessionId);
-						
-						_entitySession.flush();
-						
-						_knownUncommittedRevisions.remove(revisionNumber);
-					}
-					@OnSuccess("RemoveSession")
-					protected IResult WriteCommitMarker() {
-						return validateTransaction(startingCommit, journal, revisions);
-						
-						// write commit marker
-						_entitySession.store(new CommitMarker(revision, lastCommitNumber+1));
-
-						// unlock revision and remove session id from start revision
-						revision.removeSession(sessionId);
-						startRevision.removeSession(sessionId);
-						
-						_entitySession.flush();
-						
-						_knownUncommittedRevisions.remove(revisionNumber);
-					}
-					@OnSuccess("Flush")
-					protected IResult RemoveSession() {
-						return TaskUtils.combineResults(
-								// unlock revision and remove session id from start revision
-								revision.removeSession(sessionId),
-								startRevision.removeSession(sessionId));
-					}
-					protected IResult Flush() {
-						_knownUncommittedRevisions.remove(revisionNumber);
-						return _entitySession.flush();
-					}
 				};
 			}
-			
-			@OnComplete("Log")
-			protected IResult UnlockRoot() {
-				_activeSessions.remove(storageSession);
-				spawn(_root.unlock(sessionId));
-			}
-			protected IResult Log() {
-				try { Logging.info("Committed session "+storageSession); } catch (Throwable t) { }
-				fork(new StorageCleanupAction(this));
-			}
-		}.run();
-		String sessionId= storageSession.getSessionId();
-		long revisionNumber= storageSession.getRevisionNumber();
-		final long startingCommit= storageSession.getStartingCommitNumber();
-		RevisionFolder revision= _root.getRevisionFolder(revisionNumber);
-		RevisionFolder startRevision= _root.getRevisionFolder(startingCommit);
-		
-		// write journal
-		final RevisionJournal journal= new RevisionJournal(revision, storageSession);
-		_entitySession.store(journal);
+		};
 		
-		// lock root, no other revisions may be committed while root is locked.
-		_root.lock(sessionId, true);
-		try {
-			
-			List<RevisionFolder> revisions= _root.getRevisionFolders();
-			RevisionFolder.sortByDescendingCommitNumber(revisions);
-			long lastCommitNumber= revisions.get(0).getFinalCommitNumber();
-			if (lastCommitNumber < 0) {
-				String msg= "Corrupted Storage: There do not appear to be any committed revisions.";
-				msg+= "\nAvailable revisions: {";
-				for (RevisionFolder folder: revisions)
-					msg+= "\n"+folder;
-				msg+= "\n}";
-				Logging.severe(msg);
-				throw new ContrailException(msg);
+		return new Handler(commit) {
+			protected void onComplete() throws Exception {
+				_activeSessions.remove(storageSession);
+				
+				new Handler(_root.unlock(sessionId)) {
+					protected void onComplete() throws Exception {
+						try { Logging.info("Committed session "+storageSession); } catch (Throwable t) { }
+						cleanup();
+					}
+				};
 			}
-			
-			// validate transaction
-			validateTransaction(startingCommit, journal, revisions);
-			
-			// write commit marker
-			_entitySession.store(new CommitMarker(revision, lastCommitNumber+1));
-
-			// unlock revision and remove session id from start revision
-			revision.removeSession(sessionId);
-			startRevision.removeSession(sessionId);
-			
-			_entitySession.flush();
-			
-			_knownUncommittedRevisions.remove(revisionNumber);
-			
-		}
-		finally {
-			
-			_activeSessions.remove(storageSession);
-			
-			try { _root.unlock(sessionId); } catch (Throwable t) { }
-			
-			try { Logging.info("Committed session "+storageSession); } catch (Throwable t) { }
-			
-			try { _trackerSession.submit(new StorageCleanupAction(this)); } catch (Throwable t) { }
-		}
+		};
 	}
 
 	private IResult<Void> 
 	validateTransaction(final long startingCommit,final RevisionJournal journal, List<RevisionFolder> revisions)
 	{
-		ArrayList<IResult<Void>> validateActions= new ArrayList<IResult<Void>>(revisions.size());
+		ArrayList<IResult> validateActions= new ArrayList<IResult>(revisions.size());
 		final List<RevisionFolder> conflictingRevisions= Collections.synchronizedList(new ArrayList<RevisionFolder>(1));  
 		for (final RevisionFolder r: revisions) {
 			validateActions.add(new ResultHandler<Long>(r.getFinalCommitNumber()) {
@@ -566,104 +484,14 @@ public class StorageSystem {
 		}
 		
 		return new Handler(validateActions) {
-			protected IResult onSuccess() {
+			protected IResult onSuccess() throws Exception {
 				if (!conflictingRevisions.isEmpty())
 					throw new ConflictingCommitException();
+				return TaskUtils.DONE;
 			}
 		};
 	}
 
-	/**
-	 * @throws IOException
-	 * @throws ConflictingCommitException
-	 */
-	IResult<Void> commitRevision(final StorageSession storageSession) 
-	{
-		String sessionId= storageSession.getSessionId();
-		long revisionNumber= storageSession.getRevisionNumber();
-		final long startingCommit= storageSession.getStartingCommitNumber();
-		final IResult<RevisionFolder> revisionResult= _root.getRevisionFolder(revisionNumber);
-		final IResult<RevisionFolder> startRevisionResult= _root.getRevisionFolder(startingCommit);
-		return new Handler(revisionResult, startRevisionResult) {
-			protected IResult onSuccess() throws Exception {
-				final RevisionFolder revision= revisionResult.getResult();
-				final RevisionFolder startRevision= startRevisionResult.getResult();
-				
-				// write journal
-				final RevisionJournal journal= new RevisionJournal(revision, storageSession);
-				return new Handler(_entitySession.store(journal)) {
-					protected IResult onSuccess() {
-						
-					}
-				};
-			}
-		};
-		
-		// write journal
-		final RevisionJournal journal= new RevisionJournal(revision, storageSession);
-		_entitySession.store(journal);
-		
-		// lock root, no other revisions may be committed while root is locked.
-		_root.lock(sessionId, true);
-		try {
-			
-			List<RevisionFolder> revisions= _root.getRevisionFolders();
-			RevisionFolder.sortByDescendingCommitNumber(revisions);
-			long lastCommitNumber= revisions.get(0).getFinalCommitNumber();
-			if (lastCommitNumber < 0) {
-				String msg= "Corrupted Storage: There do not appear to be any committed revisions.";
-				msg+= "\nAvailable revisions: {";
-				for (RevisionFolder folder: revisions)
-					msg+= "\n"+folder;
-				msg+= "\n}";
-				Logging.severe(msg);
-				throw new ContrailException(msg);
-			}
-			
-			// validate transaction
-			ArrayList<IResult<Void>> validateActions= new ArrayList<IResult<Void>>(revisions.size());
-			final List<RevisionFolder> conflictingRevisions= Collections.synchronizedList(new ArrayList<RevisionFolder>(1));  
-			for (final RevisionFolder r: revisions) {
-				validateActions.add(new ContrailAction() {
-					protected void action() throws IOException {
-						if (r.getFinalCommitNumber() <= startingCommit)
-							return; // we're done
-						if (!conflictingRevisions.isEmpty())
-							return;
-						
-						if (r.getRevisionJournal().confictsWith(journal))
-							conflictingRevisions.add(r);
-					}
-				}.submit());
-			}
-			TaskUtils.combineResults(validateActions).get();
-			if (!conflictingRevisions.isEmpty())
-				throw new ConflictingCommitException();
-			
-			// write commit marker
-			_entitySession.store(new CommitMarker(revision, lastCommitNumber+1));
-
-			// unlock revision and remove session id from start revision
-			revision.removeSession(sessionId);
-			startRevision.removeSession(sessionId);
-			
-			_entitySession.flush();
-			
-			_knownUncommittedRevisions.remove(revisionNumber);
-			
-		}
-		finally {
-			
-			_activeSessions.remove(storageSession);
-			
-			try { _root.unlock(sessionId); } catch (Throwable t) { }
-			
-			try { Logging.info("Committed session "+storageSession); } catch (Throwable t) { }
-			
-			try { _trackerSession.submit(new StorageCleanupAction(this)); } catch (Throwable t) { }
-		}
-	}
-
 	public IResult<Boolean> isRevisionCommitted(final long revisionNumber) 
 	{
 		if (revisionNumber <= _lastKnownDeletedRevision)
@@ -60,6 +60,11 @@ implements IStorageProvider
 			}.toResult();
 		}
 		
+		@Override
+		public IResult<Void> capacity() {
+			return _trackerSession.capacity();
+		}
+		
 		@Override
 		public IResult<Collection<Identifier>> listChildren(final Identifier path) {
 			return _trackerSession.submit(new ContrailTask(path, Operation.LIST) {
@@ -69,11 +74,18 @@ implements IStorageProvider
 			});
 		}
 		
+		/*
+		 * The tracked tasks below complete when the underlying operation 
+		 * completes, via setResult, so that dependent tasks wait for the 
+		 * operation without a thread being blocked on it.  
+		 */
+		
 		@Override
 		public IResult<byte[]> fetch(final Identifier path) {
 			return _trackerSession.submit(new ContrailTask(path, Operation.READ) {
-				protected Object run() throws IOException {
-					return doFetch(path).get();
+				protected Object run() {
+					setResult(doFetch(path));
+					return null;
 				}
 			});
 		}
@@ -82,12 +94,11 @@ implements IStorageProvider
 		public IResult<Void> store(final Identifier identifier, final IResult<byte[]> content) {
 			return _trackerSession.submit(new ContrailAction(identifier, Operation.WRITE) {
 				protected void action() {
-					try {
-						doStore(identifier, content.get());
-					}
-					catch (Throwable t) {
-						error(t);
-					}
+					setResult(new Handler(content) {
+						protected IResult onSuccess() throws Exception {
+							return doStore(identifier, (byte[])incoming().getResult());
+						}
+					}.toResult());
 				}
 			});
 		}
@@ -95,8 +106,8 @@ implements IStorageProvider
 		@Override
 		public IResult<Void> delete(final Identifier path) {
 			return _trackerSession.submit(new ContrailAction(path, Operation.DELETE) {
-				protected void action() throws IOException {
-						doDelete(path).get();
+				protected void action() {
+					setResult(doDelete(path));
 				}
 			});
 		}
@@ -118,8 +129,13 @@ implements IStorageProvider
 		public IResult<Boolean> create(final Identifier path_, final IResult<byte[]> source_, final long waitMillis_) 
 		{
 			return _trackerSession.submit(new ContrailTask(path_, Operation.CREATE) {
-				protected Object run() throws IOException {
-						return doCreate(path_, source_.get(), waitMillis_).get();
+				protected Object run() {
+					setResult(new Handler(source_) {
+						protected IResult onSuccess() throws Exception {
+							return doCreate(path_, (byte[])incoming().getResult(), waitMillis_);
+						}
+					}.toResult());
+					return null;
 				}
 			});
 		}
@@ -12,9 +12,11 @@ import java.util.Collection;
 
 import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.utils.ContrailAction;
 import com.googlecode.contraildb.core.utils.ContrailTask;
+import com.googlecode.contraildb.core.utils.ContrailTask.Operation;
 
 
 /**
@@ -41,36 +43,84 @@ public class FileStorageProvider extends AbstractStorageProvider {
 	static final String LOCK_FILE = ".lock";
 	static final String CONTENT_FILE= ".content"; 
 	static final long RETRY_MILLIS= 100; 
+	static final int DELETE_ATTEMPTS= 10; 
+	static final long DELETE_RETRY_MILLIS= 10; 
 
 	
 	private File _root;
 	
-	class DeleteAction extends ContrailAction {
+	/**
+	 * Makes one attempt to delete a file.
+	 * Returns true if the file no longer exists.
+	 */
+	class DeleteAction extends ContrailTask<Boolean> {
 		File _file;
 		DeleteAction(Identifier id, File file) {
 			super(id, Operation.DELETE);
 			_file= file;
 		}
 		@Override
-		protected void action() {
-			File[] files= _file.listFiles();
-			if (files != null) {
+		protected Boolean run() {
+			return _file.delete() || !_file.exists();
+		}
+	}
+	
+	/**
+	 * Lists the contents of a folder.
+	 */
+	class ListAction extends ContrailTask<File[]> {
+		File _file;
+		ListAction(Identifier id, File file) {
+			super(id, Operation.LIST);
+			_file= file;
+		}
+		@Override
+		protected File[] run() {
+			return _file.listFiles();
+		}
+	}
+	
+	/**
+	 * Deletes a file, or a folder and all its contents.
+	 * Folders are listed, and their contents deleted, in Contrail tasks.
+	 */
+	IResult<Void> deleteTree(final Identifier id, final File file) {
+		return new Handler<File[],Void>(new ListAction(id, file).submit()) {
+			protected IResult<Void> onSuccess() throws Exception {
 				ArrayList<IResult<Void>> tasks= new ArrayList<IResult<Void>>();
-				for (final File file2: files)
-					tasks.add(new DeleteAction(Identifier.create(getId(), file2.getName()), file2).submit());
-				TaskUtils.combineResults(tasks).get();
-			}
-			for (int i= 0; i < 10; i++) {
-				if (_file.delete()) {
-					return;
+				File[] files= incoming().getResult();
+				if (files != null) {
+					for (final File file2: files)
+						tasks.add(deleteTree(Identifier.create(id, file2.getName()), file2));
 				}
-				if (!_file.exists())
-					return;
-
-				try { Thread.sleep(10); } catch (InterruptedException x) { }
+				return new Handler<Void,Void>(TaskUtils.combineResults(tasks)) {
+					protected IResult<Void> onSuccess() throws Exception {
+						return deleteFile(id, file, DELETE_ATTEMPTS);
+					}
+				};
 			}
-			throw new RuntimeException(new IOException("Failed to delete file "+_file));
-		}
+		}.toResult();
+	}
+	
+	/**
+	 * Deleting a file can fail temporarily (for instance, on Windows, while 
+	 * some other process has the file open) so failed deletes are retried. 
+	 * Retries are scheduled with a delay instead of sleeping in a Contrail thread.
+	 */
+	private IResult<Void> deleteFile(final Identifier id, final File file, final int attempts) {
+		return new Handler<Boolean,Void>(new DeleteAction(id, file).submit()) {
+			protected IResult<Void> onSuccess() throws Exception {
+				if (incoming().getResult())
+					return TaskUtils.DONE;
+				if (attempts <= 1)
+					throw new IOException("Failed to delete file "+file);
+				return new Handler<Void,Void>(TaskUtils.delay(DELETE_RETRY_MILLIS)) {
+					protected IResult<Void> onSuccess() throws Exception {
+						return deleteFile(id, file, attempts-1);
+					}
+				};
+			}
+		}.toResult();
 	}
 	
 	public FileStorageProvider(File root) {
@@ -81,7 +131,7 @@ public class FileStorageProvider extends AbstractStorageProvider {
 		if (clean) {
 			if (root.exists()) {
 				try {
-					new DeleteAction(Identifier.create(""), root).submit().get();
+					deleteTree(Identifier.create(""), root).get();
 				}
 				catch (Throwable t) {
 					TaskUtils.throwSomething(t, IOException.class);
@@ -161,7 +211,7 @@ public class FileStorageProvider extends AbstractStorageProvider {
 		
 		@Override
 		protected IResult<Void> doDelete(Identifier path) {
-			return new DeleteAction(path, new File(_root, path.toString())).submit();
+			return deleteTree(path, new File(_root, path.toString()));
 		}
 		
 		@Override
@@ -171,37 +221,50 @@ public class FileStorageProvider extends AbstractStorageProvider {
 
 		@Override
 		protected IResult<Boolean> doCreate(final Identifier path, final byte[] byteArray, final long waitMillis) {
-			return new ContrailTask<Boolean>() {
+			return create(path, byteArray, System.currentTimeMillis() + waitMillis);
+		}
+		
+		/**
+		 * Try to create the item, if the item already exists then try again 
+		 * later, until the deadline has passed.
+		 * Retries are scheduled with a delay instead of polling in a Contrail thread.
+		 */
+		private IResult<Boolean> create(final Identifier path, final byte[] byteArray, final long deadline) {
+			IResult<Boolean> created= new ContrailTask<Boolean>() {
 				@Override protected Boolean run() throws Exception {
-					boolean success= false;
-					long start= System.currentTimeMillis();
 					File folder= new File(_root, path.toString());
-					while(!success) {
-						if (folder.mkdirs()) {
-							// ok, we created this folder, now just write the contents and we're done...
-							File file= new File(folder, CONTENT_FILE);
-							OutputStream out= new FileOutputStream(file);
-							try {
-								out.write(byteArray);
-								out.flush();
-							}
-							finally {
-								out.close(); 
-							}
-							success= true; 
-						}
-						else {
-							// check to see if we've timed out
-							if (waitMillis < System.currentTimeMillis() - start)
-								break;
-							
-							// do something else for a while
-							yield(100);
-						}
+					if (!folder.mkdirs())
+						return false;
+					
+					// ok, we created this folder, now just write the contents and we're done...
+					File file= new File(folder, CONTENT_FILE);
+					OutputStream out= new FileOutputStream(file);
+					try {
+						out.write(byteArray);
+						out.flush();
+					}
+					finally {
+						out.close(); 
 					}
-					return success;
+					return true;
 				}
 			}.submit();
+			return new Handler<Boolean,Boolean>(created) {
+				protected IResult<Boolean> onSuccess() throws Exception {
+					if (incoming().getResult())
+						return TaskUtils.TRUE;
+					
+					// check to see if we've timed out
+					if (deadline < System.currentTimeMillis())
+						return TaskUtils.FALSE;
+					
+					return new Handler<Void,Boolean>(TaskUtils.delay(RETRY_MILLIS)) {
+						protected IResult<Boolean> onSuccess() throws Exception {
+							return create(path, byteArray, deadline);
+						}
+					};
+				}
+			}.toResult();
 		}
 	}
 	
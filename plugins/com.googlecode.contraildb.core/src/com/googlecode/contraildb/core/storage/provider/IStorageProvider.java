@@ -84,6 +84,14 @@ public interface IStorageProvider {
 		 * Flush any pending changes made by this session to physical storage.
 		 */
 		public IResult<Void> flush();
+		
+		/**
+		 * Returns a result that completes when this session can accept more 
+		 * requests without exceeding its limits on outstanding requests.
+		 * Clients that make large numbers of requests should wait on this 
+		 * result before making each request.
+		 */
+		public IResult<Void> capacity();
 
 
 	}
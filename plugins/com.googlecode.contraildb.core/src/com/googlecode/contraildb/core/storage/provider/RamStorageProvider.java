@@ -5,6 +5,7 @@ import java.util.Collection;
 
 import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.utils.ContrailTask;
 import com.googlecode.contraildb.core.utils.IdentifierIndexedStorage;
@@ -17,6 +18,8 @@ import com.googlecode.contraildb.core.utils.IdentifierIndexedStorage;
  */
 public class RamStorageProvider extends AbstractStorageProvider {
 	
+	static final long RETRY_MILLIS= 100; 
+	
 	IdentifierIndexedStorage<byte[]> _storage= new IdentifierIndexedStorage<byte[]>(); 
 	
 	@Override
@@ -69,30 +72,41 @@ public class RamStorageProvider extends AbstractStorageProvider {
 
 		@Override
 		protected IResult<Boolean> doCreate(final Identifier path, final byte[] byteArray, final long waitMillis) {
-			return new ContrailTask<Boolean>() {
+			return create(path, byteArray, System.currentTimeMillis() + waitMillis);
+		}
+		
+		/**
+		 * Try to create the item, if the item already exists then try again 
+		 * later, until the deadline has passed.
+		 * Retries are scheduled with a delay instead of polling in a Contrail thread.
+		 */
+		private IResult<Boolean> create(final Identifier path, final byte[] byteArray, final long deadline) {
+			IResult<Boolean> created= new ContrailTask<Boolean>() {
 				@Override protected Boolean run() throws Exception {
-					boolean success= false;
-					long start= System.currentTimeMillis();
-					while(!success) {
-						synchronized (_storage) {
-							if (!_storage.exists(path)) {
-								_storage.store(path, byteArray);
-								success= true; 
-							}
-						}
-						
-						if (!success) {
-							// check to see if we've timed out
-							if (waitMillis < System.currentTimeMillis() - start)
-								break;
-							
-							// do something else for a while
-							yield(100);
-						}
+					synchronized (_storage) {
+						if (_storage.exists(path))
+							return false;
+						_storage.store(path, byteArray);
+						return true;
 					}
-					return success;
 				}
 			}.submit();
+			return new Handler<Boolean,Boolean>(created) {
+				protected IResult<Boolean> onSuccess() throws Exception {
+					if (incoming().getResult())
+						return TaskUtils.TRUE;
+					
+					// check to see if we've timed out
+					if (deadline < System.currentTimeMillis())
+						return TaskUtils.FALSE;
+					
+					return new Handler<Void,Boolean>(TaskUtils.delay(RETRY_MILLIS)) {
+						protected IResult<Boolean> onSuccess() throws Exception {
+							return create(path, byteArray, deadline);
+						}
+					};
+				}
+			}.toResult();
 		}
 	}
 	
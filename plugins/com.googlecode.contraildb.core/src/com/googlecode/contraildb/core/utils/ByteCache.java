@@ -0,0 +1,201 @@
+package com.googlecode.contraildb.core.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+import com.googlecode.contraildb.core.Identifier;
+
+
+
+/**
+ * A cache of byte arrays, indexed by Identifier, that keeps its contents
+ * outside of the Java heap, in direct memory.
+ * Since cached bytes are not Java objects they add nothing to garbage
+ * collection work, so a much larger cache is affordable than when caching
+ * deserialized objects.
+ *
+ * The memory is divided into a number of equally sized segments that are
+ * filled in turn, like a circular log.
+ * When all segments are full the oldest segment is emptied and reused, so
+ * bytes are evicted in the order in which they were stored.
+ * Arrays larger than a segment are not cached.
+ * Segments are allocated as they are first needed. 
+ * Direct memory is only released when the cache is garbage collected, 
+ * there is no way to release it explicitly.
+ *
+ * Is thread-safe.
+ * Fetches do not take a lock, they make an optimistic read of the 
+ * segment's StampedLock, copy the bytes out of direct memory, and then 
+ * validate the read to check that the segment was not reused while copying.
+ * A segment's write lock is only held while the segment is marked as reused.
+ *
+ * @author Ted Stockwell
+ */
+public class ByteCache {
+
+	private static final int SEGMENT_COUNT= 16;
+	private static final int MAXIMUM_SEGMENT_SIZE= 64 * 1024 * 1024;
+
+	private static class Slot {
+		final int _segment;
+		final long _generation;
+		final int _offset;
+		final int _length;
+		Slot(int segment, long generation, int offset, int length) {
+			_segment= segment;
+			_generation= generation;
+			_offset= offset;
+			_length= length;
+		}
+	}
+
+	private final ConcurrentHashMap<Identifier, Slot> _slots= new ConcurrentHashMap<Identifier, Slot>();
+	private final ByteBuffer[] _segments;
+	private final StampedLock[] _locks;
+	private final AtomicLongArray _generations;
+	private final ArrayList<ArrayList<Identifier>> _contents;
+	private final int _segmentSize;
+	private final ReentrantLock _lock= new ReentrantLock();
+	private final LongAdder _hits= new LongAdder();
+	private final LongAdder _misses= new LongAdder();
+	private int _segment;
+	private int _position;
+
+	/**
+	 * @param maximumSize
+	 * 		the number of bytes of direct memory to use
+	 */
+	public ByteCache(long maximumSize) {
+		if (maximumSize < SEGMENT_COUNT)
+			throw new IllegalArgumentException("The cache size is too small: "+maximumSize);
+		long segmentSize= Math.min(MAXIMUM_SEGMENT_SIZE, maximumSize / SEGMENT_COUNT);
+		int segmentCount= (int)Math.min(Integer.MAX_VALUE, maximumSize / segmentSize);
+		_segmentSize= (int)segmentSize;
+		_segments= new ByteBuffer[segmentCount];
+		_locks= new StampedLock[segmentCount];
+		_contents= new ArrayList<ArrayList<Identifier>>(segmentCount);
+		for (int i= 0; i < segmentCount; i++) {
+			_locks[i]= new StampedLock();
+			_contents.add(new ArrayList<Identifier>());
+		}
+		_generations= new AtomicLongArray(segmentCount);
+	}
+
+	/**
+	 * @return the maximum number of bytes of direct memory used by this cache
+	 */
+	public long getMaximumSize() {
+		return (long)_segmentSize * _segments.length;
+	}
+
+	public int size() {
+		return _slots.size();
+	}
+
+	public long getHitCount() {
+		return _hits.sum();
+	}
+	public long getMissCount() {
+		return _misses.sum();
+	}
+
+	/**
+	 * @return a copy of the cached bytes, or null if not cached
+	 */
+	public byte[] fetch(Identifier identifier) {
+		Slot slot= _slots.get(identifier);
+		if (slot != null) {
+			StampedLock lock= _locks[slot._segment];
+			long stamp= lock.tryOptimisticRead();
+			if (stamp != 0 && _generations.get(slot._segment) == slot._generation) {
+				byte[] bytes= new byte[slot._length];
+				ByteBuffer buffer= _segments[slot._segment].duplicate();
+				buffer.position(slot._offset);
+				buffer.get(bytes);
+				// make sure the segment was not reused while we were copying
+				if (lock.validate(stamp)) {
+					_hits.increment();
+					return bytes;
+				}
+			}
+			_slots.remove(identifier, slot);
+		}
+		_misses.increment();
+		return null;
+	}
+
+	public void store(Identifier identifier, byte[] bytes) {
+		if (_segmentSize < bytes.length) {
+			delete(identifier);
+			return;
+		}
+		_lock.lock();
+		try {
+			if (_segmentSize - _position < bytes.length) {
+				// reuse the oldest segment
+				_segment= (_segment + 1) % _segments.length;
+				_position= 0;
+				reuse(_segment);
+				ArrayList<Identifier> evicted= _contents.get(_segment);
+				for (Identifier id: evicted) {
+					Slot slot= _slots.get(id);
+					if (slot != null && slot._segment == _segment)
+						_slots.remove(id, slot);
+				}
+				evicted.clear();
+			}
+			if (_segments[_segment] == null)
+				_segments[_segment]= ByteBuffer.allocateDirect(_segmentSize);
+			ByteBuffer buffer= _segments[_segment].duplicate();
+			buffer.position(_position);
+			buffer.put(bytes);
+			_slots.put(identifier, new Slot(_segment, _generations.get(_segment), _position, bytes.length));
+			_contents.get(_segment).add(identifier);
+			_position+= bytes.length;
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	public void delete(Identifier identifier) {
+		_slots.remove(identifier);
+	}
+
+	public void clear() {
+		_lock.lock();
+		try {
+			_slots.clear();
+			for (int i= 0; i < _segments.length; i++) {
+				reuse(i);
+				_contents.get(i).clear();
+			}
+			_position= 0;
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Invalidates the slots in the given segment so that its memory can be 
+	 * overwritten.
+	 * Fetches that are copying from the segment will fail to validate their 
+	 * optimistic reads.
+	 */
+	private void reuse(int segment) {
+		StampedLock lock= _locks[segment];
+		long stamp= lock.writeLock();
+		try {
+			_generations.incrementAndGet(segment);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+}
@@ -9,9 +9,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.IResultHandler;
 import com.googlecode.contraildb.core.Identifier;
-import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.Result;
+import com.googlecode.contraildb.core.async.TaskUtils;
 
 
 /**
@@ -131,6 +132,22 @@ abstract public class ContrailTask<T> {
 		}
 		return false;
 	}
+	/**
+	 * Returns the number of submitted tasks that are waiting for a thread.  
+	 */
+	public static int getQueueDepth() {
+		return __tasks.size();
+	}
+	/**
+	 * Returns the number of submitted tasks that are waiting for the tasks 
+	 * they depend on to complete.  
+	 */
+	public static int getDeferredCount() {
+		synchronized (__done) {
+			return __deferred.size();
+		}
+	}
+	
 	/**
 	 * Returns true if the current thread is running a ContrailTask that has yielded.  
 	 */
@@ -150,7 +167,29 @@ abstract public class ContrailTask<T> {
 	private volatile boolean _done= false;
 	private volatile boolean _submitted= false;
 	private volatile List<ContrailTask<?>> _pendingTasks;
-	private final Result<T> _result= new Result<T>(); 
+	private volatile boolean _completesLater= false;
+	private volatile IResult<T> _source; // see setResult
+	private volatile IResultHandler<T> _sourceHandler;
+	private final Result<T> _result= new Result<T>() {
+		// cancelling a task's result, from anywhere, stops the task 
+		public void cancel() {
+			if (isDone())
+				return;
+			super.cancel();
+			if (isCancelled()) {
+				done(true);
+				TaskUtils.release(_source, _sourceHandler);
+			}
+		}
+	}; 
+	
+	// tracing, see ContrailTaskTracing
+	private volatile boolean _sampled= false;
+	volatile boolean _traced= false;
+	volatile long _submitTime;
+	volatile long _readyTime;
+	volatile long _startTime;
+	volatile long _endTime;
 	
 	
 	public ContrailTask(Identifier id, Operation operation) {
@@ -167,7 +206,15 @@ abstract public class ContrailTask<T> {
 	
 	public void cancel() {
 		_result.cancel();
-		done(true);
+	}
+	
+	/**
+	 * Adds a handler to this task's result that does not count as a 
+	 * consumer of the result.
+	 * @see Result#addObserver(IResultHandler)
+	 */
+	void addObserver(IResultHandler<T> handler) {
+		_result.addObserver(handler);
 	}
 	
 	/**
@@ -205,10 +252,27 @@ abstract public class ContrailTask<T> {
 		_result.success(result);
 		done(true);
 	}
+	/**
+	 * Completes this task in the same way as the given result, when the 
+	 * given result completes.
+	 * When called from the run method the task is not complete when run 
+	 * returns, the value returned by run is ignored. 
+	 * Use this method instead of calling get() on a result from within a 
+	 * task, so that the task's thread is not blocked while waiting.   
+	 */
 	protected void setResult(IResult<T> result) {
-		result.addHandler(new Handler() {
-			public void onComplete() {
-				success((T)incoming().getResult());
+		_completesLater= true;
+		_source= result;
+		result.addHandler(_sourceHandler= new IResultHandler<T>() {
+			public void onComplete(IResult<T> r) {
+				if (r.isSuccess()) {
+					success(r.getResult());
+				}
+				else if (r.isCancelled()) {
+					cancel();
+				}
+				else
+					error(r.getError());
 			}
 		});
 	}
@@ -223,6 +287,12 @@ abstract public class ContrailTask<T> {
 					}
 					_done= true;
 					
+					// a cancelled task that has not yet run no longer needs a place in line
+					if (_result.isCancelled()) {
+						__tasks.remove(this);
+						__deferred.remove(this);
+					}
+					
 					// check for deferred tasks that can be run now
 					for (int i= __deferred.size(); 0 < i--;) {
 						ContrailTask deferredTask= __deferred.get(i);
@@ -250,19 +320,50 @@ abstract public class ContrailTask<T> {
 if (__logger.isLoggable(Level.FINER))
 	__logger.finer("run task "+hashCode()+", id "+_id+", op "+_operation+", thread "+Thread.currentThread().getName() );		
 		if (!_done) { 
+			Object event= null;
+			if (_traced) {
+				_startTime= System.nanoTime();
+				event= ContrailTaskTracing.beginRun(this);
+			}
+			T result= null;
+			Throwable error= null;
 			try {
-				T result= run();
-				if (!_result.isCancelled())
-					success(result); 
+				result= run();
 			}
 			catch (Throwable x) {
-				error(x);
+				error= x;
+			}
+			
+			// record the trace before completing the result so that it's visible to waiters 
+			if (_traced) {
+				_endTime= System.nanoTime();
+				ContrailTaskTracing.endRun(this, event);
 			}
+			
+			if (error != null) {
+				error(error);
+			}
+			else if (!_result.isCancelled() && !_completesLater)
+				success(result); 
+		}
+	}
+	
+	/**
+	 * Decides, once per task, whether this task will be traced.
+	 */
+	private void sample() {
+		if (!_sampled) {
+			_sampled= true;
+			if (_traced= ContrailTaskTracing.sample())
+				_submitTime= System.nanoTime();
 		}
 	}
 	
 	synchronized public IResult<T> submit() {
 		if (!_submitted) {
+			sample();
+			if (_traced)
+				_readyTime= System.nanoTime();
 			__tasks.append(this);
 			_submitted= true;
 			synchronized (__arrive) {
@@ -284,6 +385,7 @@ if (__logger.isLoggable(Level.FINER))
 	 * Submit this task for execution but don't run the task until the given tasks have completed
 	 */
 	public IResult<T> submit(List<ContrailTask<?>> dependentTasks) {
+		sample();
 		if (dependentTasks != null)  {
 			dependentTasks= new ArrayList<ContrailTask<?>>(dependentTasks); 
 			synchronized (__done) {
@@ -310,17 +412,13 @@ if (__logger.isLoggable(Level.FINER))
 	}
 	
 	/**
-	 * Run other tasks in this thread while waiting for other things to happen
+	 * Run another task in this thread, if there is one that can be run.
+	 * This method never waits, a task that needs to wait for something 
+	 * should complete later via setResult, or schedule a continuation with 
+	 * TaskUtils.delay, instead of occupying a thread.
 	 * @return true if another task was run 
 	 */
 	protected boolean yield() {
-		return yield(0);
-	}
-	/**
-	 * Yields to some other task.
-	 * If there are no other tasks to run then wait the given number of milliseconds.
-	 */
-	protected boolean yield(long waitMillis) {
 		boolean taskWasRun= false;
 		
 		if (!isTaskYielded()) { // no nested yields for now
@@ -346,16 +444,6 @@ if (__logger.isLoggable(Level.FINER))
 			}
 		}
 		
-		if (!taskWasRun && 0 < waitMillis) {
-			synchronized (this) {
-				try {
-					wait(waitMillis);
-				}
-				catch (InterruptedException x) {
-				}
-			}
-		}
-		
 		return taskWasRun;
 	}
 	
@@ -0,0 +1,255 @@
+package com.googlecode.contraildb.core.utils;
+
+import java.util.EnumMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.googlecode.contraildb.core.utils.ContrailTask.Operation;
+
+
+/**
+ * Collects timing information about ContrailTasks.
+ * 
+ * For every traced task four timestamps are recorded: when the task was 
+ * submitted, when all the tasks it depends on (as determined by the 
+ * ContrailTaskTracker) completed, when a thread started running the task, 
+ * and when the task finished running.
+ * From these timestamps three durations are derived...
+ * 		Phase.DEPENDENCY_WAIT - time spent waiting for dependent tasks,
+ * 		Phase.QUEUE_WAIT - time spent waiting in the task queue for a thread,
+ * 		Phase.RUN - time spent running. 
+ * The durations are aggregated into a histogram per operation and phase.
+ * When the optional com.googlecode.contraildb.core.jfr fragment is 
+ * installed, and the JVM supports Java Flight Recorder, each traced task 
+ * is also reported as a Flight Recorder event.
+ * Traced tasks are also reported to the listeners added with addListener.
+ * 
+ * Tracing is sampled in order to keep overhead low.  
+ * By default tracing is disabled, set the 'contrail.tracing.sampleRate' 
+ * system property, or call setSampleRate, to trace one out of every N tasks.  
+ * 
+ * @author Ted Stockwell
+ */
+public class ContrailTaskTracing {
+	
+	public static final String SAMPLE_RATE_PROPERTY= "contrail.tracing.sampleRate";
+	
+	public static enum Phase {
+		DEPENDENCY_WAIT,
+		QUEUE_WAIT,
+		RUN
+	}
+	
+	/**
+	 * A histogram of durations, in nanoseconds, with power-of-two buckets.
+	 * Thread-safe.
+	 */
+	public static class Histogram {
+		private final AtomicLongArray _buckets= new AtomicLongArray(64);
+		private final AtomicLong _count= new AtomicLong();
+		private final AtomicLong _total= new AtomicLong();
+		private final AtomicLong _max= new AtomicLong();
+		
+		public void record(long nanos) {
+			if (nanos < 0)
+				nanos= 0;
+			_buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+			_count.incrementAndGet();
+			_total.addAndGet(nanos);
+			long max;
+			while ((max= _max.get()) < nanos && !_max.compareAndSet(max, nanos)) {}
+		}
+		
+		public long getCount() {
+			return _count.get();
+		}
+		public long getTotalNanos() {
+			return _total.get();
+		}
+		public long getMaxNanos() {
+			return _max.get();
+		}
+		public long getMeanNanos() {
+			long count= _count.get();
+			return count <= 0 ? 0 : _total.get() / count;
+		}
+		
+		/**
+		 * Returns an upper bound for the given percentile (a value between 0 and 1). 
+		 * The returned value is accurate to within a factor of two.
+		 */
+		public long getPercentileNanos(double percentile) {
+			long count= _count.get();
+			if (count <= 0)
+				return 0;
+			long threshold= (long)Math.ceil(count * percentile);
+			long seen= 0;
+			for (int i= 0; i < 64; i++) {
+				if (threshold <= (seen+= _buckets.get(i)))
+					return Math.min(i < 63 ? (1L << (i+1)) - 1 : Long.MAX_VALUE, _max.get());
+			}
+			return _max.get();
+		}
+		
+		public void clear() {
+			for (int i= 0; i < 64; i++)
+				_buckets.set(i, 0);
+			_count.set(0);
+			_total.set(0);
+			_max.set(0);
+		}
+		
+		@Override
+		public String toString() {
+			return "{count="+getCount()+", mean="+getMeanNanos()+"ns, p50="+getPercentileNanos(0.5)+
+				"ns, p99="+getPercentileNanos(0.99)+"ns, max="+getMaxNanos()+"ns}";
+		}
+	}
+
+	
+	private static volatile int __sampleRate= Integer.getInteger(SAMPLE_RATE_PROPERTY, 0);
+	private static final AtomicLong __sampleCounter= new AtomicLong();
+	private static final EventRecorder __recorder= loadEventRecorder();
+	private static final EnumMap<Operation, EnumMap<Phase, Histogram>> __histograms= 
+			new EnumMap<Operation, EnumMap<Phase, Histogram>>(Operation.class);
+	static {
+		for (Operation operation: Operation.values()) {
+			EnumMap<Phase, Histogram> histograms= new EnumMap<Phase, Histogram>(Phase.class);
+			for (Phase phase: Phase.values())
+				histograms.put(phase, new Histogram());
+			__histograms.put(operation, histograms);
+		}
+	}
+	
+	/**
+	 * Notified of every traced task after it has finished running, on the 
+	 * thread that ran the task and before the task's result is completed.
+	 */
+	public static interface Listener {
+		/**
+		 * All durations are in nanoseconds.
+		 */
+		void traced(ContrailTask<?> task, long dependencyWait, long queueWait, long run);
+	}
+	
+	private static final CopyOnWriteArrayList<Listener> __listeners= new CopyOnWriteArrayList<Listener>();
+	
+	/**
+	 * Reports traced tasks to an external event recorder.
+	 * Implemented by the com.googlecode.contraildb.core.jfr fragment. 
+	 */
+	interface EventRecorder {
+		/**
+		 * Invoked just before a traced task starts running.
+		 * @return an object to be passed to the end method, or null
+		 */
+		Object begin(ContrailTask<?> task);
+		void end(Object event, ContrailTask<?> task, long dependencyWait, long queueWait);
+	}
+	
+	private static EventRecorder loadEventRecorder() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			Class<?> recorder= Class.forName(ContrailTaskTracing.class.getPackage().getName()+".ContrailTaskEvent$Recorder");
+			return (EventRecorder)recorder.getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable t) {
+			// Flight Recorder, or the fragment that reports to it, is not available
+			return null;
+		}
+	}
+	
+	/**
+	 * Trace one out of every sampleRate tasks.
+	 * A sample rate of 1 traces every task, a sample rate of 0 or less disables tracing.
+	 */
+	public static void setSampleRate(int sampleRate) {
+		__sampleRate= sampleRate;
+	}
+	public static int getSampleRate() {
+		return __sampleRate;
+	}
+	
+	public static void addListener(Listener listener) {
+		__listeners.add(listener);
+	}
+	public static void removeListener(Listener listener) {
+		__listeners.remove(listener);
+	}
+	
+	public static Histogram getHistogram(Operation operation, Phase phase) {
+		return __histograms.get(operation).get(phase);
+	}
+	
+	public static void clear() {
+		for (EnumMap<Phase, Histogram> histograms: __histograms.values())
+			for (Histogram histogram: histograms.values())
+				histogram.clear();
+	}
+	
+	/**
+	 * Returns a summary of all the non-empty histograms.
+	 */
+	public static String report() {
+		StringBuilder report= new StringBuilder();
+		for (Operation operation: Operation.values()) {
+			for (Phase phase: Phase.values()) {
+				Histogram histogram= getHistogram(operation, phase);
+				if (0 < histogram.getCount())
+					report.append(operation).append(' ').append(phase).append(' ').append(histogram).append('\n');
+			}
+		}
+		return report.toString();
+	}
+	
+	
+	/**
+	 * Decides whether the next submitted task should be traced.
+	 */
+	static boolean sample() {
+		int sampleRate= __sampleRate;
+		if (sampleRate <= 0)
+			return false;
+		if (sampleRate == 1)
+			return true;
+		return __sampleCounter.incrementAndGet() % sampleRate == 0;
+	}
+	
+	/**
+	 * Invoked just before a traced task starts running.
+	 * @return an object to be passed to the endRun method
+	 */
+	static Object beginRun(ContrailTask<?> task) {
+		if (__recorder != null)
+			return __recorder.begin(task);
+		return null;
+	}
+	
+	/**
+	 * Invoked after a traced task has finished running.
+	 */
+	static void endRun(ContrailTask<?> task, Object event) {
+		Operation operation= task.getOperation();
+		long dependencyWait= task._readyTime - task._submitTime;
+		long queueWait= task._startTime - task._readyTime;
+		long run= task._endTime - task._startTime;
+		
+		EnumMap<Phase, Histogram> histograms= __histograms.get(operation);
+		histograms.get(Phase.DEPENDENCY_WAIT).record(dependencyWait);
+		histograms.get(Phase.QUEUE_WAIT).record(queueWait);
+		histograms.get(Phase.RUN).record(run);
+		
+		if (event != null)
+			__recorder.end(event, task, dependencyWait, queueWait);
+		
+		for (Listener listener: __listeners) {
+			try {
+				listener.traced(task, dependencyWait, queueWait, run);
+			}
+			catch (Throwable t) {
+				Logging.warning("Error in task tracing listener", t);
+			}
+		}
+	}
+}
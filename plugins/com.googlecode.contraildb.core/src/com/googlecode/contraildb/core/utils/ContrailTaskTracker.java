@@ -1,16 +1,22 @@
 package com.googlecode.contraildb.core.utils;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.IResultHandler;
 import com.googlecode.contraildb.core.Identifier;
-import com.googlecode.contraildb.core.async.Handler;
+import com.googlecode.contraildb.core.async.Result;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.utils.ContrailTask.Operation;
 
@@ -54,19 +60,187 @@ import com.googlecode.contraildb.core.utils.ContrailTask.Operation;
  * the IStorageProvider.create method is to coordinate asynchronous CREATE 
  * requests, CREATE requests do not have to wait for other CREATE requests.   
  * 
+ * The number of tasks that are in flight (submitted to the tracker but not 
+ * yet completed) may be limited, both per session and globally across all 
+ * trackers.  
+ * When a limit is reached newly submitted tasks are held, in order, until 
+ * capacity frees up, submitting a task never blocks.
+ * A session holds at most 'contrail.tracker.queueLimit' tasks (10000 by 
+ * default), tasks submitted beyond that fail with a 
+ * RejectedExecutionException.
+ * Clients that produce large amounts of work should use the 
+ * Session.capacity method to wait for capacity before submitting more tasks. 
+ * The default limits are taken from the 'contrail.tracker.sessionLimit' and 
+ * 'contrail.tracker.globalLimit' system properties, a limit of zero or less 
+ * means unlimited, which is the default.     
+ * While no limits are set, and no tasks are held, tasks are admitted and 
+ * released without taking any global lock.
+ * 
  * @author Ted Stockwell
  */
 @SuppressWarnings({"unchecked", "rawtypes"})
 public class ContrailTaskTracker {
 	
+	public static final String SESSION_LIMIT_PROPERTY= "contrail.tracker.sessionLimit";
+	public static final String GLOBAL_LIMIT_PROPERTY= "contrail.tracker.globalLimit";
+	public static final String QUEUE_LIMIT_PROPERTY= "contrail.tracker.queueLimit";
+	
+	/*
+	 * Admission control.
+	 * In-flight and waiting counts are atomic, held tasks and capacity 
+	 * waiters, for all trackers and sessions, are guarded by __admissionLock.
+	 * A completing task only takes the lock when something is waiting, and 
+	 * a task that is held is counted as waiting before capacity is checked 
+	 * again, so either the completing task sees the waiting task or the 
+	 * waiting task sees the freed capacity.
+	 */
+	private static final Object __admissionLock= new Object();
+	private static volatile int __globalLimit= Integer.getInteger(GLOBAL_LIMIT_PROPERTY, 0);
+	private static volatile int __queueLimit= Integer.getInteger(QUEUE_LIMIT_PROPERTY, 10000);
+	private static final AtomicInteger __globalInFlight= new AtomicInteger();
+	private static final AtomicInteger __globalWaiting= new AtomicInteger();
+	private static final AtomicInteger __capacityWaiting= new AtomicInteger();
+	private static final AtomicLong __saturatedCount= new AtomicLong();
+	private static boolean __admitting= false;
+	
+	// sessions that have tasks waiting for admission, in order of arrival
+	private static final LinkedList<Session> __waitingSessions= new LinkedList<Session>();
+	
+	// sessions that have clients waiting for capacity
+	private static final LinkedHashSet<Session> __sessionsAwaitingCapacity= new LinkedHashSet<Session>();
+	
 	IdentifierIndexedStorage<Set<ContrailTask>> _tasks= 
 		new IdentifierIndexedStorage<Set<ContrailTask>>();
 	LinkedList<ContrailTask> _tasksToBeRemoved= new LinkedList<ContrailTask>();
 	ContrailAction _taskRemoval= null;
+	private volatile int _sessionLimit= Integer.getInteger(SESSION_LIMIT_PROPERTY, 0);
 	
 	public Session beginSession() {
 		return new Session();
 	}
+	
+	/**
+	 * Sets the maximum number of tasks, across all trackers, that may be in flight at once.
+	 * A limit of zero or less means unlimited.
+	 */
+	public static void setGlobalLimit(int limit) {
+		synchronized (__admissionLock) {
+			__globalLimit= limit;
+			admitWaitingTasks();
+		}
+	}
+	public static int getGlobalLimit() {
+		return __globalLimit;
+	}
+	
+	/**
+	 * Returns the number of tasks, across all trackers, that are currently in flight.
+	 */
+	public static int getGlobalInFlightCount() {
+		return __globalInFlight.get();
+	}
+	
+	/**
+	 * Returns the number of tasks, across all trackers, that are waiting for admission.
+	 */
+	public static int getGlobalWaitingCount() {
+		return __globalWaiting.get();
+	}
+	
+	/**
+	 * Returns the number of times that a submitted task could not be 
+	 * admitted immediately because a limit had been reached.
+	 */
+	public static long getSaturatedCount() {
+		return __saturatedCount.get();
+	}
+	
+	/**
+	 * Sets the maximum number of tasks that a session may hold while waiting 
+	 * for capacity.
+	 */
+	public static void setQueueLimit(int limit) {
+		__queueLimit= limit;
+	}
+	public static int getQueueLimit() {
+		return __queueLimit;
+	}
+	
+	/**
+	 * @return true if no limits apply and nothing is waiting, in which case 
+	 * 		tasks may be admitted without taking __admissionLock
+	 */
+	private static boolean isUnrestricted(Session session) {
+		return session._limit <= 0 && __globalLimit <= 0 && __globalWaiting.get() == 0;
+	}
+	
+	/**
+	 * Sets the in-flight limit for sessions subsequently created by this tracker.
+	 * A limit of zero or less means unlimited.
+	 */
+	public void setSessionLimit(int limit) {
+		_sessionLimit= limit;
+	}
+	public int getSessionLimit() {
+		return _sessionLimit;
+	}
+	
+	/**
+	 * Admit waiting tasks while there is capacity.
+	 * Tasks are admitted from each waiting session in turn, tasks from the 
+	 * same session are admitted in the order in which they were submitted.
+	 * Tasks that were cancelled while they were held are dropped.
+	 * Clients waiting for capacity are released once their session has 
+	 * capacity and there is global capacity.
+	 * Must be called while holding __admissionLock. 
+	 */
+	private static void admitWaitingTasks() {
+		if (__admitting) 
+			return; // admitting a task completed another task, the outer loop will continue admitting 
+		__admitting= true;
+		try {
+			boolean admitted= true;
+			while (admitted && !__waitingSessions.isEmpty() && hasGlobalCapacity()) {
+				admitted= false;
+				for (Iterator<Session> i= __waitingSessions.iterator(); i.hasNext() && hasGlobalCapacity();) {
+					Session session= i.next();
+					if (!session.hasCapacity())
+						continue;
+					ContrailTask task= session._waiting.removeFirst();
+					__globalWaiting.decrementAndGet();
+					if (session._waiting.isEmpty())
+						i.remove();
+					admitted= true;
+					if (task.isDone()) {
+						// cancelled while it was held 
+						session._sessionTasks.remove(task);
+						continue;
+					}
+					session.admit(task);
+				}
+			}
+			
+			for (Iterator<Session> i= __sessionsAwaitingCapacity.iterator(); i.hasNext() && hasGlobalCapacity();) {
+				Session session= i.next();
+				if (session._waiting.isEmpty() && session.hasCapacity()) {
+					i.remove();
+					__capacityWaiting.decrementAndGet();
+					List<Result<Void>> waiters= session._capacityWaiters;
+					session._capacityWaiters= null;
+					for (Result<Void> waiter: waiters)
+						waiter.success(null);
+				}
+			}
+		}
+		finally {
+			__admitting= false;
+		}
+	}
+	
+	private static boolean hasGlobalCapacity() {
+		int limit= __globalLimit;
+		return limit <= 0 || __globalInFlight.get() < limit;
+	}
 
 	public boolean contains(ContrailAction action) {
 		Set<ContrailTask> tasks= _tasks.fetch(action.getId());
@@ -150,21 +324,15 @@ public class ContrailTaskTracker {
 
 	public class Session {
 		
-		IResultHandler _completionListener= new Handler() {
-			@Override public void onComplete() {
-				IResult incoming= incoming();
-				for (ContrailTask task:_sessionTasks) {
-					if (task.getResult() == incoming) {
-						removeTask(task);
-						break;
-					}
-				}
-			}
-		};
-		
 		List<ContrailTask> _sessionTasks= Collections.synchronizedList(new ArrayList<ContrailTask>());
 		private boolean _closed=false;
 		
+		// admission control, _waiting and _capacityWaiters are guarded by __admissionLock
+		private volatile int _limit= _sessionLimit;
+		private final AtomicInteger _inFlight= new AtomicInteger();
+		private final ArrayDeque<ContrailTask> _waiting= new ArrayDeque<ContrailTask>();
+		private List<Result<Void>> _capacityWaiters= null;
+		
 		synchronized public IResult<Void> close() {
 			if (_closed)
 				return TaskUtils.asResult(null);
@@ -184,18 +352,135 @@ public class ContrailTaskTracker {
 			super.finalize();
 		}
 		
+		/**
+		 * Submits a task for execution.
+		 * If this session, or all sessions globally, already have the maximum 
+		 * number of tasks in flight then the task is held until capacity 
+		 * frees up.  This method never blocks.
+		 * If this session already holds the maximum number of tasks then the 
+		 * task fails with a RejectedExecutionException.
+		 * 
+		 * @return the task's result 
+		 */
 		synchronized public <T> IResult<T> submit(ContrailTask<T> task) {
 			if (_closed)
 				throw new IllegalStateException("The session has already been closed");
-			List<ContrailTask<?>> pendingTasks= null;
-
-			pendingTasks= findPendingTasks(task);
-			addTask(task);
-			return task.submit(pendingTasks);
+			if (isUnrestricted(this)) {
+				_sessionTasks.add(task);
+				admit(task);
+				return task.getResult();
+			}
+			synchronized (__admissionLock) {
+				if (_waiting.isEmpty() && hasCapacity() && hasGlobalCapacity()) {
+					_sessionTasks.add(task);
+					admit(task);
+				}
+				else if (__queueLimit <= _waiting.size()) {
+					task.error(new RejectedExecutionException("Too many tasks are waiting for capacity: "+_waiting.size()));
+				}
+				else {
+					_sessionTasks.add(task);
+					if (_waiting.isEmpty())
+						__waitingSessions.add(this);
+					_waiting.add(task);
+					__globalWaiting.incrementAndGet();
+					__saturatedCount.incrementAndGet();
+					
+					// capacity may have been released without the lock since it was checked 
+					admitWaitingTasks();
+				}
+			}
+			return task.getResult();
+		}
+		
+		/**
+		 * Returns a result that completes when this session can accept more 
+		 * tasks without exceeding its in-flight limits.
+		 * Clients that submit large numbers of tasks should wait on this 
+		 * result instead of submitting tasks that will just be held.   
+		 */
+		public IResult<Void> capacity() {
+			if (isUnrestricted(this))
+				return TaskUtils.DONE;
+			synchronized (__admissionLock) {
+				if (_waiting.isEmpty() && hasCapacity() && hasGlobalCapacity())
+					return TaskUtils.DONE;
+				Result<Void> result= new Result<Void>();
+				if (_capacityWaiters == null)
+					_capacityWaiters= new ArrayList<Result<Void>>();
+				_capacityWaiters.add(result);
+				if (__sessionsAwaitingCapacity.add(this))
+					__capacityWaiting.incrementAndGet();
+				
+				// capacity may have been released without the lock since it was checked 
+				admitWaitingTasks();
+				return result;
+			}
+		}
+		
+		/**
+		 * Sets the maximum number of tasks that this session may have in flight.
+		 * A limit of zero or less means unlimited.
+		 */
+		public void setLimit(int limit) {
+			synchronized (__admissionLock) {
+				_limit= limit;
+				admitWaitingTasks();
+			}
+		}
+		public int getLimit() {
+			return _limit;
+		}
+		
+		/**
+		 * Returns the number of this session's tasks that are currently in flight.
+		 */
+		public int getInFlightCount() {
+			return _inFlight.get();
 		}
 		
+		/**
+		 * Returns the number of this session's tasks that are waiting for admission.
+		 */
+		public int getWaitingCount() {
+			synchronized (__admissionLock) {
+				return _waiting.size();
+			}
+		}
+		
+		private boolean hasCapacity() {
+			int limit= _limit;
+			return limit <= 0 || _inFlight.get() < limit;
+		}
 		
-		private void addTask(ContrailTask<?> task) {
+		/**
+		 * Passes the given task on for execution.
+		 */
+		private void admit(ContrailTask<?> task) {
+			_inFlight.incrementAndGet();
+			__globalInFlight.incrementAndGet();
+			List<ContrailTask<?>> pendingTasks;
+			synchronized (_tasks) {
+				// find dependencies and index the task atomically, so that concurrently 
+				// admitted tasks on the same tracker see each other 
+				pendingTasks= findPendingTasks(task);
+				addTask(task);
+			}
+			watchTask(task);
+			task.submit(pendingTasks);
+		}
+		
+		private void release() {
+			_inFlight.decrementAndGet();
+			__globalInFlight.decrementAndGet();
+			if (__globalWaiting.get() != 0 || __capacityWaiting.get() != 0) {
+				synchronized (__admissionLock) {
+					admitWaitingTasks();
+				}
+			}
+		}
+		
+		private void addTask(final ContrailTask<?> task) {
 			Identifier taskId= task.getId();
 			synchronized (_tasks) {
 				Set<ContrailTask> tasks= _tasks.fetch(taskId);
@@ -205,8 +490,20 @@ public class ContrailTaskTracker {
 				}
 				tasks.add(task);
 			}
-			_sessionTasks.add(task);
-			task.getResult().addHandler(_completionListener);
+		}
+		
+		/**
+		 * Removes the given task when it completes.
+		 * Not called while holding the _tasks lock since the handler may be 
+		 * run immediately and take __admissionLock.
+		 */
+		private void watchTask(final ContrailTask<?> task) {
+			task.addObserver(new IResultHandler() {
+				public void onComplete(IResult result) {
+					removeTask(task);
+					release();
+				}
+			});
 		}
 		
 		private void removeTask(ContrailTask<?> task) {
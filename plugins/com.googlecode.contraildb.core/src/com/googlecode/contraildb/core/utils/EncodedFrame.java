@@ -0,0 +1,115 @@
+package com.googlecode.contraildb.core.utils;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import com.googlecode.contraildb.core.ContrailException;
+
+
+
+/**
+ * A part of an object in the versioned externalization format that can be 
+ * read independently of the rest of the object, see 
+ * ExternalizationManager.writeFrame. 
+ * 
+ * A frame keeps a reference to the bytes that it was read from, so its 
+ * contents are not decoded until needed and an unmodified independent frame 
+ * can be written again by copying its bytes.  
+ * The bytes are not copied out of the array that the enclosing object was 
+ * read from, that array holds just the serialized enclosing object and 
+ * the dictionaries of dependent frames refer to it anyway. 
+ * So an object that holds frames keeps its whole serialized form alive, 
+ * about the size of the object itself, until the object is discarded.
+ * 
+ * Is thread-safe.
+ * Objects holding frames may be cached and shared between threads, if 
+ * several threads decode a frame at the same time then they all return 
+ * the value that was decoded first.
+ * 
+ * @author Ted Stockwell
+ */
+public class EncodedFrame {
+	
+	private static final Object UNDECODED= new Object();
+	private static final AtomicReferenceFieldUpdater<EncodedFrame, Object> VALUE= 
+			AtomicReferenceFieldUpdater.newUpdater(EncodedFrame.class, Object.class, "_value");
+	
+	private final byte[] _bytes;
+	private final int _offset;
+	private final int _length;
+	private final int _version;
+	private final Object _base; // the dictionaries of a dependent frame 
+	private volatile Object _value= UNDECODED;
+	
+	/**
+	 * @param bytes
+	 * 		The array is not copied and must not be modified.
+	 */
+	EncodedFrame(byte[] bytes, int offset, int length, int version, Object base) {
+		_bytes= bytes;
+		_offset= offset;
+		_length= length;
+		_version= version;
+		_base= base;
+	}
+	
+	/**
+	 * @return the given value, or the decoded value if the given value is 
+	 * 		an EncodedFrame.
+	 */
+	public static Object decode(Object value) {
+		if (value instanceof EncodedFrame)
+			return ((EncodedFrame)value).getValue();
+		return value;
+	}
+	
+	/**
+	 * @return an input positioned at the beginning of this frame's contents
+	 */
+	public DataInput open() {
+		return ExternalizationManager.openFrame(this);
+	}
+	
+	/**
+	 * Decodes the object written to this frame by 
+	 * ExternalizationManager.writeFrame(DataOutput, Object).
+	 * The object is decoded the first time this method is called, and the 
+	 * same instance is returned to all callers.   
+	 */
+	public Object getValue() {
+		Object value= _value;
+		if (value == UNDECODED) {
+			try {
+				value= ExternalizationManager.readExternal(open());
+			}
+			catch (IOException x) {
+				throw new ContrailException("Error decoding value.\nPossibly corrupted data.", x);
+			}
+			if (!VALUE.compareAndSet(this, UNDECODED, value))
+				value= _value; // another thread decoded the value first
+		}
+		return value;
+	}
+	
+	public boolean isDecoded() {
+		return _value != UNDECODED;
+	}
+	
+	public int getLength() {
+		return _length;
+	}
+	
+	byte[] getBytes() {
+		return _bytes;
+	}
+	int getOffset() {
+		return _offset;
+	}
+	int getVersion() {
+		return _version;
+	}
+	Object getBase() {
+		return _base;
+	}
+}
@@ -0,0 +1,291 @@
+package com.googlecode.contraildb.core.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.googlecode.contraildb.core.Identifier;
+
+
+
+/**
+ * An immutable list of identifiers that is kept in its externalized form 
+ * and decoded lazily.
+ * 
+ * Consecutive paths in a sorted list of identifiers usually share a long 
+ * common prefix, so each path is front coded, that is, written as the 
+ * number of characters that it shares with the previous path followed by 
+ * the remaining characters.
+ * Every RESTART_INTERVAL'th path is written in full and the offsets of 
+ * these restart points are written at the end of the list, so an element 
+ * can be decoded without decoding the entire list.
+ * 
+ * An Identifier is only created when an element is fetched with the get 
+ * method.  
+ * If the list is sorted then the search method can find an identifier 
+ * without creating any Identifiers. 
+ * 
+ * Is thread-safe.
+ * 
+ * @author Ted Stockwell
+ */
+public class EncodedIdentifierList extends AbstractList<Identifier> implements RandomAccess {
+	
+	private static final int RESTART_INTERVAL= 16;
+	
+	private final byte[] _bytes;
+	private final int _offset;
+	private final int _length;
+	private final int _size;
+	private final Identifier[] _identifiers;
+	
+	/**
+	 * @param bytes
+	 * 		an array that contains an encoded list, created by the encode method.
+	 * 		The array is not copied and must not be modified.
+	 */
+	public EncodedIdentifierList(byte[] bytes, int offset, int length, int size) {
+		_bytes= bytes;
+		_offset= offset;
+		_length= length;
+		_size= size;
+		_identifiers= new Identifier[size];
+	}
+	
+	/**
+	 * @return the encoded form of the given list of identifiers.
+	 */
+	public static byte[] encode(List<Identifier> identifiers) {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		int[] restarts= new int[(identifiers.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+		String previous= "";
+		for (int i= 0; i < identifiers.size(); i++) {
+			String path= identifiers.get(i).toString();
+			int shared= 0;
+			if (i % RESTART_INTERVAL == 0) {
+				restarts[i / RESTART_INTERVAL]= bytes.size();
+			}
+			else {
+				int max= Math.min(previous.length(), path.length());
+				while (shared < max && previous.charAt(shared) == path.charAt(shared))
+					shared++;
+				// don't split a surrogate pair
+				if (shared < path.length() && Character.isLowSurrogate(path.charAt(shared)))
+					shared--;
+			}
+			byte[] suffix= path.substring(shared).getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes, shared);
+			writeVarInt(bytes, suffix.length);
+			bytes.write(suffix, 0, suffix.length);
+			previous= path;
+		}
+		for (int restart: restarts) {
+			bytes.write(restart >>> 24);
+			bytes.write(restart >>> 16);
+			bytes.write(restart >>> 8);
+			bytes.write(restart);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value>>>= 7;
+		}
+		out.write(value);
+	}
+	
+	byte[] getBytes() {
+		return _bytes;
+	}
+	int getOffset() {
+		return _offset;
+	}
+	int getLength() {
+		return _length;
+	}
+	
+	@Override
+	public int size() {
+		return _size;
+	}
+	
+	@Override
+	public Identifier get(int index) {
+		if (index < 0 || _size <= index)
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+_size);
+		Identifier identifier= _identifiers[index];
+		if (identifier == null) {
+			Decoder decoder= new Decoder(index / RESTART_INTERVAL);
+			for (int i= index % RESTART_INTERVAL; 0 <= i--;)
+				decoder.next();
+			_identifiers[index]= identifier= Identifier.create(decoder.path());
+		}
+		return identifier;
+	}
+	
+	/**
+	 * Searches a sorted list for the given identifier.
+	 * 
+	 * @return 
+	 * 		the index of the identifier if the list contains the identifier, 
+	 * 		otherwise (-(insertion point) - 1).
+	 * 		The same as Collections.binarySearch.
+	 */
+	public int search(Identifier key) {
+		if (key == null)
+			return -1;
+		String[] components= components(key);
+		
+		// find the last restart point that is not greater than the key 
+		int left= 0;
+		int right= (_size + RESTART_INTERVAL - 1) / RESTART_INTERVAL - 1;
+		while (left <= right) {
+			int middle= (left + right) >>> 1;
+			Decoder decoder= new Decoder(middle);
+			decoder.next();
+			int c= decoder.compareTo(components);
+			if (c == 0)
+				return middle * RESTART_INTERVAL;
+			if (c < 0) {
+				left= middle + 1;
+			}
+			else
+				right= middle - 1;
+		}
+		if (right < 0)
+			return -1;
+		
+		// scan the entries that follow the restart point
+		Decoder decoder= new Decoder(right);
+		decoder.next();
+		int index= right * RESTART_INTERVAL + 1;
+		int end= Math.min(_size, index + RESTART_INTERVAL - 1);
+		for (; index < end; index++) {
+			decoder.next();
+			int c= decoder.compareTo(components);
+			if (c == 0)
+				return index;
+			if (0 < c)
+				break;
+		}
+		return -index - 1;
+	}
+	
+	/**
+	 * Searches the given sorted list for the given identifier, without 
+	 * decoding the list if it is an EncodedIdentifierList.
+	 * @see #search(Identifier)
+	 */
+	public static int binarySearch(List<Identifier> identifiers, Identifier key) {
+		if (identifiers instanceof EncodedIdentifierList)
+			return ((EncodedIdentifierList)identifiers).search(key);
+		return Collections.binarySearch(identifiers, key);
+	}
+	
+	private static String[] components(Identifier identifier) {
+		int depth= 0;
+		for (Identifier i= identifier; i != null; i= i.getParent())
+			depth++;
+		String[] components= new String[depth];
+		for (Identifier i= identifier; i != null; i= i.getParent())
+			components[--depth]= i.getName();
+		return components;
+	}
+	
+	/**
+	 * Decodes consecutive paths, starting at a restart point. 
+	 */
+	private class Decoder {
+		private char[] _path= new char[64];
+		private int _pathLength= 0;
+		private int _position;
+		
+		Decoder(int restart) {
+			int i= _offset + _length - ((_size + RESTART_INTERVAL - 1) / RESTART_INTERVAL - restart) * 4;
+			_position= _offset + (((_bytes[i] & 0xFF) << 24) | ((_bytes[i+1] & 0xFF) << 16) 
+					| ((_bytes[i+2] & 0xFF) << 8) | (_bytes[i+3] & 0xFF));
+		}
+		
+		private int readVarInt() {
+			int value= 0;
+			for (int shift= 0;; shift+= 7) {
+				int b= _bytes[_position++];
+				value|= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+		}
+		
+		void next() {
+			int shared= readVarInt();
+			int length= readVarInt();
+			if (_path.length < shared + length)
+				_path= Arrays.copyOf(_path, Math.max(_path.length * 2, shared + length));
+			int end= _position + length;
+			int p= shared;
+			for (; _position < end; _position++) {
+				byte b= _bytes[_position];
+				if (b < 0)
+					break;
+				_path[p++]= (char)b;
+			}
+			if (_position < end) {
+				String suffix= new String(_bytes, _position, end - _position, StandardCharsets.UTF_8);
+				suffix.getChars(0, suffix.length(), _path, p);
+				p+= suffix.length();
+				_position= end;
+			}
+			_pathLength= p;
+		}
+		
+		String path() {
+			return new String(_path, 0, _pathLength);
+		}
+		
+		/**
+		 * Compares the current path with the given identifier, 
+		 * using the same ordering as Identifier.compareTo. 
+		 */
+		int compareTo(String[] components) {
+			int depth= 1;
+			for (int i= 0; i < _pathLength; i++)
+				if (_path[i] == '/')
+					depth++;
+			
+			// compare common ancestors
+			int start= 0;
+			int ancestors= Math.min(depth, components.length) - 1;
+			for (int i= 0; i < ancestors; i++) {
+				int end= start;
+				while (_path[end] != '/')
+					end++;
+				int c= compare(start, end, components[i]);
+				if (c != 0)
+					return c;
+				start= end + 1;
+			}
+			if (depth != components.length)
+				return depth < components.length ? -1 : 1;
+			
+			// compare names
+			return compare(start, _pathLength, components[components.length - 1]);
+		}
+		
+		private int compare(int start, int end, String name) {
+			int length= end - start;
+			int max= Math.min(length, name.length());
+			for (int i= 0; i < max; i++) {
+				int c= _path[start + i] - name.charAt(i);
+				if (c != 0)
+					return c;
+			}
+			return length - name.length();
+		}
+	}
+}
@@ -1,9 +1,19 @@
 package com.googlecode.contraildb.core.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 
 import com.googlecode.contraildb.core.Identifier;
 import com.googlecode.contraildb.core.Item;
@@ -30,6 +40,28 @@ import com.googlecode.contraildb.core.storage.RootFolder;
  * for the object type must be registered.  Use the
  * ExternalizationManager.registerSerializer(Serializer) to register a 
  * serializer for a type.
+ * The type code of a serializer is the hash code of the name of its class, 
+ * serializers are kept in a perfect hash table, see SerializerRegistry, and 
+ * registering two serializers with the same type code fails. 
+ * 
+ * There are two wire formats.
+ * The original format writes fixed size type codes, counts and numbers and 
+ * writes every string and identifier in full.   
+ * The versioned format, written by the 
+ * ExternalizationManager.writeVersionedExternal(DataOutput, Object) method, 
+ * begins with a marker, a version number and the length of the object and 
+ * then writes counts and numbers as variable length integers.  
+ * Type codes, strings and identifiers are written in full only the first time 
+ * they occur in an object, after that they are written as an index into a 
+ * dictionary that is built up while reading the object.   
+ * The ExternalizationManager.readExternal methods read both formats.
+ * Since version 3 parts of an object may be written as frames that can be 
+ * decoded independently of the rest of the object, see writeFrame. 
+ * 
+ * Serializers should use the writeCount, writeInteger, writeLong, 
+ * writeString and writeIdentifier methods (and the corresponding read 
+ * methods) instead of the methods of DataOutput and DataInput, these 
+ * methods use whichever format is being read or written. 
  * 
  */
 public class ExternalizationManager {
@@ -41,12 +73,120 @@ public class ExternalizationManager {
 	    int typeCode(); 
 	}
 	
-	private static final HashMap<Integer, Serializer<?>> __serializers= 
-			new HashMap<Integer, Serializer<?>>();
+	/**
+	 * The version of the format written by writeVersionedExternal.
+	 * Version 2 added front coded lists of identifiers, see writeIdentifiers. 
+	 * Version 3 added frames, see writeFrame. 
+	 */
+	public static final int FORMAT_VERSION= 3;
+	
+	/**
+	 * Written at the beginning of the versioned format.
+	 * An object in the original format begins with its type code, so no 
+	 * serializer may use this value as its type code.  
+	 */
+	private static final int VERSIONED_FORMAT_MARKER= 0xC0DB0001;
+	
+	/**
+	 * The dictionaries of every independent frame begin with these type 
+	 * codes and strings, so the most common values are never written in full 
+	 * in a frame.
+	 * Values may only be appended to these lists.   
+	 */
+	private static final int[] FRAME_TYPES= new int[] {
+		String.class.getName().hashCode(),
+		Long.class.getName().hashCode(),
+		Integer.class.getName().hashCode(),
+		Identifier.class.getName().hashCode(),
+		Item.class.getName().hashCode()
+	};
+	private static final String[] FRAME_STRINGS= new String[] {
+		Item.KEY_KIND,
+		Item.class.getName()
+	};
+	/*
+	 * Independent frames are written and read as dependent frames of these, 
+	 * which are never modified.
+	 */
+	private static final CompactOutput FRAME_OUTPUT= new CompactOutput();
+	private static final CompactInput FRAME_INPUT= new CompactInput();
+	static {
+		for (int type: FRAME_TYPES)
+			FRAME_OUTPUT.writeType(type);
+		for (String string: FRAME_STRINGS)
+			FRAME_OUTPUT.writeString(string);
+	}
+	
+	private static volatile SerializerRegistry __serializers= new SerializerRegistry();
+	
+	/**
+	 * Output buffers larger than this are not kept for reuse.
+	 */
+	private static final int MAXIMUM_RETAINED_BUFFER_SIZE= 64 * 1024;
+	private static final int MAXIMUM_RETAINED_DICTIONARY_SIZE= 1024;
+	private static final ThreadLocal<CompactOutput> __outputs= new ThreadLocal<CompactOutput>();
 	
 	public static void registerSerializer(Serializer<?> serializer) {
 		System.out.println("register type code:"+serializer.typeCode());
-		__serializers.put(serializer.typeCode(), serializer);
+		if (serializer.typeCode() == 0 || serializer.typeCode() == VERSIONED_FORMAT_MARKER)
+			throw new IllegalArgumentException("Reserved type code: "+serializer.typeCode());
+		synchronized (ExternalizationManager.class) {
+			__serializers= __serializers.add(serializer);
+		}
+	}
+	
+	/**
+	 * Writes the given object using the versioned format. 
+	 */
+	public static <T> void writeVersionedExternal(DataOutput out, T object)
+	throws IOException
+	{
+		CompactOutput compactOutput= acquireOutput();
+		try {
+			writeExternal(compactOutput, object);
+			out.writeInt(VERSIONED_FORMAT_MARKER);
+			out.writeByte(FORMAT_VERSION);
+			compactOutput.writeTo(out);
+		}
+		finally {
+			releaseOutput(compactOutput);
+		}
+	}
+	
+	/**
+	 * Writes the given object using the versioned format and returns the 
+	 * written bytes in an array of exactly the written size.
+	 * The object is first written to a buffer that is reused by the calling 
+	 * thread, so the only allocation is the returned array. 
+	 */
+	public static <T> byte[] toVersionedBytes(T object)
+	throws IOException
+	{
+		CompactOutput compactOutput= acquireOutput();
+		try {
+			writeExternal(compactOutput, object);
+			return compactOutput.toVersionedBytes();
+		}
+		finally {
+			releaseOutput(compactOutput);
+		}
+	}
+	
+	/*
+	 * Each thread keeps one output buffer.
+	 * A buffer in use is removed from its thread so that a nested call gets 
+	 * a new one.
+	 */
+	private static CompactOutput acquireOutput() {
+		CompactOutput output= __outputs.get();
+		if (output == null)
+			return new CompactOutput();
+		__outputs.set(null);
+		return output;
+	}
+	private static void releaseOutput(CompactOutput output) {
+		if (output.reset())
+			__outputs.set(output);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -54,14 +194,14 @@ public class ExternalizationManager {
 	throws IOException
 	{
 		if (object == null) {
-			out.writeInt(0);
+			writeType(out, 0);
 		}
 		else {
-			Integer type= object.getClass().getName().hashCode();
+			int type= object.getClass().getName().hashCode();
 			Serializer<T> serializer= (Serializer<T>) __serializers.get(type);
 			if (serializer == null)
 				throw new IOException("No serializer available for type: "+type);
-			out.writeInt(type);
+			writeType(out, type);
 			serializer.writeExternal(out, object);
 		}
 	}
@@ -70,10 +210,10 @@ public class ExternalizationManager {
 	throws IOException
 	{
 		if (object == null) {
-			out.writeInt(0);
+			writeType(out, 0);
 		}
 		else {
-			out.writeInt(serializer.typeCode());
+			writeType(out, serializer.typeCode());
 			serializer.writeExternal(out, object);
 		}
 	}
@@ -82,7 +222,9 @@ public class ExternalizationManager {
 	public static <T> T readExternal(DataInput in)
 	throws IOException
 	{
-		Integer type= in.readInt();
+		int type= readType(in);
+		if (type == VERSIONED_FORMAT_MARKER)
+			return readExternal(new CompactInput(in));
 		if (type == 0)
 			return null;
 		Serializer<T> serializer= (Serializer<T>) __serializers.get(type);
@@ -96,11 +238,11 @@ public class ExternalizationManager {
 		public String readExternal(DataInput in) 
 		throws IOException 
 		{
-			return in.readUTF();
+			return readString(in);
 		}
 		public void writeExternal(DataOutput out, String object)
 		throws IOException {
-			out.writeUTF(object);
+			writeString(out, object);
 		}
 		public void readExternal(DataInput arg0, String arg1) throws IOException {
 			throw new UnsupportedOperationException();
@@ -115,11 +257,11 @@ public class ExternalizationManager {
 		public Long readExternal(DataInput in) 
 		throws IOException 
 		{
-			return in.readLong();
+			return readLong(in);
 		}
 		public void writeExternal(DataOutput out, Long object)
 		throws IOException {
-			out.writeLong((Long)object);
+			writeLong(out, (Long)object);
 		}
 		public void readExternal(DataInput arg0, Long arg1) throws IOException {
 			throw new UnsupportedOperationException();
@@ -134,11 +276,11 @@ public class ExternalizationManager {
 		public Integer readExternal(DataInput in) 
 		throws IOException 
 		{
-			return in.readInt();
+			return readInteger(in);
 		}
 		public void writeExternal(DataOutput out, Integer object)
 		throws IOException {
-			out.writeInt(object);
+			writeInteger(out, object);
 		}
 		public void readExternal(DataInput arg0, Integer arg1) throws IOException {
 			throw new UnsupportedOperationException();
@@ -148,10 +290,70 @@ public class ExternalizationManager {
 		}
 	};
 	
+	static public final Serializer<Double> DoubleSerializer= new Serializer<Double>() {
+		private final int typeCode= Double.class.getName().hashCode();
+		public Double readExternal(DataInput in) 
+		throws IOException 
+		{
+			return in.readDouble();
+		}
+		public void writeExternal(DataOutput out, Double object)
+		throws IOException {
+			out.writeDouble(object);
+		}
+		public void readExternal(DataInput arg0, Double arg1) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+		public int typeCode() {
+			return typeCode;
+		}
+	};
+	
+	static public final Serializer<Boolean> BooleanSerializer= new Serializer<Boolean>() {
+		private final int typeCode= Boolean.class.getName().hashCode();
+		public Boolean readExternal(DataInput in) 
+		throws IOException 
+		{
+			return in.readBoolean();
+		}
+		public void writeExternal(DataOutput out, Boolean object)
+		throws IOException {
+			out.writeBoolean(object);
+		}
+		public void readExternal(DataInput arg0, Boolean arg1) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+		public int typeCode() {
+			return typeCode;
+		}
+	};
+	
+	static public final Serializer<Date> DateSerializer= new Serializer<Date>() {
+		private final int typeCode= Date.class.getName().hashCode();
+		public Date readExternal(DataInput in) 
+		throws IOException 
+		{
+			return new Date(readLong(in));
+		}
+		public void writeExternal(DataOutput out, Date object)
+		throws IOException {
+			writeLong(out, object.getTime());
+		}
+		public void readExternal(DataInput arg0, Date arg1) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+		public int typeCode() {
+			return typeCode;
+		}
+	};
+	
 	static {
 		registerSerializer(StringSerializer);
 		registerSerializer(LongSerializer);
 		registerSerializer(IntegerSerializer);
+		registerSerializer(DoubleSerializer);
+		registerSerializer(BooleanSerializer);
+		registerSerializer(DateSerializer);
 		
 		registerSerializer(Identifier.SERIALIZER);
 		registerSerializer(Entity.SERIALIZER);
@@ -170,13 +372,940 @@ public class ExternalizationManager {
 	public static <T> T readExternal(DataInput in, Serializer<T> serializer) 
 	throws IOException 
 	{
-		int type= in.readInt();
+		int type= readType(in);
+		if (type == VERSIONED_FORMAT_MARKER)
+			return readExternal(new CompactInput(in), serializer);
 		if (type == 0)
 			return null;
 		if (type != serializer.typeCode()) 
 			throw new IOException("Unexpected type code.  Expected "+serializer.typeCode()+", read "+type+".\nPossibly corrupted data.");
 		return serializer.readExternal(in);
 	}
+	
+	/**
+	 * Writes the number of elements in a collection, or some other value 
+	 * that is never negative.
+	 */
+	public static void writeCount(DataOutput out, int count) 
+	throws IOException 
+	{
+		if (out instanceof CompactOutput) {
+			((CompactOutput)out).writeVarInt(count);
+		}
+		else
+			out.writeInt(count);
+	}
+	public static int readCount(DataInput in) 
+	throws IOException 
+	{
+		if (in instanceof CompactInput) 
+			return ((CompactInput)in).readVarInt();
+		return in.readInt();
+	}
+	
+	public static void writeInteger(DataOutput out, int value) 
+	throws IOException 
+	{
+		if (out instanceof CompactOutput) {
+			((CompactOutput)out).writeVarInt((value << 1) ^ (value >> 31));
+		}
+		else
+			out.writeInt(value);
+	}
+	public static int readInteger(DataInput in) 
+	throws IOException 
+	{
+		if (in instanceof CompactInput) {
+			int value= ((CompactInput)in).readVarInt();
+			return (value >>> 1) ^ -(value & 1);
+		}
+		return in.readInt();
+	}
+	
+	public static void writeLong(DataOutput out, long value) 
+	throws IOException 
+	{
+		if (out instanceof CompactOutput) {
+			((CompactOutput)out).writeVarLong((value << 1) ^ (value >> 63));
+		}
+		else
+			out.writeLong(value);
+	}
+	public static long readLong(DataInput in) 
+	throws IOException 
+	{
+		if (in instanceof CompactInput) {
+			long value= ((CompactInput)in).readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+		return in.readLong();
+	}
+	
+	public static void writeString(DataOutput out, String value) 
+	throws IOException 
+	{
+		if (out instanceof CompactOutput) {
+			((CompactOutput)out).writeString(value);
+		}
+		else
+			out.writeUTF(value);
+	}
+	public static String readString(DataInput in) 
+	throws IOException 
+	{
+		if (in instanceof CompactInput) 
+			return ((CompactInput)in).readString();
+		return in.readUTF();
+	}
+	
+	/**
+	 * In the versioned format an identifier is written as its parent 
+	 * identifier followed by its name, so identifiers that share ancestors 
+	 * only write the shared ancestors once.
+	 * In the original format an identifier is written as its complete path 
+	 * and may not be null.   
+	 */
+	public static void writeIdentifier(DataOutput out, Identifier identifier) 
+	throws IOException 
+	{
+		if (out instanceof CompactOutput) {
+			((CompactOutput)out).writeIdentifier(identifier);
+		}
+		else
+			out.writeUTF(identifier.toString());
+	}
+	public static Identifier readIdentifier(DataInput in) 
+	throws IOException 
+	{
+		if (in instanceof CompactInput) 
+			return ((CompactInput)in).readIdentifier();
+		return Identifier.create(in.readUTF());
+	}
+	
+	/**
+	 * Writes a list of identifiers.
+	 * Since version 2 of the versioned format the list is front coded, 
+	 * see EncodedIdentifierList, and an unmodified EncodedIdentifierList is 
+	 * written by copying its bytes.
+	 * Lists are written most compactly when sorted.
+	 * The identifiers may not be null.   
+	 */
+	public static void writeIdentifiers(DataOutput out, List<Identifier> identifiers) 
+	throws IOException 
+	{
+		writeCount(out, identifiers.size());
+		if (out instanceof CompactOutput) {
+			if (identifiers.isEmpty())
+				return;
+			CompactOutput compactOutput= (CompactOutput)out;
+			if (identifiers instanceof EncodedIdentifierList) {
+				EncodedIdentifierList list= (EncodedIdentifierList)identifiers;
+				compactOutput.writeVarInt(list.getLength());
+				compactOutput.write(list.getBytes(), list.getOffset(), list.getLength());
+			}
+			else {
+				byte[] bytes= EncodedIdentifierList.encode(identifiers);
+				compactOutput.writeVarInt(bytes.length);
+				compactOutput.write(bytes);
+			}
+		}
+		else {
+			for (Identifier identifier: identifiers)
+				writeIdentifier(out, identifier);
+		}
+	}
+	
+	/**
+	 * Reads a list written by writeIdentifiers.
+	 * The returned list may not be modified. 
+	 * Since version 2 of the versioned format an EncodedIdentifierList is 
+	 * returned, so identifiers are not created until they are used.
+	 */
+	public static List<Identifier> readIdentifiers(DataInput in) 
+	throws IOException 
+	{
+		int size= readCount(in);
+		if (size == 0)
+			return Collections.emptyList();
+		if (2 <= getFormatVersion(in)) 
+			return ((CompactInput)in).readIdentifiers(size);
+		Identifier[] identifiers= new Identifier[size];
+		for (int i= 0; i < size; i++)
+			identifiers[i]= readIdentifier(in);
+		return Collections.unmodifiableList(Arrays.asList(identifiers));
+	}
+	
+	/**
+	 * Writes an object so that it can be decoded later than the rest of 
+	 * the object being written. 
+	 * Since version 3 of the versioned format the object is written as a 
+	 * dependent frame, that is, the length of the object followed by the 
+	 * object, and readFrame returns the frame without decoding it.
+	 * The dictionaries of a dependent frame begin with the entries that 
+	 * were in the dictionaries of the enclosing object when the frame was 
+	 * written, so the object should be written after the strings and 
+	 * identifiers that it shares with the enclosing object. 
+	 * In earlier formats the object is written with writeExternal.
+	 */
+	public static void writeFrame(DataOutput out, Object object)
+	throws IOException
+	{
+		object= EncodedFrame.decode(object);
+		if (!(out instanceof CompactOutput)) {
+			writeExternal(out, object);
+			return;
+		}
+		CompactOutput compactOutput= (CompactOutput)out;
+		CompactOutput frame= compactOutput.beginFrame(true);
+		try {
+			writeExternal(frame, object);
+			compactOutput.endFrame(frame);
+		}
+		finally {
+			compactOutput.releaseFrame(frame);
+		}
+	}
+	
+	/**
+	 * Reads an object written by writeFrame(DataOutput, Object).
+	 * @return an EncodedFrame if the object was written as a frame, 
+	 * 		otherwise the object.
+	 * 		Use EncodedFrame.decode to get the object from the returned value.  
+	 */
+	public static Object readFrame(DataInput in)
+	throws IOException
+	{
+		if (getFormatVersion(in) < 3)
+			return readExternal(in);
+		return ((CompactInput)in).readFrame(true);
+	}
+	
+	/**
+	 * Reads an object written by writeFrame(DataOutput, Object) like 
+	 * readFrame(DataInput), but decodes the object right away if its type 
+	 * code is one of the given type codes.
+	 * The object is decoded in place, so the serializers of the given types 
+	 * must not refer to the dictionaries of the versioned format, like the 
+	 * serializers of numbers, booleans and dates.
+	 * @return the object if it was decoded, otherwise an EncodedFrame 
+	 */
+	public static Object readFrame(DataInput in, int[] decodedTypes)
+	throws IOException
+	{
+		if (getFormatVersion(in) < 3)
+			return readExternal(in);
+		return ((CompactInput)in).readFrame(decodedTypes);
+	}
+	
+	/**
+	 * Writes the fields of an object with the given serializer.
+	 * Since version 3 of the versioned format the fields are written as an 
+	 * independent frame, that is, with dictionaries of their own, so an 
+	 * unmodified frame can be written again by copying its bytes, see 
+	 * copyFrame.
+	 */
+	public static <T> void writeFrame(DataOutput out, T object, Serializer<T> serializer)
+	throws IOException
+	{
+		if (!(out instanceof CompactOutput)) {
+			serializer.writeExternal(out, object);
+			return;
+		}
+		CompactOutput compactOutput= (CompactOutput)out;
+		CompactOutput frame= compactOutput.beginFrame(false);
+		try {
+			serializer.writeExternal(frame, object);
+			compactOutput.endFrame(frame);
+		}
+		finally {
+			compactOutput.releaseFrame(frame);
+		}
+	}
+	
+	/**
+	 * Reads the fields of an object written by 
+	 * writeFrame(DataOutput, Object, Serializer).
+	 * @return the frame that the fields were read from, or null if the 
+	 * 		fields were not written as a frame.
+	 */
+	public static <T> EncodedFrame readFrame(DataInput in, T object, Serializer<T> serializer)
+	throws IOException
+	{
+		if (getFormatVersion(in) < 3) {
+			serializer.readExternal(in, object);
+			return null;
+		}
+		EncodedFrame frame= ((CompactInput)in).readFrame(false);
+		serializer.readExternal(frame.open(), object);
+		return frame;
+	}
+	
+	/**
+	 * Writes an independent frame by copying its bytes. 
+	 * @return false if the frame cannot be copied to the given output, 
+	 * 		because the output is not in the same version of the versioned 
+	 * 		format as the frame or the frame is a dependent frame.  
+	 */
+	public static boolean copyFrame(DataOutput out, EncodedFrame frame)
+	throws IOException
+	{
+		if (!(out instanceof CompactOutput) || frame.getVersion() != FORMAT_VERSION || frame.getBase() != null)
+			return false;
+		CompactOutput compactOutput= (CompactOutput)out;
+		compactOutput.writeVarInt(frame.getLength());
+		compactOutput.write(frame.getBytes(), frame.getOffset(), frame.getLength());
+		return true;
+	}
+	
+	static DataInput openFrame(EncodedFrame frame) {
+		return new CompactInput(frame);
+	}
+	
+	/**
+	 * @return the version of the versioned format being written, 
+	 * 		or 0 if the original format is being written.
+	 */
+	public static int getFormatVersion(DataOutput out) {
+		return out instanceof CompactOutput ? FORMAT_VERSION : 0;
+	}
+	
+	/**
+	 * @return the version of the versioned format being read, 
+	 * 		or 0 if the original format is being read.
+	 */
+	public static int getFormatVersion(DataInput in) {
+		return in instanceof CompactInput ? ((CompactInput)in)._version : 0;
+	}
+	
+	private static void writeType(DataOutput out, int type) 
+	throws IOException 
+	{
+		if (out instanceof CompactOutput) {
+			((CompactOutput)out).writeType(type);
+		}
+		else
+			out.writeInt(type);
+	}
+	
+	/**
+	 * Reads the type code of the next object. 
+	 * If the data is in the versioned format then VERSIONED_FORMAT_MARKER is 
+	 * returned.
+	 */
+	private static int readType(DataInput in) 
+	throws IOException 
+	{
+		if (in instanceof CompactInput) 
+			return ((CompactInput)in).readType();
+		return in.readInt();
+	}
+	
+	/**
+	 * Writes the versioned format.
+	 * The object is written to a buffer and then copied to the output, 
+	 * preceded by its length, so that the reader can read the entire object 
+	 * at once. 
+	 * Keeps the dictionaries of the type codes, strings and identifiers 
+	 * written so far.
+	 * Unlike DataOutputStream no method is synchronized. 
+	 * Outputs are reused by the thread that created them, see acquireOutput.
+	 */
+	private static class CompactOutput implements DataOutput {
+		private byte[] _buffer= new byte[256];
+		private int _count= 0;
+		private HashMap<Integer, Integer> _types;
+		private HashMap<String, Integer> _strings;
+		private HashMap<Identifier, Integer> _identifiers;
+		private CompactOutput _frame; // reused for writing frames
+		
+		/*
+		 * A dependent frame refers to the dictionaries of its enclosing 
+		 * output, the indexes of its own entries follow the entries that were 
+		 * in the enclosing output's dictionaries when the frame was begun. 
+		 * An independent frame refers to FRAME_OUTPUT instead. 
+		 */
+		private CompactOutput _base;
+		private int _baseTypes;
+		private int _baseStrings;
+		private int _baseIdentifiers;
+		
+		/**
+		 * @return an empty output for writing a frame
+		 */
+		CompactOutput beginFrame(boolean dependent) {
+			CompactOutput frame= _frame;
+			if (frame == null) {
+				frame= new CompactOutput();
+			}
+			else
+				_frame= null;
+			CompactOutput base= dependent ? this : FRAME_OUTPUT;
+			frame._base= base;
+			frame._baseTypes= base.typeCount();
+			frame._baseStrings= base.stringCount();
+			frame._baseIdentifiers= base.identifierCount();
+			return frame;
+		}
+		void endFrame(CompactOutput frame) {
+			writeVarInt(frame._count);
+			write(frame._buffer, 0, frame._count);
+		}
+		void releaseFrame(CompactOutput frame) {
+			if (frame.reset())
+				_frame= frame;
+		}
+		
+		/**
+		 * Empties this output so that it may be reused.
+		 * @return false if this output is too large to be kept for reuse
+		 */
+		boolean reset() {
+			if (MAXIMUM_RETAINED_BUFFER_SIZE < _buffer.length)
+				return false;
+			_count= 0;
+			_types= reset(_types);
+			_strings= reset(_strings);
+			_identifiers= reset(_identifiers);
+			_base= null;
+			_baseTypes= _baseStrings= _baseIdentifiers= 0;
+			return true;
+		}
+		private static <K> HashMap<K, Integer> reset(HashMap<K, Integer> dictionary) {
+			if (dictionary == null || MAXIMUM_RETAINED_DICTIONARY_SIZE < dictionary.size())
+				return null;
+			dictionary.clear();
+			return dictionary;
+		}
+		
+		/**
+		 * @return the versioned format header followed by the length and 
+		 * 		contents of this output
+		 */
+		byte[] toVersionedBytes() {
+			int lengthSize= 1;
+			for (int length= _count; (length & ~0x7F) != 0; length>>>= 7)
+				lengthSize++;
+			byte[] bytes= new byte[5 + lengthSize + _count];
+			bytes[0]= (byte)(VERSIONED_FORMAT_MARKER >>> 24);
+			bytes[1]= (byte)(VERSIONED_FORMAT_MARKER >>> 16);
+			bytes[2]= (byte)(VERSIONED_FORMAT_MARKER >>> 8);
+			bytes[3]= (byte)VERSIONED_FORMAT_MARKER;
+			bytes[4]= (byte)FORMAT_VERSION;
+			int i= 5;
+			int length= _count;
+			while ((length & ~0x7F) != 0) {
+				bytes[i++]= (byte)((length & 0x7F) | 0x80);
+				length>>>= 7;
+			}
+			bytes[i++]= (byte)length;
+			System.arraycopy(_buffer, 0, bytes, i, _count);
+			return bytes;
+		}
+		
+		void writeTo(DataOutput out) throws IOException {
+			int length= _count;
+			while ((length & ~0x7F) != 0) {
+				out.write((length & 0x7F) | 0x80);
+				length>>>= 7;
+			}
+			out.write(length);
+			out.write(_buffer, 0, _count);
+		}
+		
+		private void ensureCapacity(int length) {
+			if (_buffer.length < _count + length) 
+				_buffer= Arrays.copyOf(_buffer, Math.max(_buffer.length * 2, _count + length));
+		}
+		
+		void writeVarInt(int value) {
+			ensureCapacity(5);
+			while ((value & ~0x7F) != 0) {
+				_buffer[_count++]= (byte)((value & 0x7F) | 0x80);
+				value>>>= 7;
+			}
+			_buffer[_count++]= (byte)value;
+		}
+		
+		void writeVarLong(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				_buffer[_count++]= (byte)((value & 0x7F) | 0x80);
+				value>>>= 7;
+			}
+			_buffer[_count++]= (byte)value;
+		}
+		
+		private int typeCount() {
+			return _baseTypes + (_types == null ? 0 : _types.size());
+		}
+		private int stringCount() {
+			return _baseStrings + (_strings == null ? 0 : _strings.size());
+		}
+		private int identifierCount() {
+			return _baseIdentifiers + (_identifiers == null ? 0 : _identifiers.size());
+		}
+		
+		/*
+		 * The dictionaries map values to their index, indexes of entries 
+		 * in the base dictionaries are less than the base counts. 
+		 */
+		private Integer typeIndex(int type) {
+			Integer index= _base == null ? null : _base.typeIndex(type);
+			if (index != null && index < _baseTypes)
+				return index;
+			return _types == null ? null : _types.get(type);
+		}
+		private Integer stringIndex(String value) {
+			Integer index= _base == null ? null : _base.stringIndex(value);
+			if (index != null && index < _baseStrings)
+				return index;
+			return _strings == null ? null : _strings.get(value);
+		}
+		private Integer identifierIndex(Identifier identifier) {
+			Integer index= _base == null ? null : _base.identifierIndex(identifier);
+			if (index != null && index < _baseIdentifiers)
+				return index;
+			return _identifiers == null ? null : _identifiers.get(identifier);
+		}
+		
+		/*
+		 * 0 for null, 1 followed by the type code for a new type, 
+		 * otherwise 2 + the dictionary index 
+		 */
+		void writeType(int type) {
+			if (type == 0) {
+				writeVarInt(0);
+				return;
+			}
+			Integer index= typeIndex(type);
+			if (index != null) {
+				writeVarInt(index + 2);
+				return;
+			}
+			if (_types == null)
+				_types= new HashMap<Integer, Integer>();
+			_types.put(type, typeCount());
+			writeVarInt(1);
+			writeInt(type);
+		}
+		
+		/*
+		 * 0 followed by the length and UTF-8 bytes for a new string, 
+		 * otherwise 1 + the dictionary index 
+		 */
+		void writeString(String value) {
+			Integer index= stringIndex(value);
+			if (index != null) {
+				writeVarInt(index + 1);
+				return;
+			}
+			if (_strings == null)
+				_strings= new HashMap<String, Integer>();
+			_strings.put(value, stringCount());
+			writeVarInt(0);
+			int length= value.length();
+			for (int i= 0; i < length; i++) {
+				if (0x7F < value.charAt(i)) {
+					byte[] bytes= value.getBytes(StandardCharsets.UTF_8);
+					writeVarInt(bytes.length);
+					write(bytes, 0, bytes.length);
+					return;
+				}
+			}
+			writeVarInt(length);
+			ensureCapacity(length);
+			for (int i= 0; i < length; i++) 
+				_buffer[_count++]= (byte)value.charAt(i);
+		}
+		
+		/*
+		 * 0 for null, 1 followed by the parent and name for a new identifier, 
+		 * otherwise 2 + the dictionary index 
+		 */
+		void writeIdentifier(Identifier identifier) {
+			if (identifier == null) {
+				writeVarInt(0);
+				return;
+			}
+			Integer index= identifierIndex(identifier);
+			if (index != null) {
+				writeVarInt(index + 2);
+				return;
+			}
+			writeVarInt(1);
+			writeIdentifier(identifier.getParent());
+			writeString(identifier.getName());
+			if (_identifiers == null)
+				_identifiers= new HashMap<Identifier, Integer>();
+			_identifiers.put(identifier, identifierCount());
+		}
+		
+		public void write(int b) {
+			ensureCapacity(1);
+			_buffer[_count++]= (byte)b;
+		}
+		public void write(byte[] b) {
+			write(b, 0, b.length);
+		}
+		public void write(byte[] b, int off, int len) {
+			ensureCapacity(len);
+			System.arraycopy(b, off, _buffer, _count, len);
+			_count+= len;
+		}
+		public void writeBoolean(boolean v) {
+			write(v ? 1 : 0);
+		}
+		public void writeByte(int v) {
+			write(v);
+		}
+		public void writeShort(int v) {
+			ensureCapacity(2);
+			_buffer[_count++]= (byte)(v >>> 8);
+			_buffer[_count++]= (byte)v;
+		}
+		public void writeChar(int v) {
+			writeShort(v);
+		}
+		public void writeInt(int v) {
+			ensureCapacity(4);
+			_buffer[_count++]= (byte)(v >>> 24);
+			_buffer[_count++]= (byte)(v >>> 16);
+			_buffer[_count++]= (byte)(v >>> 8);
+			_buffer[_count++]= (byte)v;
+		}
+		public void writeLong(long v) {
+			writeInt((int)(v >>> 32));
+			writeInt((int)v);
+		}
+		public void writeFloat(float v) {
+			writeInt(Float.floatToIntBits(v));
+		}
+		public void writeDouble(double v) {
+			writeLong(Double.doubleToLongBits(v));
+		}
+		public void writeBytes(String s) {
+			for (int i= 0, length= s.length(); i < length; i++)
+				write(s.charAt(i));
+		}
+		public void writeChars(String s) {
+			for (int i= 0, length= s.length(); i < length; i++)
+				writeChar(s.charAt(i));
+		}
+		public void writeUTF(String s) throws IOException {
+			ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+			new DataOutputStream(bytes).writeUTF(s);
+			write(bytes.toByteArray());
+		}
+	}
+	
+	/**
+	 * The dictionaries that dependent frames read from an input refer to.
+	 * Entries are only ever appended to dictionaries so the counts of 
+	 * entries are enough to capture the dictionaries.
+	 */
+	private static class FrameBase {
+		final CompactInput _input;
+		final int _types;
+		final int _strings;
+		final int _identifiers;
+		FrameBase(CompactInput input) {
+			_input= input;
+			_types= input._baseTypes + CompactInput.size(input._types);
+			_strings= input._baseStrings + CompactInput.size(input._strings);
+			_identifiers= input._baseIdentifiers + CompactInput.size(input._identifiers);
+		}
+		boolean isCurrent() {
+			return _types == _input._baseTypes + CompactInput.size(_input._types)
+					&& _strings == _input._baseStrings + CompactInput.size(_input._strings)
+					&& _identifiers == _input._baseIdentifiers + CompactInput.size(_input._identifiers);
+		}
+	}
+	
+	/**
+	 * Reads the versioned format from an array that contains an entire 
+	 * object, or from a frame.
+	 */
+	private static class CompactInput implements DataInput {
+		private final int _version;
+		private final byte[] _buffer;
+		private final int _limit;
+		private int _position= 0;
+		private ArrayList<Integer> _types;
+		private ArrayList<String> _strings;
+		private ArrayList<Identifier> _identifiers;
+		
+		/*
+		 * A dependent frame refers to the dictionaries of the input that it 
+		 * was read from, see CompactOutput.
+		 */
+		private final CompactInput _base;
+		private final int _baseTypes;
+		private final int _baseStrings;
+		private final int _baseIdentifiers;
+		private FrameBase _frameBase; 
+		
+		/**
+		 * Reads the format version, the length of an object and then the 
+		 * object's bytes from the given input.
+		 */
+		CompactInput(DataInput in) throws IOException {
+			_version= in.readUnsignedByte();
+			if (_version < 1 || FORMAT_VERSION < _version)
+				throw new IOException("Unsupported format version: "+_version+".\nPossibly corrupted data.");
+			int length= 0;
+			for (int shift= 0;; shift+= 7) {
+				if (32 <= shift)
+					throw new IOException("Malformed variable length integer.\nPossibly corrupted data.");
+				int b= in.readUnsignedByte();
+				length|= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			_buffer= new byte[length];
+			_limit= length;
+			in.readFully(_buffer);
+			_base= null;
+			_baseTypes= _baseStrings= _baseIdentifiers= 0;
+		}
+		
+		/**
+		 * Reads a frame, see ExternalizationManager.writeFrame
+		 */
+		CompactInput(EncodedFrame frame) {
+			_version= frame.getVersion();
+			_buffer= frame.getBytes();
+			_position= frame.getOffset();
+			_limit= frame.getOffset() + frame.getLength();
+			FrameBase base= (FrameBase)frame.getBase();
+			if (base != null) {
+				_base= base._input;
+				_baseTypes= base._types;
+				_baseStrings= base._strings;
+				_baseIdentifiers= base._identifiers;
+			}
+			else {
+				_base= FRAME_INPUT;
+				_baseTypes= FRAME_TYPES.length;
+				_baseStrings= FRAME_STRINGS.length;
+				_baseIdentifiers= 0;
+			}
+		}
+		
+		/**
+		 * The dictionaries that independent frames begin with
+		 */
+		private CompactInput() {
+			_version= FORMAT_VERSION;
+			_buffer= new byte[0];
+			_limit= 0;
+			_base= null;
+			_baseTypes= _baseStrings= _baseIdentifiers= 0;
+			_types= new ArrayList<Integer>(FRAME_TYPES.length);
+			for (int type: FRAME_TYPES)
+				_types.add(type);
+			_strings= new ArrayList<String>(FRAME_STRINGS.length);
+			for (String string: FRAME_STRINGS)
+				_strings.add(string);
+		}
+		
+		EncodedFrame readFrame(boolean dependent) throws IOException {
+			int length= readVarInt();
+			ensureAvailable(length);
+			FrameBase base= null;
+			if (dependent) {
+				base= _frameBase;
+				if (base == null || !base.isCurrent())
+					_frameBase= base= new FrameBase(this);
+			}
+			EncodedFrame frame= new EncodedFrame(_buffer, _position, length, _version, base);
+			_position+= length;
+			return frame;
+		}
+		
+		/**
+		 * Reads a dependent frame like readFrame(true), but decodes the 
+		 * object from this input if its type is one of the given types.
+		 */
+		Object readFrame(int[] decodedTypes) throws IOException {
+			int start= _position;
+			int length= readVarInt();
+			ensureAvailable(length);
+			int end= _position + length;
+			// a type that is new to the frame is not added to the dictionary, 
+			// the frame's dictionary is discarded along with the frame  
+			int index= readVarInt();
+			int type= index == 1 ? readInt() : 1 < index ? lookupType(index - 2) : 0;
+			for (int decodedType: decodedTypes) {
+				if (decodedType == type) {
+					Serializer<?> serializer= __serializers.get(type);
+					if (serializer == null)
+						break;
+					Object value= serializer.readExternal(this);
+					if (_position != end)
+						throw new IOException("Malformed frame.\nPossibly corrupted data.");
+					return value;
+				}
+			}
+			_position= start;
+			return readFrame(true);
+		}
+		
+		private static int size(ArrayList<?> dictionary) {
+			return dictionary == null ? 0 : dictionary.size();
+		}
+		
+		private int lookupType(int index) throws IOException {
+			if (index < _baseTypes)
+				return _base.lookupType(index);
+			return lookup(_types, index - _baseTypes);
+		}
+		private String lookupString(int index) throws IOException {
+			if (index < _baseStrings)
+				return _base.lookupString(index);
+			return lookup(_strings, index - _baseStrings);
+		}
+		private Identifier lookupIdentifier(int index) throws IOException {
+			if (index < _baseIdentifiers)
+				return _base.lookupIdentifier(index);
+			return lookup(_identifiers, index - _baseIdentifiers);
+		}
+		
+		int readVarInt() throws IOException {
+			int value= 0;
+			for (int shift= 0; shift < 32; shift+= 7) {
+				int b= readUnsignedByte();
+				value|= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed variable length integer.\nPossibly corrupted data.");
+		}
+		
+		long readVarLong() throws IOException {
+			long value= 0;
+			for (int shift= 0; shift < 64; shift+= 7) {
+				int b= readUnsignedByte();
+				value|= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed variable length integer.\nPossibly corrupted data.");
+		}
+		
+		int readType() throws IOException {
+			int index= readVarInt();
+			if (index == 0)
+				return 0;
+			if (_types == null)
+				_types= new ArrayList<Integer>();
+			if (index == 1) {
+				int type= readInt();
+				_types.add(type);
+				return type;
+			}
+			return lookupType(index - 2);
+		}
+		
+		String readString() throws IOException {
+			int index= readVarInt();
+			if (_strings == null)
+				_strings= new ArrayList<String>();
+			if (0 < index)
+				return lookupString(index - 1);
+			int length= readVarInt();
+			ensureAvailable(length);
+			String value= new String(_buffer, _position, length, StandardCharsets.UTF_8);
+			_position+= length;
+			_strings.add(value);
+			return value;
+		}
+		
+		Identifier readIdentifier() throws IOException {
+			int index= readVarInt();
+			if (index == 0)
+				return null;
+			if (_identifiers == null)
+				_identifiers= new ArrayList<Identifier>();
+			if (1 < index)
+				return lookupIdentifier(index - 2);
+			Identifier parent= readIdentifier();
+			Identifier identifier= Identifier.create(parent, readString());
+			_identifiers.add(identifier);
+			return identifier;
+		}
+		
+		EncodedIdentifierList readIdentifiers(int size) throws IOException {
+			int length= readVarInt();
+			ensureAvailable(length);
+			EncodedIdentifierList identifiers= new EncodedIdentifierList(_buffer, _position, length, size);
+			_position+= length;
+			return identifiers;
+		}
+		
+		private static <T> T lookup(ArrayList<T> dictionary, int index) throws IOException {
+			if (dictionary == null || dictionary.size() <= index)
+				throw new IOException("Invalid dictionary index: "+index+".\nPossibly corrupted data.");
+			return dictionary.get(index);
+		}
+		
+		private void ensureAvailable(int length) throws IOException {
+			if (length < 0 || _limit - _position < length)
+				throw new EOFException();
+		}
+		
+		public void readFully(byte[] b) throws IOException {
+			readFully(b, 0, b.length);
+		}
+		public void readFully(byte[] b, int off, int len) throws IOException {
+			ensureAvailable(len);
+			System.arraycopy(_buffer, _position, b, off, len);
+			_position+= len;
+		}
+		public int skipBytes(int n) {
+			int skipped= Math.max(0, Math.min(n, _limit - _position));
+			_position+= skipped;
+			return skipped;
+		}
+		public boolean readBoolean() throws IOException {
+			return readUnsignedByte() != 0;
+		}
+		public byte readByte() throws IOException {
+			return (byte)readUnsignedByte();
+		}
+		public int readUnsignedByte() throws IOException {
+			if (_limit <= _position)
+				throw new EOFException();
+			return _buffer[_position++] & 0xFF;
+		}
+		public short readShort() throws IOException {
+			return (short)readUnsignedShort();
+		}
+		public int readUnsignedShort() throws IOException {
+			ensureAvailable(2);
+			return ((_buffer[_position++] & 0xFF) << 8) | (_buffer[_position++] & 0xFF);
+		}
+		public char readChar() throws IOException {
+			return (char)readUnsignedShort();
+		}
+		public int readInt() throws IOException {
+			ensureAvailable(4);
+			return ((_buffer[_position++] & 0xFF) << 24) | ((_buffer[_position++] & 0xFF) << 16) 
+					| ((_buffer[_position++] & 0xFF) << 8) | (_buffer[_position++] & 0xFF);
+		}
+		public long readLong() throws IOException {
+			return ((long)readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+		}
+		public float readFloat() throws IOException {
+			return Float.intBitsToFloat(readInt());
+		}
+		public double readDouble() throws IOException {
+			return Double.longBitsToDouble(readLong());
+		}
+		public String readLine() {
+			throw new UnsupportedOperationException();
+		}
+		public String readUTF() throws IOException {
+			return DataInputStream.readUTF(this);
+		}
+	}
 }
-
-
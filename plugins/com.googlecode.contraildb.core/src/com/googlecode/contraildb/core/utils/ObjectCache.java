@@ -0,0 +1,540 @@
+package com.googlecode.contraildb.core.utils;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.googlecode.contraildb.core.Identifier;
+
+
+
+/**
+ * A cache of objects indexed by Identifier that is limited by the total
+ * weight of the cached objects instead of by the number of objects.
+ * The weight of an object is supplied by the client when the object is
+ * stored, ObjectStorage uses the length of an object's serialized form.
+ *
+ * Objects are admitted and evicted using the W-TinyLFU policy...
+ * 	...new objects enter a small LRU 'window' that holds about 1% of the
+ * 		cache's weight.
+ * 	...objects pushed out of the window are only admitted to the main cache
+ * 		if they have been used more often than the object that would be
+ * 		evicted to make room for them.
+ * 		Usage frequencies are estimated with a compact count-min sketch that
+ * 		remembers objects that are no longer cached and that is periodically
+ * 		aged so that old popularity fades.
+ * 	...the main cache is a segmented LRU; objects used a second time move
+ * 		from the 'probation' segment to the 'protected' segment, which holds
+ * 		80% of the main cache.
+ * Thus a large scan of objects that are used only once will pass through
+ * the window without flushing frequently used objects, like the upper nodes
+ * of an index, from the main cache.
+ *
+ * Is thread-safe.
+ * Lookups go straight to a concurrent map and never take a lock.
+ * A hit is recorded in one of several striped, lossy buffers and the 
+ * recorded hits are applied to the eviction policy in batches by whichever 
+ * thread first finds a buffer full and the policy lock free.
+ * Stores and deletes update the policy while holding the policy lock.
+ *
+ * @author Ted Stockwell
+ *
+ * @param T  the types of Objects stored in this container
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class ObjectCache<T> {
+
+	public static final long DEFAULT_MAXIMUM_WEIGHT= 32L * 1024 * 1024;
+
+	private static final int WINDOW= 0;
+	private static final int PROBATION= 1;
+	private static final int PROTECTED= 2;
+	private static final int REMOVED= -1;
+	
+	private static final int READ_BUFFER_COUNT= 
+		Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+
+	/*
+	 * Other than _value, entry fields are only used while holding the policy lock 
+	 */
+	private static class Entry<X> {
+		Identifier _identifier;
+		volatile X _value;
+		int _weight;
+		int _queue;
+		Entry<X> _prev;
+		Entry<X> _next;
+	}
+
+	/**
+	 * A doubly linked list of entries, least recently used first.
+	 */
+	private static class Queue<X> {
+		Entry<X> _first;
+		Entry<X> _last;
+		long _weight;
+
+		void add(Entry<X> entry) {
+			entry._prev= _last;
+			entry._next= null;
+			if (_last == null) {
+				_first= entry;
+			}
+			else
+				_last._next= entry;
+			_last= entry;
+			_weight+= entry._weight;
+		}
+
+		void remove(Entry<X> entry) {
+			if (entry._prev == null) {
+				_first= entry._next;
+			}
+			else
+				entry._prev._next= entry._next;
+			if (entry._next == null) {
+				_last= entry._prev;
+			}
+			else
+				entry._next._prev= entry._prev;
+			entry._prev= entry._next= null;
+			_weight-= entry._weight;
+		}
+
+		void clear() {
+			_first= _last= null;
+			_weight= 0;
+		}
+	}
+
+	/**
+	 * A bounded buffer of entries that have been read.
+	 * Any number of threads may add entries, entries are only drained while 
+	 * holding the policy lock.
+	 * When the buffer is full new entries are dropped, losing a few hits 
+	 * only makes the recorded usage slightly less accurate.
+	 */
+	private static class ReadBuffer<X> {
+		static final int SIZE= 16;
+		final AtomicReferenceArray<Entry<X>> _buffer= new AtomicReferenceArray<Entry<X>>(SIZE);
+		final AtomicLong _writes= new AtomicLong();
+		volatile long _reads;
+
+		/**
+		 * @return true if the buffer should be drained
+		 */
+		boolean offer(Entry<X> entry) {
+			long writes= _writes.get();
+			long pending= writes - _reads;
+			if (SIZE <= pending)
+				return true;
+			if (_writes.compareAndSet(writes, writes + 1))
+				_buffer.lazySet((int)(writes & (SIZE - 1)), entry);
+			return SIZE / 2 <= pending;
+		}
+		
+		Entry<X> poll() {
+			long reads= _reads;
+			int index= (int)(reads & (SIZE - 1));
+			Entry<X> entry= _buffer.get(index);
+			if (entry != null) {
+				_buffer.lazySet(index, null);
+				_reads= reads + 1;
+			}
+			return entry;
+		}
+	}
+
+	private final ConcurrentHashMap<Identifier, Entry<T>> _entries= new ConcurrentHashMap<Identifier, Entry<T>>();
+	private final ReadBuffer<T>[] _readBuffers= new ReadBuffer[READ_BUFFER_COUNT];
+	private final ReentrantLock _lock= new ReentrantLock();
+	private final LongAdder _hits= new LongAdder();
+	private final LongAdder _misses= new LongAdder();
+	private final Queue<T>[] _queues= new Queue[] { new Queue<T>(), new Queue<T>(), new Queue<T>() };
+	private final FrequencySketch _sketch= new FrequencySketch();
+	private long _maximumWeight;
+	private long _windowMaximum;
+	private long _protectedMaximum;
+
+	public ObjectCache() {
+		this(DEFAULT_MAXIMUM_WEIGHT);
+	}
+
+	/**
+	 * @param maximumWeight
+	 * 		the maximum total weight of the cached objects
+	 */
+	public ObjectCache(long maximumWeight) {
+		for (int i= 0; i < _readBuffers.length; i++)
+			_readBuffers[i]= new ReadBuffer<T>();
+		setMaximumWeight(maximumWeight);
+	}
+
+	public void setMaximumWeight(long maximumWeight) {
+		if (maximumWeight < 0)
+			throw new IllegalArgumentException("The maximum weight may not be negative: "+maximumWeight);
+		_lock.lock();
+		try {
+			_maximumWeight= maximumWeight;
+			_windowMaximum= Math.max(1, maximumWeight / 100);
+			_protectedMaximum= (maximumWeight - _windowMaximum) * 80 / 100;
+			evict();
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+	public long getMaximumWeight() {
+		_lock.lock();
+		try {
+			return _maximumWeight;
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the total weight of the cached objects
+	 */
+	public long getWeight() {
+		_lock.lock();
+		try {
+			return weight();
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	public int size() {
+		return _entries.size();
+	}
+	
+	/**
+	 * @return the number of fetches that found a cached object
+	 */
+	public long getHitCount() {
+		return _hits.sum();
+	}
+	/**
+	 * @return the number of fetches that did not find a cached object
+	 */
+	public long getMissCount() {
+		return _misses.sum();
+	}
+
+	public T fetch(Identifier identifier) {
+		Entry<T> entry= _entries.get(identifier);
+		if (entry == null) {
+			_misses.increment();
+			return null;
+		}
+		_hits.increment();
+		T value= entry._value;
+		ReadBuffer<T> buffer= _readBuffers[stripe()];
+		if (buffer.offer(entry) && _lock.tryLock()) {
+			try {
+				drainReadBuffers();
+			}
+			finally {
+				_lock.unlock();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Caches the given object.
+	 * An object that weighs more than the maximum weight of the cache is not cached.
+	 *
+	 * @param weight
+	 * 		the approximate memory cost of the object
+	 */
+	public void store(Identifier identifier, T value, int weight) {
+		if (weight < 0)
+			throw new IllegalArgumentException("The weight may not be negative: "+weight);
+		_lock.lock();
+		try {
+			drainReadBuffers();
+			if (_maximumWeight < weight) {
+				remove(identifier);
+				return;
+			}
+			_sketch.increment(identifier);
+			Entry<T> entry= _entries.get(identifier);
+			if (entry == null) {
+				entry= new Entry<T>();
+				entry._identifier= identifier;
+				entry._value= value;
+				entry._weight= weight;
+				entry._queue= WINDOW;
+				_entries.put(identifier, entry);
+				_queues[WINDOW].add(entry);
+				_sketch.ensureCapacity(_entries.size(), _entries.keySet());
+			}
+			else {
+				entry._value= value;
+				reweigh(entry, weight);
+				touch(entry);
+			}
+			evict();
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Changes the weight of a cached object, for instance when the weight of
+	 * an object is not known until some time after it has been stored.
+	 * Nothing is changed if the given object is no longer cached.
+	 */
+	public void setWeight(Identifier identifier, T value, int weight) {
+		_lock.lock();
+		try {
+			Entry<T> entry= _entries.get(identifier);
+			if (entry == null || entry._value != value)
+				return;
+			if (_maximumWeight < weight) {
+				remove(identifier);
+				return;
+			}
+			reweigh(entry, weight);
+			evict();
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	public void delete(Identifier identifier) {
+		_lock.lock();
+		try {
+			remove(identifier);
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	public void clear() {
+		_lock.lock();
+		try {
+			drainReadBuffers();
+			for (Entry<T> entry: _entries.values())
+				entry._queue= REMOVED;
+			_entries.clear();
+			for (Queue<T> queue: _queues)
+				queue.clear();
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+	
+	private int stripe() {
+		int h= (int)Thread.currentThread().getId() * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & (READ_BUFFER_COUNT - 1);
+	}
+	
+	/**
+	 * Applies recorded hits to the eviction policy.
+	 * Must be called while holding the policy lock. 
+	 */
+	private void drainReadBuffers() {
+		for (ReadBuffer<T> buffer: _readBuffers) {
+			Entry<T> entry;
+			while ((entry= buffer.poll()) != null) {
+				if (entry._queue != REMOVED) {
+					_sketch.increment(entry._identifier);
+					touch(entry);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Must be called while holding the policy lock. 
+	 */
+	private void remove(Identifier identifier) {
+		Entry<T> entry= _entries.remove(identifier);
+		if (entry != null) {
+			_queues[entry._queue].remove(entry);
+			entry._queue= REMOVED;
+		}
+	}
+	
+	private long weight() {
+		return _queues[WINDOW]._weight + _queues[PROBATION]._weight + _queues[PROTECTED]._weight;
+	}
+
+	private void reweigh(Entry<T> entry, int weight) {
+		_queues[entry._queue]._weight+= weight - entry._weight;
+		entry._weight= weight;
+	}
+
+	/**
+	 * Records a use of an entry
+	 */
+	private void touch(Entry<T> entry) {
+		Queue<T> queue= _queues[entry._queue];
+		queue.remove(entry);
+		if (entry._queue == PROBATION) {
+			// promote, demoting the least recently used protected entries if necessary
+			entry._queue= PROTECTED;
+			Queue<T> protectedQueue= _queues[PROTECTED];
+			protectedQueue.add(entry);
+			while (_protectedMaximum < protectedQueue._weight && protectedQueue._first != entry) {
+				Entry<T> demoted= protectedQueue._first;
+				protectedQueue.remove(demoted);
+				demoted._queue= PROBATION;
+				_queues[PROBATION].add(demoted);
+			}
+		}
+		else
+			queue.add(entry);
+	}
+
+	/**
+	 * Moves entries that overflow the window into the probation segment and
+	 * then, while the cache is too heavy, evicts either the least recently
+	 * used entry of the main cache or the next candidate from the window, 
+	 * whichever has been used less often.
+	 * A candidate that wins stays the candidate until the cache is light 
+	 * enough, so a heavy candidate must win against every entry that is 
+	 * evicted to make room for it.
+	 */
+	private void evict() {
+		Queue<T> window= _queues[WINDOW];
+		Queue<T> probation= _queues[PROBATION];
+		Entry<T> candidate= null;
+		while (_windowMaximum < window._weight && window._first != null) {
+			Entry<T> entry= window._first;
+			window.remove(entry);
+			entry._queue= PROBATION;
+			probation.add(entry);
+			if (candidate == null)
+				candidate= entry;
+		}
+
+		while (_maximumWeight < weight()) {
+			// candidates are at the end of the probation segment, the victim 
+			// is the least recently used entry of the main cache that is not a candidate
+			Entry<T> victim= probation._first;
+			if (victim == candidate)
+				victim= _queues[PROTECTED]._first;
+			if (victim == null)
+				victim= window._first;
+
+			if (candidate == null) {
+				remove(victim._identifier);
+			}
+			else if (victim != null && _sketch.frequency(victim._identifier) < _sketch.frequency(candidate._identifier)) {
+				remove(victim._identifier);
+			}
+			else {
+				Entry<T> evicted= candidate;
+				candidate= candidate._next;
+				remove(evicted._identifier);
+			}
+		}
+	}
+
+
+	/**
+	 * Estimates how often keys have been used with a count-min sketch of
+	 * four bit counters.
+	 * When the number of recorded uses reaches ten times the size of the
+	 * table all counters are halved, so that the sketch reflects recent usage.
+	 */
+	private static class FrequencySketch {
+		private static final long[] SEEDS= new long[] {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+		};
+		private static final int MAXIMUM_TABLE_LENGTH= 1 << 24;
+
+		private long[] _table= new long[16];
+		private int _mask= _table.length * 16 - 1;
+		private int _additions;
+
+		/**
+		 * Grows the sketch when it is too small for the given number of keys.
+		 * The frequencies of the given keys are carried over to the new table, 
+		 * all other recorded uses are forgotten.
+		 */
+		void ensureCapacity(int keyCount, Collection<?> keys) {
+			if (keyCount <= _table.length || MAXIMUM_TABLE_LENGTH <= _table.length)
+				return;
+			int[] frequencies= new int[keys.size()];
+			int k= 0;
+			for (Object key: keys)
+				frequencies[k++]= frequency(key);
+			
+			int length= Math.min(MAXIMUM_TABLE_LENGTH, Integer.highestOneBit(keyCount - 1) << 1);
+			_table= new long[length];
+			_mask= length * 16 - 1;
+			_additions= 0;
+			
+			k= 0;
+			for (Object key: keys) {
+				for (int count= frequencies[k++]; 0 < count--;)
+					add(key);
+			}
+		}
+
+		int frequency(Object key) {
+			int hash= spread(key.hashCode());
+			int frequency= 15;
+			for (int i= 0; i < SEEDS.length; i++) {
+				int index= indexOf(hash, i);
+				int count= (int)((_table[index >>> 4] >>> ((index & 15) << 2)) & 15L);
+				frequency= Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void increment(Object key) {
+			if (add(key) && _table.length * 10 <= ++_additions)
+				reset();
+		}
+		
+		private boolean add(Object key) {
+			int hash= spread(key.hashCode());
+			boolean added= false;
+			for (int i= 0; i < SEEDS.length; i++) {
+				int index= indexOf(hash, i);
+				int shift= (index & 15) << 2;
+				if (((_table[index >>> 4] >>> shift) & 15L) < 15) {
+					_table[index >>> 4]+= 1L << shift;
+					added= true;
+				}
+			}
+			return added;
+		}
+
+		private void reset() {
+			for (int i= 0; i < _table.length; i++)
+				_table[i]= (_table[i] >>> 1) & 0x7777777777777777L;
+			_additions/= 2;
+		}
+
+		private int indexOf(int hash, int i) {
+			long h= (hash + SEEDS[i]) * SEEDS[i];
+			h+= h >>> 32;
+			return (int)h & _mask;
+		}
+
+		private static int spread(int h) {
+			h^= h >>> 17;
+			h*= 0xed5ad4bb;
+			h^= h >>> 11;
+			h*= 0xac4c1f35;
+			h^= h >>> 15;
+			return h;
+		}
+	}
+}
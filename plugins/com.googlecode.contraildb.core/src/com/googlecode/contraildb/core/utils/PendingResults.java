@@ -0,0 +1,88 @@
+package com.googlecode.contraildb.core.utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.IResultHandler;
+import com.googlecode.contraildb.core.async.Handler;
+import com.googlecode.contraildb.core.async.Result;
+import com.googlecode.contraildb.core.async.TaskUtils;
+
+/**
+ * A utility class for cancelling work that its owner has abandoned.
+ * A PendingResults remembers the results added to it until they complete.
+ * The cancel method cancels all the results that are still pending and
+ * any results that are added afterwards.
+ *
+ * Results are observed with Result.addObserver, so remembering a result
+ * does not keep it from being cancelled when its consumers release it.
+ *
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class PendingResults {
+
+	private HashSet<IResult> _pending= new HashSet<IResult>();
+	private boolean _cancelled= false;
+
+	/**
+	 * Remembers the given result until it completes.
+	 * If this object has been cancelled then the given result is cancelled
+	 * and a cancelled result is returned.
+	 * @return the given result
+	 */
+	public <T> IResult<T> add(final IResult<T> result) {
+		synchronized (this) {
+			if (!_cancelled) {
+				if (result.isDone())
+					return result;
+				_pending.add(result);
+			}
+		}
+		if (isCancelled()) {
+			result.cancel();
+			return TaskUtils.CANCELLED;
+		}
+
+		IResultHandler forget= new IResultHandler() {
+			public void onComplete(IResult r) {
+				synchronized (PendingResults.this) {
+					_pending.remove(result);
+				}
+			}
+		};
+		if (result instanceof Result) {
+			((Result)result).addObserver(forget);
+		}
+		else if (result instanceof Handler) {
+			((Handler)result).toResult().addObserver(forget);
+		}
+		else
+			result.addHandler(forget);
+		return result;
+	}
+
+	/**
+	 * Cancels all pending results.
+	 */
+	public void cancel() {
+		ArrayList<IResult> pending;
+		synchronized (this) {
+			_cancelled= true;
+			pending= new ArrayList<IResult>(_pending);
+			_pending.clear();
+		}
+		for (IResult result: pending)
+			result.cancel();
+	}
+
+	synchronized public boolean isCancelled() {
+		return _cancelled;
+	}
+
+	synchronized public int size() {
+		return _pending.size();
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.googlecode.contraildb.core.utils;
+
+import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
+
+
+
+/**
+ * An immutable table of serializers indexed by type code.
+ * 
+ * The table is a perfect hash, a multiplier is chosen so that every 
+ * registered type code maps to its own slot, so a lookup is a multiply, a 
+ * shift and a single comparison. 
+ * Registering two serializers with the same type code is an error instead 
+ * of silently replacing the first serializer.
+ * The check is made when a serializer is registered, at runtime, there is 
+ * no compile time check of type codes.
+ * 
+ * ExternalizationManager keeps the registry of all serializers, separate 
+ * instances may be created for testing.
+ * 
+ * @author Ted Stockwell
+ */
+public final class SerializerRegistry {
+	
+	private static final int MAXIMUM_ATTEMPTS= 10000;
+	
+	private final Serializer<?>[] _serializers;
+	private final int[] _typeCodes; // zero marks an empty slot 
+	private final int _multiplier;
+	private final int _shift;
+	private final int _size;
+	
+	public SerializerRegistry() {
+		_serializers= new Serializer<?>[2];
+		_typeCodes= new int[2];
+		_multiplier= 1;
+		_shift= 31;
+		_size= 0;
+	}
+	
+	private SerializerRegistry(Serializer<?>[] serializers, int[] typeCodes, int multiplier, int shift, int size) {
+		_serializers= serializers;
+		_typeCodes= typeCodes;
+		_multiplier= multiplier;
+		_shift= shift;
+		_size= size;
+	}
+	
+	/**
+	 * @return the serializer for the given type code, or null if none is registered
+	 */
+	public Serializer<?> get(int typeCode) {
+		int i= (typeCode * _multiplier) >>> _shift;
+		if (_typeCodes[i] != typeCode)
+			return null;
+		return _serializers[i];
+	}
+	
+	public int size() {
+		return _size;
+	}
+	
+	/**
+	 * @return a new registry that contains the serializers in this registry 
+	 * 		and the given serializer.
+	 * @throws IllegalArgumentException if a different serializer with the 
+	 * 		same type code is already registered.  
+	 */
+	public SerializerRegistry add(Serializer<?> serializer) {
+		int typeCode= serializer.typeCode();
+		Serializer<?> registered= get(typeCode);
+		if (registered == serializer)
+			return this;
+		if (registered != null)
+			throw new IllegalArgumentException("Type code "+typeCode+" of serializer "+serializer+
+					" is already used by serializer "+registered);
+		
+		Serializer<?>[] serializers= new Serializer<?>[_size + 1];
+		int count= 0;
+		for (Serializer<?> s: _serializers)
+			if (s != null)
+				serializers[count++]= s;
+		serializers[count]= serializer;
+		
+		// try multipliers until one maps every type code to its own slot, 
+		// grow the table when no multiplier is found 
+		int bits= 1;
+		while ((1 << bits) < serializers.length * 2)
+			bits++;
+		int multiplier= 0x9E3779B9; 
+		for (;; bits++) {
+			int shift= 32 - bits;
+			for (int attempt= 0; attempt < MAXIMUM_ATTEMPTS; attempt++) {
+				multiplier= multiplier * 0x5DEECE66 + 11 | 1;
+				SerializerRegistry registry= build(serializers, multiplier, shift, 1 << bits);
+				if (registry != null)
+					return registry;
+			}
+		}
+	}
+	
+	private static SerializerRegistry build(Serializer<?>[] serializers, int multiplier, int shift, int tableSize) {
+		Serializer<?>[] table= new Serializer<?>[tableSize];
+		int[] typeCodes= new int[tableSize];
+		for (Serializer<?> serializer: serializers) {
+			int typeCode= serializer.typeCode();
+			int i= (typeCode * multiplier) >>> shift;
+			if (table[i] != null)
+				return null;
+			table[i]= serializer;
+			typeCodes[i]= typeCode;
+		}
+		return new SerializerRegistry(table, typeCodes, multiplier, shift, serializers.length);
+	}
+}
@@ -1,21 +1,20 @@
 package com.googlecode.contraildb.core.utils.tasks;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.List;
 
 import com.googlecode.contraildb.core.IResult;
-import com.googlecode.contraildb.core.utils.ClosableByteArrayOutputStream;
 import com.googlecode.contraildb.core.utils.ContrailTask;
-import com.googlecode.contraildb.core.utils.Logging;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
 
 
 /**
  * Persists the given object to a byte array using the Contrail externalization 
  * scheme.
+ * The object is written to a buffer that is reused by the worker thread, 
+ * the returned array is the only allocation and has exactly the written size.
  */
 public class ExternalizationTask extends ContrailTask<byte[]>  {
-	ClosableByteArrayOutputStream _byteStream= new ClosableByteArrayOutputStream();
 	Object _item;
 	public ExternalizationTask(Object item) {
 		_item= item;
@@ -32,21 +31,16 @@ public class ExternalizationTask extends ContrailTask<byte[]>  {
 	}
 	
 	protected byte[] run() throws IOException {
-		ObjectOutputStream outputStream= new ObjectOutputStream(_byteStream);
-		outputStream.writeObject(_item);
-		outputStream.flush();
-		return _byteStream.toByteArray();
+		return ExternalizationManager.toVersionedBytes(_item);
 	}
 	
 	public byte[] get() {
 		return super.get();
 	}
 	
-	protected void stop() {
-		/*
-		 * If/when this task is canceled we close the byte stream which causes 
-		 * the above call to ExternalizationManager.writeExternal to fail.
-		 */
-		try { _byteStream.close(); } catch (Throwable t) { Logging.warning(t); }
-	}
+	/*
+	 * A canceled task's result is discarded, so there is no need to interrupt 
+	 * a write that is in progress; the output buffer belongs to the worker 
+	 * thread and is not closed.
+	 */
 }
@@ -42,12 +42,15 @@ import com.google.apphosting.api.ApiProxy;
 import com.googlecode.contraildb.core.ContrailQuery;
 import com.googlecode.contraildb.core.ContrailQuery.SortDirection;
 import com.googlecode.contraildb.core.ContrailServiceFactory;
+import com.googlecode.contraildb.core.FetchOptions;
 import com.googlecode.contraildb.core.IContrailService;
 import com.googlecode.contraildb.core.IContrailService.Mode;
 import com.googlecode.contraildb.core.IContrailSession;
 import com.googlecode.contraildb.core.IPreparedQuery;
+import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.Identifier;
 import com.googlecode.contraildb.core.Item;
+import com.googlecode.contraildb.core.async.IAsyncerator;
 import com.googlecode.contraildb.core.storage.provider.IStorageProvider;
 import com.googlecode.contraildb.core.storage.provider.RamStorageProvider;
 
@@ -226,6 +229,55 @@ public class BasicContrailTests extends TestCase {
 		transaction.commit();
 	}
 
+	public void testPrefetch() throws Exception {
+		ArrayList<Identifier> ids= new ArrayList<Identifier>();
+		IContrailSession transaction= _datastore.beginSession(Mode.READWRITE).get();
+		for (int i= 0; i < 20; i++) {
+			Item item= new Item(Identifier.create("prefetch/"+i));
+			item.setProperty("NUMBER", i);
+			transaction.store(item);
+			ids.add(item.getId());
+		}
+		transaction.commit();
+		
+		transaction= _datastore.beginSession(Mode.READWRITE).get();
+		{
+			transaction.prefetch(ids).get();
+			
+			// items changed after being prefetched must not be fetched from the prefetched revision
+			transaction.delete(ids.get(0)).get();
+			assertNull(transaction.fetch(ids.get(0)).get());
+			
+			for (int i= 1; i < ids.size(); i++) {
+				Item f= transaction.fetch(ids.get(i)).get();
+				assertNotNull(f);
+				assertEquals(i, f.getProperty("NUMBER"));
+			}
+		}
+		transaction.close();
+		
+		// a new service starts with empty caches, so the prefetch must read 
+		// the items from storage and the fetches that follow must not
+		_datastore.close().get();
+		CountingStorageProvider provider= new CountingStorageProvider(_storageProvider);
+		_datastore= ContrailServiceFactory.getContrailService(provider).get();
+		transaction= _datastore.beginSession(Mode.READONLY).get();
+		{
+			int fetchCount= provider.getFetchCount();
+			transaction.prefetch(ids).get();
+			assertTrue(fetchCount + ids.size() <= provider.getFetchCount());
+			
+			fetchCount= provider.getFetchCount();
+			for (int i= 0; i < ids.size(); i++) {
+				Item f= transaction.fetch(ids.get(i)).get();
+				assertNotNull(f);
+				assertEquals(i, f.getProperty("NUMBER"));
+			}
+			assertEquals(fetchCount, provider.getFetchCount());
+		}
+		transaction.close();
+	}
+
 	public void testBootstrap() throws Exception {
 		
 		IContrailSession transaction= _datastore.beginSession(Mode.READWRITE).get();
@@ -566,5 +618,84 @@ public class BasicContrailTests extends TestCase {
 		T4.close();
 	}
 	
+	/**
+	 * Creates a service over the given provider that holds a few people.
+	 * The cancellation tests use their own data so that they do not 
+	 * depend on the fixtures.
+	 */
+	private IContrailService createPeople(IStorageProvider provider, int count) throws Exception {
+		IContrailService service= ContrailServiceFactory.getContrailService(provider).get();
+		IContrailSession session= service.beginSession(Mode.READWRITE).get();
+		ArrayList<Item> people= new ArrayList<Item>();
+		for (int i= 0; i < count; i++) {
+			Item person= new Item("person-"+i);
+			person.setProperty(TYPE, PERSON);
+			people.add(person);
+		}
+		session.store(people).get();
+		session.commit().get();
+		return service;
+	}
+	
+	/**
+	 * Closing a session should cancel the reads that are still pending, 
+	 * including the reads started by queries.
+	 */
+	public void testCloseCancelsReads() throws Exception {
+		RamStorageProvider storage= new RamStorageProvider();
+		createPeople(storage, 4).close().get();
+		
+		// a new service, so that nothing has been cached yet
+		CountingStorageProvider provider= new CountingStorageProvider(storage);
+		IContrailService service= ContrailServiceFactory.getContrailService(provider).get();
+		IContrailSession session= service.beginSession(Mode.READONLY).get();
+		IPreparedQuery<Item> query= session.<Item>prepare(new ContrailQuery().where(eq(TYPE, PERSON))).get();
+		
+		provider.hold();
+		IResult<Item> fetch= session.fetch(Identifier.create("person-0"));
+		IResult<List<Item>> list= query.list();
+		assertFalse(fetch.isDone());
+		assertFalse(list.isDone());
+		IResult<Void> close= session.close();
+		provider.release();
+		close.get();
+		
+		fetch.join();
+		assertTrue(fetch.isCancelled());
+		list.join();
+		assertTrue(list.isCancelled());
+		service.close().get();
+	}
+	
+	/**
+	 * Query iterators obtained from a session should be cancelled when the 
+	 * session is closed, and a cancelled iterator should only return 
+	 * cancelled results.
+	 */
+	public void testCloseCancelsQueryIterator() throws Exception {
+		IContrailService service= createPeople(new RamStorageProvider(), 4);
+		IContrailSession session= service.beginSession(Mode.READONLY).get();
+		IPreparedQuery<Item> query= session.<Item>prepare(new ContrailQuery().where(eq(TYPE, PERSON))).get();
+		IAsyncerator<Item> iterator= query.iterate(FetchOptions.withPrefetchSize(1)).get();
+		assertTrue(iterator.hasNext().get());
+		assertEquals(PERSON, iterator.next().get().getProperty(TYPE));
+		
+		IAsyncerator<Item> cancelled= query.iterate(FetchOptions.withPrefetchSize(1)).get();
+		cancelled.cancel();
+		IResult<Boolean> hasNext= cancelled.hasNext();
+		hasNext.join();
+		assertTrue(hasNext.isCancelled());
+		IResult<Item> next= cancelled.next();
+		next.join();
+		assertTrue(next.isCancelled());
+		
+		// the first iterator is still running 
+		assertTrue(iterator.hasNext().get());
+		session.close().get();
+		hasNext= iterator.hasNext();
+		hasNext.join();
+		assertTrue(hasNext.isCancelled());
+		service.close().get();
+	}
 	
 }
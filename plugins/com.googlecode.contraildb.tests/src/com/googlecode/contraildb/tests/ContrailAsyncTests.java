@@ -17,16 +17,33 @@
  ******************************************************************************/
 package com.googlecode.contraildb.tests;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
 import junit.framework.TestCase;
 
 import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.async.Handler;
 import com.googlecode.contraildb.core.async.If;
+import com.googlecode.contraildb.core.async.Result;
+import com.googlecode.contraildb.core.async.ResultHandler;
 import com.googlecode.contraildb.core.async.Series;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.async.TryFinally;
 import com.googlecode.contraildb.core.async.WhileHandler;
 import com.googlecode.contraildb.core.async.init;
 import com.googlecode.contraildb.core.async.seq;
+import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.utils.ContrailAction;
+import com.googlecode.contraildb.core.utils.ContrailTask;
+import com.googlecode.contraildb.core.utils.ContrailTask.Operation;
+import com.googlecode.contraildb.core.utils.ContrailTaskTracker;
+import com.googlecode.contraildb.core.utils.ContrailTaskTracing;
+import com.googlecode.contraildb.core.utils.ContrailTaskTracing.Phase;
 
 
 /**
@@ -129,4 +146,456 @@ public class ContrailAsyncTests extends TestCase {
 		handler.join();
 		assertEquals("truefalse", result[0]);
 	}
+	
+	/**
+	 * Test the adapters between IResult and CompletionStage
+	 */
+	public void testCompletionStage() throws Exception {
+		
+		// IResult -> CompletionStage
+		Result<String> result= new Result<String>();
+		CompletionStage<String> stage= TaskUtils.toCompletionStage(result);
+		result.success("hello");
+		assertEquals("hello", stage.toCompletableFuture().get());
+		
+		// CompletionStage -> IResult
+		CompletableFuture<String> future= new CompletableFuture<String>();
+		IResult<String> converted= TaskUtils.fromCompletionStage(future);
+		future.complete("world");
+		assertEquals("world", converted.get());
+		
+		// adapting an adapter returns the original
+		assertSame(future, TaskUtils.toCompletionStage(converted));
+		assertSame(result, TaskUtils.fromCompletionStage(stage));
+		
+		// errors are propagated
+		future= new CompletableFuture<String>();
+		converted= TaskUtils.fromCompletionStage(future);
+		future.completeExceptionally(new RuntimeException("some error"));
+		converted.join();
+		assertFalse(converted.isSuccess());
+		assertEquals("some error", converted.getError().getMessage());
+		
+		// cancelling the stage cancels the result
+		result= new Result<String>();
+		TaskUtils.toCompletionStage(result).toCompletableFuture().cancel(false);
+		assertTrue(result.isCancelled());
+		
+		// cancelling the result cancels the stage
+		future= new CompletableFuture<String>();
+		TaskUtils.cancel(TaskUtils.fromCompletionStage(future));
+		assertTrue(future.isCancelled());
+		
+		// the stage is completed on the thread that completes the result
+		final Result<String> source= new Result<String>();
+		CompletableFuture<Thread> dependent= TaskUtils.toCompletionStage(source).thenApply(s -> Thread.currentThread()).toCompletableFuture();
+		Thread completer= new Thread() {
+			public void run() {
+				source.success("hello");
+			}
+		};
+		completer.start();
+		completer.join();
+		assertTrue(dependent.isDone());
+		assertSame(completer, dependent.get());
+		
+		// clients may complete the stage, that does not affect the result
+		result= new Result<String>();
+		stage= TaskUtils.toCompletionStage(result);
+		assertTrue(stage.toCompletableFuture().complete("goodbye"));
+		assertFalse(result.isDone());
+		result.success("hello");
+		assertEquals("goodbye", stage.toCompletableFuture().get());
+	}
+	
+	/**
+	 * Traced tasks should be reported to tracing listeners, and recorded in 
+	 * the task histograms, once for each phase
+	 */
+	public void testTaskTracing() throws Exception {
+		int sampleRate= ContrailTaskTracing.getSampleRate();
+		final ArrayList<ContrailTask<?>> tasks= new ArrayList<ContrailTask<?>>();
+		final ArrayList<long[]> events= new ArrayList<long[]>();
+		ContrailTaskTracing.Listener listener= new ContrailTaskTracing.Listener() {
+			public void traced(ContrailTask<?> task, long dependencyWait, long queueWait, long run) {
+				// tasks from other tests may also be traced, they use other operations
+				if (task.getOperation() != Operation.LIST)
+					return;
+				synchronized (events) {
+					tasks.add(task);
+					events.add(new long[] { dependencyWait, queueWait, run });
+				}
+			}
+		};
+		ContrailTaskTracing.setSampleRate(1);
+		ContrailTaskTracing.addListener(listener);
+		try {
+			ContrailTaskTracing.clear();
+			ContrailAction first= new ContrailAction(Identifier.create("tracing"), Operation.LIST) {
+				protected void action() throws Exception {
+					Thread.sleep(20);
+				}
+			};
+			ContrailAction second= new ContrailAction(Identifier.create("tracing"), Operation.LIST) {
+				protected void action() throws Exception {
+					Thread.sleep(10);
+				}
+			};
+			first.submit();
+			second.submit(Arrays.<ContrailTask<?>>asList(first)).join();
+			
+			// tasks are reported before their results are completed
+			synchronized (events) {
+				assertEquals(Arrays.asList(first, second), tasks);
+				// the first task does not wait for other tasks
+				long[] event= events.get(0);
+				assertTrue(0 <= event[0] && event[0] < 10000000L);
+				assertTrue(0 <= event[1]);
+				assertTrue(20000000L <= event[2]);
+				
+				// the second task waits while the first task runs
+				event= events.get(1);
+				assertTrue(10000000L <= event[0]);
+				assertTrue(0 <= event[1]);
+				assertTrue(10000000L <= event[2]);
+			}
+			for (Phase phase: Phase.values()) 
+				assertEquals(2, ContrailTaskTracing.getHistogram(Operation.LIST, phase).getCount());
+			assertTrue(20000000L <= ContrailTaskTracing.getHistogram(Operation.LIST, Phase.RUN).getMaxNanos());
+		}
+		finally {
+			ContrailTaskTracing.removeListener(listener);
+			ContrailTaskTracing.setSampleRate(sampleRate);
+		}
+	}
+	
+	/**
+	 * Tasks submitted to a tracker session beyond its limit should be held 
+	 * until capacity frees up.
+	 */
+	public void testAdmissionControl() {
+		final Object lock= new Object();
+		final boolean[] released= new boolean[] { false };
+		ContrailTaskTracker.Session session= new ContrailTaskTracker().beginSession();
+		session.setLimit(1);
+		
+		IResult<Void> first= session.submit(new ContrailAction(Identifier.create("a"), Operation.READ) {
+			protected void action() throws Exception {
+				synchronized (lock) {
+					while (!released[0])
+						lock.wait();
+				}
+			}
+		});
+		IResult<Void> second= session.submit(new ContrailAction(Identifier.create("b"), Operation.READ) {
+			protected void action() throws Exception { }
+		});
+		
+		// the second task should be held until the first completes
+		assertEquals(1, session.getInFlightCount());
+		assertEquals(1, session.getWaitingCount());
+		IResult<Void> capacity= session.capacity();
+		assertFalse(capacity.isDone());
+		
+		synchronized (lock) {
+			released[0]= true;
+			lock.notifyAll();
+		}
+		first.join();
+		second.join();
+		capacity.join();
+		assertEquals(0, session.getWaitingCount());
+	}
+	
+	/**
+	 * Tasks submitted to a session that already holds the maximum number of 
+	 * waiting tasks should be rejected.
+	 */
+	public void testAdmissionQueueLimit() {
+		final Object lock= new Object();
+		final boolean[] released= new boolean[] { false };
+		int queueLimit= ContrailTaskTracker.getQueueLimit();
+		ContrailTaskTracker.setQueueLimit(1);
+		try {
+			ContrailTaskTracker.Session session= new ContrailTaskTracker().beginSession();
+			session.setLimit(1);
+			
+			IResult<Void> first= session.submit(new ContrailAction(Identifier.create("a"), Operation.READ) {
+				protected void action() throws Exception {
+					synchronized (lock) {
+						while (!released[0])
+							lock.wait();
+					}
+				}
+			});
+			IResult<Void> second= session.submit(new ContrailAction(Identifier.create("b"), Operation.READ) {
+				protected void action() throws Exception { }
+			});
+			IResult<Void> third= session.submit(new ContrailAction(Identifier.create("c"), Operation.READ) {
+				protected void action() throws Exception { }
+			});
+			
+			third.join();
+			assertFalse(third.isSuccess());
+			assertTrue(third.getError() instanceof RejectedExecutionException);
+			assertEquals(1, session.getWaitingCount());
+			
+			synchronized (lock) {
+				released[0]= true;
+				lock.notifyAll();
+			}
+			first.join();
+			second.join();
+			assertTrue(second.isSuccess());
+		}
+		finally {
+			ContrailTaskTracker.setQueueLimit(queueLimit);
+		}
+	}
+	
+	/**
+	 * A client waiting for session capacity should not be released while 
+	 * there is no global capacity.
+	 */
+	public void testAdmissionGlobalCapacity() throws Exception {
+		int globalLimit= ContrailTaskTracker.getGlobalLimit();
+		CountDownLatch release= new CountDownLatch(1);
+		ContrailTaskTracker tracker= new ContrailTaskTracker();
+		try {
+			ContrailTaskTracker.setGlobalLimit(ContrailTaskTracker.getGlobalInFlightCount() + 2);
+			ContrailTaskTracker.Session limited= tracker.beginSession();
+			limited.setLimit(1);
+			ContrailTaskTracker.Session unlimited= tracker.beginSession();
+			
+			CountDownLatch firstReleased= new CountDownLatch(1);
+			IResult<Void> first= limited.submit(blockingAction("a", new CountDownLatch(1), firstReleased));
+			IResult<Void> capacity= limited.capacity();
+			unlimited.submit(blockingAction("b", new CountDownLatch(1), release));
+			CountDownLatch thirdStarted= new CountDownLatch(1);
+			IResult<Void> third= unlimited.submit(blockingAction("c", thirdStarted, release));
+			assertEquals(1, unlimited.getWaitingCount());
+			
+			// completing the first task admits the third task, which takes 
+			// the global capacity that the first task freed 
+			firstReleased.countDown();
+			first.join();
+			thirdStarted.await();
+			assertEquals(0, unlimited.getWaitingCount()); // waits for the admission pass to finish
+			assertFalse(capacity.isDone());
+			
+			release.countDown();
+			third.join();
+			capacity.join();
+		}
+		finally {
+			release.countDown();
+			ContrailTaskTracker.setGlobalLimit(globalLimit);
+		}
+	}
+	
+	/**
+	 * A task that is cancelled while it is held should never be submitted.
+	 */
+	public void testAdmissionCancelled() throws Exception {
+		CountDownLatch release= new CountDownLatch(1);
+		ContrailTaskTracker.Session session= new ContrailTaskTracker().beginSession();
+		session.setLimit(1);
+		
+		IResult<Void> first= session.submit(blockingAction("a", new CountDownLatch(1), release));
+		ContrailAction second= new ContrailAction(Identifier.create("b"), Operation.READ) {
+			protected void action() throws Exception { }
+		};
+		IResult<Void> cancelled= session.submit(second);
+		IResult<Void> third= session.submit(new ContrailAction(Identifier.create("c"), Operation.READ) {
+			protected void action() throws Exception { }
+		});
+		assertEquals(2, session.getWaitingCount());
+		TaskUtils.cancel(cancelled);
+		assertTrue(cancelled.isCancelled());
+		
+		release.countDown();
+		first.join();
+		third.join();
+		assertFalse(second.isSubmitted());
+		assertEquals(0, session.getWaitingCount());
+	}
+	
+	/**
+	 * Returns an action that signals the given started latch and then waits 
+	 * for the given release latch.
+	 */
+	private static ContrailAction blockingAction(String id, final CountDownLatch started, final CountDownLatch release) {
+		return new ContrailAction(Identifier.create(id), Operation.READ) {
+			protected void action() throws Exception {
+				started.countDown();
+				release.await();
+			}
+		};
+	}
+	
+	/**
+	 * A task that calls setResult should complete when the given result 
+	 * completes, not when its run method returns.
+	 */
+	public void testSetResult() {
+		final Result<String> later= new Result<String>();
+		IResult<String> result= new ContrailTask<String>() {
+			protected String run() {
+				setResult(later);
+				return "too soon";
+			}
+		}.submit();
+		TaskUtils.delay(50).join();
+		assertFalse(result.isDone());
+		later.success("later");
+		assertEquals("later", result.get());
+	}
+	
+	/**
+	 * A delayed result should complete after the delay, and a cancelled 
+	 * delay should never complete successfully.
+	 */
+	public void testDelay() {
+		long start= System.currentTimeMillis();
+		TaskUtils.delay(50).join();
+		assertTrue(50 <= System.currentTimeMillis() - start);
+		
+		IResult<Void> delay= TaskUtils.delay(10000);
+		TaskUtils.cancel(delay);
+		delay.join();
+		assertTrue(delay.isCancelled());
+	}
+	
+	/**
+	 * Cancelling a handler should cancel the results that only it is 
+	 * waiting on and stop the underlying tasks.
+	 */
+	public void testCancellation() {
+		final Object lock= new Object();
+		final boolean[] stopped= new boolean[] { false };
+		final boolean[] ran= new boolean[] { false };
+		IResult<Void> blocking= new ContrailAction() {
+			protected void action() throws Exception {
+				synchronized (lock) {
+					while (!stopped[0])
+						lock.wait();
+				}
+			}
+			protected void stop() {
+				synchronized (lock) {
+					stopped[0]= true;
+					lock.notifyAll();
+				}
+			}
+		}.submit();
+		IResult<Void> delay= TaskUtils.delay(10000);
+		Handler handler= new Handler(blocking, delay) {
+			protected IResult onSuccess() throws Exception {
+				ran[0]= true;
+				return TaskUtils.DONE;
+			}
+		};
+		
+		handler.cancel();
+		blocking.join();
+		delay.join();
+		assertTrue(handler.isCancelled());
+		assertTrue(blocking.isCancelled());
+		assertTrue(delay.isCancelled());
+		assertTrue(stopped[0]);
+		assertFalse(ran[0]);
+	}
+	
+	/**
+	 * A result completed from another result should complete in the same 
+	 * way as the other result.
+	 */
+	public void testCompleteFromResult() {
+		Result<String> source= new Result<String>();
+		Result<String> copy= new Result<String>();
+		copy.complete(source);
+		source.success("done");
+		assertEquals("done", copy.get());
+		
+		Result<String> failed= new Result<String>();
+		Result<String> failedCopy= new Result<String>();
+		failedCopy.complete(failed);
+		failed.error(new IllegalStateException("failed"));
+		failedCopy.join();
+		assertFalse(failedCopy.isSuccess());
+		assertTrue(failedCopy.getError() instanceof IllegalStateException);
+		
+		Result<String> cancelled= new Result<String>();
+		Result<String> cancelledCopy= new Result<String>();
+		cancelledCopy.complete(cancelled);
+		cancelled.cancel();
+		cancelledCopy.join();
+		assertTrue(cancelledCopy.isCancelled());
+	}
+	
+	/**
+	 * A result shared by several consumers should only be cancelled once 
+	 * none of its consumers are waiting on it.
+	 */
+	public void testCancelSharedResult() {
+		final Result<String> shared= new Result<String>();
+		final String[] seen= new String[1];
+		Handler first= new Handler(shared) {
+			protected IResult onSuccess() throws Exception {
+				return TaskUtils.DONE;
+			}
+		};
+		Handler second= new Handler(shared) {
+			protected IResult onSuccess() throws Exception {
+				seen[0]= shared.getResult();
+				return TaskUtils.DONE;
+			}
+		};
+		first.cancel();
+		assertTrue(first.isCancelled());
+		assertFalse(shared.isDone());
+		shared.success("shared");
+		second.join();
+		assertEquals("shared", seen[0]);
+		
+		Result<String> input= new Result<String>();
+		IResult<Void> delay= TaskUtils.delay(10000);
+		IResult<Void> a= TaskUtils.combineResults(input, delay);
+		IResult<Void> b= TaskUtils.combineResults(input, new Result<Void>());
+		TaskUtils.cancel(a);
+		delay.join();
+		assertTrue(delay.isCancelled());
+		assertFalse(input.isDone());
+		TaskUtils.cancel(b);
+		assertTrue(input.isCancelled());
+	}
+	
+	/**
+	 * A ResultHandler should complete with the result returned from its 
+	 * onSuccess method, once that result completes, so that the nested 
+	 * chain is cancelled along with the handler.
+	 */
+	public void testResultHandler() {
+		final Result<String> inner= new Result<String>();
+		Result<Integer> input= new Result<Integer>();
+		IResult<String> outer= new ResultHandler<Integer>(input) {
+			protected IResult onSuccess(Integer value) {
+				return inner;
+			}
+		};
+		input.success(1);
+		assertFalse(outer.isDone());
+		inner.success("inner");
+		assertEquals("inner", outer.get());
+		
+		final Result<String> nested= new Result<String>();
+		IResult<String> cancelled= new ResultHandler<Integer>(TaskUtils.asResult(1)) {
+			protected IResult onSuccess(Integer value) {
+				return nested;
+			}
+		};
+		cancelled.cancel();
+		assertTrue(cancelled.isCancelled());
+		assertTrue(nested.isCancelled());
+	}
 }
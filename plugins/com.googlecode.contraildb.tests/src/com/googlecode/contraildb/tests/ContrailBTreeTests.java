@@ -22,6 +22,7 @@ import java.io.PrintStream;
 
 import junit.framework.TestCase;
 
+import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.async.IAsyncerator;
 import com.googlecode.contraildb.core.impl.btree.KeyValueSet;
 import com.googlecode.contraildb.core.impl.btree.IOrderedSetCursor.Direction;
@@ -244,4 +245,39 @@ public class ContrailBTreeTests extends TestCase {
 			tree.insert(I, I);
 		}
 	}
+	
+	/**
+	 * Cancelling a cursor should cancel the page fetch in progress and 
+	 * every navigation after it.
+	 */
+	public void testCursorCancel() throws Exception {
+		CountingStorageProvider provider= new CountingStorageProvider(new RamStorageProvider());
+		IEntityStorage.Session storage= new EntityStorage(provider).connect().get();
+		KeyValueSet<Integer, Integer> tree= KeyValueSet.<Integer, Integer>create(storage, 4).get();
+		for (int i= 0; i < 20; i++)
+			tree.insert(i, i).get();
+		storage.flush().get();
+		
+		// a new storage session has to fetch the pages that a cursor visits
+		IEntityStorage.Session reader= new EntityStorage(provider).connect().get();
+		KeyValueSet<Integer, Integer> loaded= reader.<KeyValueSet<Integer, Integer>>fetch(tree.getId()).get();
+		IKeyValueCursor<Integer, Integer> cursor= loaded.cursor(Direction.FORWARD);
+		provider.hold();
+		IResult<Boolean> first= cursor.first();
+		assertFalse(first.isDone());
+		cursor.cancel();
+		provider.release();
+		first.join();
+		assertTrue(first.isCancelled());
+		IResult<Boolean> next= cursor.next();
+		next.join();
+		assertTrue(next.isCancelled());
+		
+		// cancelling a cursor does not affect other cursors over the tree 
+		IKeyValueCursor<Integer, Integer> expected= tree.cursor(Direction.FORWARD);
+		assertTrue(expected.first().get());
+		cursor= loaded.cursor(Direction.FORWARD);
+		assertTrue(cursor.first().get());
+		assertEquals(expected.keyValue().get(), cursor.keyValue().get());
+	}
 }
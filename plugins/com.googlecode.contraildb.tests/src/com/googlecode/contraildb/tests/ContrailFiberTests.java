@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.tests;
+
+import static com.googlecode.contraildb.core.async.ContrailFiber.await;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import kilim.Pausable;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.IResultHandler;
+import com.googlecode.contraildb.core.async.ContrailFiber;
+import com.googlecode.contraildb.core.async.Result;
+import com.googlecode.contraildb.core.async.TaskUtils;
+
+
+/**
+ * Tests ContrailFiber.
+ * 
+ * The fibers in this class must be woven by kilim before the tests are run, 
+ * see the fibers target in this plugin's build.xml.
+ * 
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class ContrailFiberTests extends TestCase {
+	
+	/**
+	 * Adds the values of the given results
+	 */
+	static class Adder extends ContrailFiber<Integer> {
+		final IResult<Integer>[] _values;
+		Adder(IResult<Integer>... values) {
+			_values= values;
+		}
+		protected Integer run() throws Pausable, Exception {
+			int sum= 0;
+			for (IResult<Integer> value: _values)
+				sum+= await(value);
+			return sum;
+		}
+	}
+	
+	/**
+	 * Waits for the given result and records that it has finished, however 
+	 * it finished
+	 */
+	static class Waiter extends ContrailFiber<Object> {
+		final IResult _awaited;
+		final CountDownLatch _finished= new CountDownLatch(1);
+		Waiter(IResult awaited) {
+			_awaited= awaited;
+		}
+		protected Object run() throws Pausable, Exception {
+			try {
+				return await(_awaited);
+			}
+			finally {
+				_finished.countDown();
+			}
+		}
+	}
+	
+	/**
+	 * A result that counts the handlers added to it, so that a test can 
+	 * tell when a fiber is waiting on it 
+	 */
+	static class Awaited<V> extends Result<V> {
+		final CountDownLatch _handlers;
+		Awaited(int handlers) {
+			_handlers= new CountDownLatch(handlers);
+		}
+		synchronized public void addHandler(IResultHandler<V> handler) {
+			super.addHandler(handler);
+			_handlers.countDown();
+		}
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		// a fiber that has not been woven never completes  
+		for (Class<?> type: new Class<?>[] { ContrailFiber.class, Adder.class, Waiter.class }) {
+			try {
+				type.getField("$isWoven");
+			}
+			catch (NoSuchFieldException x) {
+				fail(type.getName()+" has not been woven by kilim");
+			}
+		}
+	}
+	
+	public void testAwait() throws Exception {
+		Result<Integer> pending= new Result<Integer>();
+		IResult<Integer> sum= new Adder(TaskUtils.asResult(1), pending, TaskUtils.asResult(3)).submit();
+		assertFalse(sum.isDone());
+		pending.success(2);
+		assertEquals(Integer.valueOf(6), sum.get());
+		
+		// results that are already complete do not pause the fiber
+		assertEquals(Integer.valueOf(3), new Adder(TaskUtils.asResult(1), TaskUtils.asResult(2)).submit().get());
+	}
+	
+	public void testAwaitError() throws Exception {
+		Result<Integer> failing= new Result<Integer>();
+		IResult<Integer> sum= new Adder(failing).submit();
+		IllegalStateException error= new IllegalStateException("expected");
+		failing.error(error);
+		sum.join();
+		assertFalse(sum.isSuccess());
+		assertSame(error, sum.getError());
+	}
+	
+	/**
+	 * Cancelling a fiber wakes it and cancels the result that it is waiting 
+	 * on when nothing else is waiting on that result.
+	 */
+	public void testCancel() throws Exception {
+		Awaited<Integer> pending= new Awaited<Integer>(1);
+		Waiter waiter= new Waiter(pending);
+		IResult result= waiter.submit();
+		assertTrue(pending._handlers.await(10, TimeUnit.SECONDS));
+		
+		TaskUtils.cancel(result);
+		assertTrue(waiter._finished.await(10, TimeUnit.SECONDS));
+		assertTrue(result.isCancelled());
+		assertTrue(pending.isCancelled());
+	}
+	
+	/**
+	 * Cancelling a fiber does not cancel a result that something else is 
+	 * also waiting on.
+	 */
+	public void testCancelSharedResult() throws Exception {
+		Awaited<Integer> shared= new Awaited<Integer>(2);
+		final CountDownLatch completed= new CountDownLatch(1);
+		shared.addHandler(new IResultHandler<Integer>() {
+			public void onComplete(IResult<Integer> result) {
+				completed.countDown();
+			}
+		});
+		Waiter waiter= new Waiter(shared);
+		IResult result= waiter.submit();
+		assertTrue(shared._handlers.await(10, TimeUnit.SECONDS));
+		
+		TaskUtils.cancel(result);
+		assertTrue(waiter._finished.await(10, TimeUnit.SECONDS));
+		assertTrue(result.isCancelled());
+		assertFalse(shared.isDone());
+		
+		shared.success(1);
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(1), shared.get());
+	}
+	
+	/**
+	 * Many fibers waiting at once do not tie up threads
+	 */
+	public void testManyFibers() throws Exception {
+		final int count= 10000;
+		List<Result<Integer>> values= new ArrayList<Result<Integer>>();
+		List<IResult<Integer>> sums= new ArrayList<IResult<Integer>>();
+		for (int i= 0; i < count; i++) {
+			Result<Integer> value= new Result<Integer>();
+			values.add(value);
+			sums.add(new Adder(value, TaskUtils.asResult(i)).submit());
+		}
+		for (int i= 0; i < count; i++)
+			values.get(i).success(i);
+		for (int i= 0; i < count; i++)
+			assertEquals(Integer.valueOf(i * 2), sums.get(i).get());
+	}
+}
@@ -22,7 +22,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -34,6 +36,7 @@ import com.google.apphosting.api.ApiProxy;
 import com.googlecode.contraildb.core.IContrailService.Mode;
 import com.googlecode.contraildb.core.IResult;
 import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.async.IAsyncerator;
 import com.googlecode.contraildb.core.async.TaskUtils;
 import com.googlecode.contraildb.core.storage.Entity;
 import com.googlecode.contraildb.core.storage.EntityStorage;
@@ -138,6 +141,281 @@ public class ContrailStorageTests extends TestCase {
 		}
 	}
 	
+	public void testAbsentObjectCache() throws Exception {
+		ObjectStorage objectStorage= new ObjectStorage(_rawStorage);
+		ObjectStorage.Session session= objectStorage.connect().get();
+		Identifier missing= Identifier.create("missing");
+		
+		// the first fetch goes to storage, the second does not 
+		assertNull(session.fetch(missing).get());
+		assertEquals(0, objectStorage.getAbsentHitCount());
+		assertNull(session.fetch(missing).get());
+		assertEquals(1, objectStorage.getAbsentHitCount());
+		
+		// storing the object invalidates the cached absence  
+		session.store(missing, "found").get();
+		assertEquals("found", session.fetch(missing).get());
+		session.close().get();
+		
+		// a new session with the same storage finds the object  
+		objectStorage.setCacheSize(0);
+		session= objectStorage.connect().get();
+		assertEquals("found", session.fetch(missing).get());
+		session.close().get();
+	}
+	
+	/**
+	 * Concurrent fetches of an object that is not cached should cause 
+	 * only one read from storage.
+	 */
+	public void testFetchCoalescing() throws Exception {
+		Identifier id= Identifier.create("coalesced-fetch");
+		ObjectStorage.Session writer= new ObjectStorage(_rawStorage).connect().get();
+		writer.store(id, "shared").get();
+		writer.flush().get();
+		writer.close().get();
+		
+		CountingStorageProvider provider= new CountingStorageProvider(_rawStorage);
+		ObjectStorage.Session session= new ObjectStorage(provider).connect().get();
+		provider.hold();
+		ArrayList<IResult<String>> fetches= new ArrayList<IResult<String>>();
+		for (int i= 0; i < 10; i++)
+			fetches.add(session.<String>fetch(id));
+		provider.release();
+		for (IResult<String> fetch: fetches)
+			assertEquals("shared", fetch.get());
+		assertEquals(1, provider.getFetchCount(id));
+		session.close().get();
+	}
+	
+	/**
+	 * With the object cache disabled, fetches should be answered from the 
+	 * second level cache of serialized objects instead of from storage, 
+	 * and stores should invalidate the second level cache. 
+	 */
+	public void testBytesCache() throws Exception {
+		Identifier id= Identifier.create("bytes-cached");
+		ObjectStorage.Session writer= new ObjectStorage(_rawStorage).connect().get();
+		writer.store(id, "version-1").get();
+		writer.flush().get();
+		writer.close().get();
+		
+		CountingStorageProvider provider= new CountingStorageProvider(_rawStorage);
+		ObjectStorage objectStorage= new ObjectStorage(provider);
+		objectStorage.setCacheSize(0);
+		objectStorage.setBytesCacheSize(1024 * 1024);
+		ObjectStorage.Session session= objectStorage.connect().get();
+		assertEquals("version-1", session.fetch(id).get());
+		assertEquals(1, provider.getFetchCount(id));
+		assertEquals("version-1", session.fetch(id).get());
+		assertEquals(1, provider.getFetchCount(id));
+		assertTrue(0 < objectStorage.getBytesCacheHitRate());
+		
+		// setting the same size keeps the cached contents
+		objectStorage.setBytesCacheSize(1024 * 1024);
+		assertEquals("version-1", session.fetch(id).get());
+		assertEquals(1, provider.getFetchCount(id));
+		
+		session.store(id, "version-2").get();
+		session.flush().get();
+		assertEquals("version-2", session.fetch(id).get());
+		session.close().get();
+	}
+	
+	public void testIterateChildren() throws Exception {
+		ObjectStorage.Session session= new ObjectStorage(_rawStorage).connect().get();
+		Identifier folder= Identifier.create("folder");
+		HashSet<Identifier> expected= new HashSet<Identifier>();
+		for (int i= 0; i < 100; i++) {
+			Identifier child= Identifier.create(folder, "child-"+i);
+			session.store(child, child).get();
+			expected.add(child);
+		}
+		
+		IAsyncerator<Map.Entry<Identifier, Identifier>> children= session.<Identifier>iterateChildren(folder, 4).get();
+		HashSet<Identifier> found= new HashSet<Identifier>();
+		while (children.hasNext().get()) {
+			Map.Entry<Identifier, Identifier> child= children.next().get();
+			assertEquals(child.getKey(), child.getValue());
+			assertTrue(found.add(child.getKey()));
+		}
+		assertEquals(expected, found);
+		
+		Map<Identifier, Identifier> fetched= session.<Identifier>fetchChildren(folder).get();
+		assertEquals(expected, fetched.keySet());
+		session.close().get();
+	}
+	
+	public void testIterateChildrenWindow() throws Exception {
+		ObjectStorage.Session session= new ObjectStorage(_rawStorage).connect().get();
+		Identifier folder= Identifier.create("window");
+		for (int i= 0; i < 20; i++) {
+			Identifier child= Identifier.create(folder, "child-"+i);
+			session.store(child, child).get();
+		}
+		session.flush().get();
+		session.close().get();
+		
+		// no more than a window's worth of children are fetched ahead of the consumer
+		CountingStorageProvider provider= new CountingStorageProvider(_rawStorage);
+		session= new ObjectStorage(provider).connect().get();
+		provider.hold();
+		IAsyncerator<Map.Entry<Identifier, Identifier>> children= session.<Identifier>iterateChildren(folder, 4).get();
+		assertEquals(4, provider.getFetchCount());
+		provider.release();
+		int consumed= 0;
+		while (children.hasNext().get()) {
+			children.next().get();
+			consumed++;
+			assertTrue(provider.getFetchCount() <= consumed + 4);
+		}
+		assertEquals(20, consumed);
+		assertEquals(20, provider.getFetchCount());
+		session.close().get();
+	}
+	
+	public void testIterateChildrenSkipsDeleted() throws Exception {
+		ObjectStorage.Session session= new ObjectStorage(_rawStorage).connect().get();
+		Identifier folder= Identifier.create("skipped");
+		HashSet<Identifier> expected= new HashSet<Identifier>();
+		for (int i= 0; i < 10; i++) {
+			Identifier child= Identifier.create(folder, "child-"+i);
+			session.store(child, child).get();
+			expected.add(child);
+		}
+		session.flush().get();
+		session.close().get();
+		
+		// delete a child that has been listed but not yet fetched
+		CountingStorageProvider provider= new CountingStorageProvider(_rawStorage);
+		session= new ObjectStorage(provider).connect().get();
+		provider.hold();
+		IAsyncerator<Map.Entry<Identifier, Identifier>> children= session.<Identifier>iterateChildren(folder, 2).get();
+		Identifier deleted= null;
+		for (Identifier child: expected) {
+			if (provider.getFetchCount(child) == 0) {
+				deleted= child;
+				break;
+			}
+		}
+		assertNotNull(deleted);
+		IStorageProvider.Session raw= _rawStorage.connect().get();
+		raw.delete(deleted).get();
+		raw.flush().get();
+		raw.close().get();
+		expected.remove(deleted);
+		provider.release();
+		
+		HashSet<Identifier> found= new HashSet<Identifier>();
+		while (children.hasNext().get()) {
+			Map.Entry<Identifier, Identifier> child= children.next().get();
+			assertTrue(found.add(child.getKey()));
+		}
+		assertEquals(expected, found);
+		assertEquals(1, provider.getFetchCount(deleted));
+		session.close().get();
+	}
+	
+	public void testWriteCoalescing() throws Exception {
+		ObjectStorage.Session session= new ObjectStorage(_rawStorage).connect().get();
+		IStorageProvider.Session raw= _rawStorage.connect().get();
+		Identifier folder= Identifier.create("coalesced");
+		Identifier id= Identifier.create(folder, "object");
+		
+		// stored objects are not written until the session is flushed 
+		for (int i= 0; i < 3; i++)
+			session.store(id, "version-"+i).get();
+		assertNull(raw.fetch(id).get());
+		assertEquals("version-2", session.fetch(id).get());
+		assertTrue(session.listChildren(folder).get().contains(id));
+		assertFalse(session.create(id, "created", 0).get());
+		
+		session.flush().get();
+		assertNotNull(raw.fetch(id).get());
+		session.close().get();
+		
+		session= new ObjectStorage(_rawStorage).connect().get();
+		assertEquals("version-2", session.fetch(id).get());
+		
+		// a stored object that is deleted before the flush is never written
+		Identifier deleted= Identifier.create(folder, "deleted");
+		session.store(deleted, "deleted").get();
+		session.delete(deleted).get();
+		session.flush().get();
+		assertNull(raw.fetch(deleted).get());
+		session.close().get();
+		raw.close().get();
+	}
+	
+	/**
+	 * Children that have been stored but not written yet are listed, 
+	 * once, along with the children that have been written.
+	 */
+	public void testStoredObjectWeight() throws Exception {
+		ObjectStorage storage= new ObjectStorage(_rawStorage);
+		ObjectStorage.Session session= storage.connect().get();
+		Identifier folder= Identifier.create("weighed");
+		for (int i= 0; i < 10; i++)
+			session.store(Identifier.create(folder, "object-"+i), "value-"+i).get();
+		
+		// stored objects are not counted until they are serialized, when they are written
+		assertEquals(0, storage.getCacheWeight());
+		session.flush().get();
+		long weight= storage.getCacheWeight();
+		assertTrue(0 < weight);
+		assertTrue(weight < 10 * 100);
+		session.close().get();
+	}
+	
+	public void testListChildren() throws Exception {
+		ObjectStorage.Session session= new ObjectStorage(_rawStorage).connect().get();
+		Identifier folder= Identifier.create("listed");
+		Identifier written= Identifier.create(folder, "written");
+		Identifier buffered= Identifier.create(folder, "buffered");
+		Identifier other= Identifier.create(Identifier.create("unlisted"), "other");
+		session.store(written, "written").get();
+		session.flush().get();
+		
+		session.store(written, "rewritten").get();
+		session.store(buffered, "buffered").get();
+		session.store(other, "other").get();
+		Collection<Identifier> children= session.listChildren(folder).get();
+		assertEquals(2, children.size());
+		assertTrue(children.contains(written));
+		assertTrue(children.contains(buffered));
+		session.close().get();
+	}
+	
+	/**
+	 * Objects stored since the last flush are written once each, in 
+	 * identifier order, when the session is flushed.
+	 */
+	public void testWriteDirty() throws Exception {
+		CountingStorageProvider provider= new CountingStorageProvider(_rawStorage);
+		ObjectStorage.Session session= new ObjectStorage(provider).connect().get();
+		Identifier folder= Identifier.create("dirty");
+		ArrayList<Identifier> expected= new ArrayList<Identifier>();
+		for (int i= 0; i < 20; i++) {
+			Identifier id= Identifier.create(folder, "object-"+((i * 7) % 20));
+			session.store(id, "first").get();
+			session.store(id, "second").get();
+			expected.add(id);
+		}
+		Collections.sort(expected);
+		assertTrue(provider.getStores().isEmpty());
+		
+		session.flush().get();
+		assertEquals(expected, provider.getStores());
+		session.flush().get();
+		assertEquals(expected, provider.getStores());
+		session.close().get();
+		
+		session= new ObjectStorage(_rawStorage).connect().get();
+		for (Identifier id: expected)
+			assertEquals("second", session.fetch(id).get());
+		session.close().get();
+	}
+	
 	public void testEntityStore() throws Exception {
 		
 		for (int i= 1; i <= 100; i++) {
@@ -266,6 +544,65 @@ public class ContrailStorageTests extends TestCase {
 		
 	}
 	
+	public void testPrefetchInvalidatedByWrite() throws Exception {
+		ArrayList<Identifier> ids= new ArrayList<Identifier>();
+		StorageSession session= _storage.beginSession(Mode.READWRITE).get();
+		for (int i= 0; i < 10; i++) {
+			Entity entity= new Entity("prefetch/"+i);
+			session.store(entity).get();
+			ids.add(entity.getId());
+		}
+		session.commit().get();
+		
+		Identifier absent= Identifier.create("prefetch/absent");
+		ArrayList<Identifier> prefetched= new ArrayList<Identifier>(ids);
+		prefetched.add(absent);
+		session= _storage.beginSession(Mode.READWRITE).get();
+		session.prefetch(prefetched).get();
+		
+		// items written after being prefetched must not be read from the prefetched revision
+		session.delete(ids.get(0)).get();
+		assertNull(session.fetch(ids.get(0)).get());
+		session.store(new Entity(absent)).get();
+		assertNotNull(session.fetch(absent).get());
+		
+		for (int i= 1; i < ids.size(); i++)
+			assertEquals(ids.get(i), session.fetch(ids.get(i)).get().getId());
+		session.close().get();
+	}
+	
+	public void testPrefetchEviction() throws Exception {
+		CountingStorageProvider provider= new CountingStorageProvider(new RamStorageProvider());
+		StorageSystem storage= StorageSystem.create(provider).get();
+		StorageSession session= storage.beginSession(Mode.READWRITE).get();
+		Entity oldest= new Entity("evicted/oldest");
+		Entity newest= new Entity("evicted/newest");
+		session.store(oldest).get();
+		session.store(newest).get();
+		session.commit().get();
+		
+		// prefetching more than MAXIMUM_PREFETCHED items discards the oldest
+		ArrayList<Identifier> ids= new ArrayList<Identifier>();
+		ids.add(oldest.getId());
+		for (int i= 0; i < StorageSession.MAXIMUM_PREFETCHED - 1; i++)
+			ids.add(Identifier.create("evicted/absent-"+i));
+		ids.add(newest.getId());
+		session= storage.beginSession(Mode.READONLY).get();
+		session.prefetch(ids).get();
+		
+		// the newest revision is still prefetched, the oldest must be looked up again
+		Identifier oldestRevisions= Identifier.create(oldest.getId(), ".contrail");
+		Identifier newestRevisions= Identifier.create(newest.getId(), ".contrail");
+		int oldestListings= provider.getListCount(oldestRevisions);
+		int newestListings= provider.getListCount(newestRevisions);
+		assertNotNull(session.fetch(newest.getId()).get());
+		assertEquals(newestListings, provider.getListCount(newestRevisions));
+		assertNotNull(session.fetch(oldest.getId()).get());
+		assertEquals(oldestListings + 1, provider.getListCount(oldestRevisions));
+		session.close().get();
+		storage.close().get();
+	}
+	
 	public void testBasicTransaction() throws Exception {
 			StorageSession session= _storage.beginSession(Mode.READWRITE).get();
 			assertEquals(1, session.getRevisionNumber());
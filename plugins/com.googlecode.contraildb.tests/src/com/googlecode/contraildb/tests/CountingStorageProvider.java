@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.contraildb.core.IResult;
+import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.async.Handler;
+import com.googlecode.contraildb.core.async.Result;
+import com.googlecode.contraildb.core.async.TaskUtils;
+import com.googlecode.contraildb.core.storage.provider.IStorageProvider;
+
+
+/**
+ * A storage provider that counts the fetches and child listings made 
+ * through it, records the stores made through it, and passes everything to 
+ * another provider.
+ * Fetches may be held, so that they are pending until released.
+ * 
+ * @author Ted Stockwell
+ */
+@SuppressWarnings({ "unchecked", "rawtypes" })
+public class CountingStorageProvider implements IStorageProvider {
+	
+	final IStorageProvider _provider;
+	final ConcurrentHashMap<Identifier, AtomicInteger> _fetches= new ConcurrentHashMap<Identifier, AtomicInteger>();
+	final ConcurrentHashMap<Identifier, AtomicInteger> _listings= new ConcurrentHashMap<Identifier, AtomicInteger>();
+	final List<Identifier> _stores= Collections.synchronizedList(new ArrayList<Identifier>());
+	volatile Result<Void> _hold;
+	
+	public CountingStorageProvider(IStorageProvider provider) {
+		_provider= provider;
+	}
+	
+	/**
+	 * @return the number of fetches of the given path
+	 */
+	public int getFetchCount(Identifier path) {
+		AtomicInteger count= _fetches.get(path);
+		return count != null ? count.get() : 0;
+	}
+	
+	/**
+	 * @return the number of fetches of all paths
+	 */
+	public int getFetchCount() {
+		int total= 0;
+		for (AtomicInteger count: _fetches.values())
+			total+= count.get();
+		return total;
+	}
+	
+	/**
+	 * @return the number of times the children of the given path were listed
+	 */
+	public int getListCount(Identifier path) {
+		AtomicInteger count= _listings.get(path);
+		return count != null ? count.get() : 0;
+	}
+	
+	/**
+	 * @return the paths stored, in the order in which they were stored
+	 */
+	public List<Identifier> getStores() {
+		synchronized (_stores) {
+			return new ArrayList<Identifier>(_stores);
+		}
+	}
+	
+	/**
+	 * Fetches made after this method is called are not passed on until 
+	 * release is called.
+	 */
+	public void hold() {
+		_hold= new Result<Void>();
+	}
+	
+	public void release() {
+		Result<Void> hold= _hold;
+		_hold= null;
+		if (hold != null)
+			hold.success(null);
+	}
+	
+	public IResult<Session> connect() {
+		return new Handler(_provider.connect()) {
+			protected IResult onSuccess() throws Exception {
+				return TaskUtils.asResult(new CountingSession((Session)incoming().getResult()));
+			}
+		}.toResult();
+	}
+	
+	static void count(ConcurrentHashMap<Identifier, AtomicInteger> counts, Identifier path) {
+		AtomicInteger count= counts.get(path);
+		if (count == null) {
+			AtomicInteger started= counts.putIfAbsent(path, count= new AtomicInteger());
+			if (started != null)
+				count= started;
+		}
+		count.incrementAndGet();
+	}
+	
+	class CountingSession implements Session {
+		final Session _session;
+		
+		CountingSession(Session session) {
+			_session= session;
+		}
+		
+		public IResult<byte[]> fetch(final Identifier path) {
+			count(_fetches, path);
+			Result<Void> hold= _hold;
+			if (hold == null)
+				return _session.fetch(path);
+			return new Handler(hold) {
+				protected IResult onSuccess() throws Exception {
+					return _session.fetch(path);
+				}
+			}.toResult();
+		}
+		
+		public IResult<Void> close() throws IOException {
+			return _session.close();
+		}
+		public IResult<Collection<Identifier>> listChildren(Identifier path) {
+			count(_listings, path);
+			return _session.listChildren(path);
+		}
+		public IResult<Void> store(Identifier path, IResult<byte[]> content) {
+			_stores.add(path);
+			return _session.store(path, content);
+		}
+		public IResult<Boolean> create(Identifier path, IResult<byte[]> content, long waitMillis) {
+			return _session.create(path, content, waitMillis);
+		}
+		public IResult<Void> delete(Identifier path) {
+			return _session.delete(path);
+		}
+		public IResult<Void> flush() {
+			return _session.flush();
+		}
+		public IResult<Void> capacity() {
+			return _session.capacity();
+		}
+	}
+}
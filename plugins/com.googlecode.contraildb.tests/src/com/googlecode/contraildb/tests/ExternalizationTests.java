@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.Item;
+import com.googlecode.contraildb.core.utils.EncodedIdentifierList;
+import com.googlecode.contraildb.core.utils.ExternalizationManager;
+import com.googlecode.contraildb.core.utils.ExternalizationManager.Serializer;
+import com.googlecode.contraildb.core.utils.SerializerRegistry;
+
+
+/**
+ * Tests the Contrail externalization formats.
+ * 
+ * @author Ted Stockwell
+ */
+public class ExternalizationTests extends TestCase {
+	
+	public void testVersionedFormat() throws IOException {
+		Item item= createItem();
+		Item copy= read(writeVersioned(item));
+		assertSame(item.getId(), copy.getId());
+		assertProperties(item, copy, "name", "count", "size", "parent", "description", Item.KEY_KIND);
+		Item child= copy.getProperty("child");
+		assertProperties((Item)item.getProperty("child"), child, "name");
+		assertSame(((Item)item.getProperty("child")).getId(), child.getId());
+	}
+	
+	/**
+	 * Threads that decode the same property of a shared item at the same 
+	 * time should all get the same instance.
+	 */
+	public void testConcurrentDecoding() throws Exception {
+		byte[] bytes= writeVersioned(createItem());
+		for (int round= 0; round < 100; round++) {
+			final Item copy= read(bytes);
+			final CountDownLatch start= new CountDownLatch(1);
+			final Object[] decoded= new Object[4];
+			Thread[] threads= new Thread[decoded.length];
+			for (int i= 0; i < threads.length; i++) {
+				final int index= i;
+				threads[i]= new Thread() {
+					public void run() {
+						try {
+							start.await();
+						}
+						catch (InterruptedException x) {
+						}
+						decoded[index]= copy.getProperty("child");
+					}
+				};
+				threads[i].start();
+			}
+			start.countDown();
+			for (Thread thread: threads)
+				thread.join();
+			for (Object child: decoded)
+				assertSame(decoded[0], child);
+		}
+	}
+	
+	public void testOriginalFormat() throws IOException {
+		Item item= createItem();
+		byte[] original= writeOriginal(item);
+		Item copy= read(original);
+		assertSame(item.getId(), copy.getId());
+		assertProperties(item, copy, "name", "count", "size", "parent", "description", Item.KEY_KIND);
+		
+		// the versioned format repeats no property names or paths 
+		assertTrue(writeVersioned(item).length < original.length);
+	}
+	
+	public void testPooledBuffers() throws IOException {
+		Item item= createItem();
+		byte[] bytes= writeVersioned(item);
+		byte[] pooled= ExternalizationManager.toVersionedBytes(item);
+		assertTrue(Arrays.equals(bytes, pooled));
+		
+		// a large object must not disturb the bytes of earlier results 
+		Item large= new Item(Identifier.create("large"));
+		char[] chars= new char[100000];
+		Arrays.fill(chars, 'x');
+		large.setProperty("text", new String(chars));
+		Item largeCopy= read(ExternalizationManager.toVersionedBytes(large));
+		assertEquals(100000, largeCopy.<String>getProperty("text").length());
+		assertTrue(Arrays.equals(bytes, ExternalizationManager.toVersionedBytes(item)));
+		assertTrue(Arrays.equals(bytes, pooled));
+		assertProperties(item, read(pooled), "name", "count", "size", "parent", "description", Item.KEY_KIND);
+	}
+	
+	public void testTypeCodes() throws IOException {
+		// use a separate registry so that the test serializers are not registered globally 
+		// "Aa" and "BB" have the same hash code
+		SerializerRegistry registry= new SerializerRegistry().add(new NameSerializer("Aa"));
+		try {
+			registry.add(new NameSerializer("BB"));
+			fail("Registered two serializers with the same type code");
+		}
+		catch (IllegalArgumentException x) {
+		}
+		
+		// the registered serializers are still found
+		for (int i= 0; i < 100; i++) 
+			registry= registry.add(new NameSerializer("name"+i));
+		assertEquals(101, registry.size());
+		assertEquals("Aa", registry.get("Aa".hashCode()).readExternal(null));
+		for (int i= 0; i < 100; i++) 
+			assertEquals("name"+i, registry.get(("name"+i).hashCode()).readExternal(null));
+		assertNull(registry.get("BB".hashCode() + 1));
+		
+		// reserved type codes are rejected, "" has a hash code of zero
+		try {
+			ExternalizationManager.registerSerializer(new NameSerializer(""));
+			fail("Registered a serializer with a reserved type code");
+		}
+		catch (IllegalArgumentException x) {
+		}
+		assertEquals("a string", read(writeOriginal("a string")));
+		assertSame(Identifier.create("a/b"), read(writeVersioned(Identifier.create("a/b"))));
+	}
+	
+	public void testNumbers() throws IOException {
+		long[] longs= new long[] { 0, 1, -1, 63, -64, 64, 1L << 35, Long.MAX_VALUE, Long.MIN_VALUE };
+		int[] ints= new int[] { 0, 1, -1, 127, 128, -129, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		Item item= new Item(Identifier.create("numbers"));
+		for (int i= 0; i < longs.length; i++)
+			item.setProperty("long"+i, longs[i]);
+		for (int i= 0; i < ints.length; i++)
+			item.setProperty("int"+i, ints[i]);
+		Item copy= read(writeVersioned(item));
+		for (int i= 0; i < longs.length; i++)
+			assertEquals(Long.valueOf(longs[i]), copy.<Long>getProperty("long"+i));
+		for (int i= 0; i < ints.length; i++)
+			assertEquals(Integer.valueOf(ints[i]), copy.<Integer>getProperty("int"+i));
+	}
+	
+	public void testPrimitiveProperties() throws IOException {
+		Date created= new Date(1262304000000L);
+		Item item= new Item(Identifier.create("primitives"));
+		item.setProperty("int", 42);
+		item.setProperty("long", 1L << 40);
+		item.setProperty("double", 2.5);
+		item.setUnindexedProperty("boolean", true);
+		item.setProperty("date", created);
+		item.setProperty("string", "42");
+		
+		assertEquals(Integer.valueOf(42), item.<Integer>getProperty("int"));
+		assertEquals(Long.valueOf(1L << 40), item.<Long>getProperty("long"));
+		assertEquals(Double.valueOf(2.5), item.<Double>getProperty("double"));
+		assertEquals(Boolean.TRUE, item.<Boolean>getProperty("boolean"));
+		assertEquals(created, item.<Date>getProperty("date"));
+		assertEquals(42L, item.getLong("int"));
+		assertEquals(42.0, item.getDouble("int"));
+		assertEquals(2, item.getInt("double"));
+		assertEquals(created.getTime(), item.getLong("date"));
+		assertEquals(created, item.getDate("date"));
+		assertTrue(item.getBoolean("boolean"));
+		assertEquals(42, item.getInt("string"));
+		assertNull(item.getProperty("missing"));
+		assertFalse(item.hasProperty("missing"));
+		
+		// dates are copied 
+		created.setTime(0);
+		item.getDate("date").setTime(0);
+		assertEquals(1262304000000L, item.getLong("date"));
+		
+		// a property keeps its kind when it moves between indexed and unindexed
+		item.setUnindexedProperty("int", 43);
+		item.setProperty("boolean", false);
+		item.setProperty("string", 44L);
+		assertEquals(Integer.valueOf(43), item.getUnindexedProperties().get("int"));
+		assertEquals(Boolean.FALSE, item.getIndexedProperties().get("boolean"));
+		assertEquals(Long.valueOf(44), item.<Long>getProperty("string"));
+		assertFalse(item.getIndexedProperties().containsKey("int"));
+		
+		for (byte[] bytes: new byte[][] { writeVersioned(item), writeOriginal(item) }) {
+			Item copy= read(bytes);
+			assertEquals(item.getIndexedProperties(), copy.getIndexedProperties());
+			assertEquals(item.getUnindexedProperties(), copy.getUnindexedProperties());
+			assertEquals(1L << 40, copy.getLong("long"));
+			
+			// primitive values are unboxed when read, so read dates are copied too
+			copy.getDate("date").setTime(0);
+			assertEquals(1262304000000L, copy.getLong("date"));
+		}
+		
+		item.removeProperty("long");
+		item.removeProperty("int");
+		assertFalse(item.hasProperty("long"));
+		assertEquals(2.5, item.getDouble("double"));
+		assertEquals(new ArrayList<String>(Arrays.asList(Item.KEY_KIND, "boolean", "date", "double", "string")), 
+				new ArrayList<String>(item.getAllProperties().keySet()));
+		assertEquals(item.getAllProperties(), item.clone().getAllProperties());
+	}
+	
+	public void testEncodedIdentifierList() {
+		Random random= new Random(1);
+		String[] names= new String[] { "a", "b", "ab", "a-b", "item", "item-1", "item-10", "item-2", "\u00e9t\u00e9" };
+		TreeSet<Identifier> all= new TreeSet<Identifier>();
+		for (int i= 0; i < 2000; i++) {
+			StringBuilder path= new StringBuilder();
+			for (int depth= 1 + random.nextInt(4); 0 < depth--;) {
+				if (0 < path.length())
+					path.append('/');
+				path.append(names[random.nextInt(names.length)]);
+			}
+			all.add(Identifier.create(path.toString()));
+		}
+		ArrayList<Identifier> sorted= new ArrayList<Identifier>();
+		ArrayList<Identifier> absent= new ArrayList<Identifier>();
+		for (Identifier identifier: all) 
+			(random.nextBoolean() ? sorted : absent).add(identifier);
+		
+		byte[] bytes= EncodedIdentifierList.encode(sorted);
+		EncodedIdentifierList list= new EncodedIdentifierList(bytes, 0, bytes.length, sorted.size());
+		for (int i= 0; i < sorted.size(); i++) 
+			assertEquals(i, list.search(sorted.get(i)));
+		for (Identifier identifier: absent) 
+			assertEquals(Collections.binarySearch(sorted, identifier), list.search(identifier));
+		for (int i= sorted.size(); 0 < i--;) 
+			assertSame(sorted.get(i), list.get(i));
+		
+		// front coding makes a sorted list smaller than its paths 
+		int length= 0;
+		for (Identifier identifier: sorted)
+			length+= identifier.toString().length();
+		assertTrue(bytes.length < length);
+	}
+	
+	private static void assertProperties(Item expected, Item actual, String... names) {
+		for (String name: names) {
+			Object value= expected.getProperty(name);
+			assertEquals(value, actual.getProperty(name));
+		}
+	}
+	
+	private static Item createItem() {
+		Identifier parent= Identifier.create("net/sf/contrail/tests/items");
+		Item item= new Item(Identifier.create(parent, "item"));
+		item.setProperty("name", "item");
+		item.setProperty("count", 42);
+		item.setProperty("size", -123456789012L);
+		item.setProperty("parent", parent);
+		item.setUnindexedProperty("description", "a test item");
+		Item child= new Item(Identifier.create(item.getId(), "child"));
+		child.setProperty("name", "child");
+		item.setProperty("child", child);
+		return item;
+	}
+	
+	private static class NameSerializer implements Serializer<String> {
+		private final String _name;
+		NameSerializer(String name) {
+			_name= name;
+		}
+		public String readExternal(DataInput in) throws IOException {
+			return _name;
+		}
+		public void writeExternal(DataOutput out, String object) throws IOException {
+		}
+		public void readExternal(DataInput in, String object) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+		public int typeCode() {
+			return _name.hashCode();
+		}
+	}
+	
+	private static byte[] writeVersioned(Object object) throws IOException {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		ExternalizationManager.writeVersionedExternal(new DataOutputStream(bytes), object);
+		return bytes.toByteArray();
+	}
+	
+	private static byte[] writeOriginal(Object object) throws IOException {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		ExternalizationManager.writeExternal(new DataOutputStream(bytes), object);
+		return bytes.toByteArray();
+	}
+	
+	private static <T> T read(byte[] bytes) throws IOException {
+		return ExternalizationManager.readExternal(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+}
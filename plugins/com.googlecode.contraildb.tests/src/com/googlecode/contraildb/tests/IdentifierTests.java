@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import com.googlecode.contraildb.core.Identifier;
+
+
+/**
+ * Tests the Identifier interner.
+ * 
+ * @author Ted Stockwell
+ */
+public class IdentifierTests extends TestCase {
+	
+	public void testInterning() throws Exception {
+		Identifier id= Identifier.create("a/b/c");
+		assertSame(id, Identifier.create("/a//b/c/"));
+		assertSame(id, Identifier.create(Identifier.create("a"), "b/c"));
+		assertSame(id.getParent(), Identifier.create("a/b"));
+		assertEquals("a/b/c", id.toString());
+		assertEquals("c", id.getName());
+		assertTrue(Identifier.create("a").isAncestorOf(id));
+		assertFalse(id.isAncestorOf(id.getParent()));
+		assertEquals(id.hashCode(), Identifier.create("a/b/c").hashCode());
+		
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		ObjectOutputStream out= new ObjectOutputStream(bytes);
+		out.writeObject(id);
+		out.flush();
+		ObjectInputStream in= new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertSame(id, in.readObject());
+	}
+	
+	public void testOrdering() {
+		String[] paths= new String[] { "a", "b", "a/a", "a/b", "b/a", "a/a/a", "a/b/a", "b/a/a", "ab/a", "a/ab" };
+		ArrayList<Identifier> ids= new ArrayList<Identifier>();
+		for (String path: paths)
+			ids.add(Identifier.create(path));
+		Collections.sort(ids);
+		for (int i= 0; i < ids.size(); i++) {
+			for (int j= 0; j < ids.size(); j++) {
+				int c= ids.get(i).compareTo(ids.get(j));
+				assertEquals(Integer.signum(i - j), Integer.signum(c));
+			}
+		}
+		// ancestors are compared first, then depth, then names
+		assertTrue(Identifier.create("a/b").compareTo(Identifier.create("b/a")) < 0);
+		assertTrue(Identifier.create("b").compareTo(Identifier.create("a/a")) < 0);
+		assertTrue(Identifier.create("a/b/a").compareTo(Identifier.create("a/b")) > 0);
+		assertTrue(Identifier.create("a/a/z").compareTo(Identifier.create("a/b/a")) < 0);
+	}
+	
+	public void testConcurrentCreate() throws Exception {
+		final ConcurrentHashMap<String, Identifier> created= new ConcurrentHashMap<String, Identifier>();
+		final Throwable[] error= new Throwable[1];
+		Thread[] threads= new Thread[8];
+		for (int t= 0; t < threads.length; t++) {
+			threads[t]= new Thread() {
+				public void run() {
+					try {
+						for (int i= 0; i < 10000; i++) {
+							String path= "root/"+(i % 100)+"/"+(i % 7);
+							Identifier id= Identifier.create(path);
+							Identifier previous= created.putIfAbsent(path, id);
+							if (previous != null && previous != id)
+								throw new AssertionError("Identifier not interned: "+path);
+						}
+					}
+					catch (Throwable x) {
+						error[0]= x;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread: threads)
+			thread.join();
+		if (error[0] != null)
+			fail(error[0].toString());
+	}
+}
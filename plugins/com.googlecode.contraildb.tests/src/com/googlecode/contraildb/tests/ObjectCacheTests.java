@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Ted Stockwell
+ * 
+ * This file is part of the Contrail Database System.
+ * 
+ * Contrail is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License Version 3
+ * as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.contraildb.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.googlecode.contraildb.core.Identifier;
+import com.googlecode.contraildb.core.utils.ByteCache;
+import com.googlecode.contraildb.core.utils.ObjectCache;
+
+
+/**
+ * Tests the caches used by the storage system.
+ * 
+ * @author Ted Stockwell
+ */
+public class ObjectCacheTests extends TestCase {
+	
+	public void testWeightLimit() {
+		ObjectCache<String> cache= new ObjectCache<String>(10000);
+		for (int i= 0; i < 1000; i++)
+			cache.store(Identifier.create("item-"+i), "item-"+i, 100);
+		assertTrue(cache.getWeight() <= 10000);
+		assertTrue(0 < cache.size());
+		
+		// an object heavier than the cache is not cached
+		Identifier big= Identifier.create("big");
+		cache.store(big, "big", 20000);
+		assertNull(cache.fetch(big));
+		
+		// shrinking the cache evicts objects 
+		cache.setMaximumWeight(1000);
+		assertTrue(cache.getWeight() <= 1000);
+		
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+	
+	public void testHitCounts() {
+		ObjectCache<String> cache= new ObjectCache<String>(10000);
+		Identifier id= Identifier.create("item");
+		assertNull(cache.fetch(id));
+		cache.store(id, "value", 10);
+		assertEquals("value", cache.fetch(id));
+		assertEquals("value", cache.fetch(id));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+	
+	public void testSetWeight() {
+		ObjectCache<String> cache= new ObjectCache<String>(10000);
+		Identifier id= Identifier.create("item");
+		cache.store(id, "value", 10);
+		cache.setWeight(id, "value", 500);
+		assertEquals(500, cache.getWeight());
+		
+		// weights are only changed for the same object 
+		cache.setWeight(id, "another value", 50);
+		assertEquals(500, cache.getWeight());
+		
+		cache.delete(id);
+		assertNull(cache.fetch(id));
+		assertEquals(0, cache.getWeight());
+	}
+	
+	/**
+	 * A scan of many objects that are used once should not flush 
+	 * frequently used objects from the cache, as it would from an LRU cache.
+	 */
+	public void testScanResistance() {
+		ObjectCache<String> cache= new ObjectCache<String>(100 * 100);
+		Identifier[] hot= new Identifier[50];
+		for (int i= 0; i < hot.length; i++) {
+			hot[i]= Identifier.create("hot-"+i);
+			cache.store(hot[i], "hot", 100);
+		}
+		for (int round= 0; round < 5; round++) 
+			for (Identifier id: hot) 
+				assertNotNull(cache.fetch(id));
+		
+		// hot objects continue to be used, but much less often than scanned objects
+		for (int i= 0; i < 10000; i++) {
+			Identifier id= Identifier.create("scan-"+i);
+			if (cache.fetch(id) == null)
+				cache.store(id, "scan", 100);
+			if (i % 4 == 0)
+				cache.fetch(hot[(i / 4) % hot.length]);
+		}
+		
+		int cached= 0;
+		for (Identifier id: hot) 
+			if (cache.fetch(id) != null)
+				cached++;
+		assertEquals(hot.length, cached);
+	}
+	
+	/**
+	 * An object that leaves the window must outweigh every object that is 
+	 * evicted to make room for it, not just the first.
+	 */
+	public void testAdmissionAgainstEachVictim() {
+		ObjectCache<String> cache= new ObjectCache<String>(1000);
+		Identifier popular= Identifier.create("popular");
+		Identifier candidate= Identifier.create("candidate");
+		
+		// the sketch remembers uses of objects that are no longer cached
+		for (int i= 0; i < 5; i++) {
+			cache.store(popular, "popular", 100);
+			cache.delete(popular);
+		}
+		cache.store(candidate, "candidate", 300);
+		cache.delete(candidate);
+		
+		Identifier first= Identifier.create("item-0");
+		cache.store(first, "item", 100);
+		cache.store(popular, "popular", 100);
+		for (int i= 1; i < 8; i++)
+			cache.store(Identifier.create("item-"+i), "item", 100);
+		assertEquals(900, cache.getWeight());
+		
+		// the candidate is used more often than the first victim but less 
+		// often than the second, so it is not admitted
+		cache.store(candidate, "candidate", 300);
+		assertTrue(cache.getWeight() <= 1000);
+		assertNull(cache.fetch(first));
+		assertNull(cache.fetch(candidate));
+		assertNotNull(cache.fetch(popular));
+	}
+	
+	/**
+	 * Many threads reading and writing the same keys.
+	 */
+	public void testConcurrentAccess() throws Exception {
+		final ObjectCache<Integer> cache= new ObjectCache<Integer>(100 * 100);
+		final Identifier[] ids= new Identifier[500];
+		for (int i= 0; i < ids.length; i++)
+			ids[i]= Identifier.create("item-"+i);
+		final List<Throwable> errors= new ArrayList<Throwable>();
+		List<Thread> threads= new ArrayList<Thread>();
+		for (int t= 0; t < 8; t++) {
+			final int seed= t;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						Random random= new Random(seed);
+						for (int i= 0; i < 100000; i++) {
+							int k= random.nextInt(ids.length);
+							Integer value= cache.fetch(ids[k]);
+							if (value == null) {
+								cache.store(ids[k], k, 100);
+							}
+							else if (value.intValue() != k)
+								throw new IllegalStateException("wrong value for "+ids[k]+": "+value);
+							if (i % 100 == 0)
+								cache.delete(ids[random.nextInt(ids.length)]);
+						}
+					}
+					catch (Throwable x) {
+						synchronized (errors) {
+							errors.add(x);
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread: threads)
+			thread.start();
+		for (Thread thread: threads)
+			thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(cache.getWeight() <= 100 * 100);
+		assertEquals(cache.size() * 100, cache.getWeight());
+	}
+	
+	public void testByteCache() {
+		ByteCache cache= new ByteCache(16 * 1024);
+		Identifier id= Identifier.create("item");
+		cache.store(id, "hello".getBytes());
+		assertEquals("hello", new String(cache.fetch(id)));
+		assertEquals(1, cache.getHitCount());
+		
+		cache.delete(id);
+		assertNull(cache.fetch(id));
+		assertEquals(1, cache.getMissCount());
+		
+		// arrays larger than a segment are not cached
+		Identifier big= Identifier.create("big");
+		cache.store(big, new byte[2048]);
+		assertNull(cache.fetch(big));
+		
+		// the oldest arrays are evicted first
+		byte[] bytes= new byte[100];
+		for (int i= 0; i < 1000; i++) {
+			bytes[0]= (byte)i;
+			cache.store(Identifier.create("item-"+i), bytes);
+		}
+		assertNull(cache.fetch(Identifier.create("item-0")));
+		byte[] last= cache.fetch(Identifier.create("item-999"));
+		assertNotNull(last);
+		assertEquals((byte)999, last[0]);
+		assertTrue(cache.size() * 100 <= cache.getMaximumSize());
+	}
+}
@@ -0,0 +1,125 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim.bench;
+
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.Task;
+
+// Usage: java kilim.bench.SchedulerScaling [-maxThreads n] [-nRounds n]
+//          Runs PingPong, Ring and LotsOfTasks style workloads on the basic and
+//          the work-stealing scheduler with 1, 2, 4 ... maxThreads worker threads
+//          and prints the best time of each.
+public class SchedulerScaling {
+    static int maxThreads = Runtime.getRuntime().availableProcessors();
+    static int nRounds = 3;
+    static int nPairs = 100;      // ping pong pairs
+    static int nMsgs = 1000;      // messages per ping pong pair
+    static int ringSize = 1000;   // tasks in ring
+    static int ringTimes = 100;   // times around the ring
+    static int nTasks = 100000;   // lots of tasks
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equalsIgnoreCase("-maxThreads")) {
+                maxThreads = Integer.parseInt(args[++i]);
+            } else if (arg.equalsIgnoreCase("-nRounds")) {
+                nRounds = Integer.parseInt(args[++i]);
+            }
+        }
+        System.out.println("scheduler  threads   pingpong(ms)   ring(ms)   lotsoftasks(ms)");
+        for (String type : new String[] {"basic", "stealing"}) {
+            for (int n = 1; n <= maxThreads; n *= 2) {
+                Scheduler s = Scheduler.create(type, n);
+                long pp = Long.MAX_VALUE, ring = Long.MAX_VALUE, lots = Long.MAX_VALUE;
+                for (int round = 0; round < nRounds; round++) {
+                    pp = Math.min(pp, pingPong(s));
+                    ring = Math.min(ring, ring(s));
+                    lots = Math.min(lots, lotsOfTasks(s));
+                }
+                s.shutdown();
+                System.out.println(String.format("%-10s %7d %14d %10d %17d", type, n, pp, ring, lots));
+            }
+        }
+        System.exit(0);
+    }
+
+    static long pingPong(Scheduler s) {
+        long start = System.currentTimeMillis();
+        Mailbox<ExitMsg> exit = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nPairs; i++) {
+            Mailbox<Integer> a = new Mailbox<Integer>();
+            Mailbox<Integer> b = new Mailbox<Integer>();
+            start(s, new Echo(a, b, nMsgs), exit);
+            start(s, new Echo(b, a, nMsgs), exit);
+            a.putnb(0);
+        }
+        await(exit, 2 * nPairs);
+        return System.currentTimeMillis() - start;
+    }
+
+    static long ring(Scheduler s) {
+        long start = System.currentTimeMillis();
+        Mailbox<ExitMsg> exit = new Mailbox<ExitMsg>();
+        Mailbox<Integer> first = new Mailbox<Integer>();
+        Mailbox<Integer> mb = first;
+        for (int i = 0; i < ringSize; i++) {
+            Mailbox<Integer> next = (i == ringSize - 1) ? first : new Mailbox<Integer>();
+            start(s, new Echo(mb, next, ringTimes), exit);
+            mb = next;
+        }
+        first.putnb(0);
+        await(exit, ringSize);
+        return System.currentTimeMillis() - start;
+    }
+
+    static long lotsOfTasks(Scheduler s) {
+        long start = System.currentTimeMillis();
+        Mailbox<ExitMsg> exit = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nTasks; i++) {
+            start(s, new Echo(null, null, 0), exit);
+        }
+        await(exit, nTasks);
+        return System.currentTimeMillis() - start;
+    }
+
+    static void start(Scheduler s, Task t, Mailbox<ExitMsg> exit) {
+        t.informOnExit(exit);
+        t.setScheduler(s);
+        t.start();
+    }
+
+    static void await(Mailbox<ExitMsg> exit, int n) {
+        for (int i = 0; i < n; i++) {
+            exit.getb();
+        }
+    }
+
+    /**
+     * Receives a message and passes it on, a given number of times.
+     */
+    static class Echo extends Task {
+        Mailbox<Integer> in;
+        Mailbox<Integer> out;
+        int times;
+
+        Echo(Mailbox<Integer> in, Mailbox<Integer> out, int times) {
+            this.in = in;
+            this.out = out;
+            this.times = times;
+        }
+
+        public void execute() throws Pausable {
+            for (int i = 0; i < times; i++) {
+                out.put(in.get() + 1);
+            }
+        }
+    }
+}
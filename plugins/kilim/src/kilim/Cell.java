@@ -7,7 +7,6 @@
 package kilim;
 
 import java.util.LinkedList;
-import java.util.TimerTask;
 
 /**
  * A cell is a single-space buffer that supports multiple producers and a single
@@ -130,15 +129,10 @@ public class Cell<T> implements PauseReason, EventPublisher {
         T msg = get(t);
         long begin = System.currentTimeMillis();
         while (msg == null) {
-            TimerTask tt = new TimerTask() {
-                    public void run() {
-                        Cell.this.removeMsgAvailableListener(t);
-                        t.onEvent(Cell.this, timedOut);
-                    }
-                };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.scheduleWaitTimeout(this, timedOut, timeoutMillis);
             Task.pause(this);
-            tt.cancel();
+            t.cancelWaitTimeout();
+            removeMsgAvailableListener(t); // in case the wait timed out
             if (System.currentTimeMillis() - begin > timeoutMillis) {
                 break;
             }
@@ -186,14 +180,10 @@ public class Cell<T> implements PauseReason, EventPublisher {
         final Task t = Task.getCurrentTask();
         long begin = System.currentTimeMillis();
         while (!put(msg, t)) {
-            TimerTask tt = new TimerTask() {
-                    public void run() {
-                        Cell.this.removeSpaceAvailableListener(t);
-                        t.onEvent(Cell.this, timedOut);
-                    }
-                };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.scheduleWaitTimeout(this, timedOut, timeoutMillis);
             Task.pause(this);
+            t.cancelWaitTimeout();
+            removeSpaceAvailableListener(t); // in case the wait timed out
             if (System.currentTimeMillis() - begin >= timeoutMillis) {
                 return false;
             }
@@ -0,0 +1,228 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-free variant of Mailbox. It has the same put/get API (pausing,
+ * blocking and non-blocking) and may be used anywhere a Mailbox is
+ * expected, including Mailbox.select, but messages are kept in a
+ * non-blocking queue and no monitor is taken on the put or get path.
+ *
+ * Unlike Mailbox, any number of tasks may get from a ConcurrentMailbox
+ * at the same time (multiple producers, multiple consumers). With a single
+ * consumer it behaves as an MPSC queue.
+ *
+ * Waiting consumers (and, for bounded mailboxes, waiting producers) are
+ * kept in lock-free queues. A waiter registers itself and then looks at
+ * the queue once more before pausing; the other side always updates the
+ * queue before looking for waiters, so a notification cannot be lost.
+ */
+public class ConcurrentMailbox<T> extends Mailbox<T> {
+    final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>();
+    final AtomicInteger count = new AtomicInteger();
+    final int capacity;
+    final ConcurrentLinkedQueue<EventSubscriber> consumers = new ConcurrentLinkedQueue<EventSubscriber>();
+    final ConcurrentLinkedQueue<EventSubscriber> producers = new ConcurrentLinkedQueue<EventSubscriber>();
+
+    public ConcurrentMailbox() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public ConcurrentMailbox(int capacity) {
+        super(1, Integer.MAX_VALUE); // the ring buffer in Mailbox is not used
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity: " + capacity + " must be positive");
+        this.capacity = capacity;
+    }
+
+    @Override
+    public T get(EventSubscriber eo) {
+        T msg = poll();
+        if (msg == null && eo != null) {
+            consumers.add(eo);
+            msg = poll();
+            if (msg != null) {
+                consumers.remove(eo);
+                // A producer may have handed its notification to us while we
+                // were registered; pass it on so that no message is stranded.
+                if (!queue.isEmpty()) {
+                    wake(consumers, messageAvailable);
+                }
+            }
+        }
+        return msg;
+    }
+
+    @Override
+    public boolean put(T msg, EventSubscriber eo) {
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to put");
+        }
+        boolean ret = offer(msg);
+        if (!ret && eo != null) {
+            producers.add(eo);
+            ret = offer(msg);
+            if (ret) {
+                producers.remove(eo);
+                if (count.get() < capacity) {
+                    wake(producers, spaceAvailble);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private boolean offer(T msg) {
+        if (capacity == Integer.MAX_VALUE) {
+            count.incrementAndGet();
+        } else {
+            int n;
+            do {
+                n = count.get();
+                if (n >= capacity) return false;
+            } while (!count.compareAndSet(n, n + 1));
+        }
+        queue.offer(msg);
+        wake(consumers, messageAvailable);
+        return true;
+    }
+
+    private T poll() {
+        T msg = queue.poll();
+        if (msg != null) {
+            count.decrementAndGet();
+            if (!producers.isEmpty()) {
+                wake(producers, spaceAvailble);
+            }
+        }
+        return msg;
+    }
+
+    private void wake(ConcurrentLinkedQueue<EventSubscriber> waiters, Event e) {
+        EventSubscriber s = waiters.poll();
+        if (s != null) {
+            s.onEvent(this, e);
+        }
+    }
+
+    @Override
+    public int drainnb(Collection<? super T> c, int max) {
+        int n = 0;
+        T msg;
+        while (n < max && (msg = queue.poll()) != null) {
+            c.add(msg);
+            n++;
+        }
+        if (n > 0) {
+            count.addAndGet(-n);
+            for (int i = 0; i < n && !producers.isEmpty(); i++) {
+                wake(producers, spaceAvailble);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public T getb(final long timeoutMillis) {
+        // Unlike Mailbox, an event is no guarantee of a message since other
+        // consumers may get there first, so keep trying until timed out.
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            BlockingSubscriber evs = new BlockingSubscriber();
+            T msg = get(evs);
+            if (msg != null) {
+                return msg;
+            }
+            long remaining = timeoutMillis == 0 ? 0 : end - System.currentTimeMillis();
+            if (timeoutMillis != 0 && remaining <= 0) {
+                consumers.remove(evs);
+                return null;
+            }
+            evs.blockingWait(remaining);
+            if (!evs.eventRcvd) {
+                consumers.remove(evs);
+                return getnb();
+            }
+        }
+    }
+
+    @Override
+    public void putb(T msg, final long timeoutMillis) {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            BlockingSubscriber evs = new BlockingSubscriber();
+            if (put(msg, evs)) {
+                return;
+            }
+            long remaining = timeoutMillis == 0 ? 0 : end - System.currentTimeMillis();
+            if (timeoutMillis != 0 && remaining <= 0) {
+                producers.remove(evs);
+                return;
+            }
+            evs.blockingWait(remaining);
+            if (!evs.eventRcvd) {
+                producers.remove(evs);
+                putnb(msg);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void addSpaceAvailableListener(EventSubscriber spcSub) {
+        producers.add(spcSub);
+    }
+
+    @Override
+    public void removeSpaceAvailableListener(EventSubscriber spcSub) {
+        producers.remove(spcSub);
+    }
+
+    @Override
+    public void addMsgAvailableListener(EventSubscriber msgSub) {
+        consumers.add(msgSub);
+    }
+
+    @Override
+    public void removeMsgAvailableListener(EventSubscriber msgSub) {
+        consumers.remove(msgSub);
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public boolean hasMessage() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public boolean hasSpace() {
+        return count.get() < capacity;
+    }
+
+    @Override
+    public boolean isValid(Task t) {
+        // keep pausing only while still registered and still waiting
+        if (consumers.contains(t) && queue.isEmpty())
+            return true;
+        if (producers.contains(t) && count.get() >= capacity)
+            return true;
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "id:" + System.identityHashCode(this) + " " + "numMsgs:" + count.get();
+    }
+}
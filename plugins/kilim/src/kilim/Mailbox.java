@@ -6,8 +6,8 @@
 
 package kilim;
 
+import java.util.Collection;
 import java.util.LinkedList;
-import java.util.TimerTask;
 
 /**
  * This is a typed buffer that supports multiple producers and a single
@@ -185,15 +185,10 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         T msg = get(t);
         long end = System.currentTimeMillis() + timeoutMillis;
         while (msg == null) {
-            TimerTask tt = new TimerTask() {
-                public void run() {
-                    Mailbox.this.removeMsgAvailableListener(t);
-                    t.onEvent(Mailbox.this, timedOut);
-                }
-            };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.scheduleWaitTimeout(this, timedOut, timeoutMillis);
             Task.pause(this);
-            tt.cancel();
+            t.cancelWaitTimeout();
+            removeMsgAvailableListener(t); // in case the wait timed out
             
             msg = get(t);
             
@@ -222,8 +217,11 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
                 }
             }
             Task t = Task.getCurrentTask();
-            EmptySet_MsgAvListener pauseReason = 
-                    new EmptySet_MsgAvListener(t, mboxes);
+            EmptySet_MsgAvListener pauseReason = t.selectListener;
+            if (pauseReason == null) {
+                pauseReason = t.selectListener = new EmptySet_MsgAvListener(t);
+            }
+            pauseReason.mbxs = mboxes;
             for (int i = 0; i < mboxes.length; i++) {
                 mboxes[i].addMsgAvailableListener(pauseReason);
             }
@@ -231,9 +229,53 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
             for (int i = 0; i < mboxes.length; i++) {
                 mboxes[i].removeMsgAvailableListener(pauseReason);
             }
+            pauseReason.mbxs = null;
         }
     }
 
+    /**
+     * Moves up to max buffered messages into the given collection, without
+     * pausing or blocking. Producers waiting for space are notified once
+     * for the whole batch rather than once per message.
+     * 
+     * @return the number of messages moved
+     */
+    @SuppressWarnings("unchecked")
+    public int drainnb(Collection<? super T> c, int max) {
+        int n = 0;
+        LinkedList<EventSubscriber> producers = null;
+        synchronized(this) {
+            while (n < max && numMsgs > 0) {
+                int ic = icons;
+                c.add(msgs[ic]); msgs[ic] = null;
+                icons = (ic + 1) % msgs.length;
+                numMsgs--;
+                n++;
+            }
+            if (n > 0 && srcs.size() > 0) {
+                producers = (LinkedList<EventSubscriber>) srcs.clone();
+                srcs.clear();
+            }
+        }
+        if (producers != null) {
+            for (EventSubscriber producer: producers) {
+                producer.onEvent(this, spaceAvailble);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Pauses until at least one message is available and then moves up to
+     * max messages into the given collection.
+     * 
+     * @return the number of messages moved, at least one
+     */
+    public int drain(Collection<? super T> c, int max) throws Pausable {
+        c.add(get());
+        return 1 + drainnb(c, max - 1);
+    }
+
     public synchronized void addSpaceAvailableListener(EventSubscriber spcSub) {
         srcs.add(spcSub);
     }
@@ -287,14 +329,10 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         final Task t = Task.getCurrentTask();
         long begin = System.currentTimeMillis();
         while (!put(msg, t)) {
-            TimerTask tt = new TimerTask() {
-                public void run() {
-                    Mailbox.this.removeSpaceAvailableListener(t);
-                    t.onEvent(Mailbox.this, timedOut);
-                }
-            };
-            Task.timer.schedule(tt, timeoutMillis);
+            t.scheduleWaitTimeout(this, timedOut, timeoutMillis);
             Task.pause(this);
+            t.cancelWaitTimeout();
+            removeSpaceAvailableListener(t); // in case the wait timed out
             if (System.currentTimeMillis() - begin >= timeoutMillis) {
                 return false;
             }
@@ -409,17 +447,19 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
 
 class EmptySet_MsgAvListener implements PauseReason, EventSubscriber {
     final Task task;
-    final Mailbox<?>[] mbxs;
+    volatile Mailbox<?>[] mbxs; // set for the duration of a select
 
-    EmptySet_MsgAvListener(Task t, Mailbox<?>[] mbs) {
+    EmptySet_MsgAvListener(Task t) {
         task = t;
-        mbxs = mbs;
     }
 
     public boolean isValid(Task t) {
         // The pauseReason is true (there is valid reason to continue
         // pausing) if none of the mboxes have any elements
-        for (Mailbox<?> mb : mbxs) {
+        Mailbox<?>[] mbs = mbxs;
+        if (mbs == null)
+            return false;
+        for (Mailbox<?> mb : mbs) {
             if (mb.hasMessage())
                 return false;
         }
@@ -427,16 +467,22 @@ class EmptySet_MsgAvListener implements PauseReason, EventSubscriber {
     }
 
     public void onEvent(EventPublisher ep, Event e) {
-        for (Mailbox<?> m : mbxs) {
-            if (m != ep) {
-                ((Mailbox<?>)ep).removeMsgAvailableListener(this);
+        Mailbox<?>[] mbs = mbxs;
+        if (mbs != null) {
+            for (Mailbox<?> m : mbs) {
+                if (m != ep) {
+                    m.removeMsgAvailableListener(this);
+                }
             }
         }
         task.resume();
     }
 
     public void cancel() {
-        for (Mailbox<?> mb : mbxs) {
+        Mailbox<?>[] mbs = mbxs;
+        if (mbs == null)
+            return;
+        for (Mailbox<?> mb : mbs) {
             mb.removeMsgAvailableListener(this);
         }
     }
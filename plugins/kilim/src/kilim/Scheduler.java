@@ -20,6 +20,7 @@ import java.util.LinkedList;
 public class Scheduler {
     public static volatile Scheduler defaultScheduler = null;
     public static int defaultNumberThreads;
+    public static String defaultType;
     
     public LinkedList<WorkerThread> allThreads = new LinkedList<WorkerThread>();
     public RingQueue<WorkerThread> waitingThreads = new RingQueue<WorkerThread>(10);
@@ -36,6 +37,8 @@ public class Scheduler {
         if (defaultNumberThreads == 0) {
             defaultNumberThreads = Runtime.getRuntime().availableProcessors();
         }
+        // "stealing" selects the work-stealing scheduler, anything else the basic one
+        defaultType = System.getProperty("kilim.Scheduler.type", "basic");
     }
     protected Scheduler() {}
     
@@ -135,11 +138,21 @@ public class Scheduler {
 
     public synchronized static Scheduler getDefaultScheduler() {
         if (defaultScheduler == null) {
-            defaultScheduler = new Scheduler(defaultNumberThreads);
+            defaultScheduler = create(defaultType, defaultNumberThreads);
         }
         return defaultScheduler;
     }
     
+    /**
+     * Creates a scheduler of the given type, either "basic" or "stealing".
+     */
+    public static Scheduler create(String type, int numThreads) {
+        if ("stealing".equalsIgnoreCase(type)) {
+            return new StealingScheduler(numThreads);
+        }
+        return new Scheduler(numThreads);
+    }
+
     public static void setDefaultScheduler(Scheduler s) {
         defaultScheduler = s;
     }
@@ -0,0 +1,191 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A work-stealing scheduler. Unlike the basic Scheduler, which hands out
+ * tasks from a single synchronized queue, each worker thread here owns a
+ * lock-free deque of runnable tasks. A task resumed from within a worker
+ * thread is queued on that worker's own deque; tasks resumed from other
+ * threads go to a shared injection queue. A worker that runs out of work
+ * steals from the other end of another worker's deque, and only parks
+ * (with LockSupport) after it has registered itself as idle and found
+ * nothing to do.
+ *
+ * Use it for a task with Task.setScheduler, or make it the default by
+ * running with -Dkilim.Scheduler.type=stealing.
+ */
+public class StealingScheduler extends Scheduler {
+    final Worker[] workers;
+    final ConcurrentLinkedQueue<Task> injected = new ConcurrentLinkedQueue<Task>();
+    final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+    final AtomicLong steals = new AtomicLong();
+    final AtomicLong parks = new AtomicLong();
+
+    public StealingScheduler(int numThreads) {
+        workers = new Worker[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new Worker(this, i);
+            allThreads.add(workers[i]);
+        }
+        for (Worker w : workers) {
+            w.start();
+        }
+    }
+
+    @Override
+    public void schedule(Task t) {
+        assert t.running == true : "Task " + t + " scheduled even though running is false";
+        WorkerThread pref = t.preferredResumeThread;
+        if (pref != null) {
+            pref.addRunnableTask(t);
+            return;
+        }
+        Thread current = Thread.currentThread();
+        if (current instanceof Worker && ((Worker) current).owner == this) {
+            ((Worker) current).deque.addLast(t);
+        } else {
+            injected.add(t);
+        }
+        wakeIdleWorker();
+    }
+
+    /**
+     * Wakes one parked worker, if there is one.
+     */
+    void wakeIdleWorker() {
+        Worker w;
+        while ((w = idleWorkers.poll()) != null) {
+            if (w.idle.compareAndSet(true, false)) {
+                LockSupport.unpark(w);
+                return;
+            }
+            // stale entry; the worker found work on its own
+        }
+    }
+
+    Task steal(Worker thief) {
+        int n = workers.length;
+        int start = thief.nextVictim();
+        for (int i = 0; i < n; i++) {
+            Worker victim = workers[(start + i) % n];
+            if (victim == thief) continue;
+            Task t = victim.deque.pollLast();
+            if (t != null) {
+                steals.incrementAndGet();
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        for (Worker w : workers) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /** @return the number of tasks taken from another worker's deque */
+    public long getStealCount() {
+        return steals.get();
+    }
+
+    /** @return the number of times a worker parked for lack of work */
+    public long getParkCount() {
+        return parks.get();
+    }
+
+    public int getNumThreads() {
+        return workers.length;
+    }
+
+    @Override
+    public void dump() {
+        System.out.println("injected: " + injected);
+        for (Worker w : workers) {
+            System.out.println(w.getName() + ": " + w.deque);
+        }
+    }
+
+    static class Worker extends WorkerThread {
+        final StealingScheduler owner;
+        final ConcurrentLinkedDeque<Task> deque = new ConcurrentLinkedDeque<Task>();
+        final AtomicBoolean idle = new AtomicBoolean();
+        int seed;
+
+        Worker(StealingScheduler s, int index) {
+            super(s);
+            owner = s;
+            seed = index + 1;
+        }
+
+        int nextVictim() {
+            // xorshift; only touched by this worker
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return (x & Integer.MAX_VALUE) % owner.workers.length;
+        }
+
+        @Override
+        protected Task getNextTask(WorkerThread workerThread) throws ShutdownException {
+            while (true) {
+                if (owner.isShutdown())
+                    throw new ShutdownException();
+
+                Task t = findTask();
+                if (t != null) {
+                    return t;
+                }
+
+                // Advertise as idle, then look once more before parking so
+                // that a task scheduled in between is not missed.
+                if (idle.compareAndSet(false, true)) {
+                    owner.idleWorkers.add(this);
+                }
+                t = findTask();
+                if (t != null) {
+                    idle.set(false);
+                    return t;
+                }
+                if (!owner.isShutdown()) {
+                    owner.parks.incrementAndGet();
+                    LockSupport.park(this);
+                }
+                idle.set(false);
+            }
+        }
+
+        private Task findTask() {
+            Task t = null;
+            if (hasTasks()) { // tasks pinned to this thread
+                t = getNextTask();
+            }
+            if (t == null) t = deque.pollFirst();
+            if (t == null) t = owner.injected.poll();
+            if (t == null) t = owner.steal(this);
+            return t;
+        }
+
+        @Override
+        public void addRunnableTask(Task t) {
+            super.addRunnableTask(t);
+            idle.set(false);
+            LockSupport.unpark(this);
+        }
+    }
+}
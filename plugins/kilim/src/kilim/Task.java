@@ -9,8 +9,6 @@ package kilim;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -73,6 +71,19 @@ public abstract class Task implements EventSubscriber {
      * @see #informOnExit(Mailbox)
      */
     private LinkedList<Mailbox<ExitMsg>>  exitMBs;
+
+    /**
+     * Reused by Mailbox.select so that selecting does not allocate a
+     * listener on every call.
+     */
+    EmptySet_MsgAvListener selectListener;
+    
+    /**
+     * Wakes this task when a timed wait times out. The same timeout is
+     * rescheduled for every timed wait of this task, so that timed waits
+     * do not allocate. 
+     */
+    private WaitTimeout waitTimeout;
     
     /** 
      * The object responsible for handing this task to a thread
@@ -83,9 +94,6 @@ public abstract class Task implements EventSubscriber {
 
     public    Object           exitResult = "OK";
 
-    // TODO: move into a separate timer service or into the schduler.
-    public final static Timer timer = new Timer(true);
-
     public Task() {
         id = idSource.incrementAndGet();
         fiber = new Fiber(this);
@@ -327,14 +335,53 @@ public abstract class Task implements EventSubscriber {
      * doesn't hog the java thread.
      */
     public static void sleep(final long millis) throws Pausable {
-        // create a temp mailbox, and wait on it.
-        final Mailbox<Integer> sleepmb = new Mailbox<Integer>(1); // TODO: will need a better mechanism for monitoring later on.
-        timer.schedule(new TimerTask() {
-            public void run() {
-                sleepmb.putnb(0);
+        WaitTimeout timeout = getCurrentTask().scheduleWaitTimeout(null, null, millis);
+        while (!timeout.isExpired()) {
+            pause(timeout);
+        }
+    }
+    
+    /**
+     * Calls onEvent(source, event) on this task, or resume() if source is 
+     * null, after timeoutMillis milliseconds unless cancelWaitTimeout is 
+     * called first. 
+     * @return the timeout, which is also a reason to pause until it expires 
+     */
+    WaitTimeout scheduleWaitTimeout(EventPublisher source, Event event, long timeoutMillis) {
+        WaitTimeout timeout = waitTimeout;
+        if (timeout == null) {
+            waitTimeout = timeout = new WaitTimeout(this);
+        }
+        timeout.source = source;
+        timeout.event = event;
+        return TimerWheel.getDefault().schedule(timeout, timeoutMillis);
+    }
+    
+    void cancelWaitTimeout() {
+        waitTimeout.cancel();
+    }
+    
+    static final class WaitTimeout extends TimerWheel.Timeout implements PauseReason {
+        final Task task;
+        // written before the timeout is scheduled, read by the timer thread 
+        EventPublisher source;
+        Event event;
+        
+        WaitTimeout(Task task) {
+            this.task = task;
+        }
+        
+        public void run() {
+            if (source == null) {
+                task.resume();
+            } else {
+                task.onEvent(source, event);
             }
-        }, millis);
-        sleepmb.get(); // block until a message posted
+        }
+        
+        public boolean isValid(Task t) {
+            return !isExpired();
+        }
     }
 
     /**
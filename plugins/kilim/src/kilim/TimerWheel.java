@@ -0,0 +1,318 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license 
+ * specified in the file "License"
+ */
+
+package kilim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel, a replacement for java.util.Timer for the large
+ * numbers of short-lived timeouts that tasks create (mailbox timeouts, 
+ * sleeps). Timeouts are hashed by expiry tick into a circular array of 
+ * buckets, and a single daemon thread advances the wheel one bucket per tick, 
+ * running the timeouts whose time has come. Scheduling and cancelling are 
+ * O(1), lock-free and do not allocate; scheduled and cancelled timeouts are 
+ * handed to the timer thread through an intrusive list, and the timer thread 
+ * links or unlinks them on the next tick, or before it parks.
+ * 
+ * A timeout may be scheduled again once it has expired or been cancelled, 
+ * so that a task can reuse one timeout for all its timed waits. 
+ * 
+ * Timeouts run on the timer thread, so they must be brief. Typically they 
+ * just resume a paused task or hand some work to a scheduler. Errors thrown 
+ * by a timeout are passed to the timer thread's uncaught exception handler. 
+ * Timeouts are accurate to within one tick. When there are no timeouts the 
+ * timer thread parks instead of ticking.
+ */
+public class TimerWheel {
+    
+    /**
+     * A schedulable timeout. Subclasses implement run(). 
+     * A Timeout is only scheduled on one wheel, and is not scheduled again 
+     * before it has expired or been cancelled.
+     */
+    public static abstract class Timeout implements Runnable {
+        // the low two bits of state are the status, the rest counts the 
+        // times that the timeout was scheduled, so that a rescheduled 
+        // timeout is never mistaken for its previous schedule
+        static final int NEW = 0, PENDING = 1, CANCELLED = 2, EXPIRED = 3;
+        static final int STATUS = 3, SCHEDULED = 4;
+        static final AtomicIntegerFieldUpdater<Timeout> stateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+        static final AtomicIntegerFieldUpdater<Timeout> queuedUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "queued");
+        
+        volatile int state = NEW;
+        volatile long deadline; // System.nanoTime() based
+        volatile TimerWheel wheel;
+        volatile int queued; // 1 while on the wheel's list of changed timeouts
+        Timeout nextChanged;
+        
+        // only touched by the timer thread
+        long rounds;
+        Timeout next, prev; // bucket links
+        int bucket = -1; // -1 when not linked
+        int linkedState; // the state when the timeout was linked
+        
+        /**
+         * @return true if the timeout was cancelled before it expired 
+         */
+        public boolean cancel() {
+            int s;
+            while (((s = state) & STATUS) == PENDING) {
+                if (stateUpdater.compareAndSet(this, s, (s & ~STATUS) | CANCELLED)) {
+                    TimerWheel w = wheel;
+                    w.changed(this);
+                    // counted down after it is queued, see waitForTimeouts
+                    w.count.decrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        public boolean isCancelled() {
+            return (state & STATUS) == CANCELLED;
+        }
+        
+        public boolean isExpired() {
+            return (state & STATUS) == EXPIRED;
+        }
+    }
+    
+    private static TimerWheel defaultWheel;
+    
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final AtomicReference<Timeout> changedTimeouts = new AtomicReference<Timeout>();
+    final AtomicInteger count = new AtomicInteger(); // pending timeouts
+    private final Thread thread;
+    private volatile boolean idle = false;
+    
+    // only touched by the timer thread
+    private long startTime;
+    private long tick;
+    
+    /**
+     * The shared timer wheel: 10 millisecond ticks, 512 buckets.
+     */
+    public static synchronized TimerWheel getDefault() {
+        if (defaultWheel == null) {
+            defaultWheel = new TimerWheel(10, 512);
+        }
+        return defaultWheel;
+    }
+    
+    /**
+     * @param tickMillis  the duration of one tick
+     * @param wheelSize   the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        tickNanos = tickMillis * 1000000L;
+        buckets = new Timeout[size];
+        mask = size - 1;
+        startTime = System.nanoTime();
+        thread = new Thread("TimerWheel") {
+            public void run() {
+                TimerWheel.this.run();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Schedules the given timeout to run after delayMillis milliseconds.
+     * @return the given timeout 
+     */
+    public <T extends Timeout> T schedule(T timeout, long delayMillis) {
+        int s = timeout.state;
+        TimerWheel w = timeout.wheel;
+        if ((s & Timeout.STATUS) == Timeout.PENDING) {
+            throw new IllegalStateException("The timeout is already scheduled");
+        }
+        if (w != null && w != this) {
+            throw new IllegalStateException("A timeout may only be scheduled on one wheel");
+        }
+        timeout.wheel = this;
+        timeout.deadline = System.nanoTime() + Math.max(0, delayMillis) * 1000000L;
+        // counted before it is pending, see waitForTimeouts
+        count.incrementAndGet();
+        if (!Timeout.stateUpdater.compareAndSet(timeout, s, (s & ~Timeout.STATUS) + Timeout.SCHEDULED | Timeout.PENDING)) {
+            count.decrementAndGet();
+            throw new IllegalStateException("The timeout is being scheduled concurrently");
+        }
+        changed(timeout);
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+        return timeout;
+    }
+    
+    /**
+     * Schedules the given runnable to run after delayMillis milliseconds.
+     * @return a timeout that may be used to cancel the runnable 
+     */
+    public Timeout schedule(final Runnable runnable, long delayMillis) {
+        return schedule(new Timeout() {
+            public void run() {
+                runnable.run();
+            }
+        }, delayMillis);
+    }
+    
+    /**
+     * @return the number of timeouts that have been scheduled but have not 
+     * yet expired or been cancelled. 
+     */
+    public int size() {
+        return count.get();
+    }
+    
+    /**
+     * Hands a scheduled or cancelled timeout to the timer thread. 
+     * The state of the timeout must be changed before this is called. 
+     */
+    void changed(Timeout timeout) {
+        if (!Timeout.queuedUpdater.compareAndSet(timeout, 0, 1)) {
+            return; // already queued, the timer thread has yet to see the new state
+        }
+        Timeout head;
+        do {
+            head = changedTimeouts.get();
+            timeout.nextChanged = head;
+        } while (!changedTimeouts.compareAndSet(head, timeout));
+    }
+    
+    private void run() {
+        while (true) {
+            if (count.get() == 0) {
+                waitForTimeouts();
+            }
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            takeChangedTimeouts(true);
+            expire();
+            tick++;
+        }
+    }
+    
+    /**
+     * Unlink cancelled timeouts and park until a timeout is scheduled, and 
+     * then restart the clock from the current tick.
+     * Cancelled timeouts are queued before the count drops, and scheduled 
+     * timeouts are counted before they are queued, so when the count is zero 
+     * every cancelled timeout can be seen, and no pending timeout is linked 
+     * before the clock restarts.
+     */
+    private void waitForTimeouts() {
+        idle = true;
+        while (count.get() == 0) {
+            takeChangedTimeouts(false);
+            if (count.get() == 0) {
+                LockSupport.park(this);
+            }
+        }
+        idle = false;
+        startTime = System.nanoTime() - tick * tickNanos;
+    }
+    
+    /**
+     * Unlinks the timeouts that have changed since they were linked, and 
+     * links the pending ones again.
+     * @param link false if pending timeouts are to be left queued  
+     */
+    private void takeChangedTimeouts(boolean link) {
+        Timeout timeout = changedTimeouts.getAndSet(null);
+        while (timeout != null) {
+            Timeout next = timeout.nextChanged;
+            timeout.nextChanged = null;
+            timeout.queued = 0; // before the state is read, so that later changes queue it again
+            int s = timeout.state;
+            if (timeout.bucket >= 0 && timeout.linkedState != s) {
+                unlink(timeout);
+            }
+            if ((s & Timeout.STATUS) == Timeout.PENDING && timeout.bucket < 0) {
+                if (link) {
+                    link(timeout, s);
+                } else {
+                    changed(timeout);
+                }
+            }
+            timeout = next;
+        }
+    }
+    
+    private void link(Timeout timeout, int state) {
+        long expiryTick = (timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1;
+        if (expiryTick < tick) {
+            expiryTick = tick; // already due, expire on this tick 
+        }
+        timeout.rounds = (expiryTick - tick) / buckets.length;
+        int i = (int) (expiryTick & mask);
+        Timeout head = buckets[i];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[i] = timeout;
+        timeout.bucket = i;
+        timeout.linkedState = state;
+    }
+    
+    private void expire() {
+        int i = (int) (tick & mask);
+        Timeout timeout = buckets[i];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            int s = timeout.state;
+            if (s != timeout.linkedState) {
+                unlink(timeout); // cancelled or rescheduled since it was linked
+            } else if (timeout.rounds <= 0) {
+                unlink(timeout);
+                if (Timeout.stateUpdater.compareAndSet(timeout, s, (s & ~Timeout.STATUS) | Timeout.EXPIRED)) {
+                    count.decrementAndGet();
+                    try {
+                        timeout.run();
+                    } catch (Throwable t) {
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+    
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.next = timeout.prev = null;
+        timeout.bucket = -1;
+    }
+}
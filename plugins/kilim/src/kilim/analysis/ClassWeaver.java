@@ -15,6 +15,7 @@ import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.RETURN;
 import static org.objectweb.asm.Opcodes.V1_1;
+import static org.objectweb.asm.Opcodes.V1_6;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -73,7 +74,12 @@ public class ClassWeaver {
         ClassFlow cf = classFlow;
         // visits header
         String[] interfaces = toStringArray(cf.interfaces);
-        cv.visit(cf.version, cf.access, cf.name, cf.signature, cf.superName, interfaces);
+        // ASM 2 does not write stack map frames, which the verifier requires of
+        // class files newer than Java 6. Newer classes are written as Java 6
+        // classes, which the verifier checks by type inference instead.
+        // They must not use invokedynamic.
+        int version = (cf.version & 0xFFFF) > V1_6 ? V1_6 : cf.version;
+        cv.visit(version, cf.access, cf.name, cf.signature, cf.superName, interfaces);
         // visits source
         if (cf.sourceFile != null || cf.sourceDebug != null) {
             cv.visitSource(cf.sourceFile, cf.sourceDebug);
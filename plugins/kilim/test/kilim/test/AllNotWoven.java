@@ -22,6 +22,7 @@ public class AllNotWoven extends TestSuite {
         ret.addTestSuite(TestExprs.class);
 //        ret.addTestSuite(TestInvalidPausables.class);
         ret.addTestSuite(TestDynamicWeaver.class);
+        ret.addTestSuite(TestTimerWheel.class);
         return ret;
     }
 }
@@ -18,6 +18,7 @@ public class AllWoven extends TestSuite {
         ret.addTestSuite(TestYieldJSR.class);
         ret.addTestSuite(TestMailbox.class);
         ret.addTestSuite(TestLock.class);
+        ret.addTestSuite(TestStealingScheduler.class);
         ret.addTestSuite(TestGenerics.class);
         ret.addTestSuite(TestIO.class);
         ret.addTestSuite(TestHTTP.class);
@@ -6,10 +6,12 @@
 
 package kilim.test;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
 import junit.framework.TestCase;
+import kilim.ConcurrentMailbox;
 import kilim.Mailbox;
 import kilim.Pausable;
 import kilim.Task;
@@ -199,6 +201,77 @@ public class TestMailbox extends TestCase {
             assertTrue(m != null && sentMsgs.contains(m));
         }
     }
+    
+    public void testTimeout() {
+        Mailbox<Msg> mainmb = new Mailbox<Msg>();
+        TimeoutTaskMB t = new TimeoutTaskMB(mainmb);
+        t.start();
+        
+        // the task's mailbox is empty, so its get(timeout) should time out
+        Msg m = mainmb.getb(5000);
+        assertTrue(m != null && m.num == -1);
+        
+        // this time a message arrives before the timeout
+        assertTrue(t.mymb.putnb(new Msg(0, 1)));
+        m = mainmb.getb(5000);
+        assertTrue(m != null && m.num == 1);
+    }
+    
+    public void testDrain() {
+        Mailbox<Msg> mb = new Mailbox<Msg>(2, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mb.putnb(new Msg(0, i)));
+        }
+        assertFalse(mb.putnb(new Msg(0, 5)));
+        ArrayList<Msg> batch = new ArrayList<Msg>();
+        assertEquals(3, mb.drainnb(batch, 3));
+        assertEquals(2, mb.drainnb(batch, 10));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, batch.get(i).num);
+        }
+        assertEquals(0, mb.drainnb(batch, 10));
+    }
+    
+    // Many producer threads and several consumer tasks sharing one mailbox
+    public void testConcurrentMailbox() {
+        final ConcurrentMailbox<Msg> mb = new ConcurrentMailbox<Msg>(100);
+        Mailbox<Msg> mainmb = new ConcurrentMailbox<Msg>();
+        final int nThreads = 10;
+        final int nTimes = 1000;
+        for (int i = 0; i < 4; i++) {
+            new DrainTaskMB(mb, mainmb).start();
+        }
+        for (int i = 0; i < nThreads ; i++) {
+            final int id = i;
+            new Thread() {
+                public void run() {
+                    for (int j = 0; j < nTimes; j++) {
+                        mb.putb(new Msg(id, j));
+                    }
+                }
+            }.start();
+        }
+        HashSet<String> rcvd = new HashSet<String>();
+        for (int i = 0; i < nThreads * nTimes; i++) {
+            Msg m = mainmb.getb(5000);
+            assertNotNull("Timed out after " + i + " messages", m);
+            assertTrue(rcvd.add(m.tid + "/" + m.num));
+        }
+        assertNull(mainmb.getnb());
+    }
+
+    public void testConcurrentSelect() {
+        Mailbox<Msg> mainmb = new Mailbox<Msg>();
+        SelectTaskMB t = new SelectTaskMB(mainmb);
+        t.mymb1 = new ConcurrentMailbox<Msg>();
+        t.mymb2 = new ConcurrentMailbox<Msg>();
+        t.start();
+        for (int i = 0; i < 100; i++) {
+            Msg m = new Msg();
+            assertTrue(((i % 2 == 0) ? t.mymb1 : t.mymb2).putnb(m));
+            assertSame(m, mainmb.getb(1000));
+        }
+    }
 }
 
 class Msg {
@@ -292,4 +365,39 @@ class SelectTaskMB extends Task {
             }
         }
     }
-}
\ No newline at end of file
+}
+class DrainTaskMB extends Task {
+    Mailbox<Msg> mymb;
+    Mailbox<Msg> mainmb;
+    
+    DrainTaskMB(Mailbox<Msg> mb, Mailbox<Msg> main) {
+        mymb = mb;
+        mainmb = main;
+    }
+    
+    public void execute() throws Pausable {
+        ArrayList<Msg> batch = new ArrayList<Msg>();
+        while (true) {
+            mymb.drain(batch, 16);
+            for (Msg m: batch) {
+                mainmb.put(m);
+            }
+            batch.clear();
+        }
+    }
+}
+class TimeoutTaskMB extends Task {
+    Mailbox<Msg> mainmb;
+    Mailbox<Msg> mymb = new Mailbox<Msg>();
+    
+    TimeoutTaskMB(Mailbox<Msg> ms) {
+        mainmb = ms;
+    }
+    
+    public void execute() throws Pausable {
+        Msg m = mymb.get(50);
+        mainmb.putnb(m == null ? new Msg(id, -1) : m);
+        m = mymb.get(5000);
+        mainmb.putnb(m == null ? new Msg(id, -1) : m);
+    }
+}
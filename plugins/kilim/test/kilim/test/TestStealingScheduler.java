@@ -0,0 +1,102 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license 
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import junit.framework.TestCase;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.StealingScheduler;
+import kilim.Task;
+
+public class TestStealingScheduler extends TestCase {
+    
+    public void testManyTasks() {
+        StealingScheduler scheduler = new StealingScheduler(4);
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        int n = 10000;
+        for (int i = 0; i < n; i++) {
+            Task t = new YieldTask();
+            t.informOnExit(mb);
+            t.setScheduler(scheduler);
+            t.start();
+        }
+        for (int i = 0; i < n; i++) {
+            ExitMsg em = mb.getb(5000);
+            assertNotNull("Timed out. #tasks finished = " + i + "/" + n, em);
+        }
+        scheduler.shutdown();
+    }
+    
+    public void testRing() {
+        StealingScheduler scheduler = new StealingScheduler(4);
+        int n = 50;
+        int rounds = 100;
+        Mailbox<ExitMsg> exit = new Mailbox<ExitMsg>();
+        Mailbox<Integer> first = new Mailbox<Integer>();
+        Mailbox<Integer> mb = first;
+        for (int i = 0; i < n; i++) {
+            Mailbox<Integer> next = (i == n - 1) ? first : new Mailbox<Integer>();
+            Task t = new RingTask(mb, next, rounds);
+            t.informOnExit(exit);
+            t.setScheduler(scheduler);
+            t.start();
+            mb = next;
+        }
+        first.putnb(0);
+        for (int i = 0; i < n; i++) {
+            ExitMsg em = exit.getb(5000);
+            assertNotNull("Timed out. #tasks finished = " + i + "/" + n, em);
+        }
+        scheduler.shutdown();
+    }
+
+    public void testLocks() {
+        // tasks holding a kilim lock are pinned to a worker thread 
+        StealingScheduler scheduler = new StealingScheduler(4);
+        Mailbox<ExitMsg> mb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < 100; i++) {
+            Task t = new TestLock.LockTask();
+            t.informOnExit(mb);
+            t.setScheduler(scheduler);
+            t.start();
+        }
+        for (int i = 0; i < 100; i++) {
+            ExitMsg em = mb.getb(5000);
+            assertNotNull("Timed out. #tasks finished = " + i + "/100", em);
+            assertFalse(em.result instanceof Exception);
+        }
+        scheduler.shutdown();
+    }
+    
+    static class YieldTask extends Task {
+        @Override
+        public void execute() throws Pausable {
+            for (int i = 0; i < 10; i++) {
+                Task.yield();
+            }
+        }
+    }
+    
+    static class RingTask extends Task {
+        Mailbox<Integer> in;
+        Mailbox<Integer> out;
+        int rounds;
+        RingTask(Mailbox<Integer> in, Mailbox<Integer> out, int rounds) {
+            this.in = in;
+            this.out = out;
+            this.rounds = rounds;
+        }
+        @Override
+        public void execute() throws Pausable {
+            for (int i = 0; i < rounds; i++) {
+                Integer hops = in.get();
+                out.put(hops + 1);
+            }
+        }
+    }
+}
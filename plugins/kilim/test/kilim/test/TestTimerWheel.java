@@ -0,0 +1,165 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license 
+ * specified in the file "License"
+ */
+
+package kilim.test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import kilim.TimerWheel;
+
+public class TestTimerWheel extends TestCase {
+    
+    public void testExpiry() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 8); // small wheel, so that timeouts wrap around
+        final int n = 50;
+        final CountDownLatch latch = new CountDownLatch(n);
+        final long[] expired = new long[n];
+        final long begin = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            final int delay = i * 3;
+            final int index = i;
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    expired[index] = System.currentTimeMillis() - begin;
+                    latch.countDown();
+                }
+            }, delay);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < n; i++) {
+            // never early
+            assertTrue("timeout " + i + " expired early: " + expired[i], expired[i] >= i * 3);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    public void testCancel() throws InterruptedException {
+        TimerWheel wheel = TimerWheel.getDefault();
+        final AtomicInteger count = new AtomicInteger();
+        TimerWheel.Timeout cancelled = wheel.schedule(new Runnable() {
+            public void run() {
+                count.incrementAndGet();
+            }
+        }, 20);
+        final CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        }, 50);
+        assertTrue(cancelled.cancel());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(cancelled.isCancelled());
+        assertFalse(cancelled.cancel());
+        assertEquals(0, count.get());
+    }
+
+    public void testReschedule() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 8);
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch[] latch = { new CountDownLatch(1) };
+        TimerWheel.Timeout timeout = new TimerWheel.Timeout() {
+            public void run() {
+                count.incrementAndGet();
+                latch[0].countDown();
+            }
+        };
+        
+        // an expired timeout may be scheduled again
+        wheel.schedule(timeout, 10);
+        assertTrue(latch[0].await(5, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+        latch[0] = new CountDownLatch(1);
+        wheel.schedule(timeout, 10);
+        assertTrue(latch[0].await(5, TimeUnit.SECONDS));
+        assertEquals(2, count.get());
+        
+        // a cancelled timeout may be scheduled again at once, it only runs 
+        // for the new schedule, and never early
+        latch[0] = new CountDownLatch(1);
+        wheel.schedule(timeout, 10);
+        assertTrue(timeout.cancel());
+        long begin = System.currentTimeMillis();
+        wheel.schedule(timeout, 100);
+        try {
+            wheel.schedule(timeout, 100);
+            fail("a pending timeout must not be scheduled again");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(latch[0].await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - begin >= 100);
+        Thread.sleep(50);
+        assertEquals(3, count.get());
+        assertEquals(0, wheel.size());
+    }
+    
+    public void testCancelReleasesTimeout() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 8);
+        Object[] closure = new Object[1];
+        TimerWheel.Timeout timeout = scheduleWithClosure(wheel, closure, 60000);
+        WeakReference<Object> ref = new WeakReference<Object>(closure[0]);
+        closure[0] = null;
+        assertTrue(timeout.cancel());
+        timeout = null;
+        
+        // the wheel unlinks the cancelled timeout and parks, since nothing is pending
+        long end = System.currentTimeMillis() + 5000;
+        while (ref.get() != null && System.currentTimeMillis() < end) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertEquals(0, wheel.size());
+    }
+    
+    /**
+     * Schedules a timeout that refers to a new object, which is also 
+     * returned in closure[0].
+     */
+    private static TimerWheel.Timeout scheduleWithClosure(TimerWheel wheel, Object[] closure, long delayMillis) {
+        final Object object = closure[0] = new Object();
+        return wheel.schedule(new Runnable() {
+            public void run() {
+                object.hashCode();
+            }
+        }, delayMillis);
+    }
+    
+    public void testError() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 8);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            public void uncaughtException(Thread t, Throwable e) {
+                error.set(e);
+            }
+        });
+        try {
+            final RuntimeException thrown = new RuntimeException("timeout failed");
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    throw thrown;
+                }
+            }, 5);
+            // the wheel keeps running after an error
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    latch.countDown();
+                }
+            }, 20);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertSame(thrown, error.get());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+}